@@ -1,6 +1,6 @@
 package com.datastax.log.agent;
 
-import com.datastax.log.agent.service.LogCollector;
+import com.datastax.log.agent.service.FileDiscovery;
 import com.datastax.log.agent.service.LogHandler;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
@@ -14,16 +14,19 @@ import java.util.List;
  * SpringBoot provides a CommandLineRunner hook to startup application resources.
  * We'll use it to read the input log filename(s) from the command line,
  * and start the worker threads used for log line processing.
+ * The filenames may be left out when watchPaths are configured, the files are then found by FileDiscovery.
  *
  * @author cingham
  */
 @Component
 public class CommandLineStartupRunner implements CommandLineRunner {
     private final LogHandler logHandler;
+    private final FileDiscovery fileDiscovery;
     private Thread logHandlerThread;
 
-	CommandLineStartupRunner(LogHandler logHandler) {
+	CommandLineStartupRunner(LogHandler logHandler, FileDiscovery fileDiscovery) {
 		this.logHandler = logHandler;
+		this.fileDiscovery = fileDiscovery;
 	}
 
 	/**
@@ -38,17 +41,22 @@ public class CommandLineStartupRunner implements CommandLineRunner {
 
         // for each file startup the collector thread
 		for (File file : inputFiles) {
-			LogCollector logCollector = new LogCollector(file);
-			logHandler.addLogCollector(logCollector);
+			if (!logHandler.addLogFile(file)) {
+				throw new RuntimeException("Cannot tail input file, it is given twice or there are more than maxTailedFiles: " + file);
+			}
 		}
 
+		// tail the files matching the watch paths, now and as they appear
+		fileDiscovery.start();
+
         // start thread to periodically upload collected log lines
 		logHandlerThread = new Thread(logHandler);
         logHandlerThread.start();
     }
 
 	/**
-	 * Check that valid input filename(s) are provided on the command line
+	 * Check that valid input filename(s) are provided on the command line.
+	 * Options (--name=value) are config settings, which SpringBoot has already applied, so they are skipped.
 	 * @param args command line args
 	 * @return list of File objects representing the specified filename(s)
 	 */
@@ -57,6 +65,10 @@ public class CommandLineStartupRunner implements CommandLineRunner {
 		int index = 0;
 		while (args.length > index && args[index] != null && args[index].length() != 0) {
 			String filename = args[index];
+			if (filename.startsWith("--")) {
+				index++;
+				continue;
+			}
 			File inputFile = new File(filename);
 			if (!inputFile.exists()) {
 				throw new RuntimeException("Cannot find input file: " + filename);
@@ -65,7 +77,7 @@ public class CommandLineStartupRunner implements CommandLineRunner {
 			index++;
 		}
 
-		if (fileList.size() == 0) {
+		if (fileList.size() == 0 && (fileDiscovery == null || !fileDiscovery.hasWatchPaths())) {
 			throw new RuntimeException("Missing filename argument on command line");
 		}
 
@@ -0,0 +1,248 @@
+package com.datastax.log.agent.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/**
+ * A list of lines kept as their UTF-8 bytes, packed one after another in pages from a BytePagePool, with the
+ * boundaries of each line in primitive arrays.  Adding a line copies its bytes in, no object is created for it,
+ * and the pages go back to the pool as lines are removed from the front or the list is cleared.
+ * A line longer than a page gets a page of its own, which is not pooled.
+ *
+ * Each line also keeps the source bytes it took up in the file (with its newline, or CR LF), so offsets can
+ * be worked out without looking at its text.  A line may also carry the timestamp it starts with (see
+ * TimestampParser), the timestamps are only kept once the first one is added.
+ *
+ * It is also a read only List of String, each line decoded when it is asked for, for whatever needs the text
+ * rather than the bytes.  Not thread safe.
+ *
+ * @author cingham
+ */
+public class ByteLines extends AbstractList<String> {
+	private static final int INITIAL_LINES = 16;
+	private static final int INITIAL_PAGES = 4;
+
+	private final BytePagePool pool;
+	private final int pageSize;
+
+	// pages [firstPage, pageCount) hold lines, the last one is being filled up to pageUsed
+	private byte[][] pages = new byte[INITIAL_PAGES][];
+	private int firstPage;
+	private int pageCount;
+	private int pageUsed;
+
+	// for each line: its page, where it starts in the page, its length and its source bytes,
+	// lines [first, end) are in the list
+	private int[] linePages = new int[INITIAL_LINES];
+	private int[] lineStarts = new int[INITIAL_LINES];
+	private int[] lineLengths = new int[INITIAL_LINES];
+	private int[] lineSourceBytes = new int[INITIAL_LINES];
+	private long[] lineTimestamps;		// null until a line has a timestamp
+	private int first;
+	private int end;
+
+	/**
+	 * @param pool where the pages come from and go back to
+	 */
+	public ByteLines(BytePagePool pool) {
+		this.pool = pool;
+		this.pageSize = pool.getPageSize();
+	}
+
+	/**
+	 * Copy a line to the end of the list
+	 *
+	 * @param bytes buffer holding the line, without its line terminator
+	 * @param offset start of the line in the buffer
+	 * @param length length of the line
+	 * @param sourceBytes bytes the line took up in the file, including its line terminator
+	 */
+	public void add(byte[] bytes, int offset, int length, int sourceBytes) {
+		add(bytes, offset, length, sourceBytes, TimestampParser.NONE);
+	}
+
+	/**
+	 * Copy a line to the end of the list, with the timestamp it starts with
+	 *
+	 * @param bytes buffer holding the line, without its line terminator
+	 * @param offset start of the line in the buffer
+	 * @param length length of the line
+	 * @param sourceBytes bytes the line took up in the file, including its line terminator
+	 * @param timestamp epoch millis of the line, TimestampParser.NONE if it has none
+	 */
+	public void add(byte[] bytes, int offset, int length, int sourceBytes, long timestamp) {
+		if (end == linePages.length) {
+			makeRoomForLines();
+		}
+		if (length > pageSize) {
+			addPage(new byte[length]);
+		} else if (pageCount == firstPage || pageUsed + length > pageSize) {
+			addPage(pool.acquire());
+		}
+		int page = pageCount - 1;
+		System.arraycopy(bytes, offset, pages[page], pageUsed, length);
+		linePages[end] = page;
+		lineStarts[end] = pageUsed;
+		lineLengths[end] = length;
+		lineSourceBytes[end] = sourceBytes;
+		if (timestamp != TimestampParser.NONE && lineTimestamps == null) {
+			lineTimestamps = new long[linePages.length];
+			Arrays.fill(lineTimestamps, TimestampParser.NONE);
+		}
+		if (lineTimestamps != null) {
+			lineTimestamps[end] = timestamp;
+		}
+		pageUsed += length;
+		end++;
+		modCount++;
+	}
+
+	/**
+	 * Copy lines from the front of another list to the end of this one
+	 *
+	 * @param lines the other list
+	 * @param count number of its lines to copy
+	 */
+	public void addAll(ByteLines lines, int count) {
+		for (int i = 0; i < count; i++) {
+			add(lines.array(i), lines.offset(i), lines.length(i), lines.sourceBytes(i), lines.timestamp(i));
+		}
+	}
+
+	/**
+	 * @return the buffer holding line i, which starts at offset(i)
+	 */
+	public byte[] array(int i) {
+		return pages[linePages[first + i]];
+	}
+
+	public int offset(int i) {
+		return lineStarts[first + i];
+	}
+
+	public int length(int i) {
+		return lineLengths[first + i];
+	}
+
+	/**
+	 * @return bytes line i took up in the file, including its line terminator
+	 */
+	public int sourceBytes(int i) {
+		return lineSourceBytes[first + i];
+	}
+
+	/**
+	 * @return epoch millis line i starts with, TimestampParser.NONE if it has none
+	 */
+	public long timestamp(int i) {
+		return (lineTimestamps == null) ? TimestampParser.NONE : lineTimestamps[first + i];
+	}
+
+	/**
+	 * @return true once a line with a timestamp has been added (lines without one are TimestampParser.NONE)
+	 */
+	public boolean hasTimestamps() {
+		return lineTimestamps != null;
+	}
+
+	/**
+	 * @return line i decoded, a new String each time
+	 */
+	@Override
+	public String get(int i) {
+		if (i < 0 || i >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+		}
+		return new String(array(i), offset(i), length(i), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public int size() {
+		return end - first;
+	}
+
+	/**
+	 * Remove lines from the front of the list, handing back the pages which no longer hold any line
+	 *
+	 * @param count number of lines, no more than size()
+	 */
+	public void removeFirst(int count) {
+		if (count <= 0) {
+			return;
+		}
+		if (count >= size()) {
+			clear();
+			return;
+		}
+		first += count;
+		int keepFrom = linePages[first];
+		while (firstPage < keepFrom) {
+			pool.release(pages[firstPage]);
+			pages[firstPage++] = null;
+		}
+		modCount++;
+	}
+
+	/**
+	 * Remove every line and hand back all of the pages
+	 */
+	@Override
+	public void clear() {
+		for (int i = firstPage; i < pageCount; i++) {
+			pool.release(pages[i]);
+			pages[i] = null;
+		}
+		firstPage = 0;
+		pageCount = 0;
+		pageUsed = 0;
+		first = 0;
+		end = 0;
+		modCount++;
+	}
+
+	private void addPage(byte[] page) {
+		if (pageCount == pages.length) {
+			if (firstPage > 0) {
+				// move the pages in use to the front, rather than growing
+				int inUse = pageCount - firstPage;
+				System.arraycopy(pages, firstPage, pages, 0, inUse);
+				Arrays.fill(pages, inUse, pageCount, null);
+				for (int i = first; i < end; i++) {
+					linePages[i] -= firstPage;
+				}
+				pageCount = inUse;
+				firstPage = 0;
+			} else {
+				pages = Arrays.copyOf(pages, pages.length * 2);
+			}
+		}
+		pages[pageCount++] = page;
+		pageUsed = 0;
+	}
+
+	/**
+	 * The line arrays are full: move the lines to the front if that frees at least half of them, otherwise grow
+	 */
+	private void makeRoomForLines() {
+		int size = end - first;
+		int capacity = (first >= linePages.length / 2) ? linePages.length : linePages.length * 2;
+		linePages = moveLines(linePages, capacity);
+		lineStarts = moveLines(lineStarts, capacity);
+		lineLengths = moveLines(lineLengths, capacity);
+		lineSourceBytes = moveLines(lineSourceBytes, capacity);
+		if (lineTimestamps != null) {
+			long[] moved = (capacity == lineTimestamps.length) ? lineTimestamps : new long[capacity];
+			System.arraycopy(lineTimestamps, first, moved, 0, size);
+			lineTimestamps = moved;
+		}
+		first = 0;
+		end = size;
+	}
+
+	private int[] moveLines(int[] values, int capacity) {
+		int[] moved = (capacity == values.length) ? values : new int[capacity];
+		System.arraycopy(values, first, moved, 0, end - first);
+		return moved;
+	}
+}
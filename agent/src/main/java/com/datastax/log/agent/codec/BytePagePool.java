@@ -0,0 +1,61 @@
+package com.datastax.log.agent.codec;
+
+/**
+ * Heap byte pages of one size, which ByteLines keep their lines in.  Pages are handed back as lines are
+ * uploaded and reused for the next ones, so holding lines costs no allocation once the pool has warmed up.
+ * At most maxPooled free pages are kept, any more (and pages of another size) are left to the garbage collector.
+ *
+ * A plain array under a lock rather than a concurrent queue, which would allocate a node for every page handed back.
+ *
+ * @author cingham
+ */
+public class BytePagePool {
+	private final int pageSize;
+	private final byte[][] free;
+	private int pooled;		// guarded by this
+
+	/**
+	 * @param pageSize size of each page
+	 * @param maxPooled most free pages kept
+	 */
+	public BytePagePool(int pageSize, int maxPooled) {
+		this.pageSize = pageSize;
+		this.free = new byte[Math.max(0, maxPooled)][];
+	}
+
+	/**
+	 * @return a page, from the pool if there is one
+	 */
+	public byte[] acquire() {
+		synchronized (this) {
+			if (pooled > 0) {
+				byte[] page = free[--pooled];
+				free[pooled] = null;
+				return page;
+			}
+		}
+		return new byte[pageSize];
+	}
+
+	/**
+	 * @param page a page which is no longer used
+	 */
+	public void release(byte[] page) {
+		if (page.length != pageSize) {
+			return;
+		}
+		synchronized (this) {
+			if (pooled < free.length) {
+				free[pooled++] = page;
+			}
+		}
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public synchronized int getPooled() {
+		return pooled;
+	}
+}
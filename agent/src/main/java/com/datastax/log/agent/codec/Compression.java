@@ -0,0 +1,33 @@
+package com.datastax.log.agent.codec;
+
+/**
+ * Block compression used in the binary log batch format.
+ * The id is written in the batch header so the reader knows how to decompress each block.
+ *
+ * @author cingham
+ */
+public enum Compression {
+	NONE(0),
+	GZIP(1),
+	LZ4(2),
+	ZSTD(3);
+
+	private final int id;
+
+	Compression(int id) {
+		this.id = id;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public static Compression fromId(int id) {
+		for (Compression compression : values()) {
+			if (compression.id == id) {
+				return compression;
+			}
+		}
+		throw new IllegalArgumentException("Unknown compression id: " + id);
+	}
+}
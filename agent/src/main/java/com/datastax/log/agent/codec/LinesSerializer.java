@@ -0,0 +1,94 @@
+package com.datastax.log.agent.codec;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.json.UTF8JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes the lines of an upload as a JSON array of strings.  Lines held in ByteLines are written from their
+ * UTF-8 bytes (JsonGenerator.writeUTF8String() escapes them as it copies), so they are never decoded to Strings.
+ * A line which is not valid UTF-8 is decoded first, its bad bytes replaced just as when lines were read as text.
+ *
+ * @author cingham
+ */
+public class LinesSerializer extends StdSerializer<List<String>> {
+
+	@SuppressWarnings("unchecked")
+	public LinesSerializer() {
+		super((Class<List<String>>) (Class<?>) List.class);
+	}
+
+	@Override
+	public void serialize(List<String> lines, JsonGenerator gen, SerializerProvider provider) throws IOException {
+		gen.writeStartArray(lines.size());
+		if (lines instanceof ByteLines && gen instanceof UTF8JsonGenerator) {
+			ByteLines byteLines = (ByteLines) lines;
+			for (int i = 0; i < byteLines.size(); i++) {
+				byte[] bytes = byteLines.array(i);
+				int offset = byteLines.offset(i);
+				int length = byteLines.length(i);
+				if (isValidUtf8(bytes, offset, length)) {
+					gen.writeUTF8String(bytes, offset, length);
+				} else {
+					gen.writeString(new String(bytes, offset, length, StandardCharsets.UTF_8));
+				}
+			}
+		} else {
+			for (String line : lines) {
+				gen.writeString(line);
+			}
+		}
+		gen.writeEndArray();
+	}
+
+	/**
+	 * Whether bytes are well formed UTF-8: no stray continuation bytes, truncated or overlong sequences,
+	 * surrogates, or code points past U+10FFFF
+	 */
+	static boolean isValidUtf8(byte[] bytes, int offset, int length) {
+		int end = offset + length;
+		int i = offset;
+		while (i < end) {
+			int b = bytes[i];
+			if (b >= 0) {
+				i++;		// ASCII, by far the most common
+				continue;
+			}
+			int count;
+			int min;
+			if ((b & 0xE0) == 0xC0) {
+				count = 1;
+				min = 0x80;
+			} else if ((b & 0xF0) == 0xE0) {
+				count = 2;
+				min = 0x800;
+			} else if ((b & 0xF8) == 0xF0) {
+				count = 3;
+				min = 0x10000;
+			} else {
+				return false;
+			}
+			if (i + count >= end) {
+				return false;
+			}
+			int codePoint = b & (0x3F >> count);
+			for (int j = 1; j <= count; j++) {
+				int next = bytes[i + j];
+				if ((next & 0xC0) != 0x80) {
+					return false;
+				}
+				codePoint = (codePoint << 6) | (next & 0x3F);
+			}
+			if (codePoint < min || codePoint > 0x10FFFF || (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
+				return false;
+			}
+			i += count + 1;
+		}
+		return true;
+	}
+}
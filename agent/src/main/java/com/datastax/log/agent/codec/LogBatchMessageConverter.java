@@ -0,0 +1,90 @@
+package com.datastax.log.agent.codec;
+
+import com.datastax.log.agent.dto.LogDto;
+import com.datastax.log.agent.dto.MultiLogDto;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes an upload to the request body in the binary log batch format (see LogBatchWriter), used when the
+ * request's Content-Type is application/x-log-batch, or application/x-log-batches for a MultiLogDto.
+ * The batch is encoded straight into the request as it is sent, rather than into a byte array of the whole body first.
+ *
+ * @author cingham
+ */
+public class LogBatchMessageConverter extends AbstractHttpMessageConverter<Object> {
+	private static final MediaType BATCH = MediaType.parseMediaType(LogBatchWriter.CONTENT_TYPE);
+	private static final MediaType MULTI_BATCH = MediaType.parseMediaType(LogBatchWriter.MULTI_CONTENT_TYPE);
+
+	private final Compression compression;
+
+	/**
+	 * @param compression block compression to use
+	 */
+	public LogBatchMessageConverter(Compression compression) {
+		super(BATCH, MULTI_BATCH);
+		this.compression = (compression != null) ? compression : Compression.NONE;
+	}
+
+	@Override
+	protected boolean supports(Class<?> clazz) {
+		return LogDto.class.isAssignableFrom(clazz) || MultiLogDto.class.isAssignableFrom(clazz);
+	}
+
+	@Override
+	public boolean canRead(Class<?> clazz, MediaType mediaType) {
+		return false;
+	}
+
+	@Override
+	public boolean canWrite(Class<?> clazz, MediaType mediaType) {
+		if (mediaType == null) {
+			return supports(clazz);
+		}
+		if (LogDto.class.isAssignableFrom(clazz)) {
+			return BATCH.includes(mediaType);
+		}
+		return MultiLogDto.class.isAssignableFrom(clazz) && MULTI_BATCH.includes(mediaType);
+	}
+
+	@Override
+	protected MediaType getDefaultContentType(Object body) {
+		return (body instanceof MultiLogDto) ? MULTI_BATCH : BATCH;
+	}
+
+	@Override
+	protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) {
+		throw new HttpMessageNotReadableException("Log batches are only written", inputMessage);
+	}
+
+	@Override
+	protected void writeInternal(Object body, HttpOutputMessage outputMessage) throws IOException {
+		OutputStream out = outputMessage.getBody();
+		if (body instanceof MultiLogDto) {
+			MultiLogDto multiLogDto = (MultiLogDto) body;
+			DataOutputStream header = new DataOutputStream(out);
+			header.writeInt(LogBatchWriter.MULTI_MAGIC);
+			header.writeInt(multiLogDto.getEntries().size());
+			for (LogDto logDto : multiLogDto.getEntries()) {
+				writeBatch(logDto, out);
+			}
+		} else {
+			writeBatch((LogDto) body, out);
+		}
+	}
+
+	private void writeBatch(LogDto logDto, OutputStream out) throws IOException {
+		try (LogBatchWriter batch = new LogBatchWriter(out, compression,
+				LogBatchWriter.DEFAULT_BLOCK_SIZE, logDto.getFilename(), logDto.getFileId(),
+				logDto.getStartOffset(), logDto.getEndOffset(), logDto.hasTimestamps())) {
+			batch.writeLines(logDto.getLines());
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package com.datastax.log.agent.codec;
+
+import com.github.luben.zstd.Zstd;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Encoder for the binary log batch format (Content-Type application/x-log-batch).
+ *
+ *    int    magic "LGB1"
+ *    byte   compression id, see Compression
+ *    UTF    filename
+ *    UTF    fileId, empty if the source is not offset tracked
+ *    long   startOffset
+ *    long   endOffset
+ *    blocks, each:
+ *       int   raw (uncompressed) length, 0 marks the end of the batch
+ *       int   compressed length
+ *       bytes compressed block
+ *
+ * An uncompressed block is a sequence of lines, each a varint byte length followed by the raw line bytes
+ * (no line terminator).  A batch whose lines carry timestamps (magic "LGB2", see TimestampParser) follows
+ * each line with a varlong: 0 for a line without a timestamp, otherwise 1 + the zigzag encoded difference
+ * from the last timestamp before it in the batch (from 0), so lines logged close together take a byte or two.
+ * Lines are packed into a block buffer which is compressed and written out
+ * whenever it fills, so the service can decode and write the batch as a stream.
+ *
+ * A multi-file upload (Content-Type application/x-log-batches) carries one batch for each file:
+ *
+ *    int    magic "LGM1"
+ *    int    number of batches
+ *    the batches, one after another, each as above
+ *
+ * The block and compression buffers (and the Deflater) are kept for the thread and reused by its next batch,
+ * and lines held in ByteLines are copied straight from their pages, so encoding allocates nothing per line.
+ *
+ * @author cingham
+ */
+public class LogBatchWriter implements Closeable {
+	public static final String CONTENT_TYPE = "application/x-log-batch";
+	public static final int MAGIC = 0x4C474231;		// "LGB1"
+	public static final int TIMESTAMPS_MAGIC = 0x4C474232;	// "LGB2", each line followed by its timestamp
+	public static final String MULTI_CONTENT_TYPE = "application/x-log-batches";
+	public static final int MULTI_MAGIC = 0x4C474D31;	// "LGM1"
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+	private static final LZ4Compressor lz4 = LZ4Factory.fastestInstance().fastCompressor();
+	private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+	private final DataOutputStream out;
+	private final Compression compression;
+	private final Scratch buffers;
+	private final byte[] block;
+	private final boolean timestamps;
+	private int blockLength;
+	private long lastTimestamp;
+
+	/**
+	 * Write the batch header to the stream
+	 *
+	 * @param out where the batch is written
+	 * @param compression block compression to use
+	 * @param blockSize target uncompressed block size in bytes
+	 * @param filename name of the source file
+	 * @param fileId identity (epoch) of the source file, may be null
+	 * @param startOffset source offset of the first line
+	 * @param endOffset source offset just after the last line
+	 * @throws IOException stream error
+	 */
+	public LogBatchWriter(OutputStream out, Compression compression, int blockSize,
+			String filename, String fileId, long startOffset, long endOffset) throws IOException {
+		this(out, compression, blockSize, filename, fileId, startOffset, endOffset, false);
+	}
+
+	/**
+	 * Write the batch header to the stream
+	 *
+	 * @param out where the batch is written
+	 * @param compression block compression to use
+	 * @param blockSize target uncompressed block size in bytes
+	 * @param filename name of the source file
+	 * @param fileId identity (epoch) of the source file, may be null
+	 * @param startOffset source offset of the first line
+	 * @param endOffset source offset just after the last line
+	 * @param timestamps true to send the timestamp of each line (needs a service which reads "LGB2")
+	 * @throws IOException stream error
+	 */
+	public LogBatchWriter(OutputStream out, Compression compression, int blockSize, String filename,
+			String fileId, long startOffset, long endOffset, boolean timestamps) throws IOException {
+		this.out = new DataOutputStream(out);
+		this.compression = compression;
+		this.buffers = scratch.get();
+		if (buffers.block == null || buffers.block.length != blockSize) {
+			buffers.block = new byte[blockSize];
+		}
+		this.block = buffers.block;
+		this.timestamps = timestamps;
+
+		this.out.writeInt(timestamps ? TIMESTAMPS_MAGIC : MAGIC);
+		this.out.writeByte(compression.getId());
+		this.out.writeUTF(filename);
+		this.out.writeUTF(fileId == null ? "" : fileId);
+		this.out.writeLong(startOffset);
+		this.out.writeLong(endOffset);
+	}
+
+	/**
+	 * Add a line to the batch
+	 *
+	 * @param bytes buffer holding the line, without its line terminator
+	 * @param offset start of the line in the buffer
+	 * @param length length of the line
+	 * @throws IOException stream error
+	 */
+	public void writeLine(byte[] bytes, int offset, int length) throws IOException {
+		writeLine(bytes, offset, length, TimestampParser.NONE);
+	}
+
+	/**
+	 * Add a line to the batch, with its timestamp if the batch carries them
+	 *
+	 * @param bytes buffer holding the line, without its line terminator
+	 * @param offset start of the line in the buffer
+	 * @param length length of the line
+	 * @param timestamp epoch millis of the line, TimestampParser.NONE if it has none
+	 * @throws IOException stream error
+	 */
+	public void writeLine(byte[] bytes, int offset, int length, long timestamp) throws IOException {
+		int overhead = timestamps ? 15 : 5;
+		if (blockLength + overhead + length > block.length && blockLength > 0) {
+			writeBlock();
+		}
+		if (overhead + length > block.length) {
+			writeLargeLine(bytes, offset, length, timestamp);
+			return;
+		}
+		blockLength = writeVarint(block, blockLength, length);
+		System.arraycopy(bytes, offset, block, blockLength, length);
+		blockLength += length;
+		if (timestamps) {
+			blockLength = writeTimestamp(block, blockLength, timestamp);
+		}
+	}
+
+	/**
+	 * Add every line of a list to the batch, lines held in ByteLines are written from their bytes
+	 *
+	 * @param lines the lines, without their line terminators
+	 * @throws IOException stream error
+	 */
+	public void writeLines(List<String> lines) throws IOException {
+		if (lines instanceof ByteLines) {
+			ByteLines byteLines = (ByteLines) lines;
+			for (int i = 0; i < byteLines.size(); i++) {
+				writeLine(byteLines.array(i), byteLines.offset(i), byteLines.length(i), byteLines.timestamp(i));
+			}
+			return;
+		}
+		for (String line : lines) {
+			byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+			writeLine(bytes, 0, bytes.length);
+		}
+	}
+
+	/**
+	 * Write any buffered lines and the end of batch marker
+	 *
+	 * @throws IOException stream error
+	 */
+	@Override
+	public void close() throws IOException {
+		if (blockLength > 0) {
+			writeBlock();
+		}
+		out.writeInt(0);
+		out.flush();
+	}
+
+	/**
+	 * A line bigger than the block buffer gets a block of its own
+	 */
+	private void writeLargeLine(byte[] bytes, int offset, int length, long timestamp) throws IOException {
+		byte[] single = new byte[15 + length];
+		int start = writeVarint(single, 0, length);
+		System.arraycopy(bytes, offset, single, start, length);
+		int end = start + length;
+		if (timestamps) {
+			end = writeTimestamp(single, end, timestamp);
+		}
+		writeBlock(single, end);
+	}
+
+	private void writeBlock() throws IOException {
+		writeBlock(block, blockLength);
+		blockLength = 0;
+	}
+
+	private void writeBlock(byte[] raw, int rawLength) throws IOException {
+		out.writeInt(rawLength);
+		if (compression == Compression.NONE) {
+			out.writeInt(rawLength);
+			out.write(raw, 0, rawLength);
+			return;
+		}
+
+		int compressedLength;
+		byte[] compressed;
+		switch (compression) {
+			case GZIP:
+				compressed = ensureCompressed(rawLength + rawLength / 1000 + 64);
+				if (buffers.deflater == null) {
+					buffers.deflater = new Deflater(Deflater.BEST_SPEED);
+				}
+				Deflater deflater = buffers.deflater;
+				deflater.reset();
+				deflater.setInput(raw, 0, rawLength);
+				deflater.finish();
+				compressedLength = 0;
+				while (!deflater.finished()) {
+					if (compressedLength == compressed.length) {
+						compressed = ensureCompressed(compressed.length * 2);
+					}
+					compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+				}
+				break;
+			case LZ4:
+				compressed = ensureCompressed(lz4.maxCompressedLength(rawLength));
+				compressedLength = lz4.compress(raw, 0, rawLength, compressed, 0, compressed.length);
+				break;
+			case ZSTD:
+				compressed = ensureCompressed((int) Zstd.compressBound(rawLength));
+				long size = Zstd.compressByteArray(compressed, 0, compressed.length, raw, 0, rawLength, 1);
+				if (Zstd.isError(size)) {
+					throw new IOException("Error compressing block: " + Zstd.getErrorName(size));
+				}
+				compressedLength = (int) size;
+				break;
+			default:
+				throw new IllegalStateException("Unexpected compression " + compression);
+		}
+		out.writeInt(compressedLength);
+		out.write(compressed, 0, compressedLength);
+	}
+
+	private byte[] ensureCompressed(int size) {
+		if (buffers.compressed.length < size) {
+			buffers.compressed = Arrays.copyOf(buffers.compressed, size);
+		}
+		return buffers.compressed;
+	}
+
+	/**
+	 * Buffers kept for a thread between batches
+	 */
+	private static class Scratch {
+		private byte[] block;
+		private byte[] compressed = new byte[0];
+		private Deflater deflater;
+	}
+
+	private int writeTimestamp(byte[] buffer, int position, long timestamp) {
+		if (timestamp == TimestampParser.NONE) {
+			buffer[position++] = 0;
+			return position;
+		}
+		long delta = timestamp - lastTimestamp;
+		lastTimestamp = timestamp;
+		long value = ((delta << 1) ^ (delta >> 63)) + 1;
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	private static int writeVarint(byte[] buffer, int position, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+}
@@ -0,0 +1,255 @@
+package com.datastax.log.agent.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParsePosition;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalQueries;
+import java.time.zone.ZoneRules;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads the timestamp an event starts with, from its bytes, as epoch millis.
+ *
+ * Without a pattern it understands the ISO-8601 style timestamps most loggers write (as the Service's
+ * LineTimestamps does), optionally inside a leading '[':
+ * 		yyyy-MM-dd'T'HH:mm:ss[.SSS][zone]
+ * 		yyyy-MM-dd HH:mm:ss[,SSS][zone]
+ * read straight from the bytes.  Lines logged close together share the date, hour and minute, so the epoch
+ * millis of the last "yyyy-MM-dd HH:mm" prefix are kept and a line starting with the same bytes only has its
+ * seconds, fraction and zone read.
+ *
+ * With a pattern (see DateTimeFormatter) the timestamp is parsed by a formatter built once for each pattern,
+ * and shared.  That is far slower, so the text of the last timestamp parsed is kept, and a line
+ * starting with the same text (every line logged within the same second, or millisecond) reuses its value.
+ *
+ * A timestamp without a zone is taken to be in the configured zone.  Keeps the last timestamp it read, so an
+ * instance is only used by one thread at a time.
+ *
+ * @author cingham
+ */
+public class TimestampParser {
+	/** returned when a line does not start with a timestamp */
+	public static final long NONE = Long.MIN_VALUE;
+
+	// a formatted timestamp is looked for in this many characters at the start of the line
+	private static final int MAX_FORMATTED_LENGTH = 64;
+	private static final int ISO_PREFIX_LENGTH = 16;		// yyyy-MM-dd HH:mm
+	private static final Map<String, DateTimeFormatter> formatters = new ConcurrentHashMap<>();
+
+	private final DateTimeFormatter formatter;		// null for ISO-8601
+	private final ZoneId zone;
+	private final ZoneRules zoneRules;
+	private final Ascii text = new Ascii();
+	private final ParsePosition position = new ParsePosition(0);
+
+	// the last ISO-8601 prefix (from its first digit) and its epoch millis, before the zone offset
+	private final byte[] lastPrefix = new byte[ISO_PREFIX_LENGTH];
+	private long lastPrefixMillis = NONE;
+	// the text of the last formatted timestamp and its epoch millis
+	private byte[] lastText = new byte[MAX_FORMATTED_LENGTH];
+	private int lastTextLength;
+	private long lastTextMillis = NONE;
+
+	/**
+	 * @param pattern DateTimeFormatter pattern of the timestamps, null for ISO-8601
+	 * @param zone zone of timestamps which do not give one
+	 * @throws IllegalArgumentException the pattern is not valid
+	 */
+	public TimestampParser(String pattern, ZoneId zone) {
+		this.zone = zone;
+		this.zoneRules = zone.getRules();
+		this.formatter = (pattern == null) ? null
+			: formatters.computeIfAbsent(pattern, key -> DateTimeFormatter.ofPattern(pattern, Locale.ROOT));
+	}
+
+	/**
+	 * @param line the line's bytes
+	 * @param offset start of the line
+	 * @param length length of the line
+	 * @return the timestamp the line starts with as epoch millis, or NONE
+	 */
+	public long parse(byte[] line, int offset, int length) {
+		return (formatter == null) ? parseIso(line, offset, offset + length) : parseFormatted(line, offset, length);
+	}
+
+	private long parseFormatted(byte[] line, int offset, int length) {
+		int limit = Math.min(length, MAX_FORMATTED_LENGTH);
+		if (lastTextMillis != NONE && lastTextLength <= limit && startsWith(line, offset, lastText, lastTextLength)) {
+			return lastTextMillis;
+		}
+		for (int i = offset; i < offset + limit; i++) {
+			if (line[i] < 0) {
+				limit = i - offset;		// the formats this is used for are ASCII
+				break;
+			}
+		}
+		text.wrap(line, offset, limit);
+		position.setIndex(0);
+		position.setErrorIndex(-1);
+		// parseUnresolved() fails without an exception, most lines which are not timestamps stop here
+		if (formatter.parseUnresolved(text, position) == null || position.getErrorIndex() >= 0) {
+			return NONE;
+		}
+		int parsedLength = position.getIndex();
+		long millis;
+		try {
+			TemporalAccessor parsed = formatter.parse(text.subSequence(0, parsedLength));
+			// not withZone(), which on Java 8 takes the place of a zone or offset the timestamp gives
+			millis = (parsed.query(TemporalQueries.zone()) != null) ? Instant.from(parsed).toEpochMilli()
+				: LocalDateTime.from(parsed).atZone(zone).toInstant().toEpochMilli();
+		} catch (DateTimeException ex) {
+			return NONE;		// parsed, but not a whole date and time
+		}
+		System.arraycopy(line, offset, lastText, 0, parsedLength);
+		lastTextLength = parsedLength;
+		lastTextMillis = millis;
+		return millis;
+	}
+
+	private long parseIso(byte[] line, int from, int end) {
+		int i = from;
+		if (i < end && line[i] == '[') {
+			i++;
+		}
+		// yyyy-MM-dd?HH:mm:ss is 19 bytes
+		if (end - i < 19 || line[i + 4] != '-' || line[i + 7] != '-'
+				|| (line[i + 10] != 'T' && line[i + 10] != ' ') || line[i + 13] != ':' || line[i + 16] != ':') {
+			return NONE;
+		}
+		long minuteMillis;
+		if (lastPrefixMillis != NONE && startsWith(line, i, lastPrefix, ISO_PREFIX_LENGTH)) {
+			minuteMillis = lastPrefixMillis;
+		} else {
+			int year = digits(line, i, 4);
+			int month = digits(line, i + 5, 2);
+			int day = digits(line, i + 8, 2);
+			int hour = digits(line, i + 11, 2);
+			int minute = digits(line, i + 14, 2);
+			if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+					|| hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+				return NONE;
+			}
+			minuteMillis = ((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute) * 60 * 1000;
+			System.arraycopy(line, i, lastPrefix, 0, ISO_PREFIX_LENGTH);
+			lastPrefixMillis = minuteMillis;
+		}
+		int second = digits(line, i + 17, 2);
+		if (second < 0 || second > 60) {
+			return NONE;
+		}
+		i += 19;
+
+		int millis = 0;
+		if (i < end && (line[i] == '.' || line[i] == ',')) {
+			int scale = 100;
+			int digitsRead = 0;
+			for (i++; i < end && isDigit(line[i]) && digitsRead < 9; i++, digitsRead++) {
+				millis += (line[i] - '0') * scale;
+				scale /= 10;
+			}
+			if (digitsRead == 0) {
+				return NONE;
+			}
+		}
+
+		long offsetMillis;
+		if (i < end && (line[i] == '+' || line[i] == '-')) {
+			int sign = (line[i] == '-') ? -1 : 1;
+			int offsetHours = (end - i >= 3) ? digits(line, i + 1, 2) : -1;
+			if (offsetHours < 0) {
+				return NONE;
+			}
+			int minutesAt = (end - i >= 6 && line[i + 3] == ':') ? i + 4 : i + 3;
+			int minutes = (end - minutesAt >= 2) ? digits(line, minutesAt, 2) : -1;
+			offsetMillis = sign * (offsetHours * 60 + Math.max(0, minutes)) * 60 * 1000L;
+		} else if (i < end && line[i] == 'Z') {
+			offsetMillis = 0;
+		} else if (zoneRules.isFixedOffset()) {
+			offsetMillis = zoneRules.getOffset(Instant.EPOCH).getTotalSeconds() * 1000L;
+		} else {
+			long localSeconds = Math.floorDiv(minuteMillis, 1000) + second;
+			ZoneOffset offset = zoneRules.getOffset(LocalDateTime.ofEpochSecond(localSeconds, 0, ZoneOffset.UTC));
+			offsetMillis = offset.getTotalSeconds() * 1000L;
+		}
+		return minuteMillis + second * 1000L + millis - offsetMillis;
+	}
+
+	private static boolean startsWith(byte[] line, int from, byte[] prefix, int length) {
+		for (int j = 0; j < length; j++) {
+			if (line[from + j] != prefix[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int digits(byte[] bytes, int from, int count) {
+		int value = 0;
+		for (int i = from; i < from + count; i++) {
+			if (!isDigit(bytes[i])) {
+				return -1;
+			}
+			value = value * 10 + (bytes[i] - '0');
+		}
+		return value;
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	/**
+	 * Days since 1970-01-01 of a date in the proleptic Gregorian calendar (H. Hinnant's algorithm)
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		int y = (month <= 2) ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097L + dayOfEra - 719468;
+	}
+
+	/**
+	 * ASCII bytes seen as characters, without copying them
+	 */
+	private static class Ascii implements CharSequence {
+		private byte[] bytes;
+		private int offset;
+		private int length;
+
+		void wrap(byte[] bytes, int offset, int length) {
+			this.bytes = bytes;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) bytes[offset + index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new String(bytes, offset + start, end - start, StandardCharsets.US_ASCII);
+		}
+
+		@Override
+		public String toString() {
+			return subSequence(0, length).toString();
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.datastax.log.agent.config;
 
+import com.datastax.log.agent.codec.Compression;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
@@ -7,6 +8,11 @@ import org.springframework.boot.context.properties.EnableConfigurationProperties
 import org.springframework.context.annotation.Configuration;
 
 import javax.validation.constraints.NotEmpty;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Configuration loaded by SpringBoot to gather parameters from application.yml
@@ -25,4 +31,102 @@ public class Config {
     private String hostUrl;
 	@NotEmpty
     private int delayBetweenUploads;
+
+	private UploadFormat uploadFormat = UploadFormat.JSON;
+	private Compression compression = Compression.LZ4;
+
+	// caps on the size of each upload, a large backlog is read and uploaded in chunks of this size
+	private int maxChunkLines = 10000;
+	private long maxChunkBytes = 1024 * 1024;
+
+	// HTTP client: pooled keep-alive connections (maxConnections defaults to maxConcurrentUploads), timeouts in millis
+	private int maxConnections;
+	private long connectTimeout = 5000;
+	private long readTimeout = 30000;
+	private long keepAlive = 60000;
+	// a failed upload is retried after a jittered delay which doubles with each failure, from retryBaseDelay up to retryMaxDelay millis
+	private long retryBaseDelay = 1000;
+	private long retryMaxDelay = 60000;
+
+	// uploads run on up to this many threads at once, at most one at a time for each file
+	private int maxConcurrentUploads = 4;
+	// uploads are paced to the service (see UploadPacer): when it is slow or pushes back the upload trigger is stretched
+	// by up to maxPace and fewer uploads are sent at once, and both are brought back as it recovers
+	private boolean adaptivePacing = true;
+	private long targetLatency = 1000;		// millis, a slower upload is taken as the service being overloaded
+	private long targetLag = 10000;		// millis from a line being read to it being uploaded
+	private double maxPace = 8;
+	// chunks of several files due at the same time are sent in one request, of up to maxBatchBytes of lines from
+	// up to maxBatchFiles files (zero or less for no limit), falling back to a request per file if the service does not take them
+	private boolean multiFileUploads = true;
+	private long maxBatchBytes = 1024 * 1024;
+	private int maxBatchFiles = 100;
+	// a file's lines are uploaded once this many lines / bytes have built up, or the oldest is flushAge millis old
+	// (zero or less turns the line / byte trigger off, flushAge defaults to delayBetweenUploads)
+	private int flushLines = 1000;
+	private long flushBytes = 256 * 1024;
+	private long flushAge;
+
+	// memory held by collectors, in source bytes, and what to do with new lines once it is full
+	private long maxCollectorBytes = 16 * 1024 * 1024;
+	private long maxAgentBytes = 256 * 1024 * 1024;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	// directory for SPILL files, the system temp directory if not set
+	private String spillPath;
+
+	// write ahead spool directory, so unsent lines survive a restart (no spool if not set), and its limits
+	private String spoolPath;
+	private long maxSpoolBytes = 1024L * 1024 * 1024;
+	private long spoolSegmentBytes = 16 * 1024 * 1024;
+
+	// how changes to the tailed files are noticed, the millis between checks when polling, and the read buffer of each file
+	private TailMode tailMode = TailMode.WATCH;
+	private long tailPollInterval = 1000;
+	private int tailBufferSize = 64 * 1024;
+
+	// directories and glob patterns of files to tail as they appear, besides the files on the command line (see FileDiscovery),
+	// the millis between full scans for them, and the seconds a discovered file may go unchanged before it is no longer tailed
+	private List<String> watchPaths = new ArrayList<>();
+	private long discoveryInterval = 30000;
+	private long idleFileTimeout = 3600;
+	// most files tailed at once, zero for no limit
+	private int maxTailedFiles = 1000;
+
+	// local metrics scrape endpoint, http://{metricsAddress}:{metricsPort}/metrics (not served if the port is zero or less)
+	private String metricsAddress = "127.0.0.1";
+	private int metricsPort;
+
+	// rules lines are filtered, sampled and masked by before they are uploaded, in order (see FilterRule), and
+	// what happens to a line no rule keeps or drops: KEEP or DROP
+	private List<FilterRule> filters = new ArrayList<>();
+	private FilterAction filterDefault = FilterAction.KEEP;
+
+	// lines are grouped into events, each starting with a line the eventStartPattern regex finds a match in (every line
+	// is an event if not set), an event is complete when the next one starts, it reaches maxEventLines / maxEventBytes,
+	// or no line is added to it for eventFlushTimeout millis
+	private String eventStartPattern;
+	private long eventFlushTimeout = 1000;
+	private int maxEventLines = 1000;
+	private int maxEventBytes = 256 * 1024;
+	// send the timestamp each event starts with, read by timestampFormat (a DateTimeFormatter pattern, ISO-8601 if not set)
+	// and taken to be in timestampZone when it has no zone of its own
+	private boolean eventTimestamps;
+	private String timestampFormat;
+	private String timestampZone = "UTC";
+
+	// where to start reading each file, by default and for specific files (keyed by the path given on the command line)
+	private StartPosition startPosition = StartPosition.SAVED;
+	private Map<String, StartPosition> startPositions = new HashMap<>();
+
+	/**
+	 * @param file a file to be tailed
+	 * @return the configured start position for the file
+	 */
+	public StartPosition startPositionFor(File file) {
+		StartPosition position = (startPositions != null) ? startPositions.get(file.getPath()) : null;
+		if (position == null) {
+			position = (startPosition != null) ? startPosition : StartPosition.SAVED;
+		}
+		return position;
+	}
 }
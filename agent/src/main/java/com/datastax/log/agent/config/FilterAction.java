@@ -0,0 +1,19 @@
+package com.datastax.log.agent.config;
+
+/**
+ * What a filter rule does with a line it matches.
+ *    KEEP - keep the line, no later rule can drop it (used with filterDefault DROP, to upload only lines matching)
+ *    DROP - drop the line
+ *    SAMPLE - keep a fraction (sampleRate) of the lines matching, spread evenly
+ *    RATE_LIMIT - keep at most ratePerSecond of the lines matching each second, dropping the rest
+ *    MASK - replace each match within the line by the rule's replacement, then go on to the other rules
+ *
+ * @author cingham
+ */
+public enum FilterAction {
+	KEEP,
+	DROP,
+	SAMPLE,
+	RATE_LIMIT,
+	MASK
+}
@@ -0,0 +1,24 @@
+package com.datastax.log.agent.config;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * One rule of the filter stage lines pass through before they are uploaded, configured under log-agent.filters.
+ * A rule matches a line which contains its literal (if set) and matches its regex (if set), a rule with neither
+ * matches every line.  See LineFilter for how the rules are applied.
+ *
+ * @author cingham
+ */
+@Getter
+@Setter
+public class FilterRule {
+	// named in the rule's counters, defaults to its position in the list
+	private String name;
+	private String literal;
+	private String regex;
+	private FilterAction action = FilterAction.DROP;
+	private double sampleRate = 1.0;		// SAMPLE: fraction of the lines matching which are kept
+	private double ratePerSecond;			// RATE_LIMIT: lines matching kept each second
+	private String replacement = "****";	// MASK: what each match is replaced by, may refer to regex groups ($1)
+}
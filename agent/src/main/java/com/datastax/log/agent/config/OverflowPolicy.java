@@ -0,0 +1,17 @@
+package com.datastax.log.agent.config;
+
+/**
+ * What a collector does with a new line once its memory budget is full.
+ *    BLOCK - pause reading the file until lines have been uploaded (nothing is lost, the file is read later)
+ *    DROP_OLDEST - discard the oldest lines not yet being uploaded to make room
+ *    DROP_NEWEST - discard the new line
+ *    SPILL - write new lines to a spill file on disk, they are read back in order as memory frees up
+ *
+ * @author cingham
+ */
+public enum OverflowPolicy {
+	BLOCK,
+	DROP_OLDEST,
+	DROP_NEWEST,
+	SPILL
+}
@@ -1,20 +1,76 @@
 package com.datastax.log.agent.config;
 
+import com.datastax.log.agent.codec.LogBatchMessageConverter;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Configuration bean providing the RestTemplate used to upload to the server.
  * Wrapping the RestTemplate in a bean allows for easier Mocks in unit tests.
  *
+ * Requests go through a pooled Apache HttpClient, so uploads reuse keep-alive connections instead of
+ * opening one per request, and connect/read timeouts stop a hung server from holding an upload thread.
+ * There is a connection for each upload that may be in flight.  HttpClient does not retry by itself,
+ * failed uploads are retried by LogHandler with backoff, nor does it follow redirects, LogUploader follows
+ * a redirect to the service instance which owns a file itself.
+ *
+ * Request bodies are not buffered: the JSON or binary batch is written straight to the connection as it is encoded.
+ *
  * @author cingham
  */
 @Configuration
 public class RestTemplateConfiguration {
+	// a pooled connection idle for longer than this is checked before it is reused
+	private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+
+	@Bean(destroyMethod = "close")
+	public CloseableHttpClient serviceHttpClient(Config config) {
+		int maxConnections = config.getMaxConnections() > 0 ? config.getMaxConnections()
+			: Math.max(1, config.getMaxConcurrentUploads());
+		long keepAlive = config.getKeepAlive();
+
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+			keepAlive > 0 ? keepAlive : -1, TimeUnit.MILLISECONDS);
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnections);
+		connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+
+		RequestConfig requestConfig = RequestConfig.custom()
+			.setConnectTimeout((int) config.getConnectTimeout())
+			.setSocketTimeout((int) config.getReadTimeout())
+			.setConnectionRequestTimeout((int) config.getConnectTimeout())
+			.build();
+
+		return HttpClients.custom()
+			.setConnectionManager(connectionManager)
+			.setDefaultRequestConfig(requestConfig)
+			// keep connections as long as the server allows, but no longer than the configured keep alive
+			.setKeepAliveStrategy((response, context) -> {
+				long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+				return (serverKeepAlive > 0 && (keepAlive <= 0 || serverKeepAlive < keepAlive)) ? serverKeepAlive : keepAlive;
+			})
+			.evictExpiredConnections()
+			.evictIdleConnections(keepAlive > 0 ? keepAlive : 60000, TimeUnit.MILLISECONDS)
+			.disableAutomaticRetries()
+			.disableRedirectHandling()
+			.build();
+	}
 
-    @Bean(name = "serviceRestTemplate")
-    public RestTemplate getServiceRestTemplate() {
-        return new RestTemplate();
-    }
+	@Bean(name = "serviceRestTemplate")
+	public RestTemplate getServiceRestTemplate(CloseableHttpClient serviceHttpClient, Config config) {
+		HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(serviceHttpClient);
+		requestFactory.setBufferRequestBody(false);
+		RestTemplate restTemplate = new RestTemplate(requestFactory);
+		restTemplate.getMessageConverters().add(0, new LogBatchMessageConverter(config.getCompression()));
+		return restTemplate;
+	}
 }
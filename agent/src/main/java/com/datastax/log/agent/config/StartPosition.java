@@ -0,0 +1,15 @@
+package com.datastax.log.agent.config;
+
+/**
+ * Where to start reading a file when the agent starts.
+ *    BEGINNING - read the whole file and upload it as a new epoch
+ *    END - only upload lines written after the agent started
+ *    SAVED - resume from the offset the service has committed for the file, or the beginning if there is none
+ *
+ * @author cingham
+ */
+public enum StartPosition {
+	BEGINNING,
+	END,
+	SAVED
+}
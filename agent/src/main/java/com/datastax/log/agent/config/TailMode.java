@@ -0,0 +1,14 @@
+package com.datastax.log.agent.config;
+
+/**
+ * How the TailEngine finds out that a tailed file has changed.
+ *    WATCH - file system events from a WatchService (inotify on Linux), with an occasional check of every file
+ *            in case an event was missed.  Directories which cannot be watched are polled.
+ *    POLL - check every file each tailPollInterval, for file systems without change events (e.g. NFS)
+ *
+ * @author cingham
+ */
+public enum TailMode {
+	WATCH,
+	POLL
+}
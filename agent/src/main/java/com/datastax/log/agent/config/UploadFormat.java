@@ -0,0 +1,13 @@
+package com.datastax.log.agent.config;
+
+/**
+ * Wire format used to upload lines to the service.
+ *    JSON - the LogDto as JSON, understood by every service version
+ *    BINARY - length prefixed line bytes in compressed blocks (application/x-log-batch)
+ *
+ * @author cingham
+ */
+public enum UploadFormat {
+	JSON,
+	BINARY
+}
@@ -1,5 +1,9 @@
 package com.datastax.log.agent.dto;
 
+import com.datastax.log.agent.codec.ByteLines;
+import com.datastax.log.agent.codec.LinesSerializer;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
@@ -7,7 +11,13 @@ import lombok.Setter;
 import java.util.List;
 
 /**
- *  POJO to represent the JSON format we will upload to the service
+ *  POJO to represent the JSON format we will upload to the service.
+ *
+ *  Each chunk carries the identity (epoch) of the source file and the byte offset range
+ *  its lines were read from, so the service can recognise a chunk it has already written.
+ *  The lines are usually a collector's ByteLines, written to JSON from their bytes (see LinesSerializer).
+ *  Where the lines carry the timestamp each starts with (see TimestampParser) these are sent alongside them
+ *  as epoch millis, Long.MIN_VALUE for a line without one.
  *
  * @author cingham
  */
@@ -16,5 +26,32 @@ import java.util.List;
 @Setter
 public class LogDto {
     String filename;
+	String fileId;
+	long startOffset;
+	long endOffset;
+	@JsonSerialize(using = LinesSerializer.class)
     List<String> lines;
+
+	/**
+	 * @return true if the lines carry timestamps
+	 */
+	public boolean hasTimestamps() {
+		return lines instanceof ByteLines && ((ByteLines) lines).hasTimestamps();
+	}
+
+	/**
+	 * @return the timestamp of each line, null (and left out of the JSON) if the lines have none
+	 */
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public long[] getTimestamps() {
+		if (!hasTimestamps()) {
+			return null;
+		}
+		ByteLines byteLines = (ByteLines) lines;
+		long[] timestamps = new long[byteLines.size()];
+		for (int i = 0; i < timestamps.length; i++) {
+			timestamps[i] = byteLines.timestamp(i);
+		}
+		return timestamps;
+	}
 }
@@ -0,0 +1,20 @@
+package com.datastax.log.agent.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ *  POJO to represent a multi-file upload: a chunk of lines (with its file identity and offsets) for each
+ *  of several files, so the chunks of many files due at the same time go to the service in one request.
+ *
+ * @author cingham
+ */
+@AllArgsConstructor
+@Getter
+@Setter
+public class MultiLogDto {
+	List<LogDto> entries;
+}
@@ -0,0 +1,24 @@
+package com.datastax.log.agent.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ *  POJO to represent the JSON response to a multi-file upload, with a ServerResponseDto for each entry
+ *  in the order they were sent, so each file's chunk succeeds or fails on its own.
+ *
+ * @author cingham
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+public class MultiLogResponseDto {
+	int status;
+	String message;
+	List<ServerResponseDto> entries;
+}
@@ -0,0 +1,30 @@
+package com.datastax.log.agent.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ *  POJO to represent the JSON response returned from the service,
+ *  including the file identity and offset the service has committed for an upload,
+ *  the seconds to wait before re-sending an upload it turned away, and how loaded the service is (see UploadPacer).
+ *
+ * @author cingham
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+public class ServerResponseDto {
+	int status;
+	String message;
+	String fileId;
+	Long committedOffset;
+	Integer retryAfter;
+	Double load;		// share of the service's in flight limit in use, 0 to 1, from services which send it
+
+	public ServerResponseDto(int status, String message, String fileId, Long committedOffset) {
+		this(status, message, fileId, committedOffset, null, null);
+	}
+}
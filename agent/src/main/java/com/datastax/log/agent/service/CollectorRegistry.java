@@ -0,0 +1,127 @@
+package com.datastax.log.agent.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * The collectors of the files being tailed, keyed by file, and where each one is in its lifecycle:
+ *    ACTIVE - the file is tailed and its lines uploaded
+ *    RETIRING - the file is no longer tailed (it was deleted, or has been idle), the lines already read are
+ *               still uploaded
+ * A retiring collector is removed once it has nothing left to upload, and the file may then be added again.
+ * At most maxFiles collectors are held at once, retiring ones included as they still hold lines.
+ *
+ * Files are added and retired by the command line and by FileDiscovery, the LogHandler thread uploads and
+ * removes them, so lookups do not lock and the collectors can be iterated while they change.
+ *
+ * @author cingham
+ */
+class CollectorRegistry {
+	enum State {
+		ACTIVE,
+		RETIRING
+	}
+
+	private final Map<File, LogCollector> collectors = new ConcurrentHashMap<>();
+	private final Map<LogCollector, State> states = new ConcurrentHashMap<>();
+	private final int maxFiles;
+
+	/**
+	 * @param maxFiles most collectors held at once, zero or less for no limit
+	 */
+	CollectorRegistry(int maxFiles) {
+		this.maxFiles = maxFiles > 0 ? maxFiles : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Add the collector of a file not already held
+	 *
+	 * @return false if the file already has a collector, or maxFiles are already held
+	 */
+	synchronized boolean add(LogCollector logCollector) {
+		File key = keyFor(logCollector.getFile());
+		if (collectors.size() >= maxFiles || collectors.containsKey(key)) {
+			return false;
+		}
+		collectors.put(key, logCollector);
+		states.put(logCollector, State.ACTIVE);
+		return true;
+	}
+
+	/**
+	 * @return true if the file has a collector, active or retiring
+	 */
+	boolean contains(File file) {
+		return collectors.containsKey(keyFor(file));
+	}
+
+	/**
+	 * @return the file's collector, null if it has none
+	 */
+	LogCollector get(File file) {
+		return collectors.get(keyFor(file));
+	}
+
+	/**
+	 * @return the state of the file's collector, null if it has none
+	 */
+	State stateOf(File file) {
+		LogCollector logCollector = collectors.get(keyFor(file));
+		return (logCollector != null) ? states.get(logCollector) : null;
+	}
+
+	/**
+	 * Stop tailing a file, its collector stays until the lines already read are uploaded
+	 *
+	 * @return false if the file has no active collector
+	 */
+	boolean retire(File file) {
+		LogCollector logCollector = collectors.get(keyFor(file));
+		if (logCollector == null || !states.replace(logCollector, State.ACTIVE, State.RETIRING)) {
+			return false;
+		}
+		logCollector.stopTailing();
+		return true;
+	}
+
+	/**
+	 * Remove the retiring collectors which are done
+	 *
+	 * @param done whether a retiring collector has nothing left to upload
+	 * @return the collectors removed, for the caller to shut down
+	 */
+	List<LogCollector> removeRetired(Predicate<LogCollector> done) {
+		List<LogCollector> removed = new ArrayList<>();
+		for (Map.Entry<LogCollector, State> entry : states.entrySet()) {
+			LogCollector logCollector = entry.getKey();
+			if (entry.getValue() == State.RETIRING && done.test(logCollector)) {
+				synchronized (this) {
+					collectors.remove(keyFor(logCollector.getFile()), logCollector);
+					states.remove(logCollector);
+				}
+				removed.add(logCollector);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @return every collector held, active and retiring, a live view
+	 */
+	Collection<LogCollector> collectors() {
+		return collectors.values();
+	}
+
+	int size() {
+		return collectors.size();
+	}
+
+	private static File keyFor(File file) {
+		return file.toPath().toAbsolutePath().normalize().toFile();
+	}
+}
@@ -0,0 +1,55 @@
+package com.datastax.log.agent.service;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct ByteBuffers of one size, reused as tailed files come and go rather than allocating native memory
+ * for each.  At most maxPooled free buffers are kept, any more are left to the garbage collector.
+ *
+ * @author cingham
+ */
+class DirectBufferPool {
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * @param bufferSize size of each buffer
+	 * @param maxPooled most free buffers kept
+	 */
+	DirectBufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return a cleared buffer, from the pool if there is one
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		pooled.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * @param buffer a buffer from acquire() which is no longer used
+	 */
+	void release(ByteBuffer buffer) {
+		if (pooled.incrementAndGet() <= maxPooled) {
+			free.offer(buffer);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+
+	int getPooled() {
+		return pooled.get();
+	}
+}
@@ -0,0 +1,150 @@
+package com.datastax.log.agent.service;
+
+import com.datastax.log.agent.config.Config;
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Groups the lines of a file into events, e.g. a log message and the lines of the stack trace which follow it.
+ * An event starts with a line the start pattern finds a match in, and takes every following line up to the
+ * next one that does, or until it reaches maxLines / maxBytes.  A line before any start line is an event of its own.
+ *
+ * The event is built up as one entry, its lines joined by '\n' (so the service writes exactly the lines which were
+ * read), starting where its first line started in the file and taking up the source bytes of all of its lines.
+ * So offsets, gaps, the memory budget and upload chunks all work per event as they do per line, and an upload
+ * never splits an event.
+ *
+ * Like LineFilter, the start pattern's literal (see LineFilter.requiredLiteral()) is looked for in the line's bytes
+ * before the regex runs over them.
+ *
+ * One is kept for each collector, it is not thread safe: the tail thread builds the events, and only hands a
+ * pending event to another thread under the collector's lock (see LogCollector).
+ *
+ * @author cingham
+ */
+public class EventAssembler {
+	private final Matcher startMatcher;
+	private final byte[] startLiteral;		// contained in every start line, may be null
+	private final int maxLines;
+	private final int maxBytes;
+	@Getter
+	private final long flushTimeout;		// millis a pending event waits for another line before it is complete
+	private final LineFilter.Line line = new LineFilter.Line();
+
+	private byte[] bytes = new byte[1024];
+	@Getter
+	private int length;
+	@Getter
+	private long eventStart;				// where the event's first line starts in the file
+	@Getter
+	private int sourceBytes;				// source bytes of the event's lines, including their newlines
+	@Getter
+	private int lineCount;
+
+	/**
+	 * @param config app config options
+	 * @return the configured start of event pattern, or null when lines are not grouped into events
+	 * @throws IllegalArgumentException the pattern is not valid
+	 */
+	public static Pattern startPattern(Config config) {
+		if (config.getEventStartPattern() == null || config.getEventStartPattern().isEmpty()) {
+			return null;
+		}
+		try {
+			return Pattern.compile(config.getEventStartPattern());
+		} catch (PatternSyntaxException ex) {
+			throw new IllegalArgumentException("eventStartPattern is not a valid regex: " + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * @param startPattern a line this finds a match in starts a new event
+	 * @param maxLines most lines in one event
+	 * @param maxBytes most bytes in one event (a single line longer than this is still an event)
+	 * @param flushTimeout millis a pending event waits for another line before it is taken to be complete
+	 */
+	public EventAssembler(Pattern startPattern, int maxLines, int maxBytes, long flushTimeout) {
+		this.startMatcher = startPattern.matcher("");
+		String literal = LineFilter.requiredLiteral(startPattern.pattern());
+		this.startLiteral = (literal != null) ? literal.getBytes(StandardCharsets.UTF_8) : null;
+		this.maxLines = Math.max(1, maxLines);
+		this.maxBytes = Math.max(1, maxBytes);
+		this.flushTimeout = flushTimeout;
+	}
+
+	/**
+	 * @return true if no event is being built up
+	 */
+	public boolean isEmpty() {
+		return lineCount == 0;
+	}
+
+	/**
+	 * Whether a line completes the pending event: it starts a new one, or it would take the event past its limits
+	 *
+	 * @param line buffer holding the line
+	 * @param offset start of the line in the buffer
+	 * @param length length of the line
+	 * @return true if the pending event should be staged before the line is added
+	 */
+	public boolean completes(byte[] line, int offset, int length) {
+		if (lineCount == 0) {
+			return false;
+		}
+		if (lineCount >= maxLines || this.length + 1 + length > maxBytes) {
+			return true;
+		}
+		this.line.set(line, offset, length);
+		if (startLiteral != null && !this.line.contains(startLiteral)) {
+			return false;
+		}
+		return startMatcher.reset(this.line.text()).find();
+	}
+
+	/**
+	 * Add a line to the pending event, or start a new event with it
+	 *
+	 * @param line buffer holding the line
+	 * @param offset start of the line in the buffer
+	 * @param length length of the line
+	 * @param lineStart where the line starts in the file
+	 * @param lineBytes bytes the line takes up in the file, including its newline
+	 */
+	public void add(byte[] line, int offset, int length, long lineStart, int lineBytes) {
+		int separator = (lineCount == 0) ? 0 : 1;
+		int needed = this.length + separator + length;
+		if (needed > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+		}
+		if (lineCount == 0) {
+			eventStart = lineStart;
+		} else {
+			bytes[this.length] = '\n';
+		}
+		System.arraycopy(line, offset, bytes, this.length + separator, length);
+		this.length = needed;
+		sourceBytes += lineBytes;
+		lineCount++;
+	}
+
+	/**
+	 * @return buffer holding the pending event, from its start
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Forget the pending event, once it has been staged
+	 */
+	public void clear() {
+		length = 0;
+		sourceBytes = 0;
+		lineCount = 0;
+	}
+}
@@ -0,0 +1,367 @@
+package com.datastax.log.agent.service;
+
+import com.datastax.log.agent.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds the files matching the configured watchPaths and tails them as they appear, so the agent can follow
+ * e.g. a directory of per-pod or per-day files without a restart.  Each watch path is a directory (every
+ * file in it) or a glob pattern, such as /var/log/pods/*&#47;*.log or /var/log/app/**.log (see
+ * FileSystem.getPathMatcher()).
+ *
+ * Discovery is kept cheap for directories with tens of thousands of entries:
+ *    - only the directories under a pattern's fixed prefix are read, no deeper than the pattern can match
+ *    - entries are matched on their names as the directory is read, only a match (or, above the pattern's
+ *      last level, a possible subdirectory) costs a stat, and a file already tailed costs nothing
+ *    - new files are picked up from WatchService create events on the directories read, by name, without
+ *      reading the directory again; a full scan only runs every discoveryInterval, in case events were missed
+ *
+ * A discovered file is tailed until it is deleted, or has not changed for idleFileTimeout, then it is
+ * retired: its remaining lines are uploaded and its collector removed (see CollectorRegistry).  If it changes
+ * again it is found by the next scan, and carries on from the offset the service has committed when the
+ * start position is SAVED.  Files are only tailed while fewer than maxTailedFiles are, the files turned away
+ * are counted and tried again on the next scan.
+ *
+ * The patterns should not match the names files are rotated to (app.log.1), or they are uploaded twice.
+ *
+ * @author cingham
+ */
+@Service
+public class FileDiscovery {
+	private static final Logger logger = LoggerFactory.getLogger(FileDiscovery.class);
+
+	// directories watched for new files, beyond this they are only found by the full scans
+	private static final int MAX_WATCHED_DIRECTORIES = 4096;
+
+	private final LogHandler logHandler;
+	private final List<WatchPattern> patterns = new ArrayList<>();
+	private final long scanInterval;
+	private final long idleTimeout;
+
+	private WatchService watchService;
+	private final Map<Path, WatchKey> watchedDirectories = new ConcurrentHashMap<>();
+	// the files this discovery started tailing, as opposed to those from the command line
+	private final Set<File> discovered = ConcurrentHashMap.newKeySet();
+	private final AtomicLong skippedFiles = new AtomicLong();
+	private Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * Injection constructor
+	 *
+	 * @param config app config options
+	 * @param logHandler tails the files found
+	 */
+	public FileDiscovery(Config config, LogHandler logHandler) {
+		this.logHandler = logHandler;
+		this.scanInterval = config.getDiscoveryInterval() > 0 ? config.getDiscoveryInterval() : 30000;
+		this.idleTimeout = config.getIdleFileTimeout() * 1000;		// seconds to millis
+		List<String> watchPaths = (config.getWatchPaths() != null) ? config.getWatchPaths() : Collections.emptyList();
+		for (String watchPath : watchPaths) {
+			if (watchPath != null && !watchPath.trim().isEmpty()) {
+				patterns.add(WatchPattern.parse(watchPath.trim()));
+			}
+		}
+	}
+
+	/**
+	 * @return true if there are watch paths to discover files from
+	 */
+	public boolean hasWatchPaths() {
+		return !patterns.isEmpty();
+	}
+
+	/**
+	 * @return how many times a matching file was not tailed because maxTailedFiles were already tailed
+	 */
+	public long getSkippedFiles() {
+		return skippedFiles.get();
+	}
+
+	/**
+	 * Tail the files which match now, and start the thread which looks for new ones
+	 */
+	public synchronized void start() {
+		if (patterns.isEmpty() || running) {
+			return;
+		}
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+		} catch (IOException | UnsupportedOperationException ex) {
+			logger.warn("No file system events, new files are found every {} millis, exception={}",
+				scanInterval, ex.toString());
+		}
+		running = true;
+		scan();
+		thread = new Thread(this::run, "log-discovery");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop looking for new files on app shutdown, the files found are stopped by the LogHandler
+	 */
+	@PreDestroy
+	public synchronized void shutdown() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+		}
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException ex) {
+				logger.warn("Error closing the discovery watch service, exception={}", ex.toString());
+			}
+		}
+	}
+
+	/**
+	 * Discovery thread: take in new files as their create events come, and scan everything each scanInterval
+	 */
+	private void run() {
+		long nextScan = System.currentTimeMillis() + scanInterval;
+		while (running) {
+			try {
+				long wait = Math.max(1, nextScan - System.currentTimeMillis());
+				if (watchService != null) {
+					WatchKey key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+					if (key != null) {
+						dispatch(key);
+					}
+				} else {
+					Thread.sleep(wait);
+				}
+			} catch (InterruptedException | ClosedWatchServiceException ex) {
+				return;
+			}
+			if (System.currentTimeMillis() >= nextScan) {
+				scan();
+				nextScan = System.currentTimeMillis() + scanInterval;
+			}
+		}
+	}
+
+	/**
+	 * Read every directory the patterns reach and tail the new matches, then retire the discovered files
+	 * which are gone or idle
+	 */
+	void scan() {
+		long skippedBefore = skippedFiles.get();
+		for (WatchPattern pattern : patterns) {
+			scanDirectory(pattern, pattern.base, 0);
+		}
+		long skipped = skippedFiles.get() - skippedBefore;
+		if (skipped > 0) {
+			logger.warn("{} files tailed, the maxTailedFiles limit: {} more matching files are not tailed",
+				logHandler.getCollectorCount(), skipped);
+		}
+		retireFinished();
+	}
+
+	/**
+	 * @param depth levels below the pattern's base directory
+	 */
+	private void scanDirectory(WatchPattern pattern, Path directory, int depth) {
+		watch(directory);
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				if (pattern.matcher.matches(entry) && consider(entry)) {
+					continue;
+				}
+				if (depth + 1 < pattern.maxDepth && Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+					scanDirectory(pattern, entry, depth + 1);
+				}
+			}
+		} catch (NoSuchFileException ex) {
+			logger.debug("Directory {} does not exist (yet)", directory);
+		} catch (IOException | RuntimeException ex) {
+			logger.warn("Error reading directory {}, exception={}", directory, ex.toString());
+		}
+	}
+
+	/**
+	 * Tail a matching file, unless it is already tailed, idle or there is no room
+	 *
+	 * @return true if the entry was a file, false if it may be a directory
+	 */
+	private boolean consider(Path entry) {
+		File file = entry.toFile();
+		if (logHandler.isCollecting(file)) {
+			return true;
+		}
+		if (!Files.isRegularFile(entry)) {
+			return false;
+		}
+		if (isIdle(file)) {
+			return true;		// still there but no longer written, it was read when it was
+		}
+		if (logHandler.addLogFile(file)) {
+			discovered.add(file);
+			logger.info("Discovered {}", file);
+		} else if (!logHandler.isCollecting(file)) {
+			skippedFiles.incrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Retire the discovered files which have been deleted, or have not changed for idleTimeout and have been
+	 * read to the end (a collector held up by the overflow policy may still be behind)
+	 */
+	private void retireFinished() {
+		for (File file : discovered) {
+			if (!file.exists() || (isIdle(file) && logHandler.isCaughtUp(file))) {
+				discovered.remove(file);
+				if (logHandler.retireLogFile(file)) {
+					logger.info("Retired {}, it is {}", file, file.exists() ? "idle" : "gone");
+				}
+			}
+		}
+	}
+
+	private boolean isIdle(File file) {
+		return idleTimeout > 0 && System.currentTimeMillis() - file.lastModified() > idleTimeout;
+	}
+
+	private void watch(Path directory) {
+		if (watchService == null || watchedDirectories.containsKey(directory)) {
+			return;
+		}
+		if (watchedDirectories.size() >= MAX_WATCHED_DIRECTORIES) {
+			logger.debug("Not watching {}, {} directories are watched already", directory, MAX_WATCHED_DIRECTORIES);
+			return;
+		}
+		try {
+			watchedDirectories.put(directory, directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE));
+		} catch (NoSuchFileException ex) {
+			// found by a later scan once it exists
+		} catch (IOException | UnsupportedOperationException | ClosedWatchServiceException ex) {
+			logger.warn("Cannot watch directory {} for new files, exception={}", directory, ex.toString());
+		}
+	}
+
+	/**
+	 * Match each new entry against the patterns which reach its directory: a matching file is tailed,
+	 * a new subdirectory is scanned
+	 */
+	private void dispatch(WatchKey key) {
+		Path directory = (Path) key.watchable();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				for (WatchPattern pattern : patterns) {
+					if (directory.startsWith(pattern.base)) {
+						scanDirectory(pattern, directory, levelsBelow(pattern.base, directory));
+					}
+				}
+				continue;
+			}
+			Path entry = directory.resolve((Path) event.context());
+			for (WatchPattern pattern : patterns) {
+				if (!entry.startsWith(pattern.base)) {
+					continue;
+				}
+				int depth = levelsBelow(pattern.base, directory);
+				if (pattern.matcher.matches(entry) && consider(entry)) {
+					continue;
+				}
+				if (depth + 1 < pattern.maxDepth && Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+					scanDirectory(pattern, entry, depth + 1);
+				}
+			}
+		}
+		if (!key.reset()) {
+			watchedDirectories.remove(directory);		// the directory is gone
+		}
+	}
+
+	private static int levelsBelow(Path base, Path directory) {
+		return directory.equals(base) ? 0 : base.relativize(directory).getNameCount();
+	}
+
+	/**
+	 * A watch path: the directory to read from, the glob the entries found under it must match, and how many
+	 * levels below the directory it can match
+	 */
+	static class WatchPattern {
+		private static final String GLOB_CHARS = "*?[{";
+
+		private final Path base;
+		private final PathMatcher matcher;
+		private final int maxDepth;
+
+		private WatchPattern(Path base, PathMatcher matcher, int maxDepth) {
+			this.base = base;
+			this.matcher = matcher;
+			this.maxDepth = maxDepth;
+		}
+
+		/**
+		 * @param watchPath a directory, or a glob pattern
+		 */
+		static WatchPattern parse(String watchPath) {
+			Path path = Paths.get(watchPath.replace('/', File.separatorChar)).toAbsolutePath().normalize();
+			if (!hasGlob(watchPath) && Files.isDirectory(path)) {
+				path = path.resolve("*");		// a directory means every file in it
+			}
+
+			// the base is the part of the path before the first name with a glob in it
+			Path base = path.getRoot();
+			int first = 0;
+			while (first < path.getNameCount() - 1 && !hasGlob(path.getName(first).toString())) {
+				base = base.resolve(path.getName(first));
+				first++;
+			}
+			int levels = path.getNameCount() - first;
+			boolean recursive = path.subpath(first, path.getNameCount()).toString().contains("**");
+
+			String glob = path.toString().replace("\\", "\\\\");
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+			return new WatchPattern(base, matcher, recursive ? Integer.MAX_VALUE : levels);
+		}
+
+		private static boolean hasGlob(String text) {
+			for (int i = 0; i < text.length(); i++) {
+				if (GLOB_CHARS.indexOf(text.charAt(i)) >= 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		Path getBase() {
+			return base;
+		}
+
+		int getMaxDepth() {
+			return maxDepth;
+		}
+	}
+}
@@ -0,0 +1,489 @@
+package com.datastax.log.agent.service;
+
+import com.datastax.log.agent.config.Config;
+import com.datastax.log.agent.config.FilterAction;
+import com.datastax.log.agent.config.FilterRule;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The filter stage each line passes through on the tail thread, before it is staged for upload, configured by
+ * the log-agent.filters rules (see FilterRule and FilterAction):
+ *    - the KEEP, DROP, SAMPLE and RATE_LIMIT rules are tried in order, and the first which matches the line
+ *      decides whether it is kept.  A line none of them matches is kept, unless filterDefault is DROP.
+ *    - every MASK rule, in order, then replaces its matches within a line which is kept
+ *
+ * A rule's literal is looked for in the line's UTF-8 bytes before its regex runs, so most lines are passed over
+ * without running any regex or decoding them.  A rule with only a regex gets a literal worked out from it, the
+ * longest run of plain characters every match must contain, where there is one.  A regex runs over the line's
+ * bytes directly when it is ASCII, only other lines are decoded to a String first.
+ *
+ * The rules are shared by every collector, so sampling and rate limits apply across all of the files.
+ * Each rule counts the lines it dropped and the lines it masked, published as log.agent.filter.lines
+ * (tagged rule and result), with the lines dropped by filterDefault counted under the rule "default".
+ *
+ * @author cingham
+ */
+public class LineFilter {
+	private static final String DEFAULT_RULE = "default";
+
+	private final List<Rule> deciders = new ArrayList<>();
+	private final List<Rule> maskers = new ArrayList<>();
+	private final boolean dropByDefault;
+	private final LongAdder droppedByDefault = new LongAdder();
+
+	/**
+	 * @param config app config options
+	 * @return the filter for the configured rules, or null when there are none (every line is kept as it is)
+	 */
+	public static LineFilter from(Config config) {
+		List<FilterRule> rules = (config.getFilters() != null) ? config.getFilters() : Collections.emptyList();
+		if (rules.isEmpty() && config.getFilterDefault() != FilterAction.DROP) {
+			return null;
+		}
+		return new LineFilter(rules, config.getFilterDefault());
+	}
+
+	/**
+	 * @param rules the rules, in order
+	 * @param defaultAction what happens to a line no KEEP, DROP, SAMPLE or RATE_LIMIT rule matches: KEEP or DROP
+	 * @throws IllegalArgumentException a rule's regex is not valid, or it is missing a setting its action needs
+	 */
+	public LineFilter(List<FilterRule> rules, FilterAction defaultAction) {
+		if (defaultAction != null && defaultAction != FilterAction.KEEP && defaultAction != FilterAction.DROP) {
+			throw new IllegalArgumentException("filterDefault must be KEEP or DROP: " + defaultAction);
+		}
+		this.dropByDefault = (defaultAction == FilterAction.DROP);
+		for (int i = 0; i < rules.size(); i++) {
+			Rule rule = new Rule(rules.get(i), i);
+			(rule.action == FilterAction.MASK ? maskers : deciders).add(rule);
+		}
+		registerMeters();
+	}
+
+	private void registerMeters() {
+		for (Rule rule : deciders) {
+			FunctionCounter.builder("log.agent.filter.lines", rule.dropped, LongAdder::sum)
+				.tags("rule", rule.name, "result", "dropped").description("Lines dropped or changed by each filter rule")
+				.register(Metrics.globalRegistry);
+		}
+		for (Rule rule : maskers) {
+			FunctionCounter.builder("log.agent.filter.lines", rule.masked, LongAdder::sum)
+				.tags("rule", rule.name, "result", "masked").description("Lines dropped or changed by each filter rule")
+				.register(Metrics.globalRegistry);
+		}
+		if (dropByDefault) {
+			FunctionCounter.builder("log.agent.filter.lines", droppedByDefault, LongAdder::sum)
+				.tags("rule", DEFAULT_RULE, "result", "dropped").description("Lines dropped or changed by each filter rule")
+				.register(Metrics.globalRegistry);
+		}
+	}
+
+	/**
+	 * Decide whether a line is kept, and mask it if so.  Thread safe, the line is only used by the caller.
+	 *
+	 * @param line the line, replaced by its masked bytes if any rule masked it
+	 * @return false if the line is dropped
+	 */
+	public boolean apply(Line line) {
+		Rule decider = null;
+		for (Rule rule : deciders) {
+			if (rule.matches(line)) {
+				decider = rule;
+				break;
+			}
+		}
+		if (decider == null) {
+			if (dropByDefault) {
+				droppedByDefault.increment();
+				return false;
+			}
+		} else if (!decider.keeps()) {
+			decider.dropped.increment();
+			return false;
+		}
+		for (Rule rule : maskers) {
+			rule.mask(line);
+		}
+		return true;
+	}
+
+	/**
+	 * @param rule a rule's name ("default" for filterDefault)
+	 * @return lines the rule has dropped
+	 */
+	public long getDropped(String rule) {
+		if (DEFAULT_RULE.equals(rule)) {
+			return droppedByDefault.sum();
+		}
+		return deciders.stream().filter(r -> r.name.equals(rule)).mapToLong(r -> r.dropped.sum()).sum();
+	}
+
+	/**
+	 * @param rule a rule's name
+	 * @return lines the rule has masked
+	 */
+	public long getMasked(String rule) {
+		return maskers.stream().filter(r -> r.name.equals(rule)).mapToLong(r -> r.masked.sum()).sum();
+	}
+
+	/**
+	 * The longest run of plain characters every match of a regex contains, used to pass over lines which cannot
+	 * match without running the regex.  Only worked out for simple regexes: one with alternation, flags or
+	 * quoting has none, and nothing within a group or character class or before a quantifier other than + counts.
+	 *
+	 * @param regex a valid regex
+	 * @return the literal, or null if there is none
+	 */
+	static String requiredLiteral(String regex) {
+		if (regex.indexOf('|') >= 0 || regex.contains("(?") || regex.contains("\\Q")) {
+			return null;
+		}
+		String longest = "";
+		StringBuilder run = new StringBuilder();
+		int i = 0;
+		while (i < regex.length()) {
+			char c = regex.charAt(i);
+			int literal = -1;
+			if (c == '\\') {
+				char escaped = regex.charAt(i + 1);
+				if (!Character.isLetterOrDigit(escaped)) {
+					literal = escaped;		// an escaped metacharacter, \d \b \n and the like are not plain
+				}
+				i += 2;
+			} else if (c == '[') {
+				i = skipClass(regex, i);
+			} else if (c == '(') {
+				i = skipGroup(regex, i);
+			} else if (c == '.' || c == '^' || c == '$') {
+				i++;
+			} else {
+				literal = c;
+				i++;
+			}
+
+			char quantifier = (i < regex.length()) ? regex.charAt(i) : 0;
+			if (quantifier == '*' || quantifier == '?' || quantifier == '+' || quantifier == '{') {
+				i = (quantifier == '{') ? regex.indexOf('}', i) + 1 : i + 1;
+				if (i < regex.length() && (regex.charAt(i) == '?' || regex.charAt(i) == '+')) {
+					i++;		// lazy or possessive
+				}
+				if (quantifier == '+' && literal >= 0) {
+					run.append((char) literal);		// at least once
+				}
+				literal = -1;
+			}
+			if (literal >= 0) {
+				run.append((char) literal);
+			} else {
+				if (run.length() > longest.length()) {
+					longest = run.toString();
+				}
+				run.setLength(0);
+			}
+		}
+		if (run.length() > longest.length()) {
+			longest = run.toString();
+		}
+		return longest.isEmpty() ? null : longest;
+	}
+
+	/**
+	 * @return the index just after the character class starting at start
+	 */
+	private static int skipClass(String regex, int start) {
+		int i = start + 1;
+		if (i < regex.length() && regex.charAt(i) == '^') {
+			i++;
+		}
+		if (i < regex.length() && regex.charAt(i) == ']') {
+			i++;		// a leading ] is part of the class
+		}
+		int depth = 1;
+		while (i < regex.length() && depth > 0) {
+			char c = regex.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == '[') {
+				depth++;
+			} else if (c == ']') {
+				depth--;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return the index just after the group starting at start
+	 */
+	private static int skipGroup(String regex, int start) {
+		int i = start + 1;
+		int depth = 1;
+		while (i < regex.length() && depth > 0) {
+			char c = regex.charAt(i);
+			if (c == '\\') {
+				i += 2;
+				continue;
+			}
+			if (c == '[') {
+				i = skipClass(regex, i);
+				continue;
+			}
+			if (c == '(') {
+				depth++;
+			} else if (c == ')') {
+				depth--;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * A line passing through the filter, which a MASK rule may replace with new bytes.
+	 * Each tail thread (collector) keeps one and sets it for every line, it is not thread safe.
+	 */
+	public static class Line {
+		private byte[] bytes;
+		private int offset;
+		private int length;
+		private final AsciiChars ascii = new AsciiChars();
+		private CharSequence text;
+
+		/**
+		 * @param bytes buffer holding the line, which the filter does not change
+		 * @param offset start of the line in the buffer
+		 * @param length length of the line
+		 */
+		public void set(byte[] bytes, int offset, int length) {
+			this.bytes = bytes;
+			this.offset = offset;
+			this.length = length;
+			this.text = null;
+		}
+
+		public byte[] getBytes() {
+			return bytes;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		boolean contains(byte[] literal) {
+			int last = offset + length - literal.length;
+			byte first = literal[0];
+			for (int i = offset; i <= last; i++) {
+				if (bytes[i] != first) {
+					continue;
+				}
+				int j = 1;
+				while (j < literal.length && bytes[i + j] == literal[j]) {
+					j++;
+				}
+				if (j == literal.length) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return the line as characters: a view of its bytes if they are ASCII, otherwise decoded
+		 */
+		CharSequence text() {
+			if (text == null) {
+				boolean isAscii = true;
+				for (int i = offset; i < offset + length && isAscii; i++) {
+					isAscii = bytes[i] >= 0;
+				}
+				text = isAscii ? ascii.wrap(bytes, offset, length) : new String(bytes, offset, length, StandardCharsets.UTF_8);
+			}
+			return text;
+		}
+	}
+
+	/**
+	 * ASCII bytes seen as characters, without copying them
+	 */
+	private static class AsciiChars implements CharSequence {
+		private byte[] bytes;
+		private int offset;
+		private int length;
+
+		AsciiChars wrap(byte[] bytes, int offset, int length) {
+			this.bytes = bytes;
+			this.offset = offset;
+			this.length = length;
+			return this;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) bytes[offset + index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new String(bytes, offset + start, end - start, StandardCharsets.US_ASCII);
+		}
+
+		@Override
+		public String toString() {
+			return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+		}
+	}
+
+	private static class Rule {
+		final String name;
+		final FilterAction action;
+		final byte[] literal;			// contained in every line the rule matches, may be null
+		final Pattern pattern;			// may be null
+		final String replacement;
+		final byte[] replacementBytes;	// for a MASK rule with only a literal
+		final double sampleRate;
+		final AtomicLong sampled = new AtomicLong();
+		final double ratePerSecond;
+		private double tokens;			// guarded by this
+		private long refilledAt;		// guarded by this
+		final LongAdder dropped = new LongAdder();
+		final LongAdder masked = new LongAdder();
+
+		Rule(FilterRule config, int index) {
+			this.name = (config.getName() != null) ? config.getName() : "rule-" + index;
+			this.action = (config.getAction() != null) ? config.getAction() : FilterAction.DROP;
+			try {
+				this.pattern = (config.getRegex() != null) ? Pattern.compile(config.getRegex()) : null;
+			} catch (PatternSyntaxException ex) {
+				throw new IllegalArgumentException("Filter rule " + name + " has an invalid regex: " + ex.getMessage(), ex);
+			}
+			String literalText = (config.getLiteral() != null) ? config.getLiteral()
+				: (pattern != null) ? requiredLiteral(config.getRegex()) : null;
+			this.literal = (literalText != null && !literalText.isEmpty()) ? literalText.getBytes(StandardCharsets.UTF_8) : null;
+			this.replacement = (config.getReplacement() != null) ? config.getReplacement() : "";
+			this.replacementBytes = replacement.getBytes(StandardCharsets.UTF_8);
+			this.sampleRate = config.getSampleRate();
+			this.ratePerSecond = config.getRatePerSecond();
+			this.tokens = Math.max(1, ratePerSecond);
+			this.refilledAt = System.nanoTime();
+			if (action == FilterAction.MASK && literal == null && pattern == null) {
+				throw new IllegalArgumentException("Filter rule " + name + " masks, so it needs a literal or regex");
+			}
+			if (action == FilterAction.RATE_LIMIT && ratePerSecond <= 0) {
+				throw new IllegalArgumentException("Filter rule " + name + " limits the rate, so it needs a ratePerSecond");
+			}
+		}
+
+		boolean matches(Line line) {
+			if (literal != null && !line.contains(literal)) {
+				return false;
+			}
+			return pattern == null || pattern.matcher(line.text()).find();
+		}
+
+		/**
+		 * @return true if a line this rule matches is kept
+		 */
+		boolean keeps() {
+			switch (action) {
+				case KEEP:
+					return true;
+				case SAMPLE:
+					if (sampleRate >= 1) {
+						return true;
+					}
+					// keep the n-th line when the count to be kept goes up, which spreads them evenly
+					long n = sampled.getAndIncrement();
+					return (long) ((n + 1) * sampleRate) > (long) (n * sampleRate);
+				case RATE_LIMIT:
+					return tryAcquire(System.nanoTime());
+				default:
+					return false;
+			}
+		}
+
+		private synchronized boolean tryAcquire(long now) {
+			tokens = Math.min(Math.max(1, ratePerSecond), tokens + (now - refilledAt) * ratePerSecond / 1e9);
+			refilledAt = now;
+			if (tokens >= 1) {
+				tokens -= 1;
+				return true;
+			}
+			return false;
+		}
+
+		void mask(Line line) {
+			if (literal != null && !line.contains(literal)) {
+				return;
+			}
+			byte[] masked = (pattern != null) ? maskRegex(line) : maskLiteral(line);
+			if (masked != null) {
+				line.set(masked, 0, masked.length);
+				this.masked.increment();
+			}
+		}
+
+		private byte[] maskRegex(Line line) {
+			Matcher matcher = pattern.matcher(line.text());
+			if (!matcher.find()) {
+				return null;
+			}
+			StringBuffer result = new StringBuffer(line.getLength() + 16);
+			do {
+				matcher.appendReplacement(result, replacement);
+			} while (matcher.find());
+			matcher.appendTail(result);
+			return result.toString().getBytes(StandardCharsets.UTF_8);
+		}
+
+		private byte[] maskLiteral(Line line) {
+			byte[] bytes = line.getBytes();
+			int end = line.getOffset() + line.getLength();
+			ByteArrayOutputStream result = new ByteArrayOutputStream(line.getLength() + 16);
+			int from = line.getOffset();
+			int i = from;
+			while (i <= end - literal.length) {
+				if (regionEquals(bytes, i, literal)) {
+					result.write(bytes, from, i - from);
+					result.write(replacementBytes, 0, replacementBytes.length);
+					i += literal.length;
+					from = i;
+				} else {
+					i++;
+				}
+			}
+			result.write(bytes, from, end - from);
+			return result.toByteArray();
+		}
+
+		private static boolean regionEquals(byte[] bytes, int start, byte[] literal) {
+			for (int j = 0; j < literal.length; j++) {
+				if (bytes[start + j] != literal[j]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
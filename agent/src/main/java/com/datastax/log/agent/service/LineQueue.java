@@ -0,0 +1,75 @@
+package com.datastax.log.agent.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * First in, first out queue of lines kept on disk, holding lines a collector has read
+ * from its file but does not have room for in memory.  Each line keeps its source offset and the
+ * source bytes it stands for, which may differ from its own length plus one (a masked line, a CR LF,
+ * the bytes of lines filtered out before it).
+ * Lines go in and come out as UTF-8 bytes, they are never decoded.
+ * Implementations are not thread safe, the owning collector's lock guards them.
+ *
+ * @author cingham
+ */
+interface LineQueue extends Closeable {
+
+	/**
+	 * Add a line to the end of the queue
+	 *
+	 * @param line buffer holding the line, without its newline
+	 * @param offset start of the line in the buffer
+	 * @param length length of the line
+	 * @param lineStart source offset of the line
+	 * @param lineBytes source bytes of the line, including its newline (and of any lines filtered out before it)
+	 */
+	void append(byte[] line, int offset, int length, long lineStart, int lineBytes) throws IOException;
+
+	/**
+	 * Look at the line at the head of the queue without removing it.  Its bytes are in peekBuffer() from
+	 * peekBufferOffset(), until the queue is next changed.
+	 *
+	 * @return length of the line, or -1 if the queue is empty
+	 */
+	int peekLine() throws IOException;
+
+	/**
+	 * @return buffer holding the line looked at by peekLine()
+	 */
+	byte[] peekBuffer();
+
+	/**
+	 * @return start of the line looked at by peekLine() in peekBuffer()
+	 */
+	int peekBufferOffset();
+
+	/**
+	 * @return source offset of the line looked at by peekLine()
+	 */
+	long peekOffset();
+
+	/**
+	 * @return source bytes of the line looked at by peekLine(), as it was appended
+	 */
+	int peekLineBytes();
+
+	/**
+	 * Remove the line at the head of the queue, which must have been looked at with peekLine()
+	 */
+	void removeLine() throws IOException;
+
+	boolean isEmpty();
+
+	long getLineCount();
+
+	/**
+	 * @return source bytes of the lines in the queue
+	 */
+	long getByteCount();
+
+	/**
+	 * Discard every line in the queue
+	 */
+	void clear() throws IOException;
+}
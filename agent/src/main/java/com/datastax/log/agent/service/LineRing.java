@@ -0,0 +1,235 @@
+package com.datastax.log.agent.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single producer / single consumer ring of lines, used to hand lines from a collector's
+ * tail thread to whichever thread moves them into the collector's lists, without a lock.
+ *
+ * The producer only writes the tail and the consumer only writes the head, each publishes its
+ * position with an ordered (lazy) write once a slot has been filled or emptied, so neither side
+ * ever waits for the other.  Each side keeps its own copy of its position and a cached copy of the
+ * other side's, which it only reads again when the ring looks full (or empty), so the two threads
+ * rarely touch the same cache line.  The consumer takes a whole run of lines in one step: available()
+ * reads the tail once, the lines up to it are read with line(), lineStart() and lineBytes(), then
+ * released together.  The ring is bounded by line count (a power of two) and by source bytes.
+ *
+ * Lines are held as bytes: offer() copies each line into a byte ring (of the byte bound rounded up to a power
+ * of two, allocated when the first line is offered) and the consumer reads it from there with array(),
+ * offset() and length(), so nothing is allocated per line.  A line is kept in one piece, one which would run
+ * past the end of the byte ring starts again at its front.  A line longer than the byte ring (only accepted
+ * into an empty ring) is copied to an array of its own.
+ *
+ * Only one thread may act as producer at a time, and only one as consumer (LogCollector only consumes
+ * while holding its lock).
+ *
+ * @author cingham
+ */
+public class LineRing {
+	private final long[] lineStarts;
+	private final int[] lineBytes;
+	private final int[] lengths;
+	private final long[] dataEnds;		// position in the byte ring just after each line
+	private final byte[][] oversized;	// lines longer than the byte ring
+	private final int mask;
+	private final long maxBytes;
+	private final int dataCapacity;
+	private final int dataMask;
+	private byte[] data;				// the byte ring, allocated by the producer before the first line is published
+
+	// published positions, each padded onto its own cache line
+	private final PaddedLong tail = new PaddedLong();
+	private final PaddedLong head = new PaddedLong();
+	private final PaddedLong consumedBytes = new PaddedLong();
+	private final PaddedLong consumedData = new PaddedLong();
+
+	// producer's own state
+	private long producerTail;
+	private long producedBytes;
+	private long producerData;
+	private long headSeen;
+	private long consumedBytesSeen;
+	private long consumedDataSeen;
+
+	// consumer's own state
+	private long consumerHead;
+	private long consumerBytes;
+
+	/**
+	 * @param capacity most lines held, rounded up to a power of two
+	 * @param maxBytes most source bytes held (a single line larger than this is still accepted into an empty ring)
+	 */
+	public LineRing(int capacity, long maxBytes) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.lineStarts = new long[size];
+		this.lineBytes = new int[size];
+		this.lengths = new int[size];
+		this.dataEnds = new long[size];
+		this.oversized = new byte[size][];
+		this.mask = size - 1;
+		this.maxBytes = maxBytes;
+		this.dataCapacity = Integer.highestOneBit((int) Math.max(2, Math.min(maxBytes, 1 << 30)) - 1) << 1;
+		this.dataMask = dataCapacity - 1;
+	}
+
+	/**
+	 * Producer: copy a line to the tail of the ring
+	 *
+	 * @param line buffer holding the line, without its newline
+	 * @param offset start of the line in the buffer
+	 * @param length length of the line
+	 * @param lineStart source offset of the line
+	 * @param bytes source bytes of the line, including its newline
+	 * @return false if the ring is full
+	 */
+	public boolean offer(byte[] line, int offset, int length, long lineStart, int bytes) {
+		long t = producerTail;
+		if (t - headSeen > mask) {
+			headSeen = head.get();
+			if (t - headSeen > mask) {
+				return false;
+			}
+		}
+		if (producedBytes - consumedBytesSeen + bytes > maxBytes && t != headSeen) {
+			consumedBytesSeen = consumedBytes.get();
+			headSeen = head.get();
+			if (producedBytes - consumedBytesSeen + bytes > maxBytes && t != headSeen) {
+				return false;
+			}
+		}
+		int index = (int) t & mask;
+		if (length > dataCapacity) {
+			if (t != headSeen) {
+				headSeen = head.get();
+				if (t != headSeen) {
+					return false;
+				}
+			}
+			oversized[index] = Arrays.copyOfRange(line, offset, offset + length);
+			dataEnds[index] = producerData;
+		} else {
+			long start = producerData;
+			int position = (int) start & dataMask;
+			if (position + length > dataCapacity) {
+				start += dataCapacity - position;		// wrap, the line is kept in one piece
+			}
+			long end = start + length;
+			// an empty ring has all of the byte ring to itself
+			if (end - consumedDataSeen > dataCapacity && t != headSeen) {
+				consumedDataSeen = consumedData.get();
+				headSeen = head.get();
+				if (end - consumedDataSeen > dataCapacity && t != headSeen) {
+					return false;
+				}
+			}
+			if (data == null) {
+				data = new byte[dataCapacity];
+			}
+			System.arraycopy(line, offset, data, (int) start & dataMask, length);
+			producerData = end;
+			dataEnds[index] = end;
+		}
+		lineStarts[index] = lineStart;
+		lineBytes[index] = bytes;
+		lengths[index] = length;
+		producedBytes += bytes;
+		producerTail = t + 1;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Consumer: number of lines ready to be taken, the lines are then numbered 0 to available()-1 from the head
+	 */
+	public int available() {
+		return (int) (tail.get() - consumerHead);
+	}
+
+	/**
+	 * @return the buffer holding line i, which starts at offset(i)
+	 */
+	public byte[] array(int i) {
+		byte[] own = oversized[(int) (consumerHead + i) & mask];
+		return (own != null) ? own : data;
+	}
+
+	public int offset(int i) {
+		int index = (int) (consumerHead + i) & mask;
+		return (oversized[index] != null) ? 0 : (int) (dataEnds[index] - lengths[index]) & dataMask;
+	}
+
+	public int length(int i) {
+		return lengths[(int) (consumerHead + i) & mask];
+	}
+
+	/**
+	 * @return line i decoded, a new String each time
+	 */
+	public String line(int i) {
+		return new String(array(i), offset(i), length(i), StandardCharsets.UTF_8);
+	}
+
+	public long lineStart(int i) {
+		return lineStarts[(int) (consumerHead + i) & mask];
+	}
+
+	public int lineBytes(int i) {
+		return lineBytes[(int) (consumerHead + i) & mask];
+	}
+
+	/**
+	 * Consumer: remove lines from the head of the ring, handing their slots back to the producer
+	 *
+	 * @param count number of lines, no more than available()
+	 */
+	public void release(int count) {
+		if (count == 0) {
+			return;
+		}
+		long h = consumerHead;
+		long dataEnd = 0;
+		for (int i = 0; i < count; i++) {
+			int index = (int) (h + i) & mask;
+			oversized[index] = null;
+			consumerBytes += lineBytes[index];
+			dataEnd = dataEnds[index];
+		}
+		consumerHead = h + count;
+		consumedData.lazySet(dataEnd);
+		consumedBytes.lazySet(consumerBytes);
+		head.lazySet(consumerHead);
+	}
+
+	/**
+	 * Consumer: whether there are no lines to take
+	 */
+	public boolean isEmpty() {
+		return available() == 0;
+	}
+
+	/**
+	 * @return source bytes held, as seen by the consumer
+	 */
+	public long getByteCount() {
+		long bytes = 0;
+		int available = available();
+		for (int i = 0; i < available; i++) {
+			bytes += lineBytes(i);
+		}
+		return bytes;
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * An AtomicLong with a cache line to itself, so the producer's and consumer's positions do not share one
+	 */
+	@SuppressWarnings("unused")
+	private static class PaddedLong extends AtomicLong {
+		private long p1, p2, p3, p4, p5, p6, p7;
+	}
+}
@@ -1,12 +1,30 @@
 package com.datastax.log.agent.service;
 
+import com.datastax.log.agent.codec.ByteLines;
+import com.datastax.log.agent.codec.TimestampParser;
+import com.datastax.log.agent.config.Config;
+import com.datastax.log.agent.config.OverflowPolicy;
+import com.datastax.log.agent.config.StartPosition;
+import com.datastax.log.agent.dto.LogDto;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
 import lombok.Getter;
-import org.apache.commons.io.input.Tailer;
-import org.apache.commons.io.input.TailerListenerAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -15,50 +33,566 @@ import java.util.concurrent.locks.ReentrantLock;
  *    collectionList - gathers lines as they are read in asynchronously from the log file
  *    uploadList - the batch of lines currently in the process of being uploaded
  *
- * When an upload is about to start (beforeUpload() is called) the lists are swapped.  This allows
- * lines to continue to be pulled in on the collectionList (the upload may take a few seconds),
- * but we have a fixed snapshot in uploadList for the upload.
- * After the upload attempt (afterUpload(boolean) is called), on success we simply clear the uploadList.
- * On failure we add any new lines onto uploadList to keep the ordering, and swap the lists again.
+ * When an upload is about to start (beforeUpload() is called) the lists are swapped, so lines keep
+ * coming in on the collectionList while uploadList is a fixed snapshot for the upload.
+ * On success the uploadList is cleared, on failure it is left as it is and retried by the next upload.
  *
- * Uses TailerListener interface from org.apache.commons.io.input.Tailer
- * to read in (tail) lines of a file as they become available.
- * See: https://commons.apache.org/proper/commons-io/javadocs/api-2.4/org/apache/commons/io/input/Tailer.html
+ * The tail thread (see TailEngine) stages lines in a LineRing without taking the lock, and they are moved
+ * into the lists in batches, when it reaches the end of the file or the ring is full, or by the upload thread.
+ * The lines held count against the MemoryBudget, the OverflowPolicy decides what happens to a line which
+ * does not fit, and a LogSpool (if there is one) writes every line ahead to disk.  Uploads are capped at
+ * maxChunkLines / maxChunkBytes and tagged with a file identity and the source offsets they cover, so the
+ * service can acknowledge a re-sent chunk without writing it twice.
+ *
+ * With an EventAssembler lines are grouped into events before the LineFilter.  The last event read is parked
+ * at the end of the file, until the tail thread reads more of it or the upload thread stages it once it has
+ * waited the flush timeout.
  *
  * @author cingham
  */
-public class LogCollector extends TailerListenerAdapter {
+public class LogCollector implements TailListener {
+	private static final Logger logger = LoggerFactory.getLogger(LogCollector.class);
+	// a tail thread blocked on the agent wide budget checks again this often, other collectors may have freed some
+	private static final long BUDGET_RETRY_MILLIS = 100;
+	// lines the tail thread may stage before it has to move them into the lists itself
+	private static final int STAGED_LINES = 1024;
+	private static final long STAGED_BYTES = 64 * 1024;
+
 	@Getter
 	private final File file;
-	private final Tailer tailer;
+	private volatile TailEngine.Tail tail;
+	private final StartPosition startPosition;
+	private final int maxChunkLines;
+	private final long maxChunkBytes;
+	private final UploadTrigger uploadTrigger;
+	private final Runnable chunkListener;
+	private final MemoryBudget memoryBudget;
+	private final long maxMemoryBytes;
+	private final OverflowPolicy overflowPolicy;
+	@Getter
+	private final OverflowCounters overflowCounters;
+	private final LogSpool spool;		// write ahead spool, may be null
+	private final LineQueue spill;		// lines not in memory: the spool, or a SpillFile for the SPILL policy
+	private final LineFilter filter;	// filters and masks lines before they are staged, may be null
+	// the filter's scratch line, the pending event, and the filtered bytes below are only used by the tail thread,
+	// except while the event is parked, when they are only used holding collectionListLock (see parkEvent())
+	private final LineFilter.Line filterLine = new LineFilter.Line();
+	private final EventAssembler assembler;		// groups lines into events, may be null
+	private final TimestampParser timestamps;	// reads the timestamp of each line added, guarded by collectionListLock, may be null
+	// lines handed over by the tail thread, not yet in the lists (or spool), bounded by STAGED_LINES / STAGED_BYTES
+	private final LineRing staged = new LineRing(STAGED_LINES, STAGED_BYTES);
+	private boolean tailDraining;		// the tail thread is moving staged lines, guarded by collectionListLock
 
-	private List<String> collectionList = new ArrayList<>();
-	private List<String> uploadList = new ArrayList<>();
+	private ByteLines collectionList;
+	private ByteLines uploadList;
+	private long collectionBytes;		// source bytes held in collectionList
+	private long uploadBytes;			// source bytes held in uploadList
+	private long collectionSince;		// when the oldest line in collectionList was read, in millis
+	private volatile long uploadSince;	// when the oldest line in uploadList was read, in millis
+	// places in collectionList where lines before it were dropped, in index order
+	private final List<Gap> gaps = new ArrayList<>();
+
+	private long readOffset;			// end of the last line read from the file, only used by the tail thread
+	private long linesRead;				// totals read, only used by the tail thread
+	private long bytesRead;
+	private int filteredBytes;			// source bytes of lines filtered out since the last line kept, see filterLine
+	private boolean tailParked;			// the tail thread parked the pending event and has not taken it back, only used by the tail thread
+	private volatile long publishedLinesRead;	// the totals as of the last time the tail thread moved staged lines
+	private volatile long publishedBytesRead;
+	private final List<Meter> meters = new ArrayList<>();
+	// source offsets, guarded by collectionListLock
+	private long collectionStartOffset;	// start of the first line in collectionList
+	private long collectionEndOffset;	// end of the last line in collectionList
+	private long uploadStartOffset;
+	private long uploadEndOffset;
+	private long resumeOffset;			// lines ending at or before this were already committed by the service
+	private long spooledOffset;			// lines ending at or before this were spooled before a restart
+	private String fileId;
+	private String epochKey;			// key of the file the current epoch is for, when not the tailed file
+	private boolean pendingRotation;	// start a new epoch once the lines of the current one are uploaded
+	@Getter
+	private volatile boolean epochResolved;
+	private volatile boolean stopped;
+	private volatile boolean tailStopped;
+	// the pending event was parked by the tail thread, and when, guarded by collectionListLock
+	private boolean eventParked;
+	private long parkedAt;
+	private long advertisedDue = Long.MAX_VALUE;	// as last returned by flushDueAt(), guarded by collectionListLock
 
 	// this lock ensures the actions of adding new line elements to the collectionList
 	// and manipulating lists just before upload do not interfere with each other
 	private final ReentrantLock collectionListLock = new ReentrantLock();
+	// signalled when both lists are empty, a file rotation waits for this
+	private final Condition drained = collectionListLock.newCondition();
+	// signalled when a chunk has been taken for upload or memory was freed, a paused tail thread waits for this
+	private final Condition chunkTaken = collectionListLock.newCondition();
 
 	public LogCollector(File file) {
+		this(file, StartPosition.SAVED, Integer.MAX_VALUE, Long.MAX_VALUE, new MemoryBudget(new Config()), null);
+	}
+
+	public LogCollector(File file, StartPosition startPosition, int maxChunkLines, long maxChunkBytes,
+			MemoryBudget memoryBudget, Runnable chunkListener) {
+		this(file, startPosition, maxChunkLines, maxChunkBytes, memoryBudget, null, chunkListener);
+	}
+
+	public LogCollector(File file, StartPosition startPosition, int maxChunkLines, long maxChunkBytes,
+			MemoryBudget memoryBudget, LogSpool spool, Runnable chunkListener) {
+		this(file, startPosition, maxChunkLines, maxChunkBytes, memoryBudget, spool,
+			new UploadTrigger(maxChunkLines, maxChunkBytes, 0), chunkListener);
+	}
+
+	/**
+	 * @param file the file to tail
+	 * @param startPosition where to start reading the file
+	 * @param maxChunkLines most lines in one upload
+	 * @param maxChunkBytes most source bytes in one upload
+	 * @param memoryBudget limits on the lines held in memory, and what to do when they are reached
+	 * @param spool write ahead spool for the file (not opened yet), may be null
+	 * @param uploadTrigger when lines that have built up should be uploaded
+	 * @param chunkListener told when a full chunk (or enough lines for the upload trigger) is ready, may be null
+	 */
+	public LogCollector(File file, StartPosition startPosition, int maxChunkLines, long maxChunkBytes,
+			MemoryBudget memoryBudget, LogSpool spool, UploadTrigger uploadTrigger, Runnable chunkListener) {
+		this(file, startPosition, maxChunkLines, maxChunkBytes, memoryBudget, spool, uploadTrigger, null, chunkListener);
+	}
+
+	/**
+	 * @param file the file to tail
+	 * @param startPosition where to start reading the file
+	 * @param maxChunkLines most lines in one upload
+	 * @param maxChunkBytes most source bytes in one upload
+	 * @param memoryBudget limits on the lines held in memory, and what to do when they are reached
+	 * @param spool write ahead spool for the file (not opened yet), may be null
+	 * @param uploadTrigger when lines that have built up should be uploaded
+	 * @param filter filters and masks the lines as they are read, may be null
+	 * @param chunkListener told when a full chunk (or enough lines for the upload trigger) is ready, may be null
+	 */
+	public LogCollector(File file, StartPosition startPosition, int maxChunkLines, long maxChunkBytes,
+			MemoryBudget memoryBudget, LogSpool spool, UploadTrigger uploadTrigger, LineFilter filter,
+			Runnable chunkListener) {
+		this(file, startPosition, maxChunkLines, maxChunkBytes, memoryBudget, spool, uploadTrigger, filter, null, null,
+			chunkListener);
+	}
+
+	/**
+	 * @param file the file to tail
+	 * @param startPosition where to start reading the file
+	 * @param maxChunkLines most lines in one upload
+	 * @param maxChunkBytes most source bytes in one upload
+	 * @param memoryBudget limits on the lines held in memory, and what to do when they are reached
+	 * @param spool write ahead spool for the file (not opened yet), may be null
+	 * @param uploadTrigger when lines that have built up should be uploaded
+	 * @param filter filters and masks the lines as they are read, may be null
+	 * @param assembler groups the lines into events, for this collector only, may be null
+	 * @param timestamps reads the timestamps of the lines, for this collector only, may be null
+	 * @param chunkListener told when a full chunk (or enough lines for the upload trigger) is ready, may be null
+	 */
+	public LogCollector(File file, StartPosition startPosition, int maxChunkLines, long maxChunkBytes,
+			MemoryBudget memoryBudget, LogSpool spool, UploadTrigger uploadTrigger, LineFilter filter,
+			EventAssembler assembler, TimestampParser timestamps, Runnable chunkListener) {
 		this.file = file;
+		this.startPosition = startPosition;
+		this.maxChunkLines = maxChunkLines;
+		this.maxChunkBytes = maxChunkBytes;
+		this.uploadTrigger = uploadTrigger;
+		this.chunkListener = chunkListener;
+		this.filter = filter;
+		this.assembler = assembler;
+		this.timestamps = timestamps;
+		this.memoryBudget = memoryBudget;
+		this.maxMemoryBytes = memoryBudget.getMaxCollectorBytes();
+		this.overflowPolicy = memoryBudget.getOverflowPolicy();
+		this.overflowCounters = new OverflowCounters(memoryBudget.getCounters());
+		this.collectionList = new ByteLines(memoryBudget.getPagePool());
+		this.uploadList = new ByteLines(memoryBudget.getPagePool());
+		this.spool = openSpool(spool);
+		if (this.spool != null) {
+			this.spill = this.spool;
+		} else if (overflowPolicy == OverflowPolicy.SPILL) {
+			this.spill = new SpillFile(memoryBudget.getSpillPath(), file.getName());
+		} else {
+			this.spill = null;
+		}
+
+		boolean fromEnd = (startPosition == StartPosition.END);
+		if (fromEnd) {
+			readOffset = file.length();
+			collectionStartOffset = readOffset;
+			collectionEndOffset = readOffset;
+		}
+		if (this.spool != null) {
+			recoverSpool();
+		}
+	}
+
+	/**
+	 * Start reading the file, from the start or the end per the start position
+	 *
+	 * @param tailEngine reads the file and hands its lines to this collector
+	 */
+	public void startTailing(TailEngine tailEngine) {
+		registerMeters();
+		tail = tailEngine.tail(file, this, readOffset);
+	}
+
+	private void registerMeters() {
+		Tags tags = Tags.of("file", file.getPath());
+		meters.add(FunctionCounter.builder("log.agent.lines.read", this, collector -> collector.publishedLinesRead)
+			.tags(tags).description("Lines read from the file").register(Metrics.globalRegistry));
+		meters.add(FunctionCounter.builder("log.agent.read", this, collector -> collector.publishedBytesRead)
+			.tags(tags).baseUnit("bytes").description("Bytes read from the file").register(Metrics.globalRegistry));
+		meters.add(Gauge.builder("log.agent.tail.lag", this, LogCollector::getTailLag)
+			.tags(tags).baseUnit("bytes").description("Bytes of the file not yet read").register(Metrics.globalRegistry));
+		meters.add(Gauge.builder("log.agent.queue.lines", this, LogCollector::getHeldLines)
+			.tags(tags).description("Lines held in memory waiting to be uploaded").register(Metrics.globalRegistry));
+		meters.add(Gauge.builder("log.agent.queue.bytes", this, LogCollector::getHeldBytes)
+			.tags(tags).baseUnit("bytes").description("Source bytes held in memory waiting to be uploaded")
+			.register(Metrics.globalRegistry));
+	}
+
+	/**
+	 * @return bytes of the file not yet read, as of the tail's last check
+	 */
+	public long getTailLag() {
+		TailEngine.Tail current = tail;
+		return (current == null) ? 0 : Math.max(0, file.length() - current.getCheckedPosition());
+	}
+
+	/**
+	 * @return true if the whole file has been read, but for a last line which has no newline yet
+	 */
+	public boolean isCaughtUp() {
+		TailEngine.Tail current = tail;
+		return current != null && current.getCheckedPosition() >= file.length();
+	}
 
-		// start thread to continuously read in log file lines using the apache Tailer interface.  See:
-		// https://commons.apache.org/proper/commons-io/javadocs/api-2.4/org/apache/commons/io/input/Tailer.html
-		tailer = Tailer.create(file, this);
+	/**
+	 * Stop reading the file, the lines already read are still uploaded
+	 */
+	public void stopTailing() {
+		tailStopped = true;
+		if (tail != null) {
+			tail.stop();
+		}
 	}
 
 	/**
-	 * Called by the Tailer thread as each new line becomes available
+	 * Add a line followed by a single newline, as if it had been read from the file
 	 *
 	 * @param line the new line of text from the log file
 	 */
 	public void handle(String line) {
-		collectionListLock.lock();	// temporarily block any upload list manipulation
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		handle(bytes, 0, bytes.length, bytes.length + 1);
+	}
+
+	/**
+	 * Called by the tail thread as each new line becomes available.
+	 * The line is staged in the ring without taking the lock.  Only when the ring is full are the staged
+	 * lines moved into the lists here, and with the BLOCK policy that waits while a full chunk is waiting
+	 * to be uploaded or the memory budget (or spool) is full.
+	 *
+	 * With an EventAssembler the line is added to the pending event, which is staged first if the line starts a
+	 * new one.
+	 *
+	 * @param bytes buffer holding the new line from the log file, copied into the ring
+	 * @param offset start of the line in the buffer
+	 * @param length length of the line
+	 * @param lineBytes bytes the line takes up in the file, including its newline
+	 */
+	@Override
+	public void handle(byte[] bytes, int offset, int length, int lineBytes) {
+		if (assembler != null) {
+			reclaimEvent();
+			if (assembler.completes(bytes, offset, length) && !stageEvent(true)) {
+				return;		// stopped while waiting for room
+			}
+			assembler.add(bytes, offset, length, readOffset, lineBytes);
+		} else if (!stage(bytes, offset, length, readOffset, lineBytes, true)) {
+			return;
+		}
+		readOffset += lineBytes;
+		linesRead++;
+		bytesRead += lineBytes;
+	}
+
+	/**
+	 * Stage a line (or event) in the ring, on the tail thread or on a thread which took over a parked event.
+	 * It goes through the filter first, if there is one.  A line filtered out is not staged, the source
+	 * bytes it took up are added to the next line kept instead, so the lines uploaded still cover the file
+	 * without gaps (and the service does not see lines as lost).  A masked line keeps its place in the file.
+	 *
+	 * @param lineStart where the line starts in the file
+	 * @param lineBytes bytes the line takes up in the file, including its newline
+	 * @param tailThread true on the tail thread, which moves the staged lines itself when the ring is full
+	 * @return false if the line could not be staged (stopped while waiting for room)
+	 */
+	private boolean stage(byte[] bytes, int offset, int length, long lineStart, int lineBytes, boolean tailThread) {
+		if (filter != null) {
+			filterLine.set(bytes, offset, length);
+			if (!filter.apply(filterLine)) {
+				// carried over to the next line kept, a run of filtered lines too long for that is left as a gap
+				filteredBytes = (filteredBytes <= Integer.MAX_VALUE - lineBytes) ? filteredBytes + lineBytes : 0;
+				return true;
+			}
+			bytes = filterLine.getBytes();
+			offset = filterLine.getOffset();
+			length = filterLine.getLength();
+			if (filteredBytes > Integer.MAX_VALUE - lineBytes) {
+				filteredBytes = 0;
+			}
+		}
+		long start = lineStart - filteredBytes;
+		int sourceBytes = filteredBytes + lineBytes;
+		if (!staged.offer(bytes, offset, length, start, sourceBytes)) {
+			if (!tailThread) {
+				return false;
+			}
+			drainFromTail();
+			if (!staged.offer(bytes, offset, length, start, sourceBytes)) {
+				return false;
+			}
+		}
+		filteredBytes = 0;
+		return true;
+	}
+
+	/**
+	 * Stage the pending event and start a new one
+	 */
+	private boolean stageEvent(boolean tailThread) {
+		boolean result = stage(assembler.getBytes(), 0, assembler.getLength(), assembler.getEventStart(),
+			assembler.getSourceBytes(), tailThread);
+		assembler.clear();
+		return result;
+	}
+
+	/**
+	 * Tail thread: hand the pending event over, until the next line is read, so it can be staged once it
+	 * has waited the flush timeout.  The upload thread is woken if it would not otherwise look again by then.
+	 * From here until reclaimEvent() the event and the filter state are only touched holding the lock, an event
+	 * parked already (the end of the file reached again with no line read) may be being staged, so is left alone.
+	 */
+	private void parkEvent() {
+		if (assembler == null || tailParked) {
+			return;
+		}
+		boolean wake;
+		collectionListLock.lock();
+		try {
+			if (assembler.isEmpty()) {
+				return;
+			}
+			eventParked = true;
+			parkedAt = System.currentTimeMillis();
+			wake = tailStopped || parkedAt + assembler.getFlushTimeout() < advertisedDue;
+		} finally {
+			collectionListLock.unlock();
+		}
+		tailParked = true;
+		if (wake && chunkListener != null) {
+			chunkListener.run();
+		}
+	}
+
+	/**
+	 * Tail thread: take back the event it parked, unless it has been staged already (leaving the assembler empty).
+	 * Once the lock has been released the event and the filter state are the tail thread's again.
+	 */
+	private void reclaimEvent() {
+		if (!tailParked) {
+			return;
+		}
+		collectionListLock.lock();
+		try {
+			eventParked = false;
+		} finally {
+			collectionListLock.unlock();
+		}
+		tailParked = false;
+	}
+
+	/**
+	 * Stage a parked event which has waited the flush timeout, or whose tail has stopped, and move it into the
+	 * lists.  Only done once every staged line has been moved, an empty ring always takes it.
+	 * Must be called holding the lock.
+	 */
+	private void flushParkedEvent(long now) {
+		if (!eventParked || (now < parkedAt + assembler.getFlushTimeout() && !tailStopped)
+				|| tailDraining || !staged.isEmpty()) {
+			return;
+		}
+		eventParked = false;
+		stageEvent(false);
+		drainForUpload();
+	}
+
+	/**
+	 * Called by the tail thread when the file has been rotated or truncated.
+	 * Blocks until the lines from the old file have been uploaded, then starts a new epoch.
+	 */
+	@Override
+	public void fileRotated() {
+		if (assembler != null) {
+			reclaimEvent();
+			if (!assembler.isEmpty()) {
+				stageEvent(true);		// the last event of the old file
+			}
+		}
+		drainFromTail();
+		collectionListLock.lock();
+		try {
+			awaitDrainedAndStartEpoch(0);
+			readOffset = 0;
+			filteredBytes = 0;
+			fileId = newFileId();
+			epochResolved = true;
+			startSpoolEpoch();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			collectionListLock.unlock();
+		}
+	}
+
+	/**
+	 * Called by the tail thread each time it has caught up with the end of the file.
+	 * The lines staged since the last time are moved into the lists in one go, and it is a good point to
+	 * hand spooled lines to the OS, and to park the pending event.
+	 */
+	@Override
+	public void endOfFileReached() {
+		drainFromTail();
+		parkEvent();
+		if (spool == null) {
+			return;
+		}
+		collectionListLock.lock();
+		try {
+			spool.flush();
+		} catch (IOException ex) {
+			logger.error("Error writing spool for {}, exception={}", file, ex.toString());
+		} finally {
+			collectionListLock.unlock();
+		}
+	}
+
+	/**
+	 * Tail thread: move every staged line into the lists, waiting for room where the policy says to,
+	 * and tell the listener if that made a chunk ready
+	 */
+	private void drainFromTail() {
+		publishedLinesRead = linesRead;
+		publishedBytesRead = bytesRead;
+		boolean chunkReady;
+		collectionListLock.lock();
 		try {
-			collectionList.add(line);
+			tailDraining = true;
+			chunkReady = drainStaged(true);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return;
 		} finally {
+			tailDraining = false;
 			collectionListLock.unlock();
 		}
+
+		if (chunkReady && chunkListener != null) {
+			chunkListener.run();
+		}
+	}
+
+	/**
+	 * Upload thread: move the staged lines which can be taken without waiting into the lists, so they can be
+	 * uploaded.  Skipped while the tail thread is draining (it may be waiting for room, with the lock released).
+	 */
+	private void drainForUpload() {
+		if (tailDraining) {
+			return;
+		}
+		try {
+			drainStaged(false);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();		// does not wait, so not expected
+		}
+	}
+
+	/**
+	 * Move lines from the head of the staging ring into collectionList (or the spool / spill file), applying
+	 * the memory budget and overflow policy to each.  On the tail thread this waits for room, or for a pending
+	 * rotation, as needed.  On an upload thread it stops at the first line which would have to wait.
+	 * Must be called holding the lock, and only by one thread at a time.
+	 *
+	 * @param tailThread true when called by the tail thread
+	 * @return true if collectionList has just become ready to upload
+	 */
+	private boolean drainStaged(boolean tailThread) throws InterruptedException {
+		boolean wasReady = isFlushReady();
+		int available = staged.available();
+		int taken = 0;
+		try {
+			for (; taken < available; taken++) {
+				byte[] line = staged.array(taken);
+				int offset = staged.offset(taken);
+				int length = staged.length(taken);
+				long lineStart = staged.lineStart(taken);
+				int lineBytes = staged.lineBytes(taken);
+				if (pendingRotation) {
+					if (!tailThread) {
+						break;
+					}
+					awaitDrainedAndStartEpoch(lineStart);
+				}
+				long lineEnd = lineStart + lineBytes;
+				if (lineEnd <= resumeOffset || lineEnd <= spooledOffset) {
+					continue;		// the service already has this line, or it is in the spool
+				}
+				if (mustWaitForRoom(lineBytes)) {
+					if (!tailThread) {
+						break;
+					}
+					awaitRoom(lineBytes);
+				}
+
+				refillFromSpill();
+				if (spool != null) {
+					spoolLine(line, offset, length, lineStart, lineBytes);
+				} else if (spill != null && !spill.isEmpty()) {
+					// behind lines already spilled, to keep the order
+					spillLine(line, offset, length, lineStart, lineBytes);
+				} else if (reserve(lineBytes)) {
+					addLine(line, offset, length, lineStart, lineBytes);
+				} else {
+					overflow(line, offset, length, lineStart, lineBytes);
+				}
+			}
+		} finally {
+			staged.release(taken);
+		}
+		return !wasReady && isFlushReady();
+	}
+
+	/**
+	 * Wait until every line of the current epoch has been uploaded, then reset the offsets for a new epoch
+	 * starting at offset.  The caller sets the new file identity.
+	 */
+	private void awaitDrainedAndStartEpoch(long offset) throws InterruptedException {
+		while (!stopped && !isDrained()) {
+			drained.await();
+		}
+		collectionStartOffset = offset;
+		collectionEndOffset = offset;
+		resumeOffset = 0;
+		spooledOffset = 0;
+		epochKey = null;
+		pendingRotation = false;
+		// the tailed file gets its own epoch, found by asking the service again
+		fileId = null;
+		epochResolved = false;
+		if (spool != null) {
+			spool.setEpoch(fileKey(file), null);
+		}
 	}
 
 	/**
@@ -67,81 +601,640 @@ public class LogCollector extends TailerListenerAdapter {
 	 * @return true means there are lines available
 	 */
 	protected boolean hasLinesToUpload() {
-		return (collectionList.size() > 0);
+		collectionListLock.lock();
+		try {
+			drainForUpload();
+			flushParkedEvent(System.currentTimeMillis());
+			return !uploadList.isEmpty() || !collectionList.isEmpty() || (spill != null && !spill.isEmpty());
+		} finally {
+			collectionListLock.unlock();
+		}
+	}
+
+	/**
+	 * @return source bytes of the lines held in memory waiting to be uploaded, not counting any on disk
+	 */
+	protected long getHeldBytes() {
+		collectionListLock.lock();
+		try {
+			return heldBytes();
+		} finally {
+			collectionListLock.unlock();
+		}
+	}
+
+	/**
+	 * @return lines held in memory waiting to be uploaded, not counting any on disk
+	 */
+	protected int getHeldLines() {
+		collectionListLock.lock();
+		try {
+			return collectionList.size() + uploadList.size();
+		} finally {
+			collectionListLock.unlock();
+		}
+	}
+
+	/**
+	 * Determine whether a full chunk is waiting, which should be uploaded without waiting for the next cycle
+	 *
+	 * @return true means a full chunk is available
+	 */
+	protected boolean isChunkReady() {
+		collectionListLock.lock();
+		try {
+			drainForUpload();
+			return isChunkFull();
+		} finally {
+			collectionListLock.unlock();
+		}
+	}
+
+	/**
+	 * When the lines waiting should be uploaded: straight away once a full chunk or the upload trigger's
+	 * size has built up (or lines are waiting on disk, or a failed chunk is waiting to be retried), otherwise once
+	 * the oldest line reaches the trigger's age.  A parked event is due once it has waited the flush timeout, it is
+	 * staged then and uploaded by the trigger's age like any other line.
+	 *
+	 * @param now the current time in millis
+	 * @return time in millis the next upload is due, at or before now if due already, Long.MAX_VALUE if nothing is waiting
+	 */
+	protected long flushDueAt(long now) {
+		collectionListLock.lock();
+		try {
+			drainForUpload();
+			flushParkedEvent(now);
+			long due;
+			if (!uploadList.isEmpty() || isFlushReady() || (spill != null && !spill.isEmpty())) {
+				due = now;
+			} else if (collectionList.isEmpty()) {
+				due = Long.MAX_VALUE;
+			} else {
+				due = collectionSince + uploadTrigger.getFlushAgeMillis();
+			}
+			if (eventParked) {
+				// not staged while staged lines are waiting for room, look again shortly
+				long eventDue = parkedAt + assembler.getFlushTimeout();
+				due = Math.min(due, eventDue > now ? eventDue : now + BUDGET_RETRY_MILLIS);
+			}
+			advertisedDue = due;
+			return due;
+		} finally {
+			collectionListLock.unlock();
+		}
+	}
+
+	/**
+	 * Decide which epoch of the file we are uploading, given what the service has already committed.
+	 * Unless the file is configured to start from the BEGINNING, if the service holds an epoch of this
+	 * same file that is no longer than the file, we resume it and drop lines the service already has.
+	 * Otherwise a new epoch is started.
+	 *
+	 * @param committedFileId file identity the service has for this filename, may be null
+	 * @param committedOffset offset the service has committed for that identity, may be null
+	 */
+	protected void resolveEpoch(String committedFileId, Long committedOffset) {
+		collectionListLock.lock();
+		try {
+			if (epochResolved) {
+				return;
+			}
+			// lines recovered from the spool may be from an earlier file, those are always resumed
+			boolean tailedFile = (epochKey == null);
+			String key = tailedFile ? fileKey(file) : epochKey;
+			if ((startPosition != StartPosition.BEGINNING || !tailedFile) && committedFileId != null
+					&& committedOffset != null && committedFileId.startsWith(key + "@")
+					&& (!tailedFile || committedOffset <= file.length())) {
+				fileId = committedFileId;
+				resumeOffset = committedOffset;
+				dropCommittedLines();
+			} else {
+				fileId = newFileId();
+			}
+			epochResolved = true;
+			startSpoolEpoch();
+		} finally {
+			collectionListLock.unlock();
+		}
 	}
 
 	/**
 	 * Manage internal lists to prepare for an upload attempt
-	 * @return current uploadList
+	 * @return chunk holding the current uploadList and its offsets
 	 */
-	protected List<String> beforeUpload() {
-		// ensure uploadList contains the latest batch of lines,
+	protected LogDto beforeUpload() {
+		// ensure uploadList contains the latest batch of lines, at most one chunk
 		// (collectionList becomes uploadList, empty uploadList becomes new collectionList)
-		lockAndSwapLists();
+		lockAndTakeChunk();
 
 		// give caller items ready to upload
-		return uploadList;
+		return new LogDto(file.getName(), fileId, uploadStartOffset, uploadEndOffset, uploadList);
 	}
 
 	/**
 	 * Update internal lists just after an upload attempt
-	 * @param success
+	 * @param success false leaves the chunk in place to be retried
 	 */
 	protected void afterUpload(boolean success) {
 		if (success) {
 			// upload attempt was successful, simply clear the upload list
-			uploadList.clear();
-		} else {
-			// problem during upload, but we don't want to lose the lines we tried to send:
-			//  1) concatenate any new lines that just came in onto upload list thus keeping the ordering
-			//	2) uploadList then becomes collectionList to continue collecting new lines as usual
-	 		// 	3) later we'll try again during the next upload cycle (in a few seconds)
-			lockAndConcatenateLists();
+			collectionListLock.lock();
+			try {
+				uploadList.clear();
+				memoryBudget.release(uploadBytes);
+				uploadBytes = 0;
+				acknowledgeSpool();
+				refillFromSpill();
+				drainForUpload();
+				chunkTaken.signalAll();		// memory was freed
+				if (isDrained()) {
+					drained.signalAll();
+				}
+			} finally {
+				collectionListLock.unlock();
+			}
 		}
+		// on failure the chunk simply stays in uploadList, and the next beforeUpload() retries it as it is
 	}
 
 	/**
-	 * Swap collectionList and uploadList, while locking to prevent contention issues
+	 * Move up to one chunk of lines from collectionList to uploadList, while locking to prevent contention issues.
+	 * If everything fits the lists are simply swapped.  A chunk stops short of a gap left by dropped lines.
+	 * A chunk whose upload failed is still in uploadList, it is retried as it is.
 	 */
-	private void lockAndSwapLists() {
+	private void lockAndTakeChunk() {
 		collectionListLock.lock();		// temporarily block new lines from being added
 		try {
-			doListSwap();
+			refillFromSpill();
+			drainForUpload();
+			syncSpool();
+			if (!uploadList.isEmpty()) {
+				return;		// retry the failed chunk
+			}
+			uploadStartOffset = collectionStartOffset;
+			uploadSince = collectionSince;
+			if (gaps.isEmpty() && collectionList.size() <= maxChunkLines && collectionBytes <= maxChunkBytes) {
+				doListSwap();
+				uploadEndOffset = collectionEndOffset;
+				uploadBytes = collectionBytes;
+				collectionBytes = 0;
+				collectionStartOffset = collectionEndOffset;
+			} else {
+				int maxLines = gaps.isEmpty() ? maxChunkLines : Math.min(maxChunkLines, gaps.get(0).index);
+				int count = 0;
+				long chunkBytes = 0;
+				while (count < collectionList.size()) {
+					long lineBytes = collectionList.sourceBytes(count);
+					if (count > 0 && (count == maxLines || chunkBytes + lineBytes > maxChunkBytes)) {
+						break;
+					}
+					chunkBytes += lineBytes;
+					count++;
+				}
+				uploadList.addAll(collectionList, count);
+				uploadEndOffset = uploadStartOffset + chunkBytes;
+				uploadBytes = chunkBytes;
+				removeLeadingLines(count, chunkBytes);
+			}
+			chunkTaken.signalAll();
 		} finally {
 			collectionListLock.unlock();
 		}
 	}
 
 	/**
-	 * Concatenate any new lines that just came in onto upload list thus keeping the ordering,
-	 * uploadList then becomes collectionList to continue collecting new lines as usual
+	 * @return when the oldest line of the chunk being uploaded was read (or taken back from the spill or spool), in millis
 	 */
-	private void lockAndConcatenateLists() {
-		collectionListLock.lock();		// temporarily block new lines from being added
-		try {
-			// add any new lines to uploadList, keeping the ordering
-			uploadList.addAll(collectionList);
-			collectionList.clear();
+	protected long getUploadSince() {
+		return uploadSince;
+	}
 
-			// restore the uploadList back to collectionList
-			doListSwap();
+	/**
+	 * @return when the oldest line waiting to be uploaded was read, in millis, Long.MAX_VALUE if none is waiting in memory
+	 */
+	protected long getWaitingSince() {
+		collectionListLock.lock();
+		try {
+			if (!uploadList.isEmpty()) {
+				return uploadSince;
+			}
+			return collectionList.isEmpty() ? Long.MAX_VALUE : collectionSince;
 		} finally {
 			collectionListLock.unlock();
 		}
 	}
 
 	private void doListSwap() {
-		List<String> temp = uploadList;
+		ByteLines temp = uploadList;
 		uploadList = collectionList;
 		collectionList = temp;
 	}
 
+	/**
+	 * Add a line to the end of collectionList, its bytes must already be reserved
+	 */
+	private void addLine(byte[] line, int offset, int length, long lineStart, int lineBytes) {
+		if (collectionList.isEmpty()) {
+			collectionStartOffset = lineStart;
+			collectionSince = System.currentTimeMillis();
+		} else if (lineStart != collectionEndOffset) {
+			gaps.add(new Gap(collectionList.size(), lineStart - collectionEndOffset));
+		}
+		long timestamp = (timestamps != null) ? timestamps.parse(line, offset, length) : TimestampParser.NONE;
+		collectionList.add(line, offset, length, lineBytes, timestamp);
+		collectionBytes += lineBytes;
+		collectionEndOffset = lineStart + lineBytes;
+	}
+
+	/**
+	 * Remove lines from the front of collectionList, moving its start offset past them and any gaps among them
+	 */
+	private void removeLeadingLines(int count, long bytes) {
+		collectionList.removeFirst(count);
+		collectionBytes -= bytes;
+		long skipped = 0;
+		Iterator<Gap> iterator = gaps.iterator();
+		while (iterator.hasNext()) {
+			Gap gap = iterator.next();
+			if (gap.index <= count) {
+				skipped += gap.bytes;
+				iterator.remove();
+			} else {
+				gap.index -= count;
+			}
+		}
+		collectionStartOffset += bytes + skipped;
+	}
+
+	private long heldBytes() {
+		return collectionBytes + uploadBytes;
+	}
+
+	/**
+	 * Whether a line would fit in the memory budget.  A collector holding nothing always has room for one line.
+	 */
+	private boolean hasRoom(long lineBytes) {
+		return heldBytes() == 0
+			|| (heldBytes() + lineBytes <= maxMemoryBytes && memoryBudget.hasRoom(lineBytes));
+	}
+
+	/**
+	 * Take a line's bytes from the memory budget if they fit
+	 */
+	private boolean reserve(long lineBytes) {
+		if (heldBytes() == 0) {
+			memoryBudget.forceReserve(lineBytes);
+			return true;
+		}
+		return heldBytes() + lineBytes <= maxMemoryBytes && memoryBudget.tryReserve(lineBytes);
+	}
+
+	/**
+	 * BLOCK policy: whether a line has to wait, because a full chunk is waiting to be taken or the line does
+	 * not fit in the memory budget.  With a spool, whether it does not fit in the spool (also for the SPILL policy).
+	 */
+	private boolean mustWaitForRoom(int lineBytes) {
+		if (overflowPolicy == OverflowPolicy.BLOCK && isChunkFull()) {
+			return true;
+		}
+		if (overflowPolicy != OverflowPolicy.BLOCK && (spool == null || overflowPolicy != OverflowPolicy.SPILL)) {
+			return false;
+		}
+		return spool != null ? !spool.hasRoom(lineBytes) : !hasRoom(lineBytes);
+	}
+
+	/**
+	 * Tail thread: wait until mustWaitForRoom() no longer holds for a line
+	 */
+	private void awaitRoom(int lineBytes) throws InterruptedException {
+		long blockedAt = 0;
+		while (!stopped && mustWaitForRoom(lineBytes)) {
+			if (overflowPolicy == OverflowPolicy.BLOCK && isChunkFull()) {
+				chunkTaken.await();
+			} else {
+				if (blockedAt == 0) {
+					blockedAt = System.currentTimeMillis();
+				}
+				chunkTaken.await(BUDGET_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (blockedAt != 0) {
+			overflowCounters.blocked(System.currentTimeMillis() - blockedAt);
+		}
+	}
+
+	/**
+	 * Apply the overflow policy to a line which does not fit in the memory budget
+	 */
+	private void overflow(byte[] line, int offset, int length, long lineStart, int lineBytes) {
+		switch (overflowPolicy) {
+			case DROP_OLDEST:
+				if (dropOldest(lineBytes) && reserve(lineBytes)) {
+					addLine(line, offset, length, lineStart, lineBytes);
+				} else {
+					// everything held is being uploaded, so the new line is the only one we can drop
+					overflowCounters.droppedNewest(1, lineBytes);
+				}
+				break;
+			case DROP_NEWEST:
+				overflowCounters.droppedNewest(1, lineBytes);
+				break;
+			case SPILL:
+				spillLine(line, offset, length, lineStart, lineBytes);
+				break;
+			default:
+				// BLOCK waited for room but another collector took the agent wide budget first
+				memoryBudget.forceReserve(lineBytes);
+				addLine(line, offset, length, lineStart, lineBytes);
+				break;
+		}
+	}
+
+	/**
+	 * Drop the oldest lines of collectionList to make room for a new line.  At least an eighth of the
+	 * lines are dropped at a time, so the cost of shifting the list is spread over many new lines.
+	 *
+	 * @return false if there was nothing to drop
+	 */
+	private boolean dropOldest(long lineBytes) {
+		long needed = Math.max(heldBytes() + lineBytes - maxMemoryBytes, memoryBudget.shortfall(lineBytes));
+		int minLines = Math.max(1, collectionList.size() / 8);
+		int count = 0;
+		long bytes = 0;
+		while (count < collectionList.size() && (bytes < needed || count < minLines)) {
+			bytes += collectionList.sourceBytes(count);
+			count++;
+		}
+		if (count == 0) {
+			return false;
+		}
+		removeLeadingLines(count, bytes);
+		memoryBudget.release(bytes);
+		overflowCounters.droppedOldest(count, bytes);
+		return true;
+	}
+
+	/**
+	 * SPILL policy: add a line to the end of the spill file
+	 */
+	private void spillLine(byte[] line, int offset, int length, long lineStart, int lineBytes) {
+		try {
+			spill.append(line, offset, length, lineStart, lineBytes);
+			overflowCounters.spilled(1, lineBytes);
+		} catch (IOException ex) {
+			logger.error("Error writing spill file for {}, exception={}", file, ex.toString());
+			discardSpill(lineBytes);
+		}
+	}
+
+	/**
+	 * Move lines from the head of the spill file into collectionList while they fit in the memory budget
+	 */
+	private void refillFromSpill() {
+		if (spill == null) {
+			return;
+		}
+		try {
+			int length;
+			while ((length = spill.peekLine()) >= 0) {
+				int lineBytes = spill.peekLineBytes();
+				long lineStart = spill.peekOffset();
+				if (lineStart + lineBytes > resumeOffset) {
+					if (!reserve(lineBytes)) {
+						return;
+					}
+					addLine(spill.peekBuffer(), spill.peekBufferOffset(), length, lineStart, lineBytes);
+				}
+				spill.removeLine();
+			}
+		} catch (IOException ex) {
+			logger.error("Error reading spill file for {}, exception={}", file, ex.toString());
+			discardSpill(0);
+		}
+	}
+
+	/**
+	 * Give up on the spill file (or spool) after an IO error, its lines (plus any extra bytes of a line
+	 * which failed to be spilled) are counted as dropped
+	 */
+	private void discardSpill(long extraBytes) {
+		overflowCounters.droppedNewest(spill.getLineCount() + (extraBytes > 0 ? 1 : 0), spill.getByteCount() + extraBytes);
+		try {
+			spill.clear();
+		} catch (IOException ex) {
+			logger.error("Error clearing spill file for {}, exception={}", file, ex.toString());
+		}
+	}
+
+	/**
+	 * Write ahead a line to the spool, and keep it in memory too if it fits and no older lines are waiting in the spool
+	 */
+	private void spoolLine(byte[] line, int offset, int length, long lineStart, int lineBytes) {
+		boolean caughtUp = spool.isEmpty();
+		try {
+			if (!spool.hasRoom(lineBytes) && overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+				long lines = spool.getLineCount();
+				long bytes = spool.getByteCount();
+				while (!spool.hasRoom(lineBytes) && spool.dropOldestSegment()) {
+					// keep going until there is room
+				}
+				overflowCounters.droppedOldest(lines - spool.getLineCount(), bytes - spool.getByteCount());
+				caughtUp = spool.isEmpty();
+			}
+			if (!spool.hasRoom(lineBytes)) {
+				overflowCounters.droppedNewest(1, lineBytes);
+				return;
+			}
+			spool.append(line, offset, length, lineStart, lineBytes);
+		} catch (IOException ex) {
+			// keep going without writing ahead, the line is only lost if the agent stops before it is uploaded
+			logger.error("Error writing spool for {}, exception={}", file, ex.toString());
+			if (caughtUp && reserve(lineBytes)) {
+				addLine(line, offset, length, lineStart, lineBytes);
+			} else {
+				overflowCounters.droppedNewest(1, lineBytes);
+			}
+			return;
+		}
+		if (caughtUp && reserve(lineBytes)) {
+			spool.skipLine(length, lineBytes);
+			addLine(line, offset, length, lineStart, lineBytes);
+		}
+	}
+
+	/**
+	 * Open the spool, carrying on without one if it cannot be opened
+	 */
+	private LogSpool openSpool(LogSpool spool) {
+		if (spool == null) {
+			return null;
+		}
+		try {
+			spool.open();
+			return spool;
+		} catch (IOException ex) {
+			logger.error("Error opening spool {} for {}, continuing without it, exception={}",
+				spool.getDirectory(), file, ex.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Pick up where the spool left off before a restart.  Unacknowledged lines from this same file
+	 * are uploaded in the same epoch and reading carries on after them.  Lines from an earlier file
+	 * (or any, when starting from the BEGINNING) are uploaded in their own epoch first.
+	 */
+	private void recoverSpool() {
+		String spooledKey = spool.getFileKey();
+		String key = fileKey(file);
+		if (spooledKey != null && spooledKey.equals(key) && startPosition != StartPosition.BEGINNING) {
+			spooledOffset = spool.getEndOffset();
+			fileId = spool.getFileId();
+			epochResolved = (fileId != null);
+		} else if (!spool.isEmpty()) {
+			epochKey = spooledKey;
+			fileId = spool.getFileId();
+			epochResolved = (fileId != null);
+			pendingRotation = true;
+		}
+		spool.setEpoch(epochKey != null ? epochKey : key, fileId);
+		refillFromSpill();
+	}
+
+	/**
+	 * Record a newly decided epoch in the spool, so lines already spooled for it are known to belong to it
+	 */
+	private void startSpoolEpoch() {
+		if (spool == null) {
+			return;
+		}
+		try {
+			spool.setEpoch(epochKey != null ? epochKey : fileKey(file), fileId);
+			spool.acknowledge(fileId, resumeOffset);
+		} catch (IOException ex) {
+			logger.error("Error writing spool checkpoint for {}, exception={}", file, ex.toString());
+		}
+	}
+
+	private void closeSpill() {
+		try {
+			spill.close();
+		} catch (IOException ex) {
+			logger.error("Error closing spill file for {}, exception={}", file, ex.toString());
+		}
+	}
+
+	private void syncSpool() {
+		if (spool == null) {
+			return;
+		}
+		try {
+			spool.sync();
+		} catch (IOException ex) {
+			logger.error("Error writing spool for {}, exception={}", file, ex.toString());
+		}
+	}
+
+	private void acknowledgeSpool() {
+		if (spool == null || fileId == null) {
+			return;
+		}
+		try {
+			spool.acknowledge(fileId, uploadEndOffset);
+		} catch (IOException ex) {
+			logger.error("Error writing spool checkpoint for {}, exception={}", file, ex.toString());
+		}
+	}
+
+	private boolean isDrained() {
+		return collectionList.isEmpty() && uploadList.isEmpty() && (spill == null || spill.isEmpty());
+	}
+
+	private boolean isChunkFull() {
+		return collectionList.size() >= maxChunkLines || collectionBytes >= maxChunkBytes;
+	}
+
+	private boolean isFlushReady() {
+		return isChunkFull() || uploadTrigger.isFull(collectionList.size(), collectionBytes);
+	}
+
+	/**
+	 * Remove lines from the front of collectionList which end at or before resumeOffset
+	 * (lines still in the spill file are skipped as they are read back)
+	 */
+	private void dropCommittedLines() {
+		int count = 0;
+		long bytes = 0;
+		long position = collectionStartOffset;
+		int nextGap = 0;
+		while (count < collectionList.size()) {
+			if (nextGap < gaps.size() && gaps.get(nextGap).index == count) {
+				position += gaps.get(nextGap++).bytes;
+			}
+			int lineBytes = collectionList.sourceBytes(count);
+			if (position + lineBytes > resumeOffset) {
+				break;
+			}
+			position += lineBytes;
+			bytes += lineBytes;
+			count++;
+		}
+		removeLeadingLines(count, bytes);
+		memoryBudget.release(bytes);
+		chunkTaken.signalAll();
+	}
+
+	private String newFileId() {
+		return (epochKey != null ? epochKey : fileKey(file)) + "@" + System.currentTimeMillis();
+	}
+
+	/**
+	 * Stable identity of the file on disk, the inode where the file system provides one
+	 */
+	static String fileKey(File file) {
+		try {
+			Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+			if (key != null) {
+				return key.toString();
+			}
+		} catch (IOException ex) {
+			// fall back to the path
+		}
+		return file.getAbsolutePath();
+	}
+
 	/**
 	 * Cleanup thread resources on app shutdown
 	 */
 	public void shutdown() {
-		if (tailer != null) {
-			tailer.stop();
+		stopTailing();
+		meters.forEach(Metrics.globalRegistry::remove);
+		meters.clear();
+		collectionListLock.lock();
+		try {
+			drainForUpload();		// so staged lines reach the spool
+			flushParkedEvent(System.currentTimeMillis());
+			stopped = true;
+			drained.signalAll();
+			chunkTaken.signalAll();
+			if (spill != null) {
+				closeSpill();
+			}
+		} finally {
+			collectionListLock.unlock();
+		}
+	}
+
+	/**
+	 * Source bytes skipped before the line at index in collectionList
+	 */
+	private static class Gap {
+		private int index;
+		private final long bytes;
+
+		Gap(int index, long bytes) {
+			this.index = index;
+			this.bytes = bytes;
 		}
 	}
 }
@@ -1,92 +1,583 @@
 package com.datastax.log.agent.service;
 
+import com.datastax.log.agent.codec.TimestampParser;
 import com.datastax.log.agent.config.Config;
+import com.datastax.log.agent.dto.LogDto;
+import com.datastax.log.agent.dto.ServerResponseDto;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 
+import java.io.File;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 /**
- * Worker thread to periodically determine whether file lines need to be uploaded.
- * 
+ * Worker thread which schedules the uploads of the lines collected for each file.
+ * Uploads run on a pool of up to maxConcurrentUploads threads, so a slow file or a hung request does not
+ * hold up the others, while each file has at most one upload in flight so its chunks stay in order.
+ *
+ * A file is uploaded when its collector says the lines waiting are due (see UploadTrigger): as soon as
+ * enough lines or bytes have built up, or when the oldest line has waited long enough.  Collectors wake
+ * the thread when they reach the size trigger, and finished uploads wake it to look again.
+ * After a failed upload the file is tried again after a jittered exponential backoff (see RetryBackoff).
+ * When the service pushes back it is given at least the Retry-After it asked for: a 429 holds off just
+ * that file, a 503 holds off every file.  The uploader's UploadPacer stretches the upload trigger and limits the
+ * requests in flight while the service is slow, and is told how long the lines of each upload had waited.
+ *
+ * Files which fall due together are sent in one multi-file request where the service takes them (see
+ * LogUploader.uploadFilesToServer()), packed into requests of up to maxBatchBytes of lines from up to
+ * maxBatchFiles files, each request going to the instance which owns its files.  Each file's chunk succeeds
+ * or fails on its own, so one file being turned away only holds off that file.
+ *
+ * Files are added and retired while the agent runs (see FileDiscovery), the collectors are kept in a
+ * CollectorRegistry.  A retired file is removed once its last lines are uploaded.
+ *
+ * The files collected, the uploads in flight and the uploads held off to be retried are published as
+ * log.agent.files, log.agent.uploads.inflight and log.agent.upload.retries.
+ *
  * @author cingham
  */
 @Service
 public class LogHandler implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger(LogHandler.class);
 
-	private final List<LogCollector> logCollectors = new ArrayList<>();
+	private static final Counter retryCounter = Counter.builder("log.agent.upload.retries")
+		.description("Uploads held off to be retried after a failure").register(Metrics.globalRegistry);
+
+	private final CollectorRegistry registry;
 
 	private final LogUploader uploader;
+	private final Config config;
+	private final MemoryBudget memoryBudget;
+	private final TailEngine tailEngine;
+	private final UploadTrigger uploadTrigger;
+	private final RetryBackoff retryBackoff;
+	private final UploadPacer pacer;
+	private final LineFilter lineFilter;		// shared by every collector, null if there are no filter rules
+	private final Pattern eventStartPattern;	// null if lines are not grouped into events
+	private final ZoneId timestampZone;		// null if timestamps are not sent
+	private String lastOverflowReport;
 	private final long delayBetweenUploads;
+	private final int maxChunkLines;
+	private final long maxChunkBytes;
+	private final long maxBatchBytes;
+	private final int maxBatchFiles;
+
+	private final ExecutorService uploadExecutor;
+	// collectors with an upload in flight, and the collectors whose last upload failed
+	private final Set<LogCollector> inFlight = ConcurrentHashMap.newKeySet();
+	private final Map<LogCollector, Retry> retries = new ConcurrentHashMap<>();
+	// no uploads are started before this time, after the service said it was unavailable
+	private volatile long pausedUntil;
+
+	// signalled by collectors when enough lines are ready, and by uploads when they finish
+	private final Object wakeup = new Object();
+	private boolean woken;		// guarded by wakeup
 
 	/**
 	 * Injection constructor
 	 *
 	 * @param uploader class that handles uploading collected log lines to service host
 	 * @param config app config options
+	 * @param memoryBudget limits on the lines held in memory by all collectors
+	 * @param tailEngine reads the files
 	 */
-	protected LogHandler(LogUploader uploader, Config config) {
+	protected LogHandler(LogUploader uploader, Config config, MemoryBudget memoryBudget, TailEngine tailEngine) {
 		this.uploader = uploader;
+		this.config = config;
+		this.memoryBudget = memoryBudget;
+		this.tailEngine = tailEngine;
+		UploadPacer uploaderPacer = uploader.getPacer();
+		this.pacer = (uploaderPacer != null) ? uploaderPacer : new UploadPacer(config);
+		this.uploadTrigger = UploadTrigger.from(config, pacer);
+		this.retryBackoff = RetryBackoff.from(config);
+		this.lineFilter = LineFilter.from(config);
+		this.eventStartPattern = EventAssembler.startPattern(config);
+		this.timestampZone = config.isEventTimestamps() ? ZoneId.of(config.getTimestampZone()) : null;
+		newTimestampParser();		// so an invalid format fails now, rather than for each file
 		this.delayBetweenUploads = config.getDelayBetweenUploads()*1000;  // seconds to millis
+		this.maxChunkLines = config.getMaxChunkLines() > 0 ? config.getMaxChunkLines() : Integer.MAX_VALUE;
+		this.maxChunkBytes = config.getMaxChunkBytes() > 0 ? config.getMaxChunkBytes() : Long.MAX_VALUE;
+		this.maxBatchBytes = config.getMaxBatchBytes() > 0 ? config.getMaxBatchBytes() : Long.MAX_VALUE;
+		this.maxBatchFiles = config.getMaxBatchFiles() > 0 ? config.getMaxBatchFiles() : Integer.MAX_VALUE;
+		this.registry = new CollectorRegistry(config.getMaxTailedFiles());
+
+		Gauge.builder("log.agent.files", registry, CollectorRegistry::size)
+			.description("Files being collected").register(Metrics.globalRegistry);
+		Gauge.builder("log.agent.uploads.inflight", inFlight, Set::size)
+			.description("Files with an upload in flight").register(Metrics.globalRegistry);
+
+		AtomicInteger threadCount = new AtomicInteger();
+		this.uploadExecutor = Executors.newFixedThreadPool(Math.max(1, config.getMaxConcurrentUploads()), runnable -> {
+			Thread thread = new Thread(runnable, "log-upload-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Start tailing a file, using the configured start position, chunk size, memory budget and spool.
+	 * Lines left in the file's spool by an earlier run are uploaded first.
+	 * @param file the file to tail
+	 * @return false if the file is already tailed, or maxTailedFiles are already tailed
+	 */
+	public boolean addLogFile(File file) {
+		if (registry.contains(file)) {
+			return false;
+		}
+		LogSpool spool = null;
+		if (config.getSpoolPath() != null) {
+			spool = new LogSpool(LogSpool.directoryFor(new File(config.getSpoolPath()), file),
+				config.getSpoolSegmentBytes(), config.getMaxSpoolBytes());
+		}
+		LogCollector logCollector = new LogCollector(file, config.startPositionFor(file),
+			maxChunkLines, maxChunkBytes, memoryBudget, spool, uploadTrigger, lineFilter, newEventAssembler(),
+			newTimestampParser(), this::chunkReady);
+		if (!addLogCollector(logCollector)) {
+			return false;
+		}
+		logCollector.startTailing(tailEngine);
+		return true;
+	}
+
+	/**
+	 * @return an assembler for one collector, null if lines are not grouped into events
+	 */
+	private EventAssembler newEventAssembler() {
+		if (eventStartPattern == null) {
+			return null;
+		}
+		return new EventAssembler(eventStartPattern, config.getMaxEventLines(), config.getMaxEventBytes(),
+			config.getEventFlushTimeout());
+	}
+
+	/**
+	 * @return a timestamp parser for one collector, null if timestamps are not sent
+	 */
+	private TimestampParser newTimestampParser() {
+		return config.isEventTimestamps() ? new TimestampParser(config.getTimestampFormat(), timestampZone) : null;
 	}
 
 	/**
 	 * Add a LogCollector, each of which represents a particular file and it's collected log lines
 	 * @param logCollector
+	 * @return false if the file already has a collector, or maxTailedFiles are already held
+	 */
+	public boolean addLogCollector(LogCollector logCollector) {
+		return registry.add(logCollector);
+	}
+
+	/**
+	 * @param file a file
+	 * @return true if the file has a collector, still tailed or retiring
+	 */
+	public boolean isCollecting(File file) {
+		return registry.contains(file);
+	}
+
+	/**
+	 * @param file a file
+	 * @return true if the file is tailed and has been read to its end
+	 */
+	public boolean isCaughtUp(File file) {
+		LogCollector logCollector = registry.get(file);
+		return logCollector != null && logCollector.isCaughtUp();
+	}
+
+	/**
+	 * @return how many files have a collector
 	 */
-	public void addLogCollector(LogCollector logCollector) {
-		this.logCollectors.add(logCollector);
+	public int getCollectorCount() {
+		return registry.size();
 	}
 
 	/**
-	 * Worker thread which periodically attempts to upload current batch of lines
+	 * Stop tailing a file, the lines already read are uploaded and then its collector is removed
+	 * @param file the file to stop tailing
+	 * @return false if the file was not being tailed
+	 */
+	public boolean retireLogFile(File file) {
+		if (!registry.retire(file)) {
+			return false;
+		}
+		wake();
+		return true;
+	}
+
+	/**
+	 * Called by a collector's tail thread when it has enough lines ready to upload
+	 */
+	public void chunkReady() {
+		wake();
+	}
+
+	/**
+	 * Worker thread which starts uploads as they fall due, and sleeps until the next one is
+	 * due or it is woken
 	 */
 	public void run() {
 		try {
+			long nextReport = System.currentTimeMillis() + delayBetweenUploads;
 			while (!Thread.interrupted()) {
-				Thread.sleep(delayBetweenUploads);
-				processLogCollectors();
+				removeRetired();
+				long nextDue = scheduleUploads(System.currentTimeMillis());
+				if (System.currentTimeMillis() >= nextReport) {
+					reportOverflow();
+					nextReport = System.currentTimeMillis() + delayBetweenUploads;
+				}
+				waitUntil(Math.min(nextDue, nextReport));
 			}
 		} catch(InterruptedException ie) {
-			// interrupted during sleep(), just exit thread
+			// interrupted during wait(), just exit thread
 		}
 		shutdown();
 	}
 
+	private void wake() {
+		synchronized (wakeup) {
+			woken = true;
+			wakeup.notifyAll();
+		}
+	}
+
+	private void waitUntil(long time) throws InterruptedException {
+		synchronized (wakeup) {
+			long wait = time - System.currentTimeMillis();
+			while (!woken && wait > 0) {
+				wakeup.wait(wait);
+				wait = time - System.currentTimeMillis();
+			}
+			woken = false;
+		}
+	}
+
+	/**
+	 * Start an upload for each file whose lines are due and which has no upload in flight, while the pacer
+	 * allows more requests in flight.  The files whose lines have waited longest go first, so while the pacer
+	 * holds the requests back no file is left behind.  Files the service has already been asked about are sent
+	 * together where it takes multi-file uploads.
+	 *
+	 * @param now the current time in millis
+	 * @return when the next file's lines fall due, in millis
+	 */
+	private long scheduleUploads(long now) {
+		if (pausedUntil > now) {
+			return pausedUntil;
+		}
+		long nextDue = Long.MAX_VALUE;
+		List<DueUpload> due = new ArrayList<>();
+		for (LogCollector logCollector : registry.collectors()) {
+			if (inFlight.contains(logCollector)) {
+				continue;		// the finished upload wakes us up
+			}
+			Retry retry = retries.get(logCollector);
+			if (retry != null && retry.at > now) {
+				nextDue = Math.min(nextDue, retry.at);
+				continue;
+			}
+			long dueAt = logCollector.flushDueAt(now);
+			if (dueAt > now) {
+				nextDue = Math.min(nextDue, dueAt);
+			} else {
+				due.add(new DueUpload(logCollector, logCollector.getWaitingSince()));
+			}
+		}
+		due.sort(Comparator.comparingLong(dueUpload -> dueUpload.waitingSince));
+
+		boolean multiFile = config.isMultiFileUploads() && uploader.isMultiFileEnabled();
+		List<LogCollector> batchable = new ArrayList<>();
+		for (DueUpload dueUpload : due) {
+			LogCollector logCollector = dueUpload.logCollector;
+			if (multiFile && logCollector.isEpochResolved()) {
+				batchable.add(logCollector);
+			} else if (pacer.tryStart()) {
+				startUploads(Collections.singletonList(logCollector));
+			}
+			// otherwise as many requests as the pacer allows are in flight, the next to finish wakes us up
+		}
+		startBatches(batchable);
+		return nextDue;
+	}
+
+	/**
+	 * Pack the files which are due into multi-file requests, by the instance they are sent to, each holding
+	 * up to maxBatchFiles files and (going by the lines each has in memory) up to maxBatchBytes
+	 */
+	private void startBatches(List<LogCollector> batchable) {
+		Map<String, List<LogCollector>> byUrl = new LinkedHashMap<>();
+		for (LogCollector logCollector : batchable) {
+			byUrl.computeIfAbsent(uploader.urlFor(logCollector.getFile().getName()), url -> new ArrayList<>())
+				.add(logCollector);
+		}
+		for (List<LogCollector> collectors : byUrl.values()) {
+			List<LogCollector> group = new ArrayList<>();
+			long groupBytes = 0;
+			for (LogCollector logCollector : collectors) {
+				long chunkBytes = Math.min(logCollector.getHeldBytes(), maxChunkBytes);
+				if (!group.isEmpty() && (group.size() >= maxBatchFiles || groupBytes + chunkBytes > maxBatchBytes)) {
+					if (!pacer.tryStart()) {
+						return;
+					}
+					startUploads(group);
+					group = new ArrayList<>();
+					groupBytes = 0;
+				}
+				group.add(logCollector);
+				groupBytes += chunkBytes;
+			}
+			if (!group.isEmpty() && pacer.tryStart()) {
+				startUploads(group);
+			}
+		}
+	}
+
 	/**
-	 * Check each file we are watching and process upload as necessary
+	 * Start one request for a group of files, a file on its own takes the single file path.
+	 * The pacer has already let the request start.
 	 */
-	private void processLogCollectors() {
-		for (LogCollector logCollector : logCollectors) {
-			processUpload(logCollector);
+	private void startUploads(List<LogCollector> group) {
+		inFlight.addAll(group);
+		if (group.size() == 1) {
+			LogCollector logCollector = group.get(0);
+			uploadExecutor.execute(() -> uploadTask(logCollector));
+		} else {
+			uploadExecutor.execute(() -> batchUploadTask(group));
+		}
+	}
+
+	/**
+	 * Runs on an upload thread, one at a time for each collector
+	 */
+	private void uploadTask(LogCollector logCollector) {
+		try {
+			if (processUpload(logCollector)) {
+				retries.remove(logCollector);
+				pacer.lag(System.currentTimeMillis() - logCollector.getUploadSince());
+			} else if (logCollector.hasLinesToUpload()) {
+				backOff(logCollector, 0);
+			}
+		} catch (ServiceBusyException busy) {
+			if (busy.isServiceWide()) {
+				pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + busy.getRetryAfterMillis());
+			}
+			backOff(logCollector, busy.getRetryAfterMillis());
+		} catch (RuntimeException ex) {
+			logger.error("Error uploading {}, exception={}", logCollector.getFile(), ex.toString());
+			backOff(logCollector, 0);
+		} finally {
+			inFlight.remove(logCollector);
+			pacer.finish();
+			wake();
+		}
+	}
+
+	/**
+	 * Runs on an upload thread, for a group of collectors none of which has another upload in flight.
+	 * Each file's chunk is retried (or not) on its own, as the service answered it.
+	 */
+	private void batchUploadTask(List<LogCollector> group) {
+		try {
+			List<LogCollector> uploading = new ArrayList<>(group.size());
+			List<LogDto> logDtos = new ArrayList<>(group.size());
+			long batchBytes = 0;
+			for (LogCollector logCollector : group) {
+				if (!logCollector.hasLinesToUpload()) {
+					continue;
+				}
+				LogDto logDto = logCollector.beforeUpload();
+				long chunkBytes = logDto.getEndOffset() - logDto.getStartOffset();
+				if (!uploading.isEmpty() && batchBytes + chunkBytes > maxBatchBytes) {
+					logCollector.afterUpload(false);		// more than estimated, left for the next request
+					continue;
+				}
+				uploading.add(logCollector);
+				logDtos.add(logDto);
+				batchBytes += chunkBytes;
+			}
+			if (!uploading.isEmpty()) {
+				uploadBatch(uploading, logDtos);
+			}
+		} catch (RuntimeException ex) {
+			logger.error("Error uploading {} files, exception={}", group.size(), ex.toString());
+		} finally {
+			inFlight.removeAll(group);
+			pacer.finish();
+			wake();
+		}
+	}
+
+	/**
+	 * Upload the chunks taken from the collectors in one request, and let each collector know how its chunk went
+	 */
+	private void uploadBatch(List<LogCollector> uploading, List<LogDto> logDtos) {
+		List<ServerResponseDto> entries;
+		try {
+			entries = uploader.uploadFilesToServer(logDtos);
+		} catch (ServiceBusyException busy) {
+			if (busy.isServiceWide()) {
+				pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + busy.getRetryAfterMillis());
+			}
+			for (LogCollector logCollector : uploading) {
+				logCollector.afterUpload(false);
+				backOff(logCollector, busy.getRetryAfterMillis());
+			}
+			return;
+		} catch (RuntimeException ex) {
+			for (LogCollector logCollector : uploading) {
+				logCollector.afterUpload(false);
+				backOff(logCollector, 0);
+			}
+			throw ex;
+		}
+
+		for (int i = 0; i < uploading.size(); i++) {
+			LogCollector logCollector = uploading.get(i);
+			ServerResponseDto entry = (entries != null) ? entries.get(i) : null;
+			int status = (entry != null) ? entry.getStatus() : 0;
+			logCollector.afterUpload(status == HttpStatus.OK.value());
+			if (status == HttpStatus.OK.value()) {
+				retries.remove(logCollector);
+				pacer.lag(System.currentTimeMillis() - logCollector.getUploadSince());
+			} else if (status == HttpStatus.TEMPORARY_REDIRECT.value()) {
+				// sent straight on to its owner, which the uploader now knows
+			} else if (entry != null) {
+				// a file turned away on its own waits as long as the service asked, as for a single file upload
+				long retryAfterMillis = (entry.getRetryAfter() != null) ? TimeUnit.SECONDS.toMillis(entry.getRetryAfter()) : 0;
+				if (status == HttpStatus.SERVICE_UNAVAILABLE.value()) {
+					pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + retryAfterMillis);
+				}
+				backOff(logCollector, retryAfterMillis);
+			} else if (uploader.isMultiFileEnabled()) {
+				backOff(logCollector, 0);
+			}
+			// otherwise the service does not take multi-file uploads, each file is sent on its own straight away
 		}
 	}
 
+	/**
+	 * Shut down and forget the retired collectors which have uploaded their last lines.  Uploads are only
+	 * started by this thread, so one which is not in flight now will not be started underneath us.
+	 */
+	private void removeRetired() {
+		for (LogCollector logCollector : registry.removeRetired(
+				collector -> !inFlight.contains(collector) && !collector.hasLinesToUpload())) {
+			retries.remove(logCollector);
+			logCollector.shutdown();
+			logger.info("Stopped collecting {}", logCollector.getFile());
+		}
+	}
+
+	/**
+	 * Hold off the next upload of a file whose upload failed, for longer with each failure in a row
+	 *
+	 * @param minDelay the least time to wait, e.g. the Retry-After asked for by the service
+	 */
+	private void backOff(LogCollector logCollector, long minDelay) {
+		Retry retry = retries.computeIfAbsent(logCollector, key -> new Retry());
+		retry.failures++;
+		retryCounter.increment();
+		retry.at = System.currentTimeMillis() + Math.max(minDelay, retryBackoff.delay(retry.failures));
+	}
+
+	/**
+	 * Log the agent wide overflow counters whenever they have changed, so it is visible
+	 * when lines are being held back or lost because the memory budget is full
+	 */
+	private void reportOverflow() {
+		String report = memoryBudget.getCounters().toString();
+		if (lastOverflowReport != null && !report.equals(lastOverflowReport)) {
+			logger.warn("Memory budget full ({} bytes held), policy={}: {}",
+				memoryBudget.getUsedBytes(), memoryBudget.getOverflowPolicy(), report);
+		}
+		lastOverflowReport = report;
+	}
+
 	/**
 	 * For a given file, upload any new lines that came in
 	 * @param logCollector
+	 * @return true if lines were uploaded
 	 */
-	private void processUpload(LogCollector logCollector) {
+	private boolean processUpload(LogCollector logCollector) {
 		if (!logCollector.hasLinesToUpload()) {
-			return;		// nothing to do
+			return false;		// nothing to do
+		}
+
+		// find out where the service is up to with this file before the first upload
+		if (!logCollector.isEpochResolved()) {
+			ServerResponseDto committed = uploader.fetchCommittedOffset(logCollector.getFile());
+			if (committed == null) {
+				return false;		// service not available, try again later
+			}
+			logCollector.resolveEpoch(committed.getFileId(), committed.getCommittedOffset());
+			if (!logCollector.hasLinesToUpload()) {
+				return false;		// the service already had everything
+			}
 		}
 
 		// let the collector prepare its internal lists and give us the lines ready to upload
-		List<String> lines = logCollector.beforeUpload();
+		LogDto logDto = logCollector.beforeUpload();
 
 		// do the upload
-		boolean success = uploader.uploadToServer(logCollector.getFile(), lines);
+		boolean success;
+		try {
+			success = uploader.uploadToServer(logDto);
+		} catch (ServiceBusyException busy) {
+			logCollector.afterUpload(false);
+			throw busy;
+		}
 
 		// let the collector know the status so it can update its lists accordingly
 		logCollector.afterUpload(success);
+		return success;
 	}
 
 	/**
 	 * Cleanup child thread resources (each LogCollector) on app shutdown
 	 */
 	private void shutdown() {
-		for (LogCollector logCollector : logCollectors) {
+		uploadExecutor.shutdownNow();
+		for (LogCollector logCollector : registry.collectors()) {
 			logCollector.shutdown();
 		}
 	}
+
+	/**
+	 * A collector whose lines are due, and when the oldest of them was read (taken once, as it changes
+	 * while the lines are sorted)
+	 */
+	private static class DueUpload {
+		private final LogCollector logCollector;
+		private final long waitingSince;
+
+		private DueUpload(LogCollector logCollector, long waitingSince) {
+			this.logCollector = logCollector;
+			this.waitingSince = waitingSince;
+		}
+	}
+
+	/**
+	 * Failures in a row for a collector, and when it may be tried again.
+	 * Only the collector's upload thread writes it, the scheduler reads it once the upload is no longer in flight.
+	 */
+	private static class Retry {
+		private volatile int failures;
+		private volatile long at;
+	}
 }
@@ -0,0 +1,665 @@
+package com.datastax.log.agent.service;
+
+import lombok.Getter;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Durable write-ahead spool of the lines read from one tailed file, so that lines the service
+ * has not acknowledged survive the agent crashing or being redeployed.
+ *
+ * Lines are appended to numbered segment files through a FileChannel.  Each segment holds lines
+ * of one epoch of the file:
+ *     header:  [int magic][UTF fileKey][UTF fileId, empty if not known yet]
+ *     records: [int UTF-8 length][long source offset][int source bytes][UTF-8 bytes]
+ * A line's bytes are written as they were read and handed back from the read buffer, never decoded.
+ * The source bytes are what the line took up in the file (a masked line's differ from its length),
+ * so where each line ends, and so what the service has acknowledged, is known exactly.
+ * Appends are buffered, and written to the channel when the buffer fills, when flush() is called
+ * (the collector does this each time the TailEngine reaches the end of the file) and before anything
+ * is read back.  sync() also forces the channel to disk.
+ *
+ * A checkpoint file records the file identity and offset last acknowledged by the service.
+ * Segments whose lines are all acknowledged are deleted.  When the spool is opened the segments
+ * are scanned (a partial record left by a crash is truncated away) and reading resumes at the
+ * first line after the checkpoint.  A segment written before its epoch was known belongs to the
+ * checkpoint's epoch if the file key matches, since the checkpoint is written as soon as it is known.
+ *
+ * As a LineQueue, the queue is the lines which have not been read back by the collector yet.
+ * Lines which have been read stay on disk until they are acknowledged.  The total size of the
+ * segments is capped at maxBytes.  Not thread safe, the owning collector's lock guards it.
+ *
+ * @author cingham
+ */
+class LogSpool implements LineQueue {
+	private static final Logger logger = LoggerFactory.getLogger(LogSpool.class);
+
+	static final int MAGIC = 0x4C535032;	// "LSP2", records with their source bytes
+	static final String CHECKPOINT_NAME = "checkpoint";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final int RECORD_HEADER_SIZE = 16;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	@Getter
+	private final File directory;
+	private final long segmentBytes;
+	private final long maxBytes;
+
+	private final List<Segment> segments = new ArrayList<>();
+	private long totalBytes;			// size of all segments, including buffered appends
+	private long pendingLines;			// lines not read back yet
+	private long pendingBytes;
+
+	// epoch of new segments
+	private String epochKey;
+	private String epochFileId = "";
+
+	// writing, always to the last segment
+	private Segment writeSegment;
+	private FileChannel writeChannel;
+	private final ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	// reading, readPosition is the file position of the next record of readSegment
+	private Segment readSegment;
+	private long readPosition;
+	private FileChannel readChannel;
+	private Segment readChannelSegment;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private long readBufferStart = -1;	// file position of readBuffer[0]
+	private long nextOffset;			// read ahead by peekLine(), the line's bytes are in readBuffer
+	private int nextLength = -1;
+	private int nextLineBytes;
+	private int nextIndex;
+
+	// last acknowledged by the service
+	private String ackedFileId;
+	private long ackedOffset;
+
+	/**
+	 * @param directory where to keep the segments and checkpoint of this file
+	 * @param segmentBytes size at which a new segment is started
+	 * @param maxBytes cap on the total size of the segments
+	 */
+	LogSpool(File directory, long segmentBytes, long maxBytes) {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes > 0 ? segmentBytes : Long.MAX_VALUE;
+		this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Spool directory for a tailed file, named after the file plus a hash of its path
+	 * so files with the same name in different directories do not share a spool
+	 */
+	static File directoryFor(File spoolPath, File file) {
+		return new File(spoolPath, file.getName() + "-" + Integer.toHexString(file.getAbsolutePath().hashCode()));
+	}
+
+	/**
+	 * Read the checkpoint and segments left by an earlier run, dropping whatever was acknowledged
+	 */
+	void open() throws IOException {
+		directory.mkdirs();
+		readCheckpoint();
+
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+		if (files != null) {
+			Arrays.sort(files);
+			for (File segmentFile : files) {
+				Segment segment = scan(segmentFile);
+				if (segment != null) {
+					segments.add(segment);
+					totalBytes += segment.size;
+					pendingLines += segment.lines;
+					pendingBytes += segment.lineBytes;
+				}
+			}
+		}
+		if (!segments.isEmpty()) {
+			readSegment = segments.get(0);
+			readPosition = readSegment.dataStart;
+		}
+
+		while (!segments.isEmpty() && isAcknowledged(segments.get(0), segments.get(0).endOffset)) {
+			deleteFirstSegment();
+		}
+		// the first segment may still start with a few acknowledged lines
+		while (peekLine() >= 0 && isAcknowledged(readSegment, nextOffset + nextLineBytes)) {
+			removeLine();
+		}
+		if (!segments.isEmpty()) {
+			logger.info("Recovered spool {}, {} lines ({} bytes) waiting to be uploaded.",
+				directory, pendingLines, pendingBytes);
+		}
+	}
+
+	/**
+	 * @return key of the file the latest spooled lines (or the checkpoint) came from, null if there is nothing
+	 */
+	String getFileKey() {
+		if (!segments.isEmpty()) {
+			return last().fileKey;
+		}
+		return (ackedFileId != null) ? ackedFileId.substring(0, ackedFileId.lastIndexOf('@')) : null;
+	}
+
+	/**
+	 * @return identity of the epoch the latest spooled lines (or the checkpoint) belong to, null if not known
+	 */
+	String getFileId() {
+		String fileId = segments.isEmpty() ? ackedFileId : effectiveFileId(last());
+		return (fileId == null || fileId.isEmpty()) ? null : fileId;
+	}
+
+	/**
+	 * @return source offset at the end of the latest spooled line, or of the checkpoint
+	 */
+	long getEndOffset() {
+		return segments.isEmpty() ? ackedOffset : last().endOffset;
+	}
+
+	/**
+	 * Set the epoch of lines appended from now on, a new segment is started if it has changed
+	 *
+	 * @param fileKey key of the file the lines come from
+	 * @param fileId identity of the epoch, null if it is not known yet
+	 */
+	void setEpoch(String fileKey, String fileId) {
+		this.epochKey = fileKey;
+		this.epochFileId = (fileId != null) ? fileId : "";
+	}
+
+	/**
+	 * @param lineBytes source bytes of a new line
+	 * @return true if the line fits under the size cap (an empty spool always has room)
+	 */
+	boolean hasRoom(int lineBytes) {
+		return totalBytes == 0 || totalBytes + RECORD_HEADER_SIZE + lineBytes <= maxBytes;
+	}
+
+	@Override
+	public void append(byte[] line, int offset, int length, long lineStart, int lineBytes) throws IOException {
+		if (writeSegment == null || writeSegment.size >= segmentBytes
+				|| !writeSegment.fileKey.equals(epochKey) || !writeSegment.fileId.equals(epochFileId)) {
+			startSegment();
+		}
+		int recordSize = RECORD_HEADER_SIZE + length;
+		if (writeBuffer.remaining() < recordSize) {
+			flushWrites();
+		}
+		if (writeBuffer.remaining() < recordSize) {
+			// too large for the buffer, write it straight through
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE).putInt(length).putLong(lineStart).putInt(lineBytes);
+			header.flip();
+			writeFully(writeChannel, header);
+			writeFully(writeChannel, ByteBuffer.wrap(line, offset, length));
+		} else {
+			writeBuffer.putInt(length).putLong(lineStart).putInt(lineBytes).put(line, offset, length);
+		}
+
+		writeSegment.size += recordSize;
+		writeSegment.lines++;
+		writeSegment.lineBytes += lineBytes;
+		writeSegment.endOffset = lineStart + lineBytes;
+		totalBytes += recordSize;
+		pendingLines++;
+		pendingBytes += lineBytes;
+	}
+
+	@Override
+	public int peekLine() throws IOException {
+		if (nextLength >= 0 || pendingLines == 0) {
+			return nextLength;
+		}
+		moveToUnreadSegment();
+		if (readSegment == writeSegment) {
+			flushWrites();
+		}
+		if (readChannelSegment != readSegment) {
+			closeReadChannel();
+			readChannel = FileChannel.open(readSegment.file.toPath(), StandardOpenOption.READ);
+			readChannelSegment = readSegment;
+		}
+		int index = fillReadBuffer(RECORD_HEADER_SIZE);
+		int length = readBuffer.getInt(index);
+		long offset = readBuffer.getLong(index + 4);
+		int lineBytes = readBuffer.getInt(index + 12);
+		index = fillReadBuffer(RECORD_HEADER_SIZE + length);
+		nextIndex = index + RECORD_HEADER_SIZE;
+		nextOffset = offset;
+		nextLineBytes = lineBytes;
+		nextLength = length;
+		return nextLength;
+	}
+
+	@Override
+	public byte[] peekBuffer() {
+		return readBuffer.array();
+	}
+
+	@Override
+	public int peekBufferOffset() {
+		return nextIndex;
+	}
+
+	@Override
+	public long peekOffset() {
+		return nextOffset;
+	}
+
+	@Override
+	public int peekLineBytes() {
+		return nextLineBytes;
+	}
+
+	@Override
+	public void removeLine() throws IOException {
+		readPosition += RECORD_HEADER_SIZE + nextLength;
+		nextLength = -1;
+		readSegment.readLines++;
+		readSegment.readLineBytes += nextLineBytes;
+		pendingLines--;
+		pendingBytes -= nextLineBytes;
+	}
+
+	/**
+	 * Remove the line at the head of the queue without reading it, used when the line
+	 * just appended is also being kept in memory
+	 *
+	 * @param length length of the line
+	 * @param lineBytes source bytes of the line, including its newline (or CR LF)
+	 */
+	void skipLine(int length, int lineBytes) {
+		moveToUnreadSegment();
+		nextLength = -1;
+		readPosition += RECORD_HEADER_SIZE + length;
+		readSegment.readLines++;
+		readSegment.readLineBytes += lineBytes;
+		pendingLines--;
+		pendingBytes -= lineBytes;
+	}
+
+	/**
+	 * Record what the service has acknowledged, and delete segments which are now fully acknowledged
+	 *
+	 * @param fileId identity of the epoch
+	 * @param offset source offset the service has committed
+	 */
+	void acknowledge(String fileId, long offset) throws IOException {
+		if (!fileId.equals(ackedFileId) || offset != ackedOffset) {
+			ackedFileId = fileId;
+			ackedOffset = offset;
+			writeCheckpoint();
+		}
+		while (!segments.isEmpty() && isAcknowledged(segments.get(0), segments.get(0).endOffset)) {
+			deleteFirstSegment();
+		}
+	}
+
+	/**
+	 * Delete the oldest segment to make room, whether or not it was acknowledged
+	 *
+	 * @return false if there was nothing to delete
+	 */
+	boolean dropOldestSegment() throws IOException {
+		if (segments.isEmpty()) {
+			return false;
+		}
+		deleteFirstSegment();
+		return true;
+	}
+
+	/**
+	 * Write buffered appends to the file
+	 */
+	void flush() throws IOException {
+		flushWrites();
+	}
+
+	/**
+	 * Write buffered appends to the file and force them to disk
+	 */
+	void sync() throws IOException {
+		flushWrites();
+		if (writeChannel != null) {
+			writeChannel.force(false);
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return pendingLines == 0;
+	}
+
+	@Override
+	public long getLineCount() {
+		return pendingLines;
+	}
+
+	@Override
+	public long getByteCount() {
+		return pendingBytes;
+	}
+
+	/**
+	 * @return size of the segments on disk
+	 */
+	long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * Delete every segment, the checkpoint is kept
+	 */
+	@Override
+	public void clear() throws IOException {
+		while (!segments.isEmpty()) {
+			deleteFirstSegment();
+		}
+	}
+
+	/**
+	 * Write anything buffered and close the files, the spool is left on disk
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flushWrites();
+		} finally {
+			closeWriteChannel();
+			closeReadChannel();
+		}
+	}
+
+	private Segment last() {
+		return segments.get(segments.size() - 1);
+	}
+
+	/**
+	 * A segment written before its epoch was known belongs to the checkpoint's epoch if it is for the same file
+	 */
+	private String effectiveFileId(Segment segment) {
+		if (segment.fileId.isEmpty() && ackedFileId != null && ackedFileId.startsWith(segment.fileKey + "@")) {
+			return ackedFileId;
+		}
+		return segment.fileId;
+	}
+
+	/**
+	 * Whether the service has acknowledged a line of a segment, given where the line ends.
+	 * Lines of an earlier epoch than the checkpoint's were all acknowledged before the epoch changed.
+	 */
+	private boolean isAcknowledged(Segment segment, long lineEnd) {
+		if (ackedFileId == null) {
+			return false;
+		}
+		String fileId = effectiveFileId(segment);
+		if (fileId.equals(ackedFileId)) {
+			return lineEnd <= ackedOffset;
+		}
+		for (int i = segments.indexOf(segment) + 1; i < segments.size(); i++) {
+			if (effectiveFileId(segments.get(i)).equals(ackedFileId)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Move the read position on to the segment holding the next unread line
+	 */
+	private void moveToUnreadSegment() {
+		while (readSegment != null && readPosition >= readSegment.size) {
+			int index = segments.indexOf(readSegment);
+			if (index + 1 >= segments.size()) {
+				break;
+			}
+			readSegment = segments.get(index + 1);
+			readPosition = readSegment.dataStart;
+		}
+	}
+
+	/**
+	 * Make sure length bytes from readPosition are in readBuffer
+	 *
+	 * @return index of readPosition in readBuffer
+	 */
+	private int fillReadBuffer(int length) throws IOException {
+		if (readBufferStart < 0 || readPosition < readBufferStart
+				|| readPosition + length > readBufferStart + readBuffer.limit()) {
+			if (length > readBuffer.capacity()) {
+				readBuffer = ByteBuffer.allocate(length);
+			}
+			readBuffer.clear();
+			long position = readPosition;
+			while (readBuffer.hasRemaining()) {
+				int count = readChannel.read(readBuffer, position);
+				if (count < 0) {
+					break;
+				}
+				position += count;
+			}
+			readBuffer.flip();
+			readBufferStart = readPosition;
+			if (readBuffer.limit() < length) {
+				throw new IOException("Spool segment " + readSegment.file + " is shorter than expected");
+			}
+		}
+		return (int) (readPosition - readBufferStart);
+	}
+
+	private void startSegment() throws IOException {
+		flushWrites();
+		closeWriteChannel();
+
+		long sequence = segments.isEmpty() ? 0 : last().sequence + 1;
+		File segmentFile = new File(directory, String.format("%020d%s", sequence, SEGMENT_SUFFIX));
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(header)) {
+			out.writeInt(MAGIC);
+			out.writeUTF(epochKey);
+			out.writeUTF(epochFileId);
+		}
+		writeChannel = FileChannel.open(segmentFile.toPath(), StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		writeFully(writeChannel, ByteBuffer.wrap(header.toByteArray()));
+
+		writeSegment = new Segment(sequence, segmentFile, epochKey, epochFileId, header.size());
+		segments.add(writeSegment);
+		totalBytes += writeSegment.size;
+		if (readSegment == null) {
+			readSegment = writeSegment;
+			readPosition = writeSegment.dataStart;
+		}
+	}
+
+	private void deleteFirstSegment() throws IOException {
+		Segment segment = segments.remove(0);
+		if (segment == writeSegment) {
+			writeBuffer.clear();
+			closeWriteChannel();
+			writeSegment = null;
+		}
+		if (segment == readChannelSegment) {
+			closeReadChannel();
+		}
+		if (segment == readSegment) {
+			// lines of this segment which were never read back are lost
+			pendingLines -= segment.lines - segment.readLines;
+			pendingBytes -= segment.lineBytes - segment.readLineBytes;
+			nextLength = -1;
+			readSegment = segments.isEmpty() ? null : segments.get(0);
+			readPosition = (readSegment != null) ? readSegment.dataStart : 0;
+		}
+		totalBytes -= segment.size;
+		Files.deleteIfExists(segment.file.toPath());
+	}
+
+	private void flushWrites() throws IOException {
+		if (writeBuffer.position() > 0) {
+			writeBuffer.flip();
+			try {
+				writeFully(writeChannel, writeBuffer);
+			} finally {
+				writeBuffer.clear();
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private void closeWriteChannel() throws IOException {
+		if (writeChannel != null) {
+			try {
+				writeChannel.close();
+			} finally {
+				writeChannel = null;
+			}
+		}
+	}
+
+	private void closeReadChannel() throws IOException {
+		readBufferStart = -1;
+		if (readChannel != null) {
+			try {
+				readChannel.close();
+			} finally {
+				readChannel = null;
+				readChannelSegment = null;
+			}
+		}
+	}
+
+	private void readCheckpoint() throws IOException {
+		File checkpoint = new File(directory, CHECKPOINT_NAME);
+		if (!checkpoint.exists()) {
+			return;
+		}
+		String text = new String(Files.readAllBytes(checkpoint.toPath()), StandardCharsets.UTF_8).trim();
+		int tab = text.lastIndexOf('\t');
+		if (tab <= 0) {
+			logger.warn("Ignoring unreadable spool checkpoint {}", checkpoint);
+			return;
+		}
+		try {
+			ackedOffset = Long.parseLong(text.substring(tab + 1));
+			ackedFileId = text.substring(0, tab);
+		} catch (NumberFormatException ex) {
+			logger.warn("Ignoring unreadable spool checkpoint {}", checkpoint);
+		}
+	}
+
+	/**
+	 * Replace the checkpoint atomically, so a crash leaves either the old or the new one
+	 */
+	private void writeCheckpoint() throws IOException {
+		File temp = new File(directory, CHECKPOINT_NAME + ".tmp");
+		byte[] bytes = (ackedFileId + "\t" + ackedOffset + "\n").getBytes(StandardCharsets.UTF_8);
+		try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			writeFully(channel, ByteBuffer.wrap(bytes));
+			channel.force(false);
+		}
+		Files.move(temp.toPath(), new File(directory, CHECKPOINT_NAME).toPath(),
+			StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Read a segment left by an earlier run, truncating a partial record at the end
+	 *
+	 * @return the segment, or null if it held nothing usable (it is deleted)
+	 */
+	private Segment scan(File segmentFile) throws IOException {
+		long sequence = Long.parseLong(segmentFile.getName().substring(0, segmentFile.getName().indexOf('.')));
+		Segment segment;
+		long fileSize = segmentFile.length();
+		try (FileChannel channel = FileChannel.open(segmentFile.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			CountingInputStream counter = new CountingInputStream(
+				new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+			DataInputStream in = new DataInputStream(counter);
+			try {
+				if (in.readInt() != MAGIC) {
+					throw new EOFException();
+				}
+				segment = new Segment(sequence, segmentFile, in.readUTF(), in.readUTF(), counter.getByteCount());
+			} catch (EOFException ex) {
+				segment = null;
+			}
+
+			if (segment != null) {
+				while (segment.size + RECORD_HEADER_SIZE <= fileSize) {
+					int length = in.readInt();
+					long offset = in.readLong();
+					int lineBytes = in.readInt();
+					if (length < 0 || lineBytes < 0 || segment.size + RECORD_HEADER_SIZE + length > fileSize) {
+						break;
+					}
+					IOUtils.skipFully(in, length);
+					segment.size += RECORD_HEADER_SIZE + length;
+					segment.lines++;
+					segment.lineBytes += lineBytes;
+					segment.endOffset = offset + lineBytes;
+				}
+				if (segment.size < fileSize) {
+					logger.warn("Truncating partial record at the end of spool segment {}", segmentFile);
+					channel.truncate(segment.size);
+				}
+			}
+		}
+		if (segment == null || segment.lines == 0) {
+			Files.deleteIfExists(segmentFile.toPath());
+			return null;
+		}
+		return segment;
+	}
+
+	/**
+	 * A segment file and what it holds, sizes include buffered appends
+	 */
+	private static class Segment {
+		private final long sequence;
+		private final File file;
+		private final String fileKey;
+		private final String fileId;
+		private final long dataStart;		// file position of the first record
+		private long size;
+		private long lines;
+		private long lineBytes;
+		private long endOffset;				// source offset at the end of the last line
+		private long readLines;				// lines read back so far
+		private long readLineBytes;
+
+		Segment(long sequence, File file, String fileKey, String fileId, long dataStart) {
+			this.sequence = sequence;
+			this.file = file;
+			this.fileKey = fileKey;
+			this.fileId = fileId;
+			this.dataStart = dataStart;
+			this.size = dataStart;
+		}
+	}
+}
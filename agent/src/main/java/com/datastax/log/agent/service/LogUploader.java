@@ -1,30 +1,82 @@
 package com.datastax.log.agent.service;
 
 import java.io.File;
+import java.net.URI;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+import com.datastax.log.agent.codec.LogBatchWriter;
 import com.datastax.log.agent.config.Config;
+import com.datastax.log.agent.config.UploadFormat;
 import com.datastax.log.agent.dto.LogDto;
+import com.datastax.log.agent.dto.MultiLogDto;
+import com.datastax.log.agent.dto.MultiLogResponseDto;
+import com.datastax.log.agent.dto.ServerResponseDto;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.*;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.stereotype.Service;
 
 /**
  * Does the work of sending a list of lines to the host server.
- * 
+ *
+ * When several service instances share the work, each file is written by one of them and a request
+ * sent to any other instance is answered with 307 Temporary Redirect to the owner.  The request is
+ * re-sent there, and the owner is remembered so the file's later uploads go straight to it, until a
+ * request to the owner fails to connect and the file goes back to the hostUrl.
+ *
+ * The chunks of several files can be sent in one multi-file request, to the /batch path of the instance
+ * which owns them, and each is answered on its own.  A service which does not have the multi-file endpoint
+ * answers 404, 405 or 415, after which every file is sent on its own.
+ *
+ * Each request is timed (log.agent.upload, by type and outcome, with a percentile histogram) and the lines
+ * of each chunk uploaded are counted (log.agent.upload.lines).  Successful uploads are logged as a running
+ * total every LOG_SAMPLE_MILLIS rather than one line each.
+ *
+ * How each upload went, how long it took and how loaded the service said it was are handed to the UploadPacer,
+ * which paces the uploads to what the service can take.
+ *
  * @author cingham
  */
 @Service
 public class LogUploader {
     private static final Logger logger = LoggerFactory.getLogger(LogUploader.class);
 
+	// redirects followed for one request, more than there are instances suggests they disagree on the owner
+	private static final int MAX_REDIRECTS = 3;
+	// successful uploads are logged as a total at most this often
+	private static final long LOG_SAMPLE_MILLIS = 10 * 1000;
+
+	private static final DistributionSummary uploadLines = DistributionSummary.builder("log.agent.upload.lines")
+		.description("Lines in each chunk uploaded").register(Metrics.globalRegistry);
+	private final SampledLog uploadedLog = new SampledLog(logger, "Successfully uploaded {} lines to server in {} chunks.", LOG_SAMPLE_MILLIS);
+
 	private final String hostUrl;
 	private final HttpHeaders headers;
+	private final HttpHeaders batchHeaders;
 	private final RestTemplate restTemplate;
+	private final HttpHeaders multiBatchHeaders;
+	private final UploadFormat uploadFormat;
+	// cleared when the service turns out not to take multi-file uploads
+	private volatile boolean multiFileUploads;
+
+	// url of the service instance which owns each file, learned from redirects
+	private final Map<String, String> ownerUrls = new ConcurrentHashMap<>();
+	private final UploadPacer pacer;
 
 	/**
 	 * Injection constructor
@@ -42,40 +94,322 @@ public class LogUploader {
 		headers = new HttpHeaders();
 		headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
 		headers.setContentType(MediaType.APPLICATION_JSON);
+
+		batchHeaders = new HttpHeaders();
+		batchHeaders.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+		batchHeaders.setContentType(MediaType.parseMediaType(LogBatchWriter.CONTENT_TYPE));
+
+		multiBatchHeaders = new HttpHeaders();
+		multiBatchHeaders.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+		multiBatchHeaders.setContentType(MediaType.parseMediaType(LogBatchWriter.MULTI_CONTENT_TYPE));
+
+		// JSON is understood by every service version, so it is the default
+		this.uploadFormat = config.getUploadFormat() != null ? config.getUploadFormat() : UploadFormat.JSON;
+		this.multiFileUploads = config.isMultiFileUploads();
+		this.pacer = new UploadPacer(config);
+	}
+
+	/**
+	 * @return paces the uploads to the service, from how they went
+	 */
+	public UploadPacer getPacer() {
+		return pacer;
 	}
 
 	/**
 	 * Send a batch of log lines to the host server.
 	 * The url should be in a format like "http://hostname.com/log-aggregator/{clientId}
-	 * The filename and log lines will be wrapped in the LogDto payload as JSON
+	 * The filename, file identity, offsets and log lines are wrapped in the LogDto payload as JSON,
+	 * or encoded as a compressed binary batch when the BINARY upload format is configured (by the
+	 * LogBatchMessageConverter, as the request is sent).
 	 *
-	 * @param file filename to specify in the upload
-	 * @param lines line list of the log file
+	 * @param logDto the chunk of lines to upload
 	 * @return success - if the server accepted the payload
+	 * @throws ServiceBusyException if the server answered 429 or 503, so the upload can wait for its Retry-After
 	 */
-	public boolean uploadToServer(File file, List<String> lines) {
-		LogDto logDto = new LogDto(file.getName(), lines);
+	public boolean uploadToServer(LogDto logDto) {
+		long start = System.nanoTime();
+		String outcome = "failure";
+		try {
+			ResponseEntity<ServerResponseDto> response = sendChunk(logDto);
+			outcome = (response != null) ? "success" : "failure";
+			if (response != null) {
+				pacer.uploaded(start, response.getBody() != null ? response.getBody().getLoad() : null);
+			}
+			return response != null;
+		} catch (ServiceBusyException busy) {
+			outcome = "busy";
+			throw busy;
+		} finally {
+			recordUpload("single", outcome, start);
+			if (!outcome.equals("success")) {
+				pacer.failed(start);
+			}
+		}
+	}
 
+	/**
+	 * @return the service's response, or null if the upload failed
+	 */
+	private ResponseEntity<ServerResponseDto> sendChunk(LogDto logDto) {
 		try {
-			HttpEntity<LogDto> entity = new HttpEntity<>(logDto, headers);
-			ResponseEntity response = restTemplate.exchange(hostUrl, HttpMethod.POST, entity, String.class);
+			HttpEntity<LogDto> entity = new HttpEntity<>(logDto, (uploadFormat == UploadFormat.BINARY) ? batchHeaders : headers);
+			ResponseEntity<ServerResponseDto> response = post(logDto.getFilename(), entity);
+			checkBusy(response.getStatusCode(), response.getHeaders());
 			if (response.getStatusCode() == HttpStatus.OK) {
-				logger.info("Successfully uploaded {} lines to server.", lines.size());
-				return true;
+				uploaded(logDto);
+				return response;
 			} else {
 				logger.error("Error uploading to {}, status={}, message={}", hostUrl,
 					response.getStatusCode(), response.getBody());
-				return false;
+				return null;
 			}
 		} catch (IllegalArgumentException iae) {
 			// problem with URL format so we can never report to server,
 			// try to exit the app via this RuntimeException.
 			logger.error("Host URL is not valid: {}, exception={}", hostUrl, iae.toString());
 			throw iae;
+		} catch (ServiceBusyException busy) {
+			throw busy;
+		} catch (HttpStatusCodeException hsce) {
+			checkBusy(hsce.getStatusCode(), hsce.getResponseHeaders());
+			logger.error("Error uploading to {}, status={}, message={}", hostUrl,
+				hsce.getStatusCode(), hsce.getResponseBodyAsString());
+			return null;
 		} catch (Exception ex) {
 			// other exceptions may be network timeouts, etc. so we'll log and try again later.
-			logger.error("Error connecting to {}, exception={}", hostUrl, ex.toString());
-			return false;
+			logger.error("Error connecting to {}, exception={}", urlFor(logDto.getFilename()), ex.toString());
+			forgetOwner(logDto.getFilename(), ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Send the chunks of several files to the host server in one request, as a MultiLogDto in JSON or as
+	 * a multi-file binary batch, like uploadToServer().  The files should all have the same urlFor().
+	 *
+	 * @param logDtos the chunk of lines to upload for each file
+	 * @return the service's response to each chunk, in order, or null if the request failed as a whole
+	 * @throws ServiceBusyException if the server answered the whole request with 429 or 503
+	 */
+	public List<ServerResponseDto> uploadFilesToServer(List<LogDto> logDtos) {
+		long start = System.nanoTime();
+		String outcome = "failure";
+		try {
+			List<ServerResponseDto> entries = sendChunks(logDtos);
+			outcome = (entries != null) ? "success" : "failure";
+			if (entries != null) {
+				paceEntries(start, entries);
+			}
+			return entries;
+		} catch (ServiceBusyException busy) {
+			outcome = "busy";
+			throw busy;
+		} finally {
+			recordUpload("multi", outcome, start);
+			if (!outcome.equals("success")) {
+				pacer.failed(start);
+			}
+		}
+	}
+
+	/**
+	 * A multi-file request the service answered: any file turned away means it is overloaded, otherwise its
+	 * load is the highest of the files'
+	 */
+	private void paceEntries(long start, List<ServerResponseDto> entries) {
+		Double load = null;
+		for (ServerResponseDto entry : entries) {
+			if (entry.getStatus() == HttpStatus.TOO_MANY_REQUESTS.value() || entry.getStatus() == HttpStatus.SERVICE_UNAVAILABLE.value()) {
+				pacer.failed(start);
+				return;
+			}
+			if (entry.getLoad() != null && (load == null || entry.getLoad() > load)) {
+				load = entry.getLoad();
+			}
+		}
+		pacer.uploaded(start, load);
+	}
+
+	private List<ServerResponseDto> sendChunks(List<LogDto> logDtos) {
+		String url = urlFor(logDtos.get(0).getFilename()) + "/batch";
+		try {
+			HttpEntity<MultiLogDto> entity = new HttpEntity<>(new MultiLogDto(logDtos),
+				(uploadFormat == UploadFormat.BINARY) ? multiBatchHeaders : headers);
+			ResponseEntity<MultiLogResponseDto> response =
+				restTemplate.exchange(url, HttpMethod.POST, entity, MultiLogResponseDto.class);
+			checkBusy(response.getStatusCode(), response.getHeaders());
+			MultiLogResponseDto body = response.getBody();
+			if (response.getStatusCode() != HttpStatus.OK || body == null || body.getEntries() == null
+					|| body.getEntries().size() != logDtos.size()) {
+				logger.error("Error uploading to {}, status={}", url, response.getStatusCode());
+				return null;
+			}
+			List<ServerResponseDto> entries = body.getEntries();
+			for (int i = 0; i < entries.size(); i++) {
+				ServerResponseDto entry = entries.get(i);
+				String filename = logDtos.get(i).getFilename();
+				if (entry.getStatus() == HttpStatus.OK.value()) {
+					uploaded(logDtos.get(i));
+				} else if (entry.getStatus() == HttpStatus.TEMPORARY_REDIRECT.value() && entry.getMessage() != null) {
+					ownerUrls.put(filename, entry.getMessage());
+					logger.info("File {} is written by {}, sending it there.", filename, entry.getMessage());
+				} else {
+					logger.error("Error uploading {} to {}, status={}, message={}", filename, url,
+						entry.getStatus(), entry.getMessage());
+				}
+			}
+			return entries;
+		} catch (IllegalArgumentException iae) {
+			logger.error("Host URL is not valid: {}, exception={}", url, iae.toString());
+			throw iae;
+		} catch (ServiceBusyException busy) {
+			throw busy;
+		} catch (HttpStatusCodeException hsce) {
+			checkBusy(hsce.getStatusCode(), hsce.getResponseHeaders());
+			HttpStatus status = hsce.getStatusCode();
+			if (status == HttpStatus.NOT_FOUND || status == HttpStatus.METHOD_NOT_ALLOWED
+					|| status == HttpStatus.UNSUPPORTED_MEDIA_TYPE) {
+				if (multiFileUploads) {
+					multiFileUploads = false;
+					logger.warn("Service {} does not take multi-file uploads (status={}), sending each file on its own.", url, status);
+				}
+			} else {
+				logger.error("Error uploading to {}, status={}, message={}", url, status, hsce.getResponseBodyAsString());
+			}
+			return null;
+		} catch (Exception ex) {
+			logger.error("Error connecting to {}, exception={}", url, ex.toString());
+			for (LogDto logDto : logDtos) {
+				forgetOwner(logDto.getFilename(), ex);
+			}
+			return null;
+		}
+	}
+
+	private void uploaded(LogDto logDto) {
+		int lines = logDto.getLines().size();
+		uploadLines.record(lines);
+		uploadedLog.record(lines);
+	}
+
+	/**
+	 * Time a request, by whether it was for one file or several (type) and how it went (outcome)
+	 */
+	private static void recordUpload(String type, String outcome, long start) {
+		Timer.builder("log.agent.upload")
+			.description("Time to send an upload request and get its response")
+			.tags("type", type, "outcome", outcome)
+			.publishPercentileHistogram()
+			.minimumExpectedValue(Duration.ofMillis(1))
+			.maximumExpectedValue(Duration.ofSeconds(60))
+			.register(Metrics.globalRegistry)
+			.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return true if chunks of several files may be sent in one request
+	 */
+	public boolean isMultiFileEnabled() {
+		return multiFileUploads;
+	}
+
+	/**
+	 * Turn the service pushing back (429 for this file, 503 for the whole service) into a ServiceBusyException
+	 */
+	private void checkBusy(HttpStatus status, HttpHeaders responseHeaders) {
+		if (status == HttpStatus.TOO_MANY_REQUESTS || status == HttpStatus.SERVICE_UNAVAILABLE) {
+			long retryAfter = retryAfterMillis(responseHeaders, System.currentTimeMillis());
+			logger.warn("Service {} busy, status={}, retry after {} ms", hostUrl, status, retryAfter);
+			throw new ServiceBusyException("Service busy, status=" + status, status == HttpStatus.SERVICE_UNAVAILABLE, retryAfter);
+		}
+	}
+
+	/**
+	 * Read a Retry-After header, which is either a number of seconds or an HTTP date
+	 *
+	 * @param responseHeaders the response headers, may be null
+	 * @param now the current time in millis
+	 * @return millis to wait, zero if there is no (valid) header
+	 */
+	static long retryAfterMillis(HttpHeaders responseHeaders, long now) {
+		String value = (responseHeaders == null) ? null : responseHeaders.getFirst(HttpHeaders.RETRY_AFTER);
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Math.max(0, Long.parseLong(value.trim()) * 1000);
+		} catch (NumberFormatException nfe) {
+			// not seconds, try a date
+		}
+		try {
+			long at = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			return Math.max(0, at - now);
+		} catch (DateTimeParseException dtpe) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Ask the host server what it has already committed for a file, by uploading an empty chunk.
+	 *
+	 * @param file the file being tailed
+	 * @return the server response holding the committed file identity and offset (which may be null
+	 * 		if the server has nothing for this file), or null if the server could not be reached
+	 */
+	public ServerResponseDto fetchCommittedOffset(File file) {
+		LogDto logDto = new LogDto(file.getName(), null, 0, 0, Collections.emptyList());
+		try {
+			HttpEntity<LogDto> entity = new HttpEntity<>(logDto, headers);
+			ResponseEntity<ServerResponseDto> response = post(file.getName(), entity);
+			if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
+				return response.getBody();
+			}
+			logger.error("Error fetching committed offset from {}, status={}", hostUrl, response.getStatusCode());
+		} catch (IllegalArgumentException iae) {
+			logger.error("Host URL is not valid: {}, exception={}", hostUrl, iae.toString());
+			throw iae;
+		} catch (Exception ex) {
+			logger.error("Error connecting to {}, exception={}", urlFor(file.getName()), ex.toString());
+			forgetOwner(file.getName(), ex);
+		}
+		return null;
+	}
+
+	/**
+	 * POST to the instance which owns the file, following any redirect to another instance
+	 */
+	private ResponseEntity<ServerResponseDto> post(String filename, HttpEntity<?> entity) {
+		String url = urlFor(filename);
+		for (int redirects = 0; ; redirects++) {
+			ResponseEntity<ServerResponseDto> response =
+				restTemplate.exchange(url, HttpMethod.POST, entity, ServerResponseDto.class);
+			HttpStatus status = response.getStatusCode();
+			URI location = response.getHeaders().getLocation();
+			if ((status != HttpStatus.TEMPORARY_REDIRECT && status != HttpStatus.PERMANENT_REDIRECT)
+					|| location == null || redirects == MAX_REDIRECTS) {
+				return response;
+			}
+			url = URI.create(url).resolve(location).toString();
+			ownerUrls.put(filename, url);
+			logger.info("File {} is written by {}, following redirect.", filename, url);
+		}
+	}
+
+	/**
+	 * @param filename the file being uploaded
+	 * @return the url to upload the file to, its owner if known
+	 */
+	String urlFor(String filename) {
+		return ownerUrls.getOrDefault(filename, hostUrl);
+	}
+
+	/**
+	 * Could not reach the owner of a file, go back to the hostUrl in case the instances have changed
+	 */
+	private void forgetOwner(String filename, Exception ex) {
+		if (ex instanceof ResourceAccessException) {
+			ownerUrls.remove(filename);
 		}
 	}
 
@@ -0,0 +1,135 @@
+package com.datastax.log.agent.service;
+
+import com.datastax.log.agent.codec.BytePagePool;
+import com.datastax.log.agent.config.Config;
+import com.datastax.log.agent.config.OverflowPolicy;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import lombok.Getter;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Memory budget for the lines held by the agent's collectors, measured in source bytes
+ * (each line's UTF-8 length plus its newline).  Every collector has its own limit and
+ * all of them share the agent wide limit.  What happens to a line which does not fit
+ * is decided by the overflow policy, see LogCollector.
+ *
+ * The lines themselves are held as bytes in pages from the shared BytePagePool (see ByteLines), which keeps
+ * up to MAX_POOLED_PAGES free pages for reuse.
+ *
+ * The bytes held (log.agent.memory.used) and the agent wide overflow counters (log.agent.overflow.lines and
+ * log.agent.overflow.bytes, tagged with what was done with the lines, and log.agent.overflow.blocked) are published as metrics.
+ *
+ * @author cingham
+ */
+@Component
+public class MemoryBudget {
+	static final int PAGE_SIZE = 16 * 1024;
+	private static final int MAX_POOLED_PAGES = 1024;
+
+	private final long maxAgentBytes;
+	@Getter
+	private final long maxCollectorBytes;
+	@Getter
+	private final OverflowPolicy overflowPolicy;
+	@Getter
+	private final File spillPath;
+	@Getter
+	private final OverflowCounters counters = new OverflowCounters();
+	@Getter
+	private final BytePagePool pagePool = new BytePagePool(PAGE_SIZE, MAX_POOLED_PAGES);
+
+	private final AtomicLong usedBytes = new AtomicLong();
+
+	/**
+	 * Injection constructor
+	 *
+	 * @param config app config options
+	 */
+	public MemoryBudget(Config config) {
+		this.maxAgentBytes = config.getMaxAgentBytes() > 0 ? config.getMaxAgentBytes() : Long.MAX_VALUE;
+		this.maxCollectorBytes = config.getMaxCollectorBytes() > 0 ? config.getMaxCollectorBytes() : Long.MAX_VALUE;
+		this.overflowPolicy = config.getOverflowPolicy() != null ? config.getOverflowPolicy() : OverflowPolicy.BLOCK;
+		this.spillPath = new File(config.getSpillPath() != null ? config.getSpillPath()
+			: System.getProperty("java.io.tmpdir"));
+		registerMeters();
+	}
+
+	private void registerMeters() {
+		Gauge.builder("log.agent.memory.used", usedBytes, AtomicLong::get)
+			.baseUnit("bytes").description("Source bytes held by all collectors").register(Metrics.globalRegistry);
+		overflowCounter("dropped_oldest", OverflowCounters::getDroppedOldestLines, OverflowCounters::getDroppedOldestBytes);
+		overflowCounter("dropped_newest", OverflowCounters::getDroppedNewestLines, OverflowCounters::getDroppedNewestBytes);
+		overflowCounter("spilled", OverflowCounters::getSpilledLines, OverflowCounters::getSpilledBytes);
+		FunctionCounter.builder("log.agent.overflow.blocked", counters, OverflowCounters::getBlockedMillis)
+			.baseUnit("milliseconds").description("Time reading was paused because memory was full")
+			.register(Metrics.globalRegistry);
+	}
+
+	private void overflowCounter(String action, ToDoubleFunction<OverflowCounters> lines, ToDoubleFunction<OverflowCounters> bytes) {
+		FunctionCounter.builder("log.agent.overflow.lines", counters, lines).tag("action", action)
+			.description("Lines which did not fit in memory").register(Metrics.globalRegistry);
+		FunctionCounter.builder("log.agent.overflow.bytes", counters, bytes).tag("action", action)
+			.baseUnit("bytes").description("Source bytes of the lines which did not fit in memory").register(Metrics.globalRegistry);
+	}
+
+	/**
+	 * @param bytes amount wanted
+	 * @return true if the bytes fit in the agent wide budget
+	 */
+	boolean hasRoom(long bytes) {
+		return usedBytes.get() + bytes <= maxAgentBytes;
+	}
+
+	/**
+	 * @param bytes amount wanted
+	 * @return how many bytes would have to be freed for them to fit, zero or less if they already do
+	 */
+	long shortfall(long bytes) {
+		return usedBytes.get() + bytes - maxAgentBytes;
+	}
+
+	/**
+	 * Take bytes from the agent wide budget if they fit
+	 *
+	 * @param bytes amount to take
+	 * @return true if the bytes were taken
+	 */
+	boolean tryReserve(long bytes) {
+		long used;
+		do {
+			used = usedBytes.get();
+			if (used + bytes > maxAgentBytes) {
+				return false;
+			}
+		} while (!usedBytes.compareAndSet(used, used + bytes));
+		return true;
+	}
+
+	/**
+	 * Take bytes from the agent wide budget whether or not they fit, so a collector
+	 * holding nothing can always make progress
+	 */
+	void forceReserve(long bytes) {
+		usedBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Give bytes back to the agent wide budget
+	 */
+	void release(long bytes) {
+		usedBytes.addAndGet(-bytes);
+	}
+
+	/**
+	 * @return source bytes currently held by all collectors
+	 */
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+}
@@ -0,0 +1,93 @@
+package com.datastax.log.agent.service;
+
+import com.datastax.log.agent.config.Config;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Local scrape endpoint for the agent's metrics.  The agent has no web server of its own, so this serves
+ * the Prometheus registry Spring Boot sets up, at http://{metricsAddress}:{metricsPort}/metrics, from a
+ * JDK HttpServer on its own thread.  Nothing is served if metricsPort is zero or less.
+ *
+ * The meters themselves are registered by the classes they measure, on the global registry (which the
+ * Prometheus registry is added to), so they need nothing passed to them.
+ *
+ * @author cingham
+ */
+@Component
+public class MetricsServer {
+	private static final Logger logger = LoggerFactory.getLogger(MetricsServer.class);
+
+	private final PrometheusMeterRegistry registry;
+	private final String address;
+	private final int port;
+	private HttpServer server;
+
+	/**
+	 * Injection constructor
+	 *
+	 * @param registry the registry to serve
+	 * @param config app config options
+	 */
+	public MetricsServer(PrometheusMeterRegistry registry, Config config) {
+		this.registry = registry;
+		this.address = config.getMetricsAddress();
+		this.port = config.getMetricsPort();
+	}
+
+	/**
+	 * Start serving, if a port is configured
+	 *
+	 * @throws IOException if the port cannot be bound
+	 */
+	@PostConstruct
+	public void start() throws IOException {
+		if (port <= 0) {
+			return;
+		}
+		server = HttpServer.create(new InetSocketAddress(address, port), 0);
+		server.createContext("/metrics", this::scrape);
+		server.start();
+		logger.info("Serving metrics at http://{}:{}/metrics", address, getPort());
+	}
+
+	/**
+	 * @return the port being served, or zero if not serving
+	 */
+	public int getPort() {
+		return (server != null) ? server.getAddress().getPort() : 0;
+	}
+
+	private void scrape(HttpExchange exchange) throws IOException {
+		try {
+			byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", TextFormat.CONTENT_TYPE_004);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package com.datastax.log.agent.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how often a memory budget was full and what was done about it.
+ * Counters can have a parent (e.g. a collector's counters roll up into the agent wide ones).
+ *
+ * @author cingham
+ */
+public class OverflowCounters {
+	private final OverflowCounters parent;
+
+	private final AtomicLong blockedCount = new AtomicLong();
+	private final AtomicLong blockedMillis = new AtomicLong();
+	private final AtomicLong droppedOldestLines = new AtomicLong();
+	private final AtomicLong droppedOldestBytes = new AtomicLong();
+	private final AtomicLong droppedNewestLines = new AtomicLong();
+	private final AtomicLong droppedNewestBytes = new AtomicLong();
+	private final AtomicLong spilledLines = new AtomicLong();
+	private final AtomicLong spilledBytes = new AtomicLong();
+
+	public OverflowCounters() {
+		this(null);
+	}
+
+	/**
+	 * @param parent counters which also receive everything counted here, may be null
+	 */
+	public OverflowCounters(OverflowCounters parent) {
+		this.parent = parent;
+	}
+
+	void blocked(long millis) {
+		blockedCount.incrementAndGet();
+		blockedMillis.addAndGet(millis);
+		if (parent != null) {
+			parent.blocked(millis);
+		}
+	}
+
+	void droppedOldest(long lines, long bytes) {
+		droppedOldestLines.addAndGet(lines);
+		droppedOldestBytes.addAndGet(bytes);
+		if (parent != null) {
+			parent.droppedOldest(lines, bytes);
+		}
+	}
+
+	void droppedNewest(long lines, long bytes) {
+		droppedNewestLines.addAndGet(lines);
+		droppedNewestBytes.addAndGet(bytes);
+		if (parent != null) {
+			parent.droppedNewest(lines, bytes);
+		}
+	}
+
+	void spilled(long lines, long bytes) {
+		spilledLines.addAndGet(lines);
+		spilledBytes.addAndGet(bytes);
+		if (parent != null) {
+			parent.spilled(lines, bytes);
+		}
+	}
+
+	/** @return number of times reading was paused because the budget was full */
+	public long getBlockedCount() {
+		return blockedCount.get();
+	}
+
+	/** @return total time reading was paused because the budget was full */
+	public long getBlockedMillis() {
+		return blockedMillis.get();
+	}
+
+	public long getDroppedOldestLines() {
+		return droppedOldestLines.get();
+	}
+
+	public long getDroppedOldestBytes() {
+		return droppedOldestBytes.get();
+	}
+
+	public long getDroppedNewestLines() {
+		return droppedNewestLines.get();
+	}
+
+	public long getDroppedNewestBytes() {
+		return droppedNewestBytes.get();
+	}
+
+	public long getSpilledLines() {
+		return spilledLines.get();
+	}
+
+	public long getSpilledBytes() {
+		return spilledBytes.get();
+	}
+
+	@Override
+	public String toString() {
+		return "blocked=" + getBlockedCount() + " (" + getBlockedMillis() + "ms)"
+			+ ", droppedOldest=" + getDroppedOldestLines() + " lines (" + getDroppedOldestBytes() + " bytes)"
+			+ ", droppedNewest=" + getDroppedNewestLines() + " lines (" + getDroppedNewestBytes() + " bytes)"
+			+ ", spilled=" + getSpilledLines() + " lines (" + getSpilledBytes() + " bytes)";
+	}
+}
@@ -0,0 +1,48 @@
+package com.datastax.log.agent.service;
+
+import com.datastax.log.agent.config.Config;
+import lombok.Getter;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter for retrying failed uploads.  The delay doubles with each
+ * failure in a row, from baseMillis up to maxMillis, and a random half of it is jittered away
+ * so that agents (and files) which failed together do not all retry at the same moment.
+ *
+ * @author cingham
+ */
+@Getter
+public class RetryBackoff {
+	private final long baseMillis;
+	private final long maxMillis;
+
+	/**
+	 * @param baseMillis delay after the first failure
+	 * @param maxMillis longest delay, however many failures there have been
+	 */
+	public RetryBackoff(long baseMillis, long maxMillis) {
+		this.baseMillis = Math.max(1, baseMillis);
+		this.maxMillis = Math.max(this.baseMillis, maxMillis);
+	}
+
+	/**
+	 * @param config app config options
+	 * @return the configured backoff for failed uploads
+	 */
+	public static RetryBackoff from(Config config) {
+		return new RetryBackoff(config.getRetryBaseDelay(), config.getRetryMaxDelay());
+	}
+
+	/**
+	 * @param failures number of failures in a row, at least one
+	 * @return how long to wait before the next attempt, in millis
+	 */
+	public long delay(int failures) {
+		long cap = baseMillis;
+		for (int i = 1; i < failures && cap < maxMillis; i++) {
+			cap = (cap > maxMillis / 2) ? maxMillis : cap * 2;
+		}
+		return cap / 2 + ThreadLocalRandom.current().nextLong(cap - cap / 2 + 1);
+	}
+}
@@ -0,0 +1,27 @@
+package com.datastax.log.agent.service;
+
+import lombok.Getter;
+
+/**
+ * Thrown by the LogUploader when the service pushes back on an upload, with 429 Too Many Requests
+ * (this file has too much in flight) or 503 Service Unavailable (the whole service is busy).
+ * The upload is tried again once the Retry-After the service asked for has passed.
+ *
+ * @author cingham
+ */
+@Getter
+public class ServiceBusyException extends RuntimeException {
+	private final boolean serviceWide;
+	private final long retryAfterMillis;
+
+	/**
+	 * @param message what the service said
+	 * @param serviceWide true for 503, every file should wait, false for 429, only this file should
+	 * @param retryAfterMillis how long the service asked us to wait, zero if it did not say
+	 */
+	public ServiceBusyException(String message, boolean serviceWide, long retryAfterMillis) {
+		super(message);
+		this.serviceWide = serviceWide;
+		this.retryAfterMillis = retryAfterMillis;
+	}
+}
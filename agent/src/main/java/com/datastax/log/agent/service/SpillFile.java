@@ -0,0 +1,166 @@
+package com.datastax.log.agent.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Queue of lines kept in a temporary file, used by the SPILL policy to hold lines which
+ * do not fit in a collector's memory budget.
+ *
+ * Each line is written as a record, like the LogSpool's:
+ *     [int UTF-8 length][long source offset][int source bytes][UTF-8 bytes]
+ * so an entry holding several lines (an event joined by newlines) is read back as the one entry it was.
+ * Records are read back into a buffer which is reused for each line.
+ * The file is deleted each time it has been read to the end.
+ *
+ * @author cingham
+ */
+class SpillFile implements LineQueue {
+	private final File directory;
+	private final String prefix;
+
+	private File file;
+	private DataOutputStream writer;
+	private DataInputStream reader;
+	private byte[] nextLine = new byte[256];	// read ahead by peekLine()
+	private int nextLength = -1;
+	private long nextOffset;
+	private int nextLineBytes;
+	private long lineCount;
+	private long byteCount;
+
+	/**
+	 * @param directory where to create the file
+	 * @param prefix start of the file name, e.g. the name of the file being tailed
+	 */
+	SpillFile(File directory, String prefix) {
+		this.directory = directory;
+		this.prefix = prefix;
+	}
+
+	@Override
+	public void append(byte[] line, int offset, int length, long lineStart, int lineBytes) throws IOException {
+		if (writer == null) {
+			if (file == null) {
+				directory.mkdirs();
+				file = File.createTempFile(prefix + "-", ".spill", directory);
+				file.deleteOnExit();
+			}
+			writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		}
+		writer.writeInt(length);
+		writer.writeLong(lineStart);
+		writer.writeInt(lineBytes);
+		writer.write(line, offset, length);
+		lineCount++;
+		byteCount += lineBytes;
+	}
+
+	@Override
+	public int peekLine() throws IOException {
+		if (nextLength < 0 && lineCount > 0) {
+			writer.flush();		// the reader must see everything appended so far
+			if (reader == null) {
+				reader = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			}
+			try {
+				int length = reader.readInt();
+				nextOffset = reader.readLong();
+				nextLineBytes = reader.readInt();
+				if (length < 0) {
+					throw new IOException("Spill file " + file + " has a corrupt record");
+				}
+				if (length > nextLine.length) {
+					nextLine = new byte[Math.max(length, nextLine.length * 2)];
+				}
+				reader.readFully(nextLine, 0, length);
+				nextLength = length;
+			} catch (EOFException ex) {
+				throw new IOException("Spill file " + file + " is shorter than expected");
+			}
+		}
+		return nextLength;
+	}
+
+	@Override
+	public byte[] peekBuffer() {
+		return nextLine;
+	}
+
+	@Override
+	public int peekBufferOffset() {
+		return 0;
+	}
+
+	@Override
+	public long peekOffset() {
+		return nextOffset;
+	}
+
+	@Override
+	public int peekLineBytes() {
+		return nextLineBytes;
+	}
+
+	@Override
+	public void removeLine() throws IOException {
+		nextLength = -1;
+		lineCount--;
+		byteCount -= nextLineBytes;
+		if (lineCount == 0) {
+			close();
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return lineCount == 0;
+	}
+
+	@Override
+	public long getLineCount() {
+		return lineCount;
+	}
+
+	@Override
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	@Override
+	public void clear() throws IOException {
+		close();
+	}
+
+	/**
+	 * Discard everything and delete the file
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (reader != null) {
+				reader.close();
+			}
+			if (writer != null) {
+				writer.close();
+			}
+		} finally {
+			reader = null;
+			writer = null;
+			nextLength = -1;
+			lineCount = 0;
+			byteCount = 0;
+			if (file != null) {
+				file.delete();
+				file = null;
+			}
+		}
+	}
+}
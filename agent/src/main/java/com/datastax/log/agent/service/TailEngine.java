@@ -0,0 +1,512 @@
+package com.datastax.log.agent.service;
+
+import com.datastax.log.agent.config.Config;
+import com.datastax.log.agent.config.TailMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tails every file the agent collects, in place of a polling thread per file.
+ *
+ * A single watcher thread waits for changes: with the WATCH tail mode, events from a WatchService
+ * (inotify on Linux) on the directories of the tailed files, and with POLL (or for a directory which
+ * cannot be watched) a check of each file every tailPollInterval.  With WATCH every file is also checked
+ * now and then, in case an event was missed.  A changed file is read on a pool of reader threads, at most
+ * one at a time for each file, which only exist while there is something to read.  So a file whose
+ * collector is paused (see the BLOCK overflow policy) holds up one reader, not the other files.
+ *
+ * Each file is read through its own direct ByteBuffer of tailBufferSize, taken from a DirectBufferPool,
+ * and lines are split straight from its bytes and handed to the listener as bytes, never decoded here.
+ * Lines end with '\n' (a CR before it is dropped from the line but counted in its bytes), a line longer
+ * than the buffer is gathered on the heap, and a last line without a newline waits until it is finished.
+ *
+ * Rotation is detected from the file's identity (its inode, see BasicFileAttributes.fileKey()) and size:
+ *    rename + create - the name now belongs to a different file: the rest of the old file is read first
+ *                      (lines written just before the rename), then the new file is read from its start
+ *    copytruncate - the file is smaller than what was read: it is read again from the start
+ * Either way the listener is told fileRotated() before the first line of the new file.
+ *
+ * @author cingham
+ */
+@Service
+public class TailEngine {
+	private static final Logger logger = LoggerFactory.getLogger(TailEngine.class);
+
+	// with WATCH every file is checked this often as well, in case an event was missed
+	private static final long WATCH_CHECK_MILLIS = 10 * 1000;
+	private static final int MAX_POOLED_BUFFERS = 64;
+
+	private final long pollInterval;
+	private final DirectBufferPool bufferPool;
+	private final WatchService watchService;		// null when polling
+	private final Map<Path, Directory> directories = new ConcurrentHashMap<>();
+	private final ExecutorService readers;
+	private final ThreadLocal<byte[]> lineBuffers;
+	private final Thread watcher;
+	private volatile boolean running = true;
+
+	/**
+	 * Injection constructor
+	 *
+	 * @param config app config options
+	 */
+	public TailEngine(Config config) {
+		this.pollInterval = config.getTailPollInterval() > 0 ? config.getTailPollInterval() : 1000;
+		int bufferSize = config.getTailBufferSize() > 0 ? config.getTailBufferSize() : 64 * 1024;
+		this.bufferPool = new DirectBufferPool(bufferSize, MAX_POOLED_BUFFERS);
+		this.lineBuffers = ThreadLocal.withInitial(() -> new byte[bufferSize]);
+		this.watchService = (config.getTailMode() != TailMode.POLL) ? newWatchService() : null;
+
+		AtomicInteger threadCount = new AtomicInteger();
+		readers = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "log-tail-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		watcher = new Thread(this::watch, "log-tail-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * Start tailing a file.  A file which does not exist yet is read once it is created.
+	 *
+	 * @param file the file to tail
+	 * @param listener told each line as it is read
+	 * @param startOffset where to start reading (the file's length or less)
+	 * @return the tail, to stop it
+	 */
+	public Tail tail(File file, TailListener listener, long startOffset) {
+		Path path = file.toPath().toAbsolutePath();
+		Tail tail = new Tail(path, listener, startOffset);
+		directories.compute(path.getParent(), (parent, directory) -> {
+			if (directory == null) {
+				directory = watchDirectory(parent);
+			}
+			directory.tails.add(tail);
+			return directory;
+		});
+		tail.schedule();
+		return tail;
+	}
+
+	/**
+	 * @return true if changes to the file's directory come from the WatchService, rather than polling
+	 */
+	boolean isWatched(File file) {
+		Directory directory = directories.get(file.toPath().toAbsolutePath().getParent());
+		return directory != null && directory.key != null;
+	}
+
+	DirectBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Stop the watcher and reader threads on app shutdown
+	 */
+	@PreDestroy
+	public void shutdown() {
+		running = false;
+		watcher.interrupt();
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException ex) {
+				logger.warn("Error closing the watch service, exception={}", ex.toString());
+			}
+		}
+		for (Directory directory : directories.values()) {
+			directory.tails.forEach(Tail::stop);
+		}
+		readers.shutdownNow();
+	}
+
+	private static WatchService newWatchService() {
+		try {
+			return FileSystems.getDefault().newWatchService();
+		} catch (IOException | UnsupportedOperationException ex) {
+			logger.warn("No file system events, polling the tailed files instead, exception={}", ex.toString());
+			return null;
+		}
+	}
+
+	private Directory watchDirectory(Path path) {
+		Directory directory = new Directory(path);
+		directory.key = register(path);
+		return directory;
+	}
+
+	/**
+	 * @return the directory's WatchKey, or null if it has to be polled
+	 */
+	private WatchKey register(Path path) {
+		if (watchService == null) {
+			return null;
+		}
+		try {
+			return path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		} catch (NoSuchFileException ex) {
+			logger.debug("Directory {} does not exist yet, polling it", path);
+			return null;
+		} catch (IOException | UnsupportedOperationException | ClosedWatchServiceException ex) {
+			logger.warn("Cannot watch directory {}, polling it instead, exception={}", path, ex.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Watcher thread: hand each change to the reader of its file, and check the files which are polled
+	 * each pollInterval (and every file each WATCH_CHECK_MILLIS)
+	 */
+	private void watch() {
+		long nextPoll = System.currentTimeMillis() + pollInterval;
+		long nextCheck = System.currentTimeMillis() + WATCH_CHECK_MILLIS;
+		while (running) {
+			try {
+				long wait = Math.max(1, Math.min(nextPoll, nextCheck) - System.currentTimeMillis());
+				if (watchService != null) {
+					WatchKey key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+					if (key != null) {
+						dispatch(key);
+					}
+				} else {
+					Thread.sleep(wait);
+				}
+			} catch (InterruptedException | ClosedWatchServiceException ex) {
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			boolean checkAll = now >= nextCheck;
+			if (checkAll || now >= nextPoll) {
+				for (Directory directory : directories.values()) {
+					if (checkAll && directory.key == null) {
+						directory.key = register(directory.path);	// it may have been created since
+					}
+					if (checkAll || directory.key == null) {
+						directory.tails.forEach(Tail::schedule);
+					}
+				}
+				nextPoll = now + pollInterval;
+				if (checkAll) {
+					nextCheck = now + WATCH_CHECK_MILLIS;
+				}
+			}
+		}
+	}
+
+	private void dispatch(WatchKey key) {
+		Directory directory = directories.get((Path) key.watchable());
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (directory == null) {
+				continue;
+			}
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				directory.tails.forEach(Tail::schedule);	// events were lost, check everything
+				continue;
+			}
+			Path name = (Path) event.context();
+			for (Tail tail : directory.tails) {
+				if (tail.path.getFileName().equals(name)) {
+					tail.schedule();
+				}
+			}
+		}
+		if (!key.reset() && directory != null) {
+			directory.key = null;		// the directory is gone, poll until it is back
+		}
+	}
+
+	/**
+	 * A watched (or polled) directory and the files tailed in it
+	 */
+	private static class Directory {
+		private final Path path;
+		private final Set<Tail> tails = ConcurrentHashMap.newKeySet();
+		private volatile WatchKey key;
+
+		Directory(Path path) {
+			this.path = path;
+		}
+	}
+
+	/**
+	 * One tailed file.  Only one reader works on it at a time: a change while it is being read is picked up
+	 * by another pass once the read is done.
+	 */
+	public class Tail {
+		private final Path path;
+		private final TailListener listener;
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private volatile boolean pending;
+		private volatile boolean stopped;
+		private volatile long checkedPosition;		// bytes of the file read by the last check
+
+		// used by the reader only
+		private final ByteBuffer buffer;
+		private final ByteBuffer view;		// the same bytes, for copying lines out
+		private long startOffset;
+		private FileChannel channel;
+		private Object fileKey;
+		private long position;				// bytes of the file read into the buffer so far
+		private byte[] partial;				// start of a line longer than the buffer
+		private int partialLength;
+
+		Tail(Path path, TailListener listener, long startOffset) {
+			this.path = path;
+			this.listener = listener;
+			this.startOffset = startOffset;
+			this.buffer = bufferPool.acquire();
+			this.view = buffer.duplicate();
+		}
+
+		/**
+		 * Stop reading the file.  Does not wait for a read in progress, its buffer is returned to the pool
+		 * once it is done.
+		 */
+		public void stop() {
+			stopped = true;
+			// a directory is no longer watched once its last file is stopped, files come and go with discovery
+			directories.computeIfPresent(path.getParent(), (parent, directory) -> {
+				directory.tails.remove(this);
+				if (!directory.tails.isEmpty()) {
+					return directory;
+				}
+				if (directory.key != null) {
+					directory.key.cancel();
+				}
+				return null;
+			});
+			if (scheduled.compareAndSet(false, true)) {
+				release();
+			}
+		}
+
+		/**
+		 * @return bytes of the file read and handed to the listener, as of the last time it was checked
+		 */
+		public long getCheckedPosition() {
+			return checkedPosition;
+		}
+
+		/**
+		 * Read the file on a reader thread, unless that is already happening
+		 */
+		void schedule() {
+			pending = true;
+			if (!stopped && scheduled.compareAndSet(false, true)) {
+				try {
+					readers.execute(this::run);
+				} catch (RejectedExecutionException ex) {
+					scheduled.set(false);		// shutting down
+				}
+			}
+		}
+
+		private void run() {
+			try {
+				while (pending && !stopped) {
+					pending = false;
+					check();
+				}
+			} catch (IOException | RuntimeException ex) {
+				logger.error("Error tailing file {}, exception={}", path, ex.toString());
+			} finally {
+				scheduled.set(false);
+				if (stopped && scheduled.compareAndSet(false, true)) {
+					release();
+				}
+			}
+			if (pending && !stopped) {
+				schedule();
+			}
+		}
+
+		/**
+		 * Read whatever has been added to the file, and look for a rotation or truncation
+		 */
+		private void check() throws IOException {
+			if (channel == null && !open(startOffset)) {
+				return;		// not there yet
+			}
+			boolean read = readAvailable();
+
+			BasicFileAttributes attributes;
+			try {
+				attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			} catch (NoSuchFileException ex) {
+				attributes = null;		// renamed away, the new file is not there yet
+			}
+			if (attributes != null && attributes.fileKey() != null && !attributes.fileKey().equals(fileKey)) {
+				read |= readAvailable();	// lines written to the old file before it was renamed
+				emitPartial();
+				closeChannel();
+				logger.info("File {} was rotated, reading the new file from the start.", path);
+				listener.fileRotated();
+				read = open(0) && readAvailable();
+			} else if (attributes != null && attributes.size() < position) {
+				logger.info("File {} was truncated, reading it again from the start.", path);
+				buffer.clear();
+				partialLength = 0;
+				position = 0;
+				channel.position(0);
+				listener.fileRotated();
+				read = readAvailable();
+			}
+			if (read && !stopped) {
+				listener.endOfFileReached();
+			}
+			checkedPosition = position;
+		}
+
+		private boolean open(long offset) throws IOException {
+			try {
+				channel = FileChannel.open(path, StandardOpenOption.READ);
+				fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+			} catch (NoSuchFileException ex) {
+				closeChannel();
+				return false;
+			}
+			startOffset = 0;	// a file which replaces it is read from the start
+			position = Math.min(offset, channel.size());
+			channel.position(position);
+			buffer.clear();
+			partialLength = 0;
+			return true;
+		}
+
+		/**
+		 * Read to the end of the file, handing each complete line to the listener
+		 *
+		 * @return true if anything was read
+		 */
+		private boolean readAvailable() throws IOException {
+			boolean read = false;
+			while (!stopped) {
+				int count = channel.read(buffer);
+				if (count <= 0) {
+					break;
+				}
+				position += count;
+				read = true;
+				splitLines();
+			}
+			return read;
+		}
+
+		/**
+		 * Hand every complete line in the buffer to the listener, leaving the start of the next line
+		 * at the front of the buffer
+		 */
+		private void splitLines() {
+			int limit = buffer.position();
+			int start = 0;
+			for (int i = 0; i < limit; i++) {
+				if (buffer.get(i) == '\n') {
+					emit(start, i, 1);
+					start = i + 1;
+				}
+			}
+			if (start == 0 && limit == buffer.capacity()) {
+				appendPartial(0, limit);	// no newline in a full buffer, keep gathering the line
+				start = limit;
+			}
+			buffer.flip();
+			buffer.position(start);
+			buffer.compact();
+		}
+
+		/**
+		 * Hand the listener the line in the buffer from start to end (plus whatever was gathered before it)
+		 */
+		private void emit(int start, int end, int newlineBytes) {
+			int lineBytes = partialLength + (end - start) + newlineBytes;
+			byte[] bytes;
+			int length;
+			if (partialLength > 0) {
+				appendPartial(start, end);
+				bytes = partial;
+				length = partialLength;
+				partialLength = 0;
+			} else {
+				bytes = lineBuffers.get();
+				length = end - start;
+				view.clear();
+				view.position(start);
+				view.get(bytes, 0, length);
+			}
+			if (length > 0 && bytes[length - 1] == '\r') {
+				length--;
+			}
+			listener.handle(bytes, 0, length, lineBytes);
+		}
+
+		/**
+		 * The file is being left for a new one: its last line is handed over even without a newline
+		 */
+		private void emitPartial() {
+			if (buffer.position() > 0 || partialLength > 0) {
+				emit(0, buffer.position(), 0);
+				buffer.clear();
+			}
+		}
+
+		private void appendPartial(int start, int end) {
+			int length = end - start;
+			if (partial == null || partial.length < partialLength + length) {
+				int size = Math.max(partialLength + length, (partial != null ? partial.length : buffer.capacity()) * 2);
+				partial = (partial != null) ? Arrays.copyOf(partial, size) : new byte[size];
+			}
+			view.clear();
+			view.position(start);
+			view.get(partial, partialLength, length);
+			partialLength += length;
+		}
+
+		private void closeChannel() {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ex) {
+					logger.warn("Error closing file {}, exception={}", path, ex.toString());
+				}
+				channel = null;
+			}
+		}
+
+		private void release() {
+			closeChannel();
+			bufferPool.release(buffer);
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package com.datastax.log.agent.service;
+
+/**
+ * Receives the lines of a file tailed by the TailEngine, in order, on one thread at a time.
+ *
+ * @author cingham
+ */
+public interface TailListener {
+
+	/**
+	 * A complete line has been read.  Its bytes are only valid during the call, they are copied if kept.
+	 *
+	 * @param bytes buffer holding the line, without its newline (or CR LF)
+	 * @param offset start of the line in the buffer
+	 * @param length length of the line
+	 * @param lineBytes bytes the line takes up in the file, including its newline
+	 */
+	void handle(byte[] bytes, int offset, int length, int lineBytes);
+
+	/**
+	 * The file was rotated (a new file took its name) or truncated, the lines which follow are read
+	 * from the start of the new file
+	 */
+	void fileRotated();
+
+	/**
+	 * Everything written to the file so far has been read
+	 */
+	void endOfFileReached();
+}
@@ -0,0 +1,177 @@
+package com.datastax.log.agent.service;
+
+import com.datastax.log.agent.config.Config;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Paces the uploads to what the service can take, by AIMD (additive increase, multiplicative decrease) as TCP
+ * paces a connection.  Two things are controlled:
+ *    pace  - how far the upload trigger is stretched (see UploadTrigger): a file is uploaded once pace times
+ *            flushLines / flushBytes have built up, or its oldest line has waited pace times flushAge, so a
+ *            slow service gets fewer, larger uploads
+ *    limit - how many uploads may be in flight at once, from one up to maxConcurrentUploads
+ *
+ * An upload which fails, is turned away (429 or 503), takes longer than targetLatency, or whose response says the
+ * service is at HIGH_LOAD or more of its in flight limit is a sign the service is overloaded: the rate (one over
+ * the pace) and the limit are halved.  Only once for each round trip though: uploads which were already in flight
+ * when they were cut back say nothing new, so a burst of failures does not cut them right down.
+ * Each upload which goes well gives back RATE_STEP of the rate and one upload of the limit over a round trip
+ * (limit uploads), the limit only while it is in use: uploads which never fill it say nothing about one more.
+ * The rate goes no higher than the configured trigger, unless lines are waiting longer than
+ * targetLag to be uploaded while the service keeps up, when it goes on up to MAX_RATE so lines are sent sooner.
+ * However far the trigger is stretched, a line does not wait more than half of targetLag for it.
+ *
+ * So each agent backs off as soon as the service struggles, and comes back gradually rather than all at once,
+ * which keeps a fleet of agents from retrying in step.  The pace and limit are published as log.agent.upload.pace
+ * and log.agent.upload.limit.  With adaptivePacing off the trigger is used as configured, and the limit is
+ * maxConcurrentUploads.
+ *
+ * @author cingham
+ */
+public class UploadPacer {
+	static final double HIGH_LOAD = 0.8;
+	static final double RATE_STEP = 0.25;
+	static final double MAX_RATE = 4;
+
+	private final boolean enabled;
+	private final long targetLatencyNanos;
+	private final long targetLag;
+	private final double minRate;
+	private final int maxLimit;
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	// guarded by this, volatile to be read without the lock
+	private volatile double rate = 1;
+	private volatile double limit;
+	private volatile boolean behind;		// the last line uploaded had waited longer than targetLag
+	private long decreasedAt;
+	private boolean decreased;
+
+	/**
+	 * @param config app config options
+	 */
+	public UploadPacer(Config config) {
+		this.enabled = config.isAdaptivePacing();
+		this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getTargetLatency()));
+		this.targetLag = Math.max(1, config.getTargetLag());
+		this.minRate = 1 / Math.max(1, config.getMaxPace());
+		this.maxLimit = Math.max(1, config.getMaxConcurrentUploads());
+		this.limit = maxLimit;
+
+		Gauge.builder("log.agent.upload.pace", this, UploadPacer::getPace)
+			.description("How far the upload trigger is stretched for the service").register(Metrics.globalRegistry);
+		Gauge.builder("log.agent.upload.limit", this, UploadPacer::getLimit)
+			.description("Uploads allowed in flight at once").register(Metrics.globalRegistry);
+	}
+
+	/**
+	 * Count an upload as in flight, if the limit allows it
+	 *
+	 * @return true if the upload may start, finish() must follow
+	 */
+	public boolean tryStart() {
+		while (true) {
+			int current = inFlight.get();
+			if (current >= getLimit()) {
+				return false;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * An upload started by tryStart() is no longer in flight, after uploaded() or failed()
+	 */
+	public void finish() {
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * An upload the service took
+	 *
+	 * @param start System.nanoTime() when it was sent
+	 * @param load share of its in flight limit the service had in use, null if it did not say
+	 */
+	public void uploaded(long start, Double load) {
+		if (System.nanoTime() - start > targetLatencyNanos || (load != null && load >= HIGH_LOAD)) {
+			decrease(start);
+		} else {
+			increase();
+		}
+	}
+
+	/**
+	 * An upload which failed, or which the service turned away
+	 *
+	 * @param start System.nanoTime() when it was sent
+	 */
+	public void failed(long start) {
+		decrease(start);
+	}
+
+	/**
+	 * How long the lines of an upload had waited, from being read until the service took them
+	 *
+	 * @param millis wait of the oldest line in the upload
+	 */
+	public void lag(long millis) {
+		behind = millis > targetLag;
+	}
+
+	private synchronized void decrease(long start) {
+		if (!enabled || (decreased && start - decreasedAt < 0)) {
+			return;		// already cut back for the round trip this upload was part of
+		}
+		rate = Math.max(minRate, Math.min(1, rate / 2));
+		limit = Math.max(1, limit / 2);
+		decreasedAt = System.nanoTime();
+		decreased = true;
+	}
+
+	private synchronized void increase() {
+		if (!enabled) {
+			return;
+		}
+		double step = RATE_STEP / limit;
+		if (behind) {
+			rate = Math.min(MAX_RATE, rate + step);
+		} else if (rate > 1) {
+			rate = Math.max(1, rate - step);
+		} else {
+			rate = Math.min(1, rate + step);
+		}
+		if (inFlight.get() >= (int) limit) {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+	}
+
+	/**
+	 * @return how far the upload trigger is stretched, above one when the service is slow, below one when
+	 * 		lines are waiting too long while it keeps up
+	 */
+	public double getPace() {
+		return 1 / rate;
+	}
+
+	/**
+	 * @return how many uploads may be in flight at once
+	 */
+	public int getLimit() {
+		return enabled ? (int) limit : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @param flushAgeMillis the age the trigger is configured with
+	 * @return the age the oldest waiting line should be uploaded at, at the current pace
+	 */
+	long pacedAge(long flushAgeMillis) {
+		long paced = (long) (flushAgeMillis * getPace());
+		return (paced > flushAgeMillis) ? Math.min(paced, Math.max(flushAgeMillis, targetLag / 2)) : paced;
+	}
+}
@@ -0,0 +1,84 @@
+package com.datastax.log.agent.service;
+
+import com.datastax.log.agent.config.Config;
+import lombok.Getter;
+
+/**
+ * When the lines a collector has built up should be uploaded: once there are flushLines of them,
+ * once they hold flushBytes of source bytes, or once the oldest of them has waited flushAgeMillis.
+ * Busy files are uploaded as soon as a worthwhile batch is ready, quiet files only as often as the age allows.
+ * With an UploadPacer all three are stretched by its pace, so a slow service gets fewer, larger uploads.
+ *
+ * @author cingham
+ */
+@Getter
+public class UploadTrigger {
+	private final int flushLines;
+	private final long flushBytes;
+	private final long flushAgeMillis;
+	private final UploadPacer pacer;		// may be null
+
+	/**
+	 * @param flushLines upload once this many lines are waiting, zero or less for no line trigger
+	 * @param flushBytes upload once this many source bytes are waiting, zero or less for no size trigger
+	 * @param flushAgeMillis upload once the oldest waiting line is this old
+	 */
+	public UploadTrigger(int flushLines, long flushBytes, long flushAgeMillis) {
+		this(flushLines, flushBytes, flushAgeMillis, null);
+	}
+
+	/**
+	 * @param flushLines upload once this many lines are waiting, zero or less for no line trigger
+	 * @param flushBytes upload once this many source bytes are waiting, zero or less for no size trigger
+	 * @param flushAgeMillis upload once the oldest waiting line is this old
+	 * @param pacer stretches the trigger while the service is slow, may be null
+	 */
+	public UploadTrigger(int flushLines, long flushBytes, long flushAgeMillis, UploadPacer pacer) {
+		this.flushLines = flushLines > 0 ? flushLines : Integer.MAX_VALUE;
+		this.flushBytes = flushBytes > 0 ? flushBytes : Long.MAX_VALUE;
+		this.flushAgeMillis = Math.max(0, flushAgeMillis);
+		this.pacer = pacer;
+	}
+
+	/**
+	 * The configured trigger, the age defaults to delayBetweenUploads when flushAge is not set
+	 *
+	 * @param config app config options
+	 * @return trigger for the agent's collectors
+	 */
+	public static UploadTrigger from(Config config) {
+		return from(config, null);
+	}
+
+	/**
+	 * The configured trigger, paced by the uploader's pacer
+	 *
+	 * @param config app config options
+	 * @param pacer stretches the trigger while the service is slow, may be null
+	 * @return trigger for the agent's collectors
+	 */
+	public static UploadTrigger from(Config config, UploadPacer pacer) {
+		long age = config.getFlushAge() > 0 ? config.getFlushAge() : config.getDelayBetweenUploads() * 1000L;
+		return new UploadTrigger(config.getFlushLines(), config.getFlushBytes(), age, pacer);
+	}
+
+	/**
+	 * @return how old the oldest waiting line gets before it is uploaded, at the current pace
+	 */
+	public long getFlushAgeMillis() {
+		return (pacer != null) ? pacer.pacedAge(flushAgeMillis) : flushAgeMillis;
+	}
+
+	/**
+	 * @param lines lines waiting
+	 * @param bytes source bytes waiting
+	 * @return true if enough has built up to upload regardless of age
+	 */
+	boolean isFull(int lines, long bytes) {
+		if (pacer == null) {
+			return lines >= flushLines || bytes >= flushBytes;
+		}
+		double pace = pacer.getPace();
+		return lines >= flushLines * pace || bytes >= flushBytes * pace;
+	}
+}
@@ -1,5 +1,7 @@
 package com.datastax.log.agent
 
+import com.datastax.log.agent.service.FileDiscovery
+import com.datastax.log.agent.service.LogHandler
 import spock.lang.Specification
 import spock.lang.Subject
 
@@ -9,7 +11,7 @@ class CommandLineStartupRunnerSpec extends Specification {
     CommandLineStartupRunner commandLineStartupRunner
 
     def "setup"() {
-        commandLineStartupRunner = new CommandLineStartupRunner()
+        commandLineStartupRunner = new CommandLineStartupRunner(null, null)
     }
 
     def "test checkForFileParameter() is missing filename"() {
@@ -19,6 +21,17 @@ class CommandLineStartupRunnerSpec extends Specification {
             thrown RuntimeException
     }
 
+    def "test checkForFileParameter() allows no filename when files are discovered"() {
+        given:
+            FileDiscovery fileDiscovery = Mock()
+            fileDiscovery.hasWatchPaths() >> true
+            commandLineStartupRunner = new CommandLineStartupRunner(null, fileDiscovery)
+        when:
+            List<File> inputFiles = commandLineStartupRunner.checkForFileParameter()
+        then:
+            inputFiles.isEmpty()
+    }
+
     def "test checkForFileParameter() file does not exist"() {
         when:
             commandLineStartupRunner.checkForFileParameter("foo.log")
@@ -43,4 +56,26 @@ class CommandLineStartupRunnerSpec extends Specification {
 		then:
 			inputFiles.size() == 2
 	}
+
+	def "test checkForFileParameter() skips config options"() {
+		when:
+			List<File> inputFiles = commandLineStartupRunner.checkForFileParameter("--log-agent.clientId=client2", "/")
+		then:
+			inputFiles == [new File("/")]
+	}
+
+	def "test the agent starts with only watch paths given as an option"() {
+		given:
+			LogHandler logHandler = Mock()
+			FileDiscovery fileDiscovery = Mock()
+			fileDiscovery.hasWatchPaths() >> true
+			commandLineStartupRunner = new CommandLineStartupRunner(logHandler, fileDiscovery)
+		when:
+			commandLineStartupRunner.run("--log-agent.watchPaths=/var/log/app/*.log")
+		then:
+			0 * logHandler.addLogFile(_)
+			1 * fileDiscovery.start()
+		cleanup:
+			commandLineStartupRunner.shutdown()
+	}
 }
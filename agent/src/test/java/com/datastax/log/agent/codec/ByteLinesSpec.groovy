@@ -0,0 +1,108 @@
+package com.datastax.log.agent.codec
+
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+class ByteLinesSpec extends Specification {
+
+	BytePagePool pool = new BytePagePool(32, 16)
+
+	def "test lines are kept as bytes and read back as bytes or text"() {
+		given:
+			ByteLines lines = new ByteLines(pool)
+			add(lines, "first", 6)
+			add(lines, "sécond", 9)
+		expect:
+			lines.size() == 2
+			lines == ["first", "sécond"]
+			lines.length(1) == 7
+			lines.sourceBytes(1) == 9
+			new String(lines.array(1), lines.offset(1), lines.length(1), StandardCharsets.UTF_8) == "sécond"
+	}
+
+	def "test pages go back to the pool as lines are removed"() {
+		given:
+			ByteLines lines = new ByteLines(pool)
+			(0..<10).each { add(lines, String.format("line-%04d", it), 10) }		// three lines a page
+		when:
+			lines.removeFirst(7)
+		then:
+			lines == ["line-0007", "line-0008", "line-0009"]
+			pool.getPooled() == 2
+		when:
+			lines.clear()
+		then:
+			lines.isEmpty()
+			pool.getPooled() == 4
+	}
+
+	def "test timestamps are only kept once a line has one, and move with the lines"() {
+		given:
+			ByteLines lines = new ByteLines(pool)
+			ByteLines copy = new ByteLines(pool)
+		when:
+			add(lines, "plain", 6)
+		then:
+			!lines.hasTimestamps()
+			lines.timestamp(0) == TimestampParser.NONE
+		when:
+			(0..<20).each { lines.add("timed".getBytes(StandardCharsets.UTF_8), 0, 5, 6, 1000L + it) }
+			lines.removeFirst(15)
+			(0..<20).each { lines.add("later".getBytes(StandardCharsets.UTF_8), 0, 5, 6, 2000L + it) }
+			copy.addAll(lines, 3)
+		then:
+			lines.hasTimestamps()
+			lines.size() == 26
+			lines.timestamp(0) == 1014L
+			lines.timestamp(25) == 2019L
+			copy.hasTimestamps()
+			(0..<3).collect { copy.timestamp(it) } == [1014L, 1015L, 1016L]
+	}
+
+	def "test a line longer than a page gets a page of its own which is not pooled"() {
+		given:
+			ByteLines lines = new ByteLines(pool)
+			add(lines, "x" * 100, 101)
+			add(lines, "short", 6)
+		when:
+			lines.clear()
+		then:
+			pool.getPooled() == 1
+	}
+
+	def "test lines keep their order as the arrays are reused and grown"() {
+		given:
+			ByteLines lines = new ByteLines(pool)
+			List<String> expected = []
+		when:
+			(0..<200).each {
+				String line = "l" + it
+				add(lines, line, line.length() + 1)
+				expected.add(line)
+				if (it % 3 == 0) {
+					lines.removeFirst(1)
+					expected.remove(0)
+				}
+			}
+		then:
+			lines == expected
+	}
+
+	def "test lines are copied from another list"() {
+		given:
+			ByteLines from = new ByteLines(pool)
+			ByteLines to = new ByteLines(pool)
+			["a", "b", "c"].each { add(from, it, 2) }
+		when:
+			to.addAll(from, 2)
+		then:
+			to == ["a", "b"]
+			to.sourceBytes(1) == 2
+	}
+
+	private static void add(ByteLines lines, String line, int sourceBytes) {
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8)
+		lines.add(bytes, 0, bytes.length, sourceBytes)
+	}
+}
@@ -0,0 +1,58 @@
+package com.datastax.log.agent.codec
+
+import com.datastax.log.agent.dto.LogDto
+import com.fasterxml.jackson.databind.ObjectMapper
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.charset.StandardCharsets
+
+class LinesSerializerSpec extends Specification {
+
+	ObjectMapper mapper = new ObjectMapper()
+
+	def "test lines held as bytes are written just as the same lines held as strings"() {
+		given:
+			List<String> text = ["plain", "quote \" and \\ backslash", "tab\tcontrol\u0001", "é ü 中 😀"]
+			ByteLines lines = new ByteLines(new BytePagePool(64, 4))
+			text.each {
+				byte[] bytes = it.getBytes(StandardCharsets.UTF_8)
+				lines.add(bytes, 0, bytes.length, bytes.length + 1)
+			}
+		expect:
+			mapper.writeValueAsString(dto(lines)) == mapper.writeValueAsString(dto(text))
+			mapper.readValue(mapper.writeValueAsBytes(dto(lines)), Map).lines == text
+	}
+
+	def "test a line which is not valid UTF-8 is written with its bad bytes replaced"() {
+		given:
+			byte[] bad = [0x61, 0xC3, 0x28, 0x62] as byte[]
+			ByteLines lines = new ByteLines(new BytePagePool(64, 4))
+			lines.add(bad, 0, bad.length, bad.length + 1)
+		when:
+			List<String> read = mapper.readValue(mapper.writeValueAsBytes(dto(lines)), Map).lines
+		then:
+			read == [new String(bad, StandardCharsets.UTF_8)]
+	}
+
+	@Unroll
+	def "test #description is #validity UTF-8"() {
+		expect:
+			LinesSerializer.isValidUtf8(bytes as byte[], 0, bytes.size()) == valid
+		where:
+			description          | bytes                          | valid
+			"ASCII"              | [0x41, 0x42]                   | true
+			"a two byte char"    | [0xC3, 0xA9]                   | true
+			"a four byte char"   | [0xF0, 0x9F, 0x98, 0x80]       | true
+			"a truncated char"   | [0x41, 0xC3]                   | false
+			"a stray follower"   | [0x80]                         | false
+			"an overlong char"   | [0xC0, 0xAF]                   | false
+			"a surrogate"        | [0xED, 0xA0, 0x80]             | false
+			"past U+10FFFF"      | [0xF4, 0x90, 0x80, 0x80]       | false
+			validity = valid ? "valid" : "not valid"
+	}
+
+	private static LogDto dto(List<String> lines) {
+		return new LogDto("test.log", "file@1", 0, 10, lines)
+	}
+}
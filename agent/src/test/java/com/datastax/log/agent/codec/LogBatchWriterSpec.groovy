@@ -0,0 +1,153 @@
+package com.datastax.log.agent.codec
+
+import com.github.luben.zstd.Zstd
+import net.jpountz.lz4.LZ4Factory
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.charset.StandardCharsets
+import java.util.zip.Inflater
+
+class LogBatchWriterSpec extends Specification {
+
+	@Unroll
+	def "test lines round trip with #compression compression"() {
+		given:
+			List<String> lines = (1..200).collect { "line-" + it + "-é" }
+		when:
+			byte[] batch = encode(compression, 256, lines)
+			Map decoded = decode(batch)
+		then:
+			decoded.compression == compression
+			decoded.filename == "test.log"
+			decoded.fileId == "file@1"
+			decoded.startOffset == 5
+			decoded.endOffset == 50
+			decoded.blocks > 1		// 256 byte blocks force several
+			decoded.lines == lines
+		where:
+			compression << Compression.values()
+	}
+
+	def "test a line larger than the block size gets its own block"() {
+		given:
+			List<String> lines = ["small", "x" * 1000, "small again"]
+		when:
+			Map decoded = decode(encode(Compression.LZ4, 64, lines))
+		then:
+			decoded.lines == lines
+	}
+
+	def "test null file identity is written as empty"() {
+		when:
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+			new LogBatchWriter(bytes, Compression.NONE, 64, "test.log", null, 0, 0).close()
+			Map decoded = decode(bytes.toByteArray())
+		then:
+			decoded.fileId == ""
+			decoded.lines.isEmpty()
+	}
+
+	def "test lines with timestamps are written with the difference from the last one"() {
+		given:
+			ByteLines lines = new ByteLines(new BytePagePool(64, 4))
+			[["first", 1577872800000L], ["second", TimestampParser.NONE], ["x" * 100, 1577872800250L],
+				["earlier", 1577872799000L]].each { pair ->
+				byte[] bytes = ((String) pair[0]).getBytes(StandardCharsets.UTF_8)
+				lines.add(bytes, 0, bytes.length, bytes.length + 1, (long) pair[1])
+			}
+		when:
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+			LogBatchWriter writer = new LogBatchWriter(bytes, Compression.LZ4, 64, "test.log", "file@1", 0, 127, true)
+			writer.writeLines(lines)
+			writer.close()
+			Map decoded = decode(bytes.toByteArray())
+		then:
+			decoded.lines == ["first", "second", "x" * 100, "earlier"]
+			decoded.timestamps == [1577872800000L, TimestampParser.NONE, 1577872800250L, 1577872799000L]
+	}
+
+	private static byte[] encode(Compression compression, int blockSize, List<String> lines) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+		LogBatchWriter writer = new LogBatchWriter(bytes, compression, blockSize, "test.log", "file@1", 5, 50)
+		for (String line : lines) {
+			byte[] lineBytes = line.getBytes(StandardCharsets.UTF_8)
+			writer.writeLine(lineBytes, 0, lineBytes.length)
+		}
+		writer.close()
+		return bytes.toByteArray()
+	}
+
+	private static Map decode(byte[] batch) {
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(batch))
+		int magic = input.readInt()
+		assert magic == LogBatchWriter.MAGIC || magic == LogBatchWriter.TIMESTAMPS_MAGIC
+		Map result = [compression: Compression.fromId(input.readUnsignedByte()), filename: input.readUTF(),
+			fileId: input.readUTF(), startOffset: input.readLong(), endOffset: input.readLong(), blocks: 0, lines: [],
+			timestamps: []]
+		long lastTimestamp = 0
+		int rawLength
+		while ((rawLength = input.readInt()) != 0) {
+			byte[] compressed = new byte[input.readInt()]
+			input.readFully(compressed)
+			byte[] raw = decompress(result.compression, compressed, rawLength)
+			DataInputStream block = new DataInputStream(new ByteArrayInputStream(raw))
+			while (block.available() > 0) {
+				byte[] line = new byte[readVarint(block)]
+				block.readFully(line)
+				result.lines.add(new String(line, StandardCharsets.UTF_8))
+				if (magic == LogBatchWriter.TIMESTAMPS_MAGIC) {
+					long code = readVarlong(block)
+					if (code == 0) {
+						result.timestamps.add(TimestampParser.NONE)
+					} else {
+						lastTimestamp += ((code - 1) >>> 1) ^ -((code - 1) & 1)
+						result.timestamps.add(lastTimestamp)
+					}
+				}
+			}
+			result.blocks++
+		}
+		return result
+	}
+
+	private static byte[] decompress(Compression compression, byte[] compressed, int rawLength) {
+		switch (compression) {
+			case Compression.GZIP:
+				Inflater inflater = new Inflater()
+				inflater.setInput(compressed)
+				byte[] raw = new byte[rawLength]
+				inflater.inflate(raw)
+				inflater.end()
+				return raw
+			case Compression.LZ4:
+				return LZ4Factory.fastestInstance().fastDecompressor().decompress(compressed, rawLength)
+			case Compression.ZSTD:
+				return Zstd.decompress(compressed, rawLength)
+			default:
+				return compressed
+		}
+	}
+
+	private static long readVarlong(DataInputStream input) {
+		long value = 0
+		int shift = 0
+		int b
+		while (((b = input.readUnsignedByte()) & 0x80) != 0) {
+			value |= (long) (b & 0x7F) << shift
+			shift += 7
+		}
+		return value | ((long) b << shift)
+	}
+
+	private static int readVarint(DataInputStream input) {
+		int value = 0
+		int shift = 0
+		int b
+		while (((b = input.readUnsignedByte()) & 0x80) != 0) {
+			value |= (b & 0x7F) << shift
+			shift += 7
+		}
+		return value | (b << shift)
+	}
+}
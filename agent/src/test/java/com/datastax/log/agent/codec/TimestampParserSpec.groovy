@@ -0,0 +1,75 @@
+package com.datastax.log.agent.codec
+
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.time.Instant
+import java.time.ZoneId
+import java.time.ZoneOffset
+
+class TimestampParserSpec extends Specification {
+
+	def "test ISO-8601 style timestamps are read from the start of the line"() {
+		given:
+			TimestampParser parser = new TimestampParser(null, ZoneOffset.UTC)
+		expect:
+			parse(parser, text) == expected
+		where:
+			text                                             | expected
+			"2020-01-01T10:00:00Z started"                   | millis("2020-01-01T10:00:00Z")
+			"2020-01-01 10:00:00,123 INFO started"           | millis("2020-01-01T10:00:00.123Z")
+			"[2020-01-01T10:00:00.5+02:00] started"          | millis("2020-01-01T08:00:00.500Z")
+			"2020-01-01T10:00:00.123456-0130 started"        | millis("2020-01-01T11:30:00.123Z")
+			"2020-02-29 23:59:59 leap day"                   | millis("2020-02-29T23:59:59Z")
+			"\tat Foo.bar(Foo.java:1)"                       | TimestampParser.NONE
+			"2020-13-01 10:00:00 no such month"              | TimestampParser.NONE
+			"2020-01-01"                                     | TimestampParser.NONE
+	}
+
+	def "test a timestamp without a zone is in the configured zone"() {
+		given:
+			TimestampParser parser = new TimestampParser(null, ZoneId.of("Europe/Paris"))
+		expect:
+			parse(parser, "2020-01-01 10:00:00 winter") == millis("2020-01-01T09:00:00Z")
+			parse(parser, "2020-07-01 10:00:00 summer") == millis("2020-07-01T08:00:00Z")
+			parse(parser, "2020-07-01 10:00:00Z explicit") == millis("2020-07-01T10:00:00Z")
+	}
+
+	def "test lines sharing the same minute are read the same as ones which do not"() {
+		given:
+			TimestampParser parser = new TimestampParser(null, ZoneOffset.UTC)
+		expect:
+			(0..<60).every { second ->
+				String text = String.format("2020-01-01 10:00:%02d.%03d line", second, second * 7)
+				parse(parser, text) == millis(String.format("2020-01-01T10:00:%02d.%03dZ", second, second * 7))
+			}
+			parse(parser, "2020-01-01 10:01:00 next minute") == millis("2020-01-01T10:01:00Z")
+	}
+
+	def "test timestamps are read by a pattern"() {
+		given:
+			TimestampParser parser = new TimestampParser("dd/MMM/yyyy:HH:mm:ss Z", ZoneOffset.UTC)
+		expect:
+			parse(parser, "10/Oct/2020:13:55:36 -0700 GET /index.html") == millis("2020-10-10T20:55:36Z")
+			parse(parser, "10/Oct/2020:13:55:36 -0700 GET /again.html") == millis("2020-10-10T20:55:36Z")
+			parse(parser, "10/Oct/2020:13:55:37 -0700 GET /next.html") == millis("2020-10-10T20:55:37Z")
+			parse(parser, "  continued") == TimestampParser.NONE
+			parse(parser, "10/Oct/2020 no time") == TimestampParser.NONE
+	}
+
+	def "test an invalid pattern is rejected"() {
+		when:
+			new TimestampParser("yyyy-MM-dd {", ZoneOffset.UTC)
+		then:
+			thrown IllegalArgumentException
+	}
+
+	private static long parse(TimestampParser parser, String text) {
+		byte[] bytes = ("xx" + text).getBytes(StandardCharsets.UTF_8)
+		return parser.parse(bytes, 2, bytes.length - 2)
+	}
+
+	private static long millis(String iso) {
+		return Instant.parse(iso).toEpochMilli()
+	}
+}
@@ -0,0 +1,134 @@
+package com.datastax.log.agent.service
+
+import com.datastax.log.agent.config.Config
+import spock.lang.Specification
+import spock.lang.Subject
+import spock.util.concurrent.PollingConditions
+
+class FileDiscoverySpec extends Specification {
+
+	@Subject
+	FileDiscovery fileDiscovery
+	LogHandler logHandler
+	TailEngine tailEngine
+	Config config
+	File testDir
+	PollingConditions conditions = new PollingConditions(timeout: 5)
+
+	def "setup"() {
+		testDir = File.createTempDir()
+		config = new Config()
+		config.setTailPollInterval(50)
+		config.setDiscoveryInterval(60 * 60 * 1000)		// only the first scan, then events
+	}
+
+	def "cleanup"() {
+		fileDiscovery?.shutdown()
+		logHandler?.shutdown()
+		tailEngine?.shutdown()
+		testDir.deleteDir()
+	}
+
+	def "test a pattern is read from its fixed prefix, no deeper than it can match"() {
+		when:
+			FileDiscovery.WatchPattern pattern = FileDiscovery.WatchPattern.parse(watchPath)
+		then:
+			pattern.getBase() == new File(base).toPath()
+			pattern.getMaxDepth() == maxDepth
+		where:
+			watchPath               | base            | maxDepth
+			"/var/log/pods/*/*.log" | "/var/log/pods" | 2
+			"/var/log/app/**.log"   | "/var/log/app"  | Integer.MAX_VALUE
+			"/var/log/app.log"      | "/var/log"      | 1
+	}
+
+	def "test a directory means every file in it"() {
+		when:
+			FileDiscovery.WatchPattern pattern = FileDiscovery.WatchPattern.parse(testDir.getPath())
+		then:
+			pattern.getBase() == testDir.toPath().toAbsolutePath()
+			pattern.getMaxDepth() == 1
+	}
+
+	def "test the files matching a pattern are tailed when discovery starts"() {
+		given:
+			file("a/one.log")
+			file("b/two.log")
+			file("a/one.txt")
+			file("top.log")
+			file("a/deeper/three.log")
+		when:
+			start(testDir.getPath() + "/*/*.log")
+		then:
+			collecting() == ["a/one.log", "b/two.log"]
+	}
+
+	def "test a new file is tailed as soon as it is created, without a scan"() {
+		given:
+			file("a/one.log")
+			start(testDir.getPath() + "/**.log")
+		when:
+			file("a/two.log")
+			file("c/three.log")		// in a new directory
+		then:
+			conditions.eventually {
+				assert collecting() == ["a/one.log", "a/two.log", "c/three.log"]
+			}
+	}
+
+	def "test no more than maxTailedFiles are tailed, the rest are counted"() {
+		given:
+			config.setMaxTailedFiles(2)
+			(1..3).each { file("log-" + it + ".log") }
+		when:
+			start(testDir.getPath())
+		then:
+			logHandler.getCollectorCount() == 2
+			fileDiscovery.getSkippedFiles() == 1
+	}
+
+	def "test a deleted file is retired, and removed once its lines are uploaded"() {
+		given:
+			File gone = file("gone.log")
+			start(testDir.getPath())
+		when:
+			gone.delete()
+			fileDiscovery.scan()
+			logHandler.removeRetired()
+		then:
+			!logHandler.isCollecting(gone)
+	}
+
+	def "test a file which has not changed for idleFileTimeout is not tailed"() {
+		given:
+			config.setIdleFileTimeout(60)
+			File old = file("old.log")
+			old.setLastModified(System.currentTimeMillis() - 120 * 1000)
+			file("new.log")
+		when:
+			start(testDir.getPath())
+		then:
+			collecting() == ["new.log"]
+	}
+
+	private void start(String watchPath) {
+		config.setWatchPaths([watchPath])
+		tailEngine = new TailEngine(config)
+		logHandler = new LogHandler(Mock(LogUploader), config, new MemoryBudget(config), tailEngine)
+		fileDiscovery = new FileDiscovery(config, logHandler)
+		fileDiscovery.start()
+	}
+
+	private File file(String name) {
+		File file = new File(testDir, name)
+		file.getParentFile().mkdirs()
+		file.createNewFile()
+		return file
+	}
+
+	private List<String> collecting() {
+		return logHandler.registry.collectors()*.getFile()
+			.collect { testDir.toPath().toAbsolutePath().relativize(it.toPath().toAbsolutePath()).toString() }
+			.sort()
+	}
+}
@@ -0,0 +1,163 @@
+package com.datastax.log.agent.service
+
+import com.datastax.log.agent.config.Config
+import com.datastax.log.agent.config.FilterAction
+import com.datastax.log.agent.config.FilterRule
+
+import java.nio.charset.StandardCharsets
+
+import spock.lang.Specification
+
+class LineFilterSpec extends Specification {
+
+	def "test no filter is built without rules"() {
+		expect:
+			LineFilter.from(new Config()) == null
+			LineFilter.from(new Config(filterDefault: FilterAction.DROP)) != null
+			LineFilter.from(new Config(filters: [new FilterRule(literal: "DEBUG")])) != null
+	}
+
+	def "test the first KEEP or DROP rule which matches decides"() {
+		given:
+			LineFilter filter = new LineFilter([
+				new FilterRule(name: "keep-errors", literal: "ERROR", action: FilterAction.KEEP),
+				new FilterRule(name: "health", regex: "GET /health\\b"),
+				new FilterRule(name: "debug", literal: " DEBUG ")], FilterAction.KEEP)
+		expect:
+			kept(filter, "2020-01-01 INFO started")
+			!kept(filter, "2020-01-01 DEBUG cache miss")
+			kept(filter, "2020-01-01 DEBUG ERROR cache broken")
+			!kept(filter, "10.0.0.1 GET /health 200")
+			kept(filter, "10.0.0.1 GET /healthy 200")
+			filter.getDropped("debug") == 1
+			filter.getDropped("health") == 1
+			filter.getDropped("keep-errors") == 0
+	}
+
+	def "test DROP by default keeps only the lines a rule keeps"() {
+		given:
+			LineFilter filter = new LineFilter([new FilterRule(literal: "ERROR", action: FilterAction.KEEP)], FilterAction.DROP)
+		expect:
+			kept(filter, "ERROR disk full")
+			!kept(filter, "INFO disk fine")
+			filter.getDropped("default") == 1
+	}
+
+	def "test SAMPLE keeps an even share of the lines it matches"() {
+		given:
+			LineFilter filter = new LineFilter([new FilterRule(name: "debug", literal: "DEBUG",
+				action: FilterAction.SAMPLE, sampleRate: 0.1)], FilterAction.KEEP)
+		when:
+			List<Integer> keptAt = (0..<100).findAll { kept(filter, "DEBUG " + it) }
+		then:
+			keptAt == [9, 19, 29, 39, 49, 59, 69, 79, 89, 99]
+			filter.getDropped("debug") == 90
+			kept(filter, "INFO not sampled")
+	}
+
+	def "test RATE_LIMIT keeps up to the rate each second"() {
+		given:
+			LineFilter filter = new LineFilter([new FilterRule(name: "chatty", literal: "chatty",
+				action: FilterAction.RATE_LIMIT, ratePerSecond: 5)], FilterAction.KEEP)
+		when:
+			int keptCount = (1..100).count { kept(filter, "chatty " + it) }
+		then:
+			keptCount >= 5 && keptCount < 10		// the burst, and whatever refilled while the loop ran
+			filter.getDropped("chatty") == 100 - keptCount
+	}
+
+	def "test MASK rules replace their matches in the lines kept"() {
+		given:
+			LineFilter filter = new LineFilter([
+				new FilterRule(literal: "DEBUG"),
+				new FilterRule(name: "password", regex: "password=\\S+", action: FilterAction.MASK, replacement: "password=****"),
+				new FilterRule(name: "card", regex: "\\b(\\d{4})\\d{8}(\\d{4})\\b", action: FilterAction.MASK, replacement: '$1********$2'),
+				new FilterRule(name: "token", literal: "tok_secret", action: FilterAction.MASK)], FilterAction.KEEP)
+		expect:
+			masked(filter, "login user=bob password=hunter2 ok") == "login user=bob password=**** ok"
+			masked(filter, "paid with 4111111111111111 and 5500000000000004") == "paid with 4111********1111 and 5500********0004"
+			masked(filter, "auth tok_secret then tok_secret") == "auth **** then ****"
+			masked(filter, "café password=été") == "café password=****"
+			masked(filter, "nothing to hide") == "nothing to hide"
+			masked(filter, "DEBUG password=dropped") == null
+			filter.getMasked("password") == 2
+			filter.getMasked("card") == 1
+			filter.getMasked("token") == 1
+	}
+
+	def "test a line no mask changes is passed on as it was"() {
+		given:
+			LineFilter filter = new LineFilter([new FilterRule(regex: "secret", action: FilterAction.MASK)], FilterAction.KEEP)
+			byte[] bytes = "xx plain line xx".getBytes(StandardCharsets.UTF_8)
+			LineFilter.Line line = new LineFilter.Line()
+			line.set(bytes, 3, 10)
+		when:
+			boolean result = filter.apply(line)
+		then:
+			result
+			line.getBytes().is(bytes)
+			line.getOffset() == 3
+			line.getLength() == 10
+	}
+
+	def "test an invalid rule is rejected"() {
+		when:
+			new LineFilter([rule], FilterAction.KEEP)
+		then:
+			IllegalArgumentException ex = thrown()
+			ex.message.contains("bad")
+		where:
+			rule << [new FilterRule(name: "bad", regex: "(unclosed"),
+				new FilterRule(name: "bad", action: FilterAction.MASK),
+				new FilterRule(name: "bad", action: FilterAction.RATE_LIMIT)]
+	}
+
+	def "test the literal every match of a regex contains is worked out"() {
+		expect:
+			LineFilter.requiredLiteral(regex) == literal
+		where:
+			regex                          | literal
+			"GET /health"                  | "GET /health"
+			"password=\\S+"                | "password="
+			"user (\\w+) logged in"        | " logged in"
+			"time[0-9]*out"                | "time"
+			"colou?r"                      | "colo"
+			"ab+c"                         | "ab"
+			"x{2}yz"                       | "yz"
+			"foo\\.bar"                    | "foo.bar"
+			"^\\d+ ms\$"                   | " ms"
+			"[abc]{3}"                     | null
+			"error|warn"                   | null
+			"(?i)error"                    | null
+			"\\Qa.b\\E"                    | null
+	}
+
+	def "test a regex with a literal matches the same lines as without it"() {
+		given:
+			LineFilter withLiteral = new LineFilter([new FilterRule(regex: "user (\\w+) logged in")], FilterAction.KEEP)
+			LineFilter regexOnly = new LineFilter([new FilterRule(regex: "user (\\w+) logged in", literal: "")], FilterAction.KEEP)
+		expect:
+			kept(withLiteral, text) == kept(regexOnly, text)
+			kept(withLiteral, text) == expected
+		where:
+			text                                  | expected
+			"user bob logged in"                  | false
+			"user bob logged out"                 | true
+			"admin user alice logged in at noon"  | false
+			"logged in user"                      | true
+	}
+
+	private static boolean kept(LineFilter filter, String text) {
+		return masked(filter, text) != null
+	}
+
+	private static String masked(LineFilter filter, String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8)
+		LineFilter.Line line = new LineFilter.Line()
+		line.set(bytes, 0, bytes.length)
+		if (!filter.apply(line)) {
+			return null
+		}
+		return new String(line.getBytes(), line.getOffset(), line.getLength(), StandardCharsets.UTF_8)
+	}
+}
@@ -0,0 +1,116 @@
+package com.datastax.log.agent.service
+
+import spock.lang.Specification
+
+class LineRingSpec extends Specification {
+
+	def "test lines are taken in order with their offsets"() {
+		given:
+			LineRing ring = new LineRing(4, 1000)
+			offer(ring, "a", 0, 2)
+			offer(ring, "bb", 2, 3)
+		expect:
+			ring.available() == 2
+			ring.line(0) == "a"
+			ring.line(1) == "bb"
+			ring.lineStart(1) == 2
+			ring.lineBytes(1) == 3
+			ring.getByteCount() == 5
+		when:
+			ring.release(1)
+		then:
+			ring.available() == 1
+			ring.line(0) == "bb"
+			ring.getByteCount() == 3
+	}
+
+	def "test the ring is bounded by lines and wraps around"() {
+		given:
+			LineRing ring = new LineRing(3, 1000)		// rounded up to 4
+		expect:
+			ring.getCapacity() == 4
+			(0..<4).every { offer(ring, "line-" + it, it * 7, 7) }
+			!offer(ring, "line-4", 28, 7)
+		when:
+			ring.release(2)
+		then:
+			offer(ring, "line-4", 28, 7)
+			offer(ring, "line-5", 35, 7)
+			(0..<4).collect { ring.line(it) } == ["line-2", "line-3", "line-4", "line-5"]
+	}
+
+	def "test the ring is bounded by bytes but always takes one line"() {
+		given:
+			LineRing ring = new LineRing(16, 10)
+		expect:
+			offer(ring, "a-long-line", 0, 12)
+			!offer(ring, "b", 12, 2)
+		when:
+			ring.release(1)
+		then:
+			offer(ring, "b", 12, 2)
+			offer(ring, "c", 14, 2)
+	}
+
+	def "test a line which would run past the end of the bytes starts again at their front"() {
+		given:
+			LineRing ring = new LineRing(16, 16)
+			offer(ring, "0123456789", 0, 11)
+			ring.release(1)
+		when:
+			boolean offered = offer(ring, "abcdefghij", 11, 11)
+		then:
+			offered
+			ring.offset(0) == 0
+			ring.line(0) == "abcdefghij"
+	}
+
+	def "test a line longer than the bytes is only taken into an empty ring"() {
+		given:
+			LineRing ring = new LineRing(16, 8)
+			offer(ring, "a", 0, 2)
+		expect:
+			!offer(ring, "a-much-longer-line", 2, 19)
+		when:
+			ring.release(1)
+		then:
+			offer(ring, "a-much-longer-line", 2, 19)
+			ring.line(0) == "a-much-longer-line"
+			ring.lineBytes(0) == 19
+	}
+
+	def "test lines handed between two threads arrive in order"() {
+		given:
+			LineRing ring = new LineRing(64, 1024)
+			int count = 20000
+			Thread producer = Thread.start {
+				for (int i = 0; i < count; i++) {
+					while (!offer(ring, Integer.toString(i), i, 1)) {
+						Thread.yield()
+					}
+				}
+			}
+		when:
+			int expected = 0
+			boolean ordered = true
+			long deadline = System.currentTimeMillis() + 10000
+			while (expected < count && System.currentTimeMillis() < deadline) {
+				int available = ring.available()
+				for (int i = 0; i < available; i++) {
+					ordered &= ring.line(i) == Integer.toString(expected) && ring.lineStart(i) == expected
+					expected++
+				}
+				ring.release(available)
+			}
+			producer.join(1000)
+		then:
+			ordered
+			expected == count
+			ring.isEmpty()
+	}
+
+	private static boolean offer(LineRing ring, String line, long lineStart, int bytes) {
+		byte[] encoded = line.getBytes("UTF-8")
+		return ring.offer(encoded, 0, encoded.length, lineStart, bytes)
+	}
+}
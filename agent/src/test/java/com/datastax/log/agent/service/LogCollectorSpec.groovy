@@ -1,18 +1,37 @@
 package com.datastax.log.agent.service
 
+import com.datastax.log.agent.codec.TimestampParser
+import com.datastax.log.agent.config.Config
+import com.datastax.log.agent.config.FilterAction
+import com.datastax.log.agent.config.FilterRule
+import com.datastax.log.agent.config.OverflowPolicy
+import com.datastax.log.agent.config.StartPosition
+import com.datastax.log.agent.dto.LogDto
+import io.micrometer.core.instrument.Metrics
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
 import spock.lang.Specification
 import spock.lang.Subject
+import spock.util.concurrent.PollingConditions
+
+import java.time.ZoneOffset
+import java.util.regex.Pattern
 
 class LogCollectorSpec extends Specification {
 
     @Subject
     LogCollector logCollector
+	MemoryBudget budget
 
     def "setup"() {
+		budget = new MemoryBudget(new Config())
         File file = new File("foo.bar")
         logCollector = new LogCollector(file)
     }
 
+	def "cleanup"() {
+		logCollector.shutdown()
+	}
+
 	def "test empty list"() {
 		when:
 			boolean result = logCollector.hasLinesToUpload()
@@ -38,11 +57,74 @@ class LogCollectorSpec extends Specification {
 			logCollector.handle(line1)
 			logCollector.handle(line2)
 		when:
-			List<String> result = logCollector.beforeUpload()
+			LogDto result = logCollector.beforeUpload()
 		then:
 			logCollector.collectionList.size() == 0
 			logCollector.uploadList.size() == 2
-			result.size() == 2
+			result.getLines().size() == 2
+	}
+
+	def "test beforeUpload() reports the source offsets of the lines"() {
+		given:
+			logCollector.handle("test-1")
+			logCollector.handle("test-22")
+		when:
+			LogDto first = logCollector.beforeUpload()
+			logCollector.afterUpload(true)
+			logCollector.handle("\u00e9")	// two bytes in UTF-8
+			LogDto second = logCollector.beforeUpload()
+		then:
+			first.getStartOffset() == 0
+			first.getEndOffset() == 15
+			second.getStartOffset() == 15
+			second.getEndOffset() == 18
+	}
+
+	def "test failed upload retries the same chunk with its original offsets"() {
+		given:
+			logCollector.handle("test-1")
+			LogDto first = logCollector.beforeUpload()
+			logCollector.handle("test-2")
+		when:
+			logCollector.afterUpload(false)
+			LogDto retry = logCollector.beforeUpload()
+		then:
+			retry.getLines().is(first.getLines())		// retried in place, not copied
+			retry.getStartOffset() == 0
+			retry.getEndOffset() == 7
+			retry.getLines() == ["test-1"]
+	}
+
+	def "test resolveEpoch() resumes a matching epoch and drops committed lines"() {
+		given:
+			File tempFile = File.createTempFile("collector", ".log")
+			tempFile.text = "test-1\ntest-2\ntest-3\n"
+			LogCollector collector = new LogCollector(tempFile)
+			collector.shutdown()
+			["test-1", "test-2", "test-3"].each { collector.handle(it) }
+			String fileId = LogCollector.fileKey(tempFile) + "@123"
+		when:
+			collector.resolveEpoch(fileId, 14L)
+			LogDto result = collector.beforeUpload()
+		then:
+			collector.isEpochResolved()
+			result.getFileId() == fileId
+			result.getLines() == ["test-3"]
+			result.getStartOffset() == 14
+			result.getEndOffset() == 21
+		cleanup:
+			tempFile.delete()
+	}
+
+	def "test resolveEpoch() starts a new epoch for an unknown file identity"() {
+		given:
+			logCollector.handle("test-1")
+		when:
+			logCollector.resolveEpoch("some-other-file@123", 7L)
+			LogDto result = logCollector.beforeUpload()
+		then:
+			result.getFileId() != "some-other-file@123"
+			result.getLines() == ["test-1"]
 	}
 
 	def "test successful upload clears lists correctly"() {
@@ -59,7 +141,7 @@ class LogCollectorSpec extends Specification {
 			logCollector.uploadList.size() == 0
 	}
 
-	def "test failed upload concatenates lists correctly"() {
+	def "test failed upload leaves new lines waiting behind the failed chunk"() {
 		given:
 			String line1 = "test-1"
 			String line2 = "test-2"
@@ -70,12 +152,643 @@ class LogCollectorSpec extends Specification {
 			logCollector.beforeUpload()	// about to upload
 			logCollector.handle(line3)	// another line came in asynchronously
 			logCollector.afterUpload(false)	// upload failed
+			LogDto retry = logCollector.beforeUpload()
+			List<String> retryLines = new ArrayList<>(retry.getLines())
+			logCollector.afterUpload(true)
+			LogDto next = logCollector.beforeUpload()
 		then:
-			logCollector.collectionList.size() == 3
-			logCollector.uploadList.size() == 0
-			// check correct ordering
-			logCollector.collectionList.get(0).equals(line1)
-			logCollector.collectionList.get(1).equals(line2)
-			logCollector.collectionList.get(2).equals(line3)
+			retryLines == [line1, line2]
+			next.getLines() == [line3]
+			next.getStartOffset() == 14
+	}
+
+	def "test the tail thread stages lines without waiting for the lock"() {
+		given:
+			logCollector.collectionListLock.lock()		// e.g. an upload thread taking a chunk
+		when:
+			Thread tailerThread = Thread.start { (1..10).each { logCollector.handle("test-" + it) } }
+			tailerThread.join(2000)
+			boolean staged = !tailerThread.isAlive()
+			logCollector.collectionListLock.unlock()
+			LogDto result = logCollector.beforeUpload()
+		then:
+			staged
+			result.getLines() == (1..10).collect { "test-" + it }
+			result.getEndOffset() == 71
+	}
+
+	def "test a full staging ring is moved into the lists by the tail thread"() {
+		when:
+			(1..1025).each { logCollector.handle("line") }
+		then:
+			logCollector.collectionList.size() == 1024
+			logCollector.staged.available() == 1
+	}
+
+	def "test beforeUpload() takes at most one chunk of lines"() {
+		given:
+			LogCollector chunked = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 2, 1000, budget, null)
+			chunked.handle("test-1")
+			chunked.handle("test-2")
+			chunked.beforeUpload()
+			chunked.handle("test-3")
+			chunked.afterUpload(false)	// failed upload leaves more than one chunk waiting
+		when:
+			LogDto first = chunked.beforeUpload()
+			List<String> firstLines = new ArrayList<>(first.getLines())	// the dto shares the collector's upload list
+			chunked.afterUpload(true)
+			LogDto second = chunked.beforeUpload()
+		then:
+			firstLines == ["test-1", "test-2"]
+			first.getStartOffset() == 0
+			first.getEndOffset() == 14
+			second.getLines() == ["test-3"]
+			second.getStartOffset() == 14
+			second.getEndOffset() == 21
+		cleanup:
+			chunked.shutdown()
+	}
+
+	def "test chunks are also capped by bytes"() {
+		given:
+			LogCollector chunked = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 10, budget, null)
+			chunked.handle("test-1")
+			chunked.handle("test-2")
+		when:
+			LogDto first = chunked.beforeUpload()
+		then:
+			first.getLines() == ["test-1"]
+			first.getEndOffset() == 7
+		cleanup:
+			chunked.shutdown()
+	}
+
+	def "test full chunk notifies the listener and blocks the tail thread until it is taken"() {
+		given:
+			int notified = 0
+			LogCollector chunked = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 2, 1000, budget, { notified++ })
+			chunked.handle("test-1")
+			chunked.handle("test-2")
+			chunked.endOfFileReached()
+			Thread tailerThread = Thread.start {
+				chunked.handle("test-3")
+				chunked.endOfFileReached()
+			}
+		when:
+			tailerThread.join(300)
+		then:
+			notified == 1
+			chunked.isChunkReady()
+			tailerThread.isAlive()
+		when:
+			chunked.beforeUpload()
+			tailerThread.join(2000)
+		then:
+			!tailerThread.isAlive()
+			chunked.collectionList == ["test-3"]
+		cleanup:
+			chunked.shutdown()
+	}
+
+	def "test lines are due once the upload trigger size is reached"() {
+		given:
+			int notified = 0
+			LogCollector triggered = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, budget, null,
+				new UploadTrigger(3, 0, 60000), { notified++ })
+			triggered.handle("test-1")
+			triggered.handle("test-2")
+			triggered.endOfFileReached()
+			long now = System.currentTimeMillis()
+		when:
+			long dueBefore = triggered.flushDueAt(now)
+			triggered.handle("test-3")
+			triggered.handle("test-4")
+			triggered.endOfFileReached()
+		then:
+			dueBefore > now
+			triggered.flushDueAt(now) == now
+			notified == 1
+		cleanup:
+			triggered.shutdown()
+	}
+
+	def "test lines are due once the oldest reaches the upload trigger age"() {
+		given:
+			LogCollector triggered = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, budget, null,
+				new UploadTrigger(100, 0, 5000), null)
+		when:
+			long emptyDue = triggered.flushDueAt(System.currentTimeMillis())
+			long before = System.currentTimeMillis()
+			triggered.handle("test-1")
+			triggered.endOfFileReached()		// takes the staged line in, which is when its age starts
+			long after = System.currentTimeMillis()
+			triggered.handle("test-2")
+			long due = triggered.flushDueAt(after)
+		then:
+			emptyDue == Long.MAX_VALUE
+			due >= before + 5000
+			due <= after + 5000
+		when: "the upload fails, the chunk can be retried straight away (the handler backs off)"
+			triggered.beforeUpload()
+			triggered.afterUpload(false)
+		then:
+			triggered.flushDueAt(after) == after
+		cleanup:
+			triggered.shutdown()
+	}
+
+	def "test END start position only collects new lines"() {
+		given:
+			File tempFile = File.createTempFile("collector", ".log")
+			tempFile.text = "old-1\nold-2\n"
+			LogCollector collector = new LogCollector(tempFile, StartPosition.END, 100, 1000, budget, null)
+			collector.resolveEpoch(null, null)
+		when:
+			collector.handle("new-1")
+			LogDto result = collector.beforeUpload()
+		then:
+			result.getStartOffset() == 12
+			result.getEndOffset() == 18
+		cleanup:
+			collector.shutdown()
+			tempFile.delete()
+	}
+
+	def "test BEGINNING start position ignores the committed offset"() {
+		given:
+			File tempFile = File.createTempFile("collector", ".log")
+			tempFile.text = "test-1\n"
+			LogCollector collector = new LogCollector(tempFile, StartPosition.BEGINNING, 100, 1000, budget, null)
+			collector.shutdown()
+			collector.handle("test-1")
+			String fileId = LogCollector.fileKey(tempFile) + "@123"
+		when:
+			collector.resolveEpoch(fileId, 7L)
+			LogDto result = collector.beforeUpload()
+		then:
+			result.getFileId() != fileId
+			result.getLines() == ["test-1"]
+		cleanup:
+			tempFile.delete()
+	}
+
+	def "test BLOCK policy pauses the tail thread until memory is freed"() {
+		given:
+			MemoryBudget small = new MemoryBudget(new Config(maxCollectorBytes: 14, overflowPolicy: OverflowPolicy.BLOCK))
+			LogCollector collector = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, small, null)
+			collector.handle("test-1")
+			collector.handle("test-2")
+			Thread tailerThread = Thread.start {
+				collector.handle("test-3")
+				collector.endOfFileReached()
+			}
+		when:
+			tailerThread.join(300)
+		then:
+			tailerThread.isAlive()
+		when:
+			collector.beforeUpload()
+			collector.afterUpload(true)
+			tailerThread.join(2000)
+		then:
+			!tailerThread.isAlive()
+			collector.collectionList == ["test-3"]
+			collector.overflowCounters.blockedCount == 1
+			small.usedBytes == 7
+		cleanup:
+			collector.shutdown()
+	}
+
+	def "test DROP_NEWEST policy discards new lines and leaves a gap in the offsets"() {
+		given:
+			MemoryBudget small = new MemoryBudget(new Config(maxCollectorBytes: 14, overflowPolicy: OverflowPolicy.DROP_NEWEST))
+			LogCollector collector = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, small, null)
+		when:
+			collector.handle("test-1")
+			collector.handle("test-2")
+			collector.handle("test-3")
+			LogDto first = collector.beforeUpload()
+			List<String> firstLines = new ArrayList<>(first.getLines())
+			collector.afterUpload(true)
+			collector.handle("test-4")
+			LogDto second = collector.beforeUpload()
+		then:
+			firstLines == ["test-1", "test-2"]
+			first.getEndOffset() == 14
+			second.getLines() == ["test-4"]
+			second.getStartOffset() == 21
+			second.getEndOffset() == 28
+			collector.overflowCounters.droppedNewestLines == 1
+			collector.overflowCounters.droppedNewestBytes == 7
+		cleanup:
+			collector.shutdown()
+	}
+
+	def "test lines filtered out are not uploaded and their bytes are carried by the next line kept"() {
+		given:
+			LineFilter filter = new LineFilter([new FilterRule(literal: "DEBUG"),
+				new FilterRule(regex: "secret=\\w+", action: FilterAction.MASK, replacement: "secret=*")], FilterAction.KEEP)
+			LogCollector collector = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, budget, null,
+				new UploadTrigger(100, 1000, 0), filter, null)
+		when:
+			collector.handle("test-1")
+			collector.handle("DEBUG 1")
+			collector.handle("DEBUG 2")
+			collector.handle("secret=abc")
+			collector.handle("DEBUG 3")
+			LogDto upload = collector.beforeUpload()
+		then:
+			upload.getLines() == ["test-1", "secret=*"]
+			upload.getStartOffset() == 0
+			upload.getEndOffset() == 34		// the last line filtered out is still to come
+			collector.gaps.isEmpty()
+			collector.uploadList.sourceBytes(1) == 27
+			filter.getDropped("rule-0") == 3
+			filter.getMasked("rule-1") == 1
+		cleanup:
+			collector.shutdown()
+	}
+
+	def "test lines are grouped into events with their timestamps and an upload never splits one"() {
+		given:
+			EventAssembler assembler = new EventAssembler(Pattern.compile("^\\d{4}-"), 3, 1000, 5000)
+			LogCollector collector = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 2, 1000, budget, null,
+				new UploadTrigger(100, 1000, 0), null, assembler, new TimestampParser(null, ZoneOffset.UTC), null)
+		when:
+			collector.handle("2020-01-01 10:00:00 ERROR failed")
+			collector.handle("java.io.IOException: disk")
+			collector.handle("\tat Foo.bar(Foo.java:1)")
+			collector.handle("2020-01-01 10:00:01 INFO retrying")
+			collector.handle("1")
+			collector.handle("2")
+			collector.handle("3")
+			collector.endOfFileReached()
+			LogDto upload = collector.beforeUpload()
+		then: "chunks hold two events, the last event is pending"
+			upload.getLines() == ["2020-01-01 10:00:00 ERROR failed\njava.io.IOException: disk\n\tat Foo.bar(Foo.java:1)",
+				"2020-01-01 10:00:01 INFO retrying\n1\n2"]
+			upload.getStartOffset() == 0
+			upload.getEndOffset() == 121
+			upload.getTimestamps() == [1577872800000L, 1577872801000L] as long[]
+		when:
+			collector.afterUpload(true)
+			collector.handle("2020-01-01 10:00:02 INFO done")
+			collector.endOfFileReached()
+			upload = collector.beforeUpload()
+		then: "an event is complete at maxEventLines, a chunk without timestamps sends none"
+			upload.getLines() == ["3"]
+			upload.getStartOffset() == 121
+			upload.getTimestamps() == null
+		cleanup:
+			collector.shutdown()
+	}
+
+	def "test the pending event is uploaded once it has waited the flush timeout"() {
+		given:
+			EventAssembler assembler = new EventAssembler(Pattern.compile("^\\S"), 100, 1000, 5000)
+			LogCollector collector = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, budget, null,
+				new UploadTrigger(100, 1000, 0), null, assembler, null, null)
+		when:
+			long before = System.currentTimeMillis()
+			collector.handle("first")
+			collector.handle("  continued")
+			collector.endOfFileReached()
+			long after = System.currentTimeMillis()
+			long due = collector.flushDueAt(after)
+		then: "parked, until the timeout"
+			due >= before + 5000
+			due <= after + 5000
+			!collector.hasLinesToUpload()
+		when: "more of its lines are read, the tail thread takes it back"
+			collector.handle("  more")
+			collector.endOfFileReached()
+		then:
+			!collector.hasLinesToUpload()
+		when:
+			collector.flushDueAt(System.currentTimeMillis() + 5000)
+			LogDto upload = collector.beforeUpload()
+		then:
+			upload.getLines() == ["first\n  continued\n  more"]
+			upload.getEndOffset() == 25
+		cleanup:
+			collector.shutdown()
+	}
+
+	def "test an event already parked is left to the upload thread when the end of the file is reached again"() {
+		given:
+			EventAssembler assembler = new EventAssembler(Pattern.compile("^\\S"), 100, 1000, 5000)
+			LogCollector collector = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, budget, null,
+				new UploadTrigger(100, 1000, 0), null, assembler, null, null)
+			collector.handle("first")
+			collector.handle("  continued")
+			collector.endOfFileReached()
+			long parked = System.currentTimeMillis()
+		when: "only part of a line was read, so no line was handed over"
+			Thread.sleep(20)
+			collector.endOfFileReached()
+		then: "it is not parked again, its timeout still runs from when it was"
+			collector.flushDueAt(System.currentTimeMillis()) <= parked + 5000
+		when:
+			collector.flushDueAt(System.currentTimeMillis() + 5000)
+		then:
+			collector.beforeUpload().getLines() == ["first\n  continued"]
+		when:
+			collector.afterUpload(true)
+			collector.endOfFileReached()
+		then: "once staged nothing is left to park"
+			collector.flushDueAt(System.currentTimeMillis()) == Long.MAX_VALUE
+			!collector.hasLinesToUpload()
+		cleanup:
+			collector.shutdown()
+	}
+
+	def "test the pending event is uploaded straight away once the tail is stopped"() {
+		given:
+			EventAssembler assembler = new EventAssembler(Pattern.compile("^\\S"), 100, 1000, 60000)
+			LogCollector collector = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, budget, null,
+				new UploadTrigger(100, 1000, 0), null, assembler, null, null)
+			collector.handle("first")
+			collector.handle("  continued")
+			collector.endOfFileReached()
+		when:
+			collector.stopTailing()
+		then:
+			collector.hasLinesToUpload()
+			collector.beforeUpload().getLines() == ["first\n  continued"]
+		cleanup:
+			collector.shutdown()
+	}
+
+	def "test DROP_OLDEST policy discards the oldest lines not being uploaded"() {
+		given:
+			MemoryBudget small = new MemoryBudget(new Config(maxCollectorBytes: 14, overflowPolicy: OverflowPolicy.DROP_OLDEST))
+			LogCollector collector = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, small, null)
+		when:
+			collector.handle("test-1")
+			collector.handle("test-2")
+			collector.handle("test-3")
+			LogDto result = collector.beforeUpload()
+		then:
+			result.getLines() == ["test-2", "test-3"]
+			result.getStartOffset() == 7
+			result.getEndOffset() == 21
+			collector.overflowCounters.droppedOldestLines == 1
+		cleanup:
+			collector.shutdown()
+	}
+
+	def "test an upload never spans lines dropped during a failed upload"() {
+		given:
+			MemoryBudget small = new MemoryBudget(new Config(maxCollectorBytes: 21, overflowPolicy: OverflowPolicy.DROP_OLDEST))
+			LogCollector collector = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, small, null)
+			collector.handle("test-1")
+			collector.handle("test-2")
+			collector.beforeUpload()
+			collector.handle("test-3")
+			collector.handle("test-4")	// drops test-3, the others are being uploaded
+			collector.afterUpload(false)
+		when:
+			LogDto first = collector.beforeUpload()
+			List<String> firstLines = new ArrayList<>(first.getLines())
+			collector.afterUpload(true)
+			LogDto second = collector.beforeUpload()
+		then:
+			firstLines == ["test-1", "test-2"]
+			first.getStartOffset() == 0
+			first.getEndOffset() == 14
+			second.getLines() == ["test-4"]
+			second.getStartOffset() == 21
+			second.getEndOffset() == 28
+		cleanup:
+			collector.shutdown()
+	}
+
+	def "test SPILL policy writes lines to disk and reads them back in order"() {
+		given:
+			File spillDir = File.createTempDir()
+			MemoryBudget small = new MemoryBudget(new Config(maxCollectorBytes: 14, overflowPolicy: OverflowPolicy.SPILL,
+				spillPath: spillDir.getPath()))
+			LogCollector collector = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, small, null)
+		when:
+			collector.handle("test-1")
+			collector.handle("test-2")
+			collector.handle("test-3")
+			collector.handle("test-4")
+			LogDto first = collector.beforeUpload()
+			List<String> firstLines = new ArrayList<>(first.getLines())
+			collector.afterUpload(true)
+			collector.handle("test-5")
+			LogDto second = collector.beforeUpload()
+			List<String> secondLines = new ArrayList<>(second.getLines())
+			collector.afterUpload(true)
+			LogDto third = collector.beforeUpload()
+		then:
+			firstLines == ["test-1", "test-2"]
+			secondLines == ["test-3", "test-4"]
+			second.getStartOffset() == 14
+			second.getEndOffset() == 28
+			third.getLines() == ["test-5"]
+			third.getStartOffset() == 28
+			collector.overflowCounters.spilledLines == 3
+			spillDir.listFiles().length == 0		// deleted once read back
+		cleanup:
+			collector.shutdown()
+			spillDir.deleteDir()
+	}
+
+	def "test SPILL policy reads events back whole, with their timestamps"() {
+		given:
+			File spillDir = File.createTempDir()
+			MemoryBudget small = new MemoryBudget(new Config(maxCollectorBytes: 40, overflowPolicy: OverflowPolicy.SPILL,
+				spillPath: spillDir.getPath()))
+			EventAssembler assembler = new EventAssembler(Pattern.compile("^\\d{4}-"), 100, 1000, 5000)
+			LogCollector collector = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, small, null,
+				new UploadTrigger(100, 1000, 0), null, assembler, new TimestampParser(null, ZoneOffset.UTC), null)
+			List<String> lines = []
+			List<Long> timestamps = []
+			long endOffset = 0
+		when:
+			(0..3).each {
+				collector.handle("2020-01-01 10:00:0" + it + " event-" + it)
+				collector.handle("  detail-" + it)
+			}
+			collector.endOfFileReached()
+			collector.stopTailing()
+			while (collector.hasLinesToUpload()) {
+				LogDto upload = collector.beforeUpload()
+				assert upload.getStartOffset() == endOffset
+				lines.addAll(upload.getLines())
+				timestamps.addAll(upload.getTimestamps() as List)
+				endOffset = upload.getEndOffset()
+				collector.afterUpload(true)
+			}
+		then:
+			lines == (0..3).collect { "2020-01-01 10:00:0" + it + " event-" + it + "\n  detail-" + it }
+			timestamps == (0..3).collect { 1577872800000L + it * 1000 }
+			endOffset == 4 * 39
+			collector.overflowCounters.spilledLines == 3
+			spillDir.listFiles().length == 0		// deleted once read back
+		cleanup:
+			collector.shutdown()
+			spillDir.deleteDir()
+	}
+
+	def "test SPILL policy keeps the source bytes of masked lines and of lines filtered out"() {
+		given:
+			File spillDir = File.createTempDir()
+			MemoryBudget small = new MemoryBudget(new Config(maxCollectorBytes: 14, overflowPolicy: OverflowPolicy.SPILL,
+				spillPath: spillDir.getPath()))
+			LineFilter filter = new LineFilter([new FilterRule(literal: "DEBUG"),
+				new FilterRule(regex: "secret=\\w+", action: FilterAction.MASK, replacement: "secret=*")], FilterAction.KEEP)
+			LogCollector collector = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, small, null,
+				new UploadTrigger(100, 1000, 0), filter, null)
+			List<String> lines = []
+			long endOffset = 0
+		when:
+			collector.handle("test-1")
+			collector.handle("DEBUG 1")
+			collector.handle("secret=abcdef")
+			byte[] crlf = "test-3".getBytes("UTF-8")
+			collector.handle(crlf, 0, crlf.length, crlf.length + 2)
+			collector.handle("test-4")
+			while (collector.hasLinesToUpload()) {
+				LogDto upload = collector.beforeUpload()
+				assert upload.getStartOffset() == endOffset
+				lines.addAll(upload.getLines())
+				endOffset = upload.getEndOffset()
+				collector.afterUpload(true)
+			}
+		then:
+			lines == ["test-1", "secret=*", "test-3", "test-4"]
+			endOffset == 7 + 8 + 14 + 8 + 7
+			collector.gaps.isEmpty()
+			collector.overflowCounters.spilledLines == 3
+		cleanup:
+			collector.shutdown()
+			spillDir.deleteDir()
+	}
+
+	def "test the agent wide budget is shared by all collectors"() {
+		given:
+			MemoryBudget shared = new MemoryBudget(new Config(maxAgentBytes: 14, overflowPolicy: OverflowPolicy.DROP_NEWEST))
+			LogCollector first = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, shared, null)
+			LogCollector second = new LogCollector(new File("bar.foo"), StartPosition.SAVED, 100, 1000, shared, null)
+		when:
+			first.handle("test-1")
+			first.handle("test-2")
+			first.endOfFileReached()
+			second.handle("test-3")		// a collector holding nothing can always take one line
+			second.handle("test-4")
+			second.endOfFileReached()
+		then:
+			first.collectionList == ["test-1", "test-2"]
+			second.collectionList == ["test-3"]
+			second.overflowCounters.droppedNewestLines == 1
+			shared.counters.droppedNewestLines == 1
+			shared.usedBytes == 21
+		cleanup:
+			first.shutdown()
+			second.shutdown()
+	}
+
+	def "test the lines read and waiting are published for the file while it is tailed"() {
+		given:
+			SimpleMeterRegistry meters = new SimpleMeterRegistry()
+			Metrics.addRegistry(meters)
+			File file = File.createTempFile("metrics", ".log")
+			file.text = "line-1\nline-2\nline-3\n"
+			TailEngine tailEngine = new TailEngine(new Config(tailPollInterval: 50))
+			LogCollector tailed = new LogCollector(file, StartPosition.BEGINNING, 100, 1000, budget, null, null)
+		when:
+			tailed.startTailing(tailEngine)
+		then:
+			new PollingConditions(timeout: 5).eventually {
+				assert meters.find("log.agent.lines.read").tag("file", file.getPath()).functionCounter().count() == 3
+			}
+			meters.find("log.agent.read").tag("file", file.getPath()).functionCounter().count() == 21
+			meters.find("log.agent.queue.lines").tag("file", file.getPath()).gauge().value() == 3
+			meters.find("log.agent.queue.bytes").tag("file", file.getPath()).gauge().value() == 21
+			meters.find("log.agent.tail.lag").tag("file", file.getPath()).gauge().value() == 0
+		when:
+			tailed.shutdown()
+		then:
+			meters.find("log.agent.lines.read").tag("file", file.getPath()).functionCounter() == null
+		cleanup:
+			tailed.shutdown()
+			tailEngine.shutdown()
+			Metrics.removeRegistry(meters)
+			file.delete()
+	}
+
+	def "test spooled lines are uploaded after a restart"() {
+		given:
+			File spoolDir = File.createTempDir()
+			MemoryBudget small = new MemoryBudget(new Config(maxCollectorBytes: 14))
+			LogCollector before = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, small,
+				new LogSpool(spoolDir, 1000, 10000), null)
+			before.resolveEpoch(null, null)
+			["test-1", "test-2", "test-3", "test-4"].each { before.handle(it) }
+			LogDto uploaded = before.beforeUpload()
+			before.afterUpload(true)
+			before.shutdown()
+		when:
+			LogCollector after = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, small,
+				new LogSpool(spoolDir, 1000, 10000), null)
+			// the TailEngine reads the file from the start again
+			["test-1", "test-2", "test-3", "test-4", "test-5"].each { after.handle(it) }
+			LogDto resumed = after.beforeUpload()
+			List<String> resumedLines = new ArrayList<>(resumed.getLines())
+			long resumedStart = resumed.getStartOffset()
+			long resumedEnd = resumed.getEndOffset()
+			after.afterUpload(true)
+			LogDto next = after.beforeUpload()		// test-5 waited in the spool, the budget was full
+		then:
+			after.isEpochResolved()
+			resumed.getFileId() == uploaded.getFileId()
+			resumedLines == ["test-3", "test-4"]
+			resumedStart == 14
+			resumedEnd == 28
+			next.getLines() == ["test-5"]
+			next.getStartOffset() == 28
+		cleanup:
+			after.shutdown()
+			spoolDir.deleteDir()
+	}
+
+	def "test spooled lines of an earlier file are uploaded before the new file is read"() {
+		given:
+			File spoolDir = File.createTempDir()
+			LogCollector before = new LogCollector(new File("foo.bar"), StartPosition.SAVED, 100, 1000, budget,
+				new LogSpool(spoolDir, 1000, 10000), null)
+			before.resolveEpoch(null, null)
+			before.handle("old-1")
+			before.shutdown()
+			LogCollector after = new LogCollector(new File("bar.foo"), StartPosition.SAVED, 100, 1000, budget,
+				new LogSpool(spoolDir, 1000, 10000), null)
+			Thread tailerThread = Thread.start {
+				after.handle("new-1")
+				after.endOfFileReached()
+			}
+		when:
+			LogDto old = after.beforeUpload()
+			List<String> oldLines = new ArrayList<>(old.getLines())
+			tailerThread.join(300)
+		then:
+			oldLines == ["old-1"]
+			old.getFileId().startsWith(LogCollector.fileKey(new File("foo.bar")) + "@")
+			tailerThread.isAlive()
+		when:
+			after.afterUpload(true)
+			tailerThread.join(2000)
+			after.resolveEpoch(null, null)
+			LogDto current = after.beforeUpload()
+		then:
+			!tailerThread.isAlive()
+			current.getLines() == ["new-1"]
+			current.getStartOffset() == 0
+			current.getFileId().startsWith(LogCollector.fileKey(new File("bar.foo")) + "@")
+		cleanup:
+			after.shutdown()
+			spoolDir.deleteDir()
 	}
 }
@@ -1,9 +1,14 @@
 package com.datastax.log.agent.service
 
 import com.datastax.log.agent.config.Config
+import com.datastax.log.agent.dto.LogDto
+import com.datastax.log.agent.dto.ServerResponseDto
 import spock.lang.Specification
 import spock.lang.Subject
 
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
 class LogHandlerSpec extends Specification {
 
     @Subject
@@ -12,49 +17,86 @@ class LogHandlerSpec extends Specification {
 	LogCollector collector
     Config config
 	List<String> testLines
+	LogDto testDto
 
     def "setup"() {
 		testLines = Arrays.asList("test1", "test2")
+		testDto = new LogDto("test.log", "file@1", 0, 12, testLines)
         logUploader = Mock()
         config = Mock()
 		collector = Mock()
-        logHandler = new LogHandler(logUploader, config)
+		collector.isEpochResolved() >> true
+		collector.getFile() >> new File("test.log")
+        logHandler = new LogHandler(logUploader, config, new MemoryBudget(new Config()), null)
 		logHandler.addLogCollector(collector)
     }
 
 	def "test upload is not called when no lines exist"() {
 		given:
 			collector.hasLinesToUpload() >> false
-			collector.beforeUpload() >> testLines
+			collector.beforeUpload() >> testDto
 		when:
-			logHandler.processLogCollectors()
+			logHandler.processUpload(collector)
 		then:
 			1 * collector.hasLinesToUpload()
 			0 * collector.beforeUpload()
-			0 * logUploader.uploadToServer(*_)
+			0 * logUploader.uploadToServer(_)
 	}
 
 	def "test added lines are uploaded correctly"() {
 		given:
 			collector.hasLinesToUpload() >> true
-			collector.beforeUpload() >> testLines
-			logUploader.uploadToServer(_,_) >> true
+			collector.beforeUpload() >> testDto
+			logUploader.uploadToServer(_) >> true
 		when:
-			logHandler.processLogCollectors()
+			logHandler.processUpload(collector)
 		then:
-			1 * logUploader.uploadToServer(_,_) >> { arguments ->
-				final List<String> lineList = arguments[1]
-				assert lineList == [new String("test1"), new String("test2")]
+			1 * logUploader.uploadToServer(_) >> { arguments ->
+				final LogDto logDto = arguments[0]
+				assert logDto.getLines() == [new String("test1"), new String("test2")]
 			}
 	}
 
+	def "test committed offset is fetched before the first upload"() {
+		given:
+			LogCollector newCollector = Mock()
+			newCollector.getFile() >> new File("new.log")
+			newCollector.hasLinesToUpload() >> true
+			newCollector.isEpochResolved() >> false
+			newCollector.beforeUpload() >> testDto
+			logHandler = new LogHandler(logUploader, config, new MemoryBudget(new Config()), null)
+			logHandler.addLogCollector(newCollector)
+		when:
+			logHandler.processUpload(newCollector)
+		then:
+			1 * logUploader.fetchCommittedOffset(_) >> new ServerResponseDto(200, "Success", "file@1", 6L)
+			1 * newCollector.resolveEpoch("file@1", 6L)
+			1 * logUploader.uploadToServer(_) >> true
+	}
+
+	def "test nothing is uploaded while the committed offset is unknown"() {
+		given:
+			LogCollector newCollector = Mock()
+			newCollector.getFile() >> new File("new.log")
+			newCollector.hasLinesToUpload() >> true
+			newCollector.isEpochResolved() >> false
+			logHandler = new LogHandler(logUploader, config, new MemoryBudget(new Config()), null)
+			logHandler.addLogCollector(newCollector)
+		when:
+			logHandler.processUpload(newCollector)
+		then:
+			1 * logUploader.fetchCommittedOffset(_) >> null
+			0 * newCollector.beforeUpload()
+			0 * logUploader.uploadToServer(_)
+	}
+
 	def "test successful upload notifies collector of status"() {
 		given:
 			collector.hasLinesToUpload() >> true
-			collector.beforeUpload() >> testLines
-			logUploader.uploadToServer(_,_) >> true
+			collector.beforeUpload() >> testDto
+			logUploader.uploadToServer(_) >> true
 		when:
-			logHandler.processLogCollectors()
+			logHandler.processUpload(collector)
 		then:
 			1 * collector.afterUpload(_) >> { args ->
 				assert args[0] == true
@@ -64,14 +106,275 @@ class LogHandlerSpec extends Specification {
 	def "test failed upload notifies collector of status"() {
 		given:
 			collector.hasLinesToUpload() >> true
-			collector.beforeUpload() >> testLines
-			logUploader.uploadToServer(_,_) >> false
+			collector.beforeUpload() >> testDto
+			logUploader.uploadToServer(_) >> false
 		when:
-			logHandler.processLogCollectors()
+			logHandler.processUpload(collector)
 		then:
 			1 * collector.afterUpload(_) >> { args ->
 				assert args[0] == false
 			}
 	}
-}
 
+	def "test only collectors whose lines are due are uploaded"() {
+		given:
+			CountDownLatch uploaded = new CountDownLatch(1)
+			LogCollector quietCollector = Mock()
+			quietCollector.getFile() >> new File("quiet.log")
+			quietCollector.flushDueAt(_) >> 5000L
+			collector.flushDueAt(_) >> 1000L
+			collector.hasLinesToUpload() >> true
+			collector.beforeUpload() >> testDto
+			logUploader.uploadToServer(_) >> { uploaded.countDown(); true }
+			logHandler.addLogCollector(quietCollector)
+		when:
+			long nextDue = logHandler.scheduleUploads(1000L)
+			uploaded.await(5, TimeUnit.SECONDS)
+		then:
+			nextDue == 5000L
+			0 * quietCollector.beforeUpload()
+	}
+
+	def "test a slow upload does not hold up other files"() {
+		given:
+			CountDownLatch started = new CountDownLatch(1)
+			CountDownLatch release = new CountDownLatch(1)
+			CountDownLatch fastDone = new CountDownLatch(1)
+			LogCollector slowCollector = Mock()
+			slowCollector.getFile() >> new File("slow.log")
+			LogCollector fastCollector = Mock()
+			fastCollector.getFile() >> new File("fast.log")
+			slowCollector.isEpochResolved() >> true
+			slowCollector.hasLinesToUpload() >> true
+			slowCollector.flushDueAt(_) >> 0L
+			slowCollector.beforeUpload() >> new LogDto("slow.log", "slow@1", 0, 12, testLines)
+			fastCollector.isEpochResolved() >> true
+			fastCollector.hasLinesToUpload() >> true
+			fastCollector.flushDueAt(_) >> 0L
+			fastCollector.beforeUpload() >> testDto
+			fastCollector.afterUpload(true) >> { fastDone.countDown() }
+			logHandler = new LogHandler(blockingUploader("slow.log", started, release),
+				new Config(maxConcurrentUploads: 2, multiFileUploads: false), new MemoryBudget(new Config()), null)
+			logHandler.addLogCollector(slowCollector)
+			logHandler.addLogCollector(fastCollector)
+		when:
+			logHandler.scheduleUploads(1000L)
+			started.await(5, TimeUnit.SECONDS)
+			boolean fastFinished = fastDone.await(5, TimeUnit.SECONDS)
+			boolean slowStillRunning = logHandler.inFlight.contains(slowCollector)
+			release.countDown()
+		then:
+			fastFinished
+			slowStillRunning
+	}
+
+	def "test each file has at most one upload in flight"() {
+		given:
+			CountDownLatch started = new CountDownLatch(1)
+			CountDownLatch release = new CountDownLatch(1)
+			collector.hasLinesToUpload() >> true
+			collector.flushDueAt(_) >> 0L
+			logHandler = new LogHandler(blockingUploader("test.log", started, release),
+				new Config(maxConcurrentUploads: 2), new MemoryBudget(new Config()), null)
+			logHandler.addLogCollector(collector)
+		when:
+			logHandler.scheduleUploads(1000L)
+			boolean wasStarted = started.await(5, TimeUnit.SECONDS)
+			logHandler.scheduleUploads(1000L)
+			logHandler.scheduleUploads(1000L)
+			release.countDown()
+		then:
+			wasStarted
+			1 * collector.beforeUpload() >> testDto
+	}
+
+	def "test a file is not tried again until the backoff delay after a failed upload"() {
+		given:
+			CountDownLatch done = new CountDownLatch(1)
+			collector.hasLinesToUpload() >> true
+			collector.flushDueAt(_) >> 0L
+			collector.beforeUpload() >> testDto
+			collector.afterUpload(false) >> { done.countDown() }
+			logUploader.uploadToServer(_) >> false
+			logHandler = new LogHandler(logUploader, new Config(retryBaseDelay: 4000), new MemoryBudget(new Config()), null)
+			logHandler.addLogCollector(collector)
+		when:
+			logHandler.scheduleUploads(System.currentTimeMillis())
+			done.await(5, TimeUnit.SECONDS)
+			while (logHandler.inFlight.contains(collector)) {
+				Thread.sleep(10)
+			}
+			long now = System.currentTimeMillis()
+			long nextDue = logHandler.scheduleUploads(now)
+		then:
+			nextDue > now
+			nextDue <= now + 4000
+	}
+
+	def "test a file the service says is busy waits at least its Retry-After"() {
+		given:
+			CountDownLatch done = new CountDownLatch(1)
+			LogCollector otherCollector = Mock()
+			otherCollector.getFile() >> new File("other.log")
+			otherCollector.flushDueAt(_) >> Long.MAX_VALUE
+			collector.hasLinesToUpload() >> true
+			collector.flushDueAt(_) >> 0L
+			collector.beforeUpload() >> testDto
+			collector.afterUpload(false) >> { done.countDown() }
+			logUploader.uploadToServer(_) >> { throw new ServiceBusyException("busy", serviceWide, 10000) }
+			logHandler = new LogHandler(logUploader, new Config(retryBaseDelay: 10), new MemoryBudget(new Config()), null)
+			logHandler.addLogCollector(collector)
+			logHandler.addLogCollector(otherCollector)
+		when:
+			logHandler.scheduleUploads(System.currentTimeMillis())
+			done.await(5, TimeUnit.SECONDS)
+			while (logHandler.inFlight.contains(collector)) {
+				Thread.sleep(10)
+			}
+			long now = System.currentTimeMillis()
+			long nextDue = logHandler.scheduleUploads(now)
+		then:
+			nextDue > now + 9000
+			// a 503 holds off every file, a 429 only the busy one
+			(logHandler.pausedUntil > now) == serviceWide
+		where:
+			serviceWide << [false, true]
+	}
+
+	def "test files due together are sent in one request, and only a file turned away backs off"() {
+		given:
+			LogCollector busyCollector = dueCollector("busy.log")
+			LogCollector movedCollector = dueCollector("moved.log")
+			collector.hasLinesToUpload() >> true
+			collector.flushDueAt(_) >> 0L
+			collector.beforeUpload() >> testDto
+			logUploader.isMultiFileEnabled() >> true
+			logUploader.urlFor(_) >> "http://host/log-aggregator/test"
+			logHandler = new LogHandler(logUploader, new Config(retryBaseDelay: 4000), new MemoryBudget(new Config()), null)
+			[collector, busyCollector, movedCollector].each { logHandler.addLogCollector(it) }
+		when:
+			logHandler.scheduleUploads(System.currentTimeMillis())
+			awaitUploads()
+		then:
+			// the files go in whatever order they are held in, each answered in its place
+			1 * logUploader.uploadFilesToServer({ it*.getFilename() as Set == ["test.log", "busy.log", "moved.log"] as Set }) >> { arguments ->
+				arguments[0].collect { LogDto logDto -> [
+					"test.log": new ServerResponseDto(200, "Success", "file@1", 12),
+					"busy.log": new ServerResponseDto(429, "busy", null, null),
+					"moved.log": new ServerResponseDto(307, "http://owner/log-aggregator/test", null, null)][logDto.getFilename()] }
+			}
+			0 * logUploader.uploadToServer(_)
+			1 * collector.afterUpload(true)
+			1 * busyCollector.afterUpload(false)
+			1 * movedCollector.afterUpload(false)
+			// the redirected file goes straight to its owner, without waiting
+			logHandler.retries.keySet() == [busyCollector] as Set
+	}
+
+	def "test a file turned away in a multi-file request waits at least its retryAfter"() {
+		given:
+			LogCollector busyCollector = dueCollector("busy.log")
+			collector.hasLinesToUpload() >> true
+			collector.flushDueAt(_) >> 0L
+			collector.beforeUpload() >> testDto
+			logUploader.isMultiFileEnabled() >> true
+			logHandler = new LogHandler(logUploader, new Config(retryBaseDelay: 10), new MemoryBudget(new Config()), null)
+			[collector, busyCollector].each { logHandler.addLogCollector(it) }
+			logUploader.uploadFilesToServer(_) >> [
+				new ServerResponseDto(200, "Success", "file@1", 12L),
+				new ServerResponseDto(status, "busy", null, null, 10, null)]
+		when:
+			logHandler.scheduleUploads(System.currentTimeMillis())
+			awaitUploads()
+			long now = System.currentTimeMillis()
+		then:
+			logHandler.retries.keySet() == [busyCollector] as Set
+			logHandler.retries.get(busyCollector).at > now + 9000
+			// a 503 holds off every file, a 429 only the busy one
+			(logHandler.pausedUntil > now + 9000) == (status == 503)
+		where:
+			status << [429, 503]
+	}
+
+	def "test no more than maxBatchFiles files are sent in one request"() {
+		given:
+			List<LogCollector> collectors = (1..5).collect { dueCollector("file-" + it + ".log") }
+			logUploader.isMultiFileEnabled() >> true
+			logHandler = new LogHandler(logUploader, new Config(maxBatchFiles: 2), new MemoryBudget(new Config()), null)
+			collectors.each { logHandler.addLogCollector(it) }
+		when:
+			logHandler.scheduleUploads(System.currentTimeMillis())
+			awaitUploads()
+		then:
+			2 * logUploader.uploadFilesToServer({ it.size() == 2 }) >> { arguments ->
+				arguments[0].collect { new ServerResponseDto(200, "Success", null, null) }
+			}
+			1 * logUploader.uploadToServer(_) >> true
+	}
+
+	def "test a retired file is removed once its last lines are uploaded"() {
+		given:
+			boolean pending = true
+			collector.hasLinesToUpload() >> { pending }
+		when:
+			boolean retired = logHandler.retireLogFile(new File("test.log"))
+			logHandler.removeRetired()
+			boolean keptWhilePending = logHandler.isCollecting(new File("test.log"))
+			pending = false
+			logHandler.removeRetired()
+		then:
+			retired
+			keptWhilePending
+			!logHandler.isCollecting(new File("test.log"))
+			1 * collector.stopTailing()
+			1 * collector.shutdown()
+	}
+
+	def "test no more than maxTailedFiles files are collected at once"() {
+		given:
+			LogCollector otherCollector = Mock()
+			otherCollector.getFile() >> new File("other.log")
+			logHandler = new LogHandler(logUploader, new Config(maxTailedFiles: 1), new MemoryBudget(new Config()), null)
+		expect:
+			logHandler.addLogCollector(collector)
+			!logHandler.addLogCollector(otherCollector)
+			!logHandler.addLogCollector(collector)
+			logHandler.getCollectorCount() == 1
+	}
+
+	/**
+	 * Collector whose lines are due, ready for a multi-file request
+	 */
+	private LogCollector dueCollector(String filename) {
+		LogCollector dueCollector = Mock()
+		dueCollector.getFile() >> new File(filename)
+		dueCollector.isEpochResolved() >> true
+		dueCollector.hasLinesToUpload() >> true
+		dueCollector.flushDueAt(_) >> 0L
+		dueCollector.beforeUpload() >> new LogDto(filename, filename + "@1", 0, 12, testLines)
+		return dueCollector
+	}
+
+	private void awaitUploads() {
+		long giveUpAt = System.currentTimeMillis() + 5000
+		while (!logHandler.inFlight.isEmpty() && System.currentTimeMillis() < giveUpAt) {
+			Thread.sleep(10)
+		}
+	}
+
+	/**
+	 * Uploader which holds uploads of one file until released, a blocking Mock would hold up every other mock call
+	 */
+	private static LogUploader blockingUploader(String filename, CountDownLatch started, CountDownLatch release) {
+		return new LogUploader(null, new Config(hostUrl: "http://localhost/", clientId: "test")) {
+			@Override
+			boolean uploadToServer(LogDto logDto) {
+				if (logDto.getFilename() == filename) {
+					started.countDown()
+					release.await(5, TimeUnit.SECONDS)
+				}
+				return true
+			}
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package com.datastax.log.agent.service
+
+import spock.lang.Specification
+import spock.lang.Subject
+
+class LogSpoolSpec extends Specification {
+
+	@Subject
+	LogSpool spool
+	File directory
+
+	def "setup"() {
+		directory = File.createTempDir()
+		spool = new LogSpool(directory, 100, 1000)
+		spool.open()
+		spool.setEpoch("key", null)
+	}
+
+	def "cleanup"() {
+		spool.close()
+		directory.deleteDir()
+	}
+
+	def "test lines are read back in order with their offsets"() {
+		given:
+			append(spool, "test-1", 0, 7)
+			append(spool, "test-22", 7, 8)
+		when:
+			String first = peek(spool)
+			long firstOffset = spool.peekOffset()
+			spool.removeLine()
+			String second = peek(spool)
+			long secondOffset = spool.peekOffset()
+			spool.removeLine()
+		then:
+			first == "test-1"
+			firstOffset == 0
+			second == "test-22"
+			secondOffset == 7
+			spool.isEmpty()
+			spool.peekLine() < 0
+	}
+
+	def "test lines span several segments"() {
+		given:
+			(0..<20).each { append(spool, String.format("line%02d", it), it * 7, 7) }
+		when:
+			List<String> lines = []
+			while (spool.peekLine() >= 0) {
+				lines.add(peek(spool))
+				spool.removeLine()
+			}
+		then:
+			lines == (0..<20).collect { String.format("line%02d", it) }
+			segmentFiles().size() > 1
+	}
+
+	def "test acknowledged segments are deleted"() {
+		given:
+			spool.setEpoch("key", "key@1")
+			(0..<20).each { append(spool, String.format("line%02d", it), it * 7, 7) }
+			int segments = segmentFiles().size()
+		when:
+			spool.acknowledge("key@1", 70)
+		then:
+			segmentFiles().size() < segments
+			new File(directory, LogSpool.CHECKPOINT_NAME).text == "key@1\t70\n"
+	}
+
+	def "test reopening resumes after the checkpoint"() {
+		given:
+			spool.setEpoch("key", "key@1")
+			(0..<20).each { append(spool, String.format("line%02d", it), it * 7, 7) }
+			spool.acknowledge("key@1", 70)
+			spool.close()
+		when:
+			LogSpool reopened = new LogSpool(directory, 100, 1000)
+			reopened.open()
+		then:
+			reopened.getFileKey() == "key"
+			reopened.getFileId() == "key@1"
+			reopened.getEndOffset() == 140
+			reopened.getLineCount() == 10
+			peek(reopened) == "line10"
+			reopened.peekOffset() == 70
+		cleanup:
+			reopened.close()
+	}
+
+	def "test lines spooled before the epoch was known belong to the checkpoint's epoch"() {
+		given:
+			append(spool, "test-1", 0, 7)
+			append(spool, "test-2", 7, 7)
+			spool.acknowledge("key@1", 7)
+			spool.close()
+		when:
+			LogSpool reopened = new LogSpool(directory, 100, 1000)
+			reopened.open()
+		then:
+			reopened.getFileId() == "key@1"
+			reopened.getLineCount() == 1
+			peek(reopened) == "test-2"
+		cleanup:
+			reopened.close()
+	}
+
+	def "test a partial record left by a crash is truncated"() {
+		given:
+			append(spool, "test-1", 0, 7)
+			append(spool, "test-2", 7, 7)
+			spool.close()
+			File segment = segmentFiles()[0]
+			segment.bytes = Arrays.copyOf(segment.bytes, (int) segment.length() - 3)
+		when:
+			LogSpool reopened = new LogSpool(directory, 100, 1000)
+			reopened.open()
+		then:
+			reopened.getLineCount() == 1
+			reopened.getEndOffset() == 7
+			peek(reopened) == "test-1"
+		cleanup:
+			reopened.close()
+	}
+
+	def "test the size of the spool is capped"() {
+		given:
+			int count = 0
+			while (spool.hasRoom(7)) {
+				append(spool, String.format("line%02d", count), count * 7, 7)
+				count++
+			}
+		when:
+			long before = spool.getLineCount()
+			spool.dropOldestSegment()
+		then:
+			spool.getTotalBytes() <= 1000
+			spool.getLineCount() < before
+			spool.hasRoom(7)
+	}
+
+	def "test a line kept in memory is skipped without reading it, whatever its line terminator"() {
+		given:
+			append(spool, "test-1", 0, 8)		// CR LF
+			append(spool, "test-2", 8, 7)
+		when:
+			spool.skipLine(6, 8)
+		then:
+			peek(spool) == "test-2"
+			spool.peekOffset() == 8
+			spool.getByteCount() == 7
+	}
+
+	def "test each line keeps its source bytes, however long it is itself"() {
+		given:
+			spool.setEpoch("key", "key@1")
+			append(spool, "secret=*", 0, 30)		// masked, after lines filtered out
+			append(spool, "test-2", 30, 8)		// CR LF
+			append(spool, "test-3", 38, 7)
+			spool.acknowledge("key@1", 30)
+			spool.close()
+		when:
+			LogSpool reopened = new LogSpool(directory, 100, 1000)
+			reopened.open()
+		then:
+			reopened.getLineCount() == 2
+			reopened.getByteCount() == 15
+			reopened.getEndOffset() == 45
+			peek(reopened) == "test-2"
+			reopened.peekOffset() == 30
+			reopened.peekLineBytes() == 8
+		when:
+			reopened.removeLine()
+		then:
+			peek(reopened) == "test-3"
+			reopened.peekOffset() == 38
+			reopened.getByteCount() == 7
+		cleanup:
+			reopened.close()
+	}
+
+	private static void append(LogSpool spool, String line, long lineStart, int lineBytes) {
+		byte[] bytes = line.getBytes("UTF-8")
+		spool.append(bytes, 0, bytes.length, lineStart, lineBytes)
+	}
+
+	private static String peek(LogSpool spool) {
+		int length = spool.peekLine()
+		return (length < 0) ? null : new String(spool.peekBuffer(), spool.peekBufferOffset(), length, "UTF-8")
+	}
+
+	private List<File> segmentFiles() {
+		return directory.listFiles().findAll { it.name.endsWith(".seg") }.sort()
+	}
+}
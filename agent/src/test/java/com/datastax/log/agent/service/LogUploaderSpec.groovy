@@ -1,8 +1,23 @@
 package com.datastax.log.agent.service
 
+import com.datastax.log.agent.codec.Compression
+import com.datastax.log.agent.codec.LogBatchMessageConverter
+import com.datastax.log.agent.codec.LogBatchWriter
 import com.datastax.log.agent.config.Config
+import com.datastax.log.agent.config.UploadFormat
+import com.datastax.log.agent.dto.LogDto
+import com.datastax.log.agent.dto.MultiLogDto
+import com.datastax.log.agent.dto.MultiLogResponseDto
+import com.datastax.log.agent.dto.ServerResponseDto
+import org.springframework.http.HttpEntity
+import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpMethod
+import org.springframework.http.HttpOutputMessage
 import org.springframework.http.HttpStatus
+import org.springframework.http.MediaType
 import org.springframework.http.ResponseEntity
+import org.springframework.web.client.HttpClientErrorException
+import org.springframework.web.client.ResourceAccessException
 import org.springframework.web.client.RestTemplate
 import spock.lang.Specification
 import spock.lang.Subject
@@ -16,10 +31,12 @@ class LogUploaderSpec  extends Specification {
     Config config
     List<String> inputList
 	File theFile
+	LogDto logDto
 
     def "setup"() {
         inputList = Arrays.asList("test-1", "test-2")
 		theFile = new File("foo")
+		logDto = new LogDto(theFile.getName(), "file@1", 0, 14, inputList)
         restTemplate = Mock()
         config = Mock()
 		config.getClientId() >> "client1"
@@ -30,19 +47,44 @@ class LogUploaderSpec  extends Specification {
     def "test success when restTemplate response is OK"() {
         given:
             restTemplate.exchange(*_) >>
-                    new ResponseEntity(new String("foo"), HttpStatus.OK)
+                    new ResponseEntity(new ServerResponseDto(200, "Success", "file@1", 14L), HttpStatus.OK)
         when:
-            boolean success = logUploader.uploadToServer(theFile, inputList)
+            boolean success = logUploader.uploadToServer(logDto)
         then:
             success == true
     }
 
+	def "test the uploads are paced by how the service is coping"() {
+		given:
+			Config pacedConfig = Mock()
+			pacedConfig.getClientId() >> "client1"
+			pacedConfig.getHostUrl() >> "test-url"
+			pacedConfig.isAdaptivePacing() >> true
+			pacedConfig.getMaxConcurrentUploads() >> 4
+			pacedConfig.getTargetLatency() >> 1000
+			pacedConfig.getMaxPace() >> 8
+			logUploader = new LogUploader(restTemplate, pacedConfig)
+		when:
+			logUploader.uploadToServer(logDto)
+		then:
+			1 * restTemplate.exchange(*_) >> new ResponseEntity(
+				new ServerResponseDto(200, "Success", "file@1", 14L, null, 0.9d), HttpStatus.OK)
+			logUploader.getPacer().getPace() == 2d
+			logUploader.getPacer().getLimit() == 2
+		when:
+			logUploader.uploadToServer(logDto)
+		then:
+			1 * restTemplate.exchange(*_) >> { throw new ResourceAccessException("refused") }
+			logUploader.getPacer().getPace() == 4d
+			logUploader.getPacer().getLimit() == 1
+	}
+
     def "test not success when restTemplate response is not OK"() {
         given:
             restTemplate.exchange(*_) >>
                     new ResponseEntity(new String("foo"), HttpStatus.BAD_REQUEST)
         when:
-            boolean success = logUploader.uploadToServer(theFile, inputList)
+            boolean success = logUploader.uploadToServer(logDto)
         then:
             success == false
     }
@@ -51,11 +93,211 @@ class LogUploaderSpec  extends Specification {
 		given:
 			restTemplate.exchange(*_) >> { throw new ServerException("foo") }
 		when:
-			boolean success = logUploader.uploadToServer(theFile, inputList)
+			boolean success = logUploader.uploadToServer(logDto)
 		then:
 			success == false
 	}
 
+	def "test BINARY upload format sends an encoded batch"() {
+		given:
+			Config binaryConfig = Mock()
+			binaryConfig.getClientId() >> "client1"
+			binaryConfig.getHostUrl() >> "test-url"
+			binaryConfig.getUploadFormat() >> UploadFormat.BINARY
+			binaryConfig.getCompression() >> Compression.GZIP
+			logUploader = new LogUploader(restTemplate, binaryConfig)
+		when:
+			boolean success = logUploader.uploadToServer(logDto)
+		then:
+			success == true
+			1 * restTemplate.exchange(*_) >> { arguments ->
+				HttpEntity entity = arguments[2]
+				assert entity.getHeaders().getContentType().toString() == LogBatchWriter.CONTENT_TYPE
+				assert entity.getBody() == logDto
+				// the converter registered for the content type encodes it as the request is sent
+				ByteArrayOutputStream body = new ByteArrayOutputStream()
+				HttpHeaders bodyHeaders = new HttpHeaders()
+				new LogBatchMessageConverter(Compression.GZIP).write(logDto, entity.getHeaders().getContentType(),
+					[getBody: { body }, getHeaders: { bodyHeaders }] as HttpOutputMessage)
+				assert new DataInputStream(new ByteArrayInputStream(body.toByteArray())).readInt() == LogBatchWriter.MAGIC
+				return new ResponseEntity(new ServerResponseDto(), HttpStatus.OK)
+			}
+	}
+
+	def "test a 429 or 503 response is raised with the Retry-After"() {
+		given:
+			HttpHeaders responseHeaders = new HttpHeaders()
+			responseHeaders.set(HttpHeaders.RETRY_AFTER, "3")
+			restTemplate.exchange(*_) >> {
+				throw HttpClientErrorException.create(status, "busy", responseHeaders, new byte[0], null)
+			}
+		when:
+			logUploader.uploadToServer(logDto)
+		then:
+			ServiceBusyException ex = thrown()
+			ex.isServiceWide() == serviceWide
+			ex.getRetryAfterMillis() == 3000
+		where:
+			status                         | serviceWide
+			HttpStatus.TOO_MANY_REQUESTS   | false
+			HttpStatus.SERVICE_UNAVAILABLE | true
+	}
+
+	def "test a redirect to the owning instance is followed and remembered for the file"() {
+		given:
+			HttpHeaders redirectHeaders = new HttpHeaders()
+			redirectHeaders.setLocation(URI.create("http://owner:8082/log-aggregator/client1"))
+		when:
+			boolean first = logUploader.uploadToServer(logDto)
+			boolean second = logUploader.uploadToServer(logDto)
+		then:
+			1 * restTemplate.exchange("test-url/client1", *_) >> new ResponseEntity(redirectHeaders, HttpStatus.TEMPORARY_REDIRECT)
+			2 * restTemplate.exchange("http://owner:8082/log-aggregator/client1", *_) >>
+				new ResponseEntity(new ServerResponseDto(), HttpStatus.OK)
+			first
+			second
+			logUploader.urlFor("other.log") == "test-url/client1"
+	}
+
+	def "test the owner is forgotten when it cannot be reached"() {
+		given:
+			HttpHeaders redirectHeaders = new HttpHeaders()
+			redirectHeaders.setLocation(URI.create("http://owner:8082/log-aggregator/client1"))
+			restTemplate.exchange("test-url/client1", *_) >> new ResponseEntity(redirectHeaders, HttpStatus.TEMPORARY_REDIRECT)
+			restTemplate.exchange("http://owner:8082/log-aggregator/client1", *_) >>
+				new ResponseEntity(new ServerResponseDto(), HttpStatus.OK) >>
+				{ throw new ResourceAccessException("connection refused") }
+		when:
+			logUploader.uploadToServer(logDto)
+			String owner = logUploader.urlFor("foo")
+			boolean success = logUploader.uploadToServer(logDto)
+		then:
+			owner == "http://owner:8082/log-aggregator/client1"
+			!success
+			logUploader.urlFor("foo") == "test-url/client1"
+	}
+
+	def "test redirects between instances that disagree are not followed forever"() {
+		given:
+			HttpHeaders redirectHeaders = new HttpHeaders()
+			redirectHeaders.setLocation(URI.create("http://owner:8082/log-aggregator/client1"))
+		when:
+			boolean success = logUploader.uploadToServer(logDto)
+		then:
+			4 * restTemplate.exchange(*_) >> new ResponseEntity(redirectHeaders, HttpStatus.TEMPORARY_REDIRECT)
+			!success
+	}
+
+	def "test a multi-file upload returns the response to each file and remembers where a redirected file goes"() {
+		given:
+			logUploader = new LogUploader(restTemplate, new Config(clientId: "client1", hostUrl: "test-url"))
+			LogDto otherDto = new LogDto("bar", "file@2", 0, 7, ["test-3"])
+			String ownerUrl = "http://owner:8082/log-aggregator/client1"
+		when:
+			List<ServerResponseDto> entries = logUploader.uploadFilesToServer([logDto, otherDto])
+		then:
+			1 * restTemplate.exchange("test-url/client1/batch", HttpMethod.POST, _, MultiLogResponseDto) >> { arguments ->
+				HttpEntity entity = arguments[2]
+				assert ((MultiLogDto) entity.getBody()).getEntries() == [logDto, otherDto]
+				return new ResponseEntity(new MultiLogResponseDto(200, "Success", [
+					new ServerResponseDto(200, "Success", "file@1", 14),
+					new ServerResponseDto(307, ownerUrl, null, null)]), HttpStatus.OK)
+			}
+			entries*.getStatus() == [200, 307]
+			logUploader.urlFor("bar") == ownerUrl
+			logUploader.urlFor("foo") == "test-url/client1"
+	}
+
+	def "test BINARY multi-file upload format sends an encoded batch for each file"() {
+		given:
+			logUploader = new LogUploader(restTemplate, new Config(clientId: "client1", hostUrl: "test-url",
+				uploadFormat: UploadFormat.BINARY))
+			MultiLogDto multiLogDto
+		when:
+			logUploader.uploadFilesToServer([logDto, logDto])
+		then:
+			1 * restTemplate.exchange(*_) >> { arguments ->
+				HttpEntity entity = arguments[2]
+				assert entity.getHeaders().getContentType().toString() == LogBatchWriter.MULTI_CONTENT_TYPE
+				multiLogDto = entity.getBody()
+				return new ResponseEntity(new MultiLogResponseDto(200, "Success", [new ServerResponseDto(), new ServerResponseDto()]), HttpStatus.OK)
+			}
+		when:
+			ByteArrayOutputStream body = new ByteArrayOutputStream()
+			HttpHeaders bodyHeaders = new HttpHeaders()
+			new LogBatchMessageConverter(Compression.LZ4).write(multiLogDto, MediaType.parseMediaType(LogBatchWriter.MULTI_CONTENT_TYPE),
+				[getBody: { body }, getHeaders: { bodyHeaders }] as HttpOutputMessage)
+			DataInputStream encoded = new DataInputStream(new ByteArrayInputStream(body.toByteArray()))
+		then:
+			encoded.readInt() == LogBatchWriter.MULTI_MAGIC
+			encoded.readInt() == 2
+			encoded.readInt() == LogBatchWriter.MAGIC
+	}
+
+	def "test a service without the multi-file endpoint turns multi-file uploads off"() {
+		given:
+			logUploader = new LogUploader(restTemplate, new Config(clientId: "client1", hostUrl: "test-url"))
+			restTemplate.exchange(*_) >> { throw HttpClientErrorException.create(status, "no", new HttpHeaders(), new byte[0], null) }
+		when:
+			List<ServerResponseDto> entries = logUploader.uploadFilesToServer([logDto])
+		then:
+			entries == null
+			logUploader.isMultiFileEnabled() == enabled
+		where:
+			status                            | enabled
+			HttpStatus.NOT_FOUND              | false
+			HttpStatus.UNSUPPORTED_MEDIA_TYPE | false
+			HttpStatus.BAD_REQUEST            | true
+	}
+
+	def "test retryAfterMillis() reads seconds or an HTTP date"() {
+		given:
+			HttpHeaders responseHeaders = new HttpHeaders()
+			if (value != null) {
+				responseHeaders.set(HttpHeaders.RETRY_AFTER, value)
+			}
+		expect:
+			LogUploader.retryAfterMillis(responseHeaders, 1445412480000L) == millis
+		where:
+			value                           | millis
+			"120"                           | 120000
+			"Wed, 21 Oct 2015 07:30:00 GMT" | 2 * 60 * 1000
+			"soon"                          | 0
+			null                            | 0
+	}
+
+	def "test fetchCommittedOffset() returns the server response"() {
+		given:
+			restTemplate.exchange(*_) >>
+					new ResponseEntity(new ServerResponseDto(200, "Success", "file@1", 7L), HttpStatus.OK)
+		when:
+			ServerResponseDto result = logUploader.fetchCommittedOffset(theFile)
+		then:
+			result.getFileId() == "file@1"
+			result.getCommittedOffset() == 7L
+	}
+
+	def "test fetchCommittedOffset() sends an empty chunk"() {
+		when:
+			logUploader.fetchCommittedOffset(theFile)
+		then:
+			1 * restTemplate.exchange(*_) >> { arguments ->
+				LogDto sent = arguments[2].getBody()
+				assert sent.getFilename() == "foo"
+				assert sent.getLines().isEmpty()
+				return new ResponseEntity(new ServerResponseDto(), HttpStatus.OK)
+			}
+	}
+
+	def "test fetchCommittedOffset() returns null when exception is thrown"() {
+		given:
+			restTemplate.exchange(*_) >> { throw new ServerException("foo") }
+		when:
+			ServerResponseDto result = logUploader.fetchCommittedOffset(theFile)
+		then:
+			result == null
+	}
+
 	def "test addClientToUrl() adds slash when needed"() {
 		when:
 			String result = LogUploader.addClientToUrl("mypath", "myfile.log")
@@ -0,0 +1,47 @@
+package com.datastax.log.agent.service
+
+import com.datastax.log.agent.config.Config
+import io.micrometer.prometheus.PrometheusConfig
+import io.micrometer.prometheus.PrometheusMeterRegistry
+import spock.lang.Specification
+import spock.lang.Subject
+
+class MetricsServerSpec extends Specification {
+
+	@Subject
+	MetricsServer metricsServer
+	PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT)
+
+	def "cleanup"() {
+		metricsServer?.shutdown()
+	}
+
+	def "test the registry is served on the metrics port"() {
+		given:
+			registry.counter("log.agent.test").increment(3)
+			metricsServer = new MetricsServer(registry, new Config(metricsPort: freePort()))
+		when:
+			metricsServer.start()
+			String scraped = new URL("http://127.0.0.1:" + metricsServer.getPort() + "/metrics").text
+		then:
+			scraped.contains("log_agent_test_total 3.0")
+	}
+
+	def "test nothing is served without a metrics port"() {
+		given:
+			metricsServer = new MetricsServer(registry, new Config(metricsPort: 0))
+		when:
+			metricsServer.start()
+		then:
+			metricsServer.getPort() == 0
+	}
+
+	private static int freePort() {
+		ServerSocket socket = new ServerSocket(0)
+		try {
+			return socket.getLocalPort()
+		} finally {
+			socket.close()
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.datastax.log.agent.service
+
+import com.datastax.log.agent.codec.Compression
+import com.datastax.log.agent.codec.LogBatchMessageConverter
+import com.datastax.log.agent.codec.LogBatchWriter
+import com.datastax.log.agent.config.Config
+import com.datastax.log.agent.config.StartPosition
+import com.datastax.log.agent.dto.LogDto
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpOutputMessage
+import org.springframework.http.MediaType
+import spock.lang.Requires
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.lang.management.ManagementFactory
+import java.nio.charset.StandardCharsets
+
+/**
+ * Allocation benchmark of the line pipeline: lines are read by the TailEngine, collected by a LogCollector
+ * and encoded for upload (JSON, or the binary batch format), and the bytes allocated by every thread are
+ * reported per line.  The bound asserted is loose, it is there to catch a per line object creeping back in.
+ */
+@Requires({ ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean })
+class PipelineAllocationSpec extends Specification {
+	static final int WARM_UP_LINES = 50000
+	static final int LINES = 200000
+	static final byte[] LINE =
+		"2020-01-01T00:00:00.000Z INFO [main] com.example.Service - request 12345 handled in 12 ms\n"
+			.getBytes(StandardCharsets.UTF_8)
+
+	Config config = new Config()
+	TailEngine tailEngine
+	ObjectMapper mapper = new ObjectMapper()
+
+	def "setup"() {
+		tailEngine = new TailEngine(config)
+	}
+
+	def "cleanup"() {
+		tailEngine.shutdown()
+	}
+
+	@Unroll
+	def "test reading, collecting and encoding lines as #format allocates little per line"() {
+		given:
+			run(format, WARM_UP_LINES)
+		when:
+			double perLine = run(format, LINES) / (double) LINES
+			println(String.format("%s: %.1f bytes allocated per line", format, perLine))
+		then:
+			perLine < 64
+		where:
+			format << ["JSON", "BINARY"]
+	}
+
+	/**
+	 * @return bytes allocated, by all threads, to upload count lines
+	 */
+	private long run(String format, int count) {
+		File file = File.createTempFile("allocation", ".log")
+		file.withOutputStream { out -> count.times { out.write(LINE) } }
+		OutputStream sink = new OutputStream() {
+			void write(int b) {}
+			void write(byte[] bytes, int offset, int length) {}
+		}
+		HttpHeaders headers = new HttpHeaders()
+		HttpOutputMessage message = [getBody: { sink }, getHeaders: { headers }] as HttpOutputMessage
+		LogBatchMessageConverter converter = new LogBatchMessageConverter(Compression.LZ4)
+		MediaType batchType = MediaType.parseMediaType(LogBatchWriter.CONTENT_TYPE)
+
+		LogCollector collector = new LogCollector(file, StartPosition.BEGINNING, 10000, 1024 * 1024,
+			new MemoryBudget(config), null, new UploadTrigger(1000, 256 * 1024, 0), null)
+		collector.resolveEpoch(null, null)
+		long before = allocated()
+		collector.startTailing(tailEngine)
+		long uploaded = 0
+		long deadline = System.currentTimeMillis() + 60000
+		while (uploaded < count && System.currentTimeMillis() < deadline) {
+			if (!collector.hasLinesToUpload()) {
+				Thread.sleep(1)
+				continue
+			}
+			LogDto logDto = collector.beforeUpload()
+			if (format == "JSON") {
+				mapper.writeValue(sink, logDto)
+			} else {
+				converter.write(logDto, batchType, message)
+			}
+			uploaded += logDto.getLines().size()
+			collector.afterUpload(true)
+		}
+		long after = allocated()
+		collector.shutdown()
+		file.delete()
+		assert uploaded == count
+		return after - before
+	}
+
+	private static long allocated() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()
+		long total = 0
+		for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			total += Math.max(0, bytes)
+		}
+		return total
+	}
+}
@@ -0,0 +1,41 @@
+package com.datastax.log.agent.service
+
+import spock.lang.Specification
+import spock.lang.Subject
+
+class RetryBackoffSpec extends Specification {
+
+	@Subject
+	RetryBackoff backoff = new RetryBackoff(1000, 60000)
+
+	def "test the delay is jittered within the upper half of the cap"() {
+		when:
+			List<Long> delays = (1..200).collect { backoff.delay(1) }
+		then:
+			delays.every { it >= 500 && it <= 1000 }
+			delays.toSet().size() > 1
+	}
+
+	def "test the delay doubles with each failure in a row"() {
+		expect:
+			(1..50).every {
+				long delay = backoff.delay(failures)
+				delay >= cap / 2 && delay <= cap
+			}
+		where:
+			failures | cap
+			2        | 2000
+			3        | 4000
+			5        | 16000
+	}
+
+	def "test the delay never exceeds the maximum"() {
+		expect:
+			(1..50).every {
+				long delay = backoff.delay(failures)
+				delay >= 30000 && delay <= 60000
+			}
+		where:
+			failures << [7, 20, 100, Integer.MAX_VALUE]
+	}
+}
@@ -0,0 +1,26 @@
+package com.datastax.log.agent.service
+
+import org.slf4j.Logger
+import spock.lang.Specification
+
+class SampledLogSpec extends Specification {
+
+	Logger logger = Mock()
+
+	def "test the first event is logged, then the totals at most once per interval"() {
+		given:
+			SampledLog sampledLog = new SampledLog(logger, "Uploaded {} lines in {} chunks.", 200)
+		when:
+			sampledLog.record(10)
+			sampledLog.record(20)
+			sampledLog.record(30)
+		then:
+			1 * logger.info("Uploaded {} lines in {} chunks.", 10L, 1L)
+			0 * logger.info(*_)
+		when:
+			Thread.sleep(250)
+			sampledLog.record(40)
+		then:
+			1 * logger.info("Uploaded {} lines in {} chunks.", 90L, 3L)
+	}
+}
@@ -0,0 +1,172 @@
+package com.datastax.log.agent.service
+
+import com.datastax.log.agent.config.Config
+import com.datastax.log.agent.config.TailMode
+import spock.lang.Specification
+import spock.lang.Subject
+import spock.util.concurrent.PollingConditions
+
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+
+class TailEngineSpec extends Specification {
+
+	@Subject
+	TailEngine tailEngine
+	Config config
+	File testDir
+	File file
+	RecordingListener listener = new RecordingListener()
+	PollingConditions conditions = new PollingConditions(timeout: 5)
+
+	def "setup"() {
+		testDir = File.createTempDir()
+		file = new File(testDir, "test.log")
+		config = new Config()
+		config.setTailPollInterval(50)
+	}
+
+	def "cleanup"() {
+		tailEngine?.shutdown()
+		testDir.deleteDir()
+	}
+
+	def "test lines are read as they are appended, with the bytes each takes up"() {
+		given:
+			file.text = "line-1\n"
+			start()
+		when:
+			file << "line-2\r\nline-"
+			file << "3\n"
+		then:
+			conditions.eventually {
+				assert listener.lines() == ["line-1:7", "line-2:8", "line-3:7"]
+			}
+			tailEngine.isWatched(file)
+	}
+
+	def "test reading starts at the given offset"() {
+		given:
+			file.text = "line-1\nline-2\n"
+		when:
+			tailEngine = new TailEngine(config)
+			tailEngine.tail(file, listener, 7)
+		then:
+			conditions.eventually {
+				assert listener.lines() == ["line-2:7"]
+			}
+	}
+
+	def "test a line longer than the buffer is gathered whole"() {
+		given:
+			config.setTailBufferSize(8)
+			String longLine = "x" * 30
+			file.text = "abc\n" + longLine + "\nend\n"
+		when:
+			start()
+		then:
+			conditions.eventually {
+				assert listener.lines() == ["abc:4", longLine + ":31", "end:4"]
+			}
+	}
+
+	def "test a file renamed away and replaced is read to its end, then the new file from the start"() {
+		given:
+			file.text = "old-1\n"
+			start()
+			conditions.eventually { assert listener.lines() == ["old-1:6"] }
+		when:
+			file << "old-2\n"
+			file.renameTo(new File(testDir, "test.log.1"))
+			new File(testDir, "test.log.1") << "old-3\n"		// the writer has not switched files yet
+			file.text = "new-1\n"
+		then:
+			conditions.eventually {
+				assert listener.lines() == ["old-1:6", "old-2:6", "old-3:6", "new-1:6"]
+				assert listener.events.indexOf("rotated") == listener.events.indexOf("new-1:6") - 1
+			}
+	}
+
+	def "test a truncated file is read again from the start"() {
+		given:
+			file.text = "line-1\nline-2\n"
+			start()
+			conditions.eventually { assert listener.lines() == ["line-1:7", "line-2:7"] }
+		when:
+			FileChannel.open(file.toPath(), StandardOpenOption.WRITE).withCloseable { it.truncate(0) }
+			file << "new\n"
+		then:
+			conditions.eventually {
+				assert listener.events.takeRight(3) == ["rotated", "new:4", "eof"]
+			}
+	}
+
+	def "test files are polled when the tail mode is POLL"() {
+		given:
+			config.setTailMode(TailMode.POLL)
+			file.text = ""
+			start()
+		when:
+			file << "line-1\n"
+		then:
+			!tailEngine.isWatched(file)
+			conditions.eventually {
+				assert listener.lines() == ["line-1:7"]
+			}
+	}
+
+	def "test a file created after tailing started is read once it appears"() {
+		given:
+			start()
+		when:
+			file << "line-1\n"
+		then:
+			conditions.eventually {
+				assert listener.lines() == ["line-1:7"]
+			}
+	}
+
+	def "test a stopped tail returns its buffer to the pool"() {
+		given:
+			file.text = "line-1\n"
+			TailEngine.Tail tail = start()
+			conditions.eventually { assert listener.lines() == ["line-1:7"] }
+		when:
+			tail.stop()
+		then:
+			conditions.eventually {
+				assert tailEngine.getBufferPool().getPooled() == 1
+			}
+	}
+
+	private TailEngine.Tail start() {
+		tailEngine = new TailEngine(config)
+		return tailEngine.tail(file, listener, 0)
+	}
+
+	/**
+	 * Records what it is told, in order
+	 */
+	static class RecordingListener implements TailListener {
+		List<String> events = Collections.synchronizedList(new ArrayList<String>())
+
+		@Override
+		void handle(byte[] bytes, int offset, int length, int lineBytes) {
+			events.add(new String(bytes, offset, length, "UTF-8") + ":" + lineBytes)
+		}
+
+		@Override
+		void fileRotated() {
+			events.add("rotated")
+		}
+
+		@Override
+		void endOfFileReached() {
+			events.add("eof")
+		}
+
+		List<String> lines() {
+			return events.findAll { it != "rotated" && it != "eof" }
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package com.datastax.log.agent.service
+
+import com.datastax.log.agent.config.Config
+import com.datastax.log.agent.config.StartPosition
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpHandler
+import com.sun.net.httpserver.HttpServer
+import org.springframework.web.client.RestTemplate
+import spock.lang.Specification
+import spock.lang.Subject
+import spock.util.concurrent.PollingConditions
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class UploadPacerSpec extends Specification {
+
+	@Subject
+	UploadPacer pacer
+	Config config
+
+	def "setup"() {
+		config = new Config(maxConcurrentUploads: 8, targetLatency: 1000, targetLag: 10000, maxPace: 8)
+		pacer = new UploadPacer(config)
+	}
+
+	def "test an overloaded service halves the rate and the limit once for each round trip"() {
+		given:
+			long sent = System.nanoTime()
+		when:
+			pacer.failed(sent)
+			pacer.failed(sent)		// in flight when the first came back
+		then:
+			pacer.getPace() == 2d
+			pacer.getLimit() == 4
+		when:
+			pacer.failed(System.nanoTime())
+		then:
+			pacer.getPace() == 4d
+			pacer.getLimit() == 2
+	}
+
+	def "test a high load or a slow upload is taken as the service being overloaded"() {
+		when:
+			pacer.uploaded(System.nanoTime() - TimeUnit.SECONDS.toNanos(2), 0.1d)
+		then:
+			pacer.getPace() == 2d
+		when:
+			pacer.uploaded(System.nanoTime(), 0.9d)
+		then:
+			pacer.getPace() == 4d
+		when:
+			pacer.uploaded(System.nanoTime(), null)
+		then:
+			pacer.getPace() < 4d
+	}
+
+	def "test uploads which go well bring the trigger gradually back to the configured one"() {
+		given:
+			pacer.failed(System.nanoTime())
+		when:
+			uploadedAtLimit()
+		then:
+			pacer.getPace() > 1d && pacer.getPace() < 2d
+			pacer.getLimit() == 4
+		when:
+			100.times { uploadedAtLimit() }
+		then:
+			pacer.getPace() == 1d
+			pacer.getLimit() == 8
+	}
+
+	def "test the limit only grows while it is in use"() {
+		given:
+			pacer.failed(System.nanoTime())
+		when:
+			100.times {
+				pacer.tryStart()
+				pacer.uploaded(System.nanoTime(), 0.1d)
+				pacer.finish()
+			}
+		then:
+			pacer.getPace() == 1d
+			pacer.getLimit() == 4
+	}
+
+	def "test no more uploads start than the limit allows"() {
+		given:
+			pacer.failed(System.nanoTime())
+		expect:
+			(1..5).collect { pacer.tryStart() } == [true, true, true, true, false]
+		when:
+			pacer.finish()
+		then:
+			pacer.tryStart()
+			!pacer.tryStart()
+	}
+
+	def "test lines waiting longer than the target lag speed the uploads up, until they catch up"() {
+		given:
+			pacer.lag(20000)
+		when:
+			100.times { pacer.uploaded(System.nanoTime(), 0.1d) }
+		then:
+			pacer.getPace() == 1 / UploadPacer.MAX_RATE
+			pacer.pacedAge(1000) == 250
+		when:
+			pacer.lag(100)
+			100.times { pacer.uploaded(System.nanoTime(), 0.1d) }
+		then:
+			pacer.getPace() == 1d
+	}
+
+	def "test the pace goes no higher than maxPace, and a stretched age no higher than half the target lag"() {
+		when:
+			10.times { pacer.failed(System.nanoTime()) }
+		then:
+			pacer.getPace() == 8d
+			pacer.getLimit() == 1
+			pacer.pacedAge(100) == 800
+			pacer.pacedAge(1000) == 5000
+			pacer.pacedAge(20000) == 20000
+	}
+
+	def "test with adaptive pacing off the trigger and concurrency are as configured"() {
+		given:
+			pacer = new UploadPacer(new Config(adaptivePacing: false, maxConcurrentUploads: 8))
+		when:
+			pacer.failed(System.nanoTime())
+			pacer.uploaded(System.nanoTime(), 1d)
+		then:
+			pacer.getPace() == 1d
+			pacer.getLimit() == Integer.MAX_VALUE
+			pacer.pacedAge(1000) == 1000
+	}
+
+	def "test against a slowed service the agent backs off and keeps the lag under its target"() {
+		when:
+			Simulation paced = new Simulation(true).run()
+		then:
+			paced.delivered.get() == paced.produced.get()
+			paced.maxPace > 1
+			paced.minLimit < Simulation.FILES
+			// settled: the service is no longer turning uploads away, and lines are uploaded well within the target
+			paced.busyAfter(Simulation.SETTLE_MILLIS) == 0
+			paced.lagPercentileAfter(Simulation.SETTLE_MILLIS, 0.95) < Simulation.TARGET_LAG
+	}
+
+	def "test against a slowed service an agent which does not pace itself is turned away"() {
+		when:
+			Simulation unpaced = new Simulation(false).run()
+		then:
+			unpaced.delivered.get() == unpaced.produced.get()
+			unpaced.busyAfter(Simulation.SETTLE_MILLIS) > 0
+	}
+
+	/**
+	 * An upload which went well, sent while the limit was in use
+	 */
+	private void uploadedAtLimit() {
+		int started = 0
+		while (pacer.tryStart()) {
+			started++
+		}
+		pacer.uploaded(System.nanoTime(), 0.1d)
+		started.times { pacer.finish() }
+	}
+
+	/**
+	 * An agent uploading FILES files, each written at LINES_PER_TICK lines every TICK_MILLIS, to a service which
+	 * writes one request at a time, each taking REQUEST_MILLIS plus a little for each line, and turns a request away
+	 * with 503 once MAX_QUEUE are already waiting.  Its load is the share of MAX_QUEUE waiting as it answers.
+	 * With the configured trigger the agent sends about twice what the service can write, it keeps up only with
+	 * larger uploads.
+	 */
+	private static class Simulation implements HttpHandler {
+		static final int FILES = 16
+		static final int TICK_MILLIS = 20
+		static final int LINES_PER_TICK = 12
+		static final long REQUEST_MILLIS = 20
+		static final int LINES_PER_MILLI = 50
+		static final int MAX_QUEUE = 8
+		static final long RUN_MILLIS = 6000
+		static final long SETTLE_MILLIS = 3000
+		static final long TARGET_LAG = 2000
+
+		final boolean adaptive
+		final ObjectMapper mapper = new ObjectMapper()
+		final Semaphore disk = new Semaphore(1, true)
+		final AtomicInteger waiting = new AtomicInteger()
+		final AtomicInteger produced = new AtomicInteger()
+		final AtomicInteger delivered = new AtomicInteger()
+		final Queue<long[]> busy = new ConcurrentLinkedQueue<>()		// {when}
+		final Queue<long[]> lags = new ConcurrentLinkedQueue<>()		// {when, lag of the oldest line}
+		double maxPace
+		int minLimit = Integer.MAX_VALUE
+		long startedAt
+
+		Simulation(boolean adaptive) {
+			this.adaptive = adaptive
+		}
+
+		Simulation run() {
+			HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0)
+			ExecutorService serverThreads = Executors.newFixedThreadPool(32)
+			server.createContext("/", this)
+			server.setExecutor(serverThreads)
+			server.start()
+			File dir = File.createTempFile("pacer", "")
+			dir.delete()
+			dir.mkdirs()
+			Thread handlerThread = null
+			try {
+				Config config = new Config(clientId: "sim", hostUrl: "http://127.0.0.1:" + server.getAddress().getPort(),
+					delayBetweenUploads: 1, flushLines: 100, flushAge: 500, retryBaseDelay: 100, retryMaxDelay: 1000,
+					maxConcurrentUploads: FILES, multiFileUploads: false, adaptivePacing: adaptive,
+					targetLatency: 250, targetLag: TARGET_LAG, maxPace: 8)
+				LogUploader uploader = new LogUploader(new RestTemplate(), config)
+				MemoryBudget memoryBudget = new MemoryBudget(config)
+				LogHandler logHandler = new LogHandler(uploader, config, memoryBudget, null)
+				List<LogCollector> collectors = (0..<FILES).collect { i ->
+					File file = new File(dir, "sim-" + i + ".log")
+					file.createNewFile()
+					LogCollector collector = new LogCollector(file, StartPosition.BEGINNING, config.getMaxChunkLines(),
+						config.getMaxChunkBytes(), memoryBudget, null, UploadTrigger.from(config, uploader.getPacer()),
+						{ logHandler.chunkReady() } as Runnable)
+					logHandler.addLogCollector(collector)
+					return collector
+				}
+				handlerThread = new Thread(logHandler, "sim-handler")
+				handlerThread.setDaemon(true)
+				handlerThread.start()
+
+				startedAt = System.currentTimeMillis()
+				int line = 0
+				while (System.currentTimeMillis() - startedAt < RUN_MILLIS) {
+					for (LogCollector collector : collectors) {
+						for (int i = 0; i < LINES_PER_TICK; i++) {
+							byte[] bytes = (System.currentTimeMillis() + " line " + line++).getBytes(StandardCharsets.UTF_8)
+							collector.handle(bytes, 0, bytes.length, bytes.length + 1)
+						}
+						collector.endOfFileReached()
+					}
+					produced.addAndGet(FILES * LINES_PER_TICK)
+					maxPace = Math.max(maxPace, uploader.getPacer().getPace())
+					minLimit = Math.min(minLimit, uploader.getPacer().getLimit())
+					Thread.sleep(TICK_MILLIS)
+				}
+				new PollingConditions(timeout: 30).eventually {
+					assert delivered.get() == produced.get()
+				}
+			} finally {
+				handlerThread?.interrupt()
+				server.stop(0)
+				serverThreads.shutdownNow()
+				dir.listFiles().each { it.delete() }
+				dir.delete()
+			}
+			return this
+		}
+
+		int busyAfter(long millis) {
+			return busy.count { it[0] - startedAt >= millis }
+		}
+
+		/**
+		 * Lag of the uploads answered from millis into the run until the lines stopped being written
+		 */
+		long lagPercentileAfter(long millis, double percentile) {
+			List<Long> settled = lags.findAll { it[0] - startedAt >= millis && it[0] - startedAt < RUN_MILLIS }
+				.collect { it[1] }.sort()
+			return settled.isEmpty() ? 0 : settled[(int) Math.min(settled.size() - 1, settled.size() * percentile)]
+		}
+
+		@Override
+		void handle(HttpExchange exchange) {
+			Map body = mapper.readValue(exchange.getRequestBody(), Map)
+			List<String> lines = body.lines ?: []
+			if (lines.isEmpty()) {
+				respond(exchange, 200, [status: 200, message: "Success"])		// the committed offset, nothing yet
+				return
+			}
+			int queued = waiting.incrementAndGet()
+			try {
+				if (queued > MAX_QUEUE) {
+					busy.add([System.currentTimeMillis()] as long[])
+					exchange.getResponseHeaders().add("Retry-After", "1")
+					respond(exchange, 503, [status: 503, message: "Service busy", retryAfter: 1])
+					return
+				}
+				disk.acquire()
+				try {
+					Thread.sleep(REQUEST_MILLIS + lines.size().intdiv(LINES_PER_MILLI))
+				} finally {
+					disk.release()
+				}
+				long now = System.currentTimeMillis()
+				lags.add([now, now - Long.parseLong(lines[0].substring(0, lines[0].indexOf(' ')))] as long[])
+				delivered.addAndGet(lines.size())
+				respond(exchange, 200, [status: 200, message: "Success", load: waiting.get() / (double) MAX_QUEUE])
+			} finally {
+				waiting.decrementAndGet()
+			}
+		}
+
+		private void respond(HttpExchange exchange, int status, Map response) {
+			byte[] bytes = mapper.writeValueAsBytes(response)
+			exchange.getResponseHeaders().add("Content-Type", "application/json")
+			exchange.sendResponseHeaders(status, bytes.length)
+			exchange.getResponseBody().withStream { it.write(bytes) }
+			exchange.close()
+		}
+	}
+}
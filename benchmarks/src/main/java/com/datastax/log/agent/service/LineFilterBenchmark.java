@@ -0,0 +1,104 @@
+package com.datastax.log.agent.service;
+
+import com.datastax.log.agent.config.FilterAction;
+import com.datastax.log.agent.config.FilterRule;
+import com.datastax.log.benchmarks.SyntheticLines;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost per line of the agent's filter stage, which runs on the tail thread for every line read, with one rule:
+ *    none         - a literal no line contains, the cost of a line passing through untouched
+ *    literal      - drops the DEBUG lines (about one in six) by a literal
+ *    regexLiteral - drops some of the DEBUG lines by a regex, which has a literal to look for first
+ *    regexOnly    - drops the DEBUG lines by a regex with alternation, so the regex runs on every line
+ *    mask         - masks the word after "session" in the lines which have one, by a regex
+ *
+ * Compare the score with LogCollectorBenchmark's handle, the rest of the tail thread's work for a line.
+ *
+ * Run with: java -jar benchmarks/target/benchmarks.jar LineFilterBenchmark
+ *
+ * @author cingham
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LineFilterBenchmark {
+	private static final int BURST = 1000;
+
+	@Param({"none", "literal", "regexLiteral", "regexOnly", "mask"})
+	String rule;
+
+	@Param({"100", "1000"})
+	int lineLength;
+
+	byte[][] lines;
+	LineFilter filter;
+	LineFilter.Line line = new LineFilter.Line();
+
+	@Setup
+	public void setup() {
+		SyntheticLines synthetic = new SyntheticLines(1);
+		lines = new byte[BURST][];
+		for (int i = 0; i < BURST; i++) {
+			lines[i] = synthetic.nextBytes(lineLength);
+		}
+		filter = new LineFilter(Collections.singletonList(rule(rule)), FilterAction.KEEP);
+	}
+
+	private static FilterRule rule(String name) {
+		FilterRule rule = new FilterRule();
+		rule.setName(name);
+		switch (name) {
+			case "none":
+				rule.setLiteral("GET /health");
+				break;
+			case "literal":
+				rule.setLiteral(" DEBUG ");
+				break;
+			case "regexLiteral":
+				rule.setRegex(" DEBUG \\[worker-1\\d\\]");
+				break;
+			case "regexOnly":
+				rule.setRegex("(DEBUG|TRACE) \\[worker-\\d+\\]");
+				break;
+			case "mask":
+				rule.setRegex("session \\w+");
+				rule.setAction(FilterAction.MASK);
+				rule.setReplacement("session ****");
+				break;
+			default:
+				throw new IllegalArgumentException(name);
+		}
+		return rule;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public int apply() {
+		int kept = 0;
+		for (byte[] bytes : lines) {
+			line.set(bytes, 0, bytes.length);
+			if (filter.apply(line)) {
+				kept += line.getLength();
+			}
+		}
+		return kept;
+	}
+}
@@ -0,0 +1,125 @@
+package com.datastax.log.agent.service;
+
+import com.datastax.log.agent.config.Config;
+import com.datastax.log.agent.config.StartPosition;
+import com.datastax.log.agent.dto.LogDto;
+import com.datastax.log.benchmarks.SyntheticLines;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The two sides of a LogCollector, each on its own:
+ *    handle - the tail thread's work for a burst of lines: handle() for each line, then endOfFileReached(),
+ *             which moves the staged lines into the collection list.  The score is per line.
+ *    upload - an upload thread's work around one upload of a burst: beforeUpload() takes the chunk and
+ *             afterUpload() clears it, handing its pages back to the pool
+ *
+ * The other side is done outside the measurement, before each invocation, so each benchmark starts from the
+ * same state every time.  The collector is never tailed, the lines are handed to it as the tail engine would.
+ * In the benchmarks module, but in the collector's package, to reach beforeUpload() and afterUpload().
+ * The BLOCK policy is used and chunks are never full, so nothing waits.
+ *
+ * Run with: java -jar benchmarks/target/benchmarks.jar LogCollectorBenchmark
+ *
+ * @author cingham
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogCollectorBenchmark {
+	private static final int BURST = 1000;
+
+	@State(Scope.Thread)
+	public static class Collector {
+		@Param({"100", "1000"})
+		int lineLength;
+
+		byte[][] lines;
+		LogCollector collector;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			SyntheticLines synthetic = new SyntheticLines(1);
+			lines = new byte[BURST][];
+			for (int i = 0; i < BURST; i++) {
+				lines[i] = synthetic.nextBytes(lineLength);
+			}
+			Config config = new Config();
+			config.setMaxAgentBytes(1024L * 1024 * 1024);
+			config.setMaxCollectorBytes(1024L * 1024 * 1024);
+			collector = new LogCollector(new File("benchmark.log"), StartPosition.BEGINNING, Integer.MAX_VALUE,
+				Long.MAX_VALUE, new MemoryBudget(config), null);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			collector.shutdown();
+		}
+
+		void tail() {
+			for (byte[] line : lines) {
+				collector.handle(line, 0, line.length, line.length + 1);
+			}
+			collector.endOfFileReached();
+		}
+
+		void upload() {
+			if (collector.hasLinesToUpload()) {
+				collector.beforeUpload();
+				collector.afterUpload(true);
+			}
+		}
+	}
+
+	/**
+	 * Empties the collector before each burst is handled
+	 */
+	@State(Scope.Thread)
+	public static class Emptied {
+		@Setup(Level.Invocation)
+		public void setup(Collector state) {
+			state.upload();
+		}
+	}
+
+	/**
+	 * Fills the collector with a burst before each upload
+	 */
+	@State(Scope.Thread)
+	public static class Filled {
+		@Setup(Level.Invocation)
+		public void setup(Collector state) {
+			state.tail();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public void handle(Collector state, Emptied emptied) {
+		state.tail();
+	}
+
+	@Benchmark
+	public LogDto upload(Collector state, Filled filled) {
+		LogDto chunk = state.collector.beforeUpload();
+		state.collector.afterUpload(true);
+		return chunk;
+	}
+}
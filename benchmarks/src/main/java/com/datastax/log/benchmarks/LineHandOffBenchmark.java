@@ -0,0 +1,251 @@
+package com.datastax.log.benchmarks;
+
+import com.datastax.log.agent.service.LineRing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands lines from a Tailer thread to an upload thread at the highest rate they can manage,
+ * comparing the two designs LogCollector has used:
+ *    swapList - the Tailer takes the collector lock for every line and appends it to collectionList,
+ *               the uploader swaps the lists under the same lock (a failed upload copies the lists together)
+ *    ring     - the Tailer stages lines in a LineRing without a lock, and lines are moved into the
+ *               lists a batch at a time under the lock: by the Tailer each time it reaches the end of the
+ *               file (every burst lines here) or the ring fills, and by the uploader before it takes a chunk
+ *
+ * Each design runs as a group of one producer and one consumer thread, so it needs at least two cores to mean
+ * anything.  The producer's score is the line hand-off rate.  failEvery makes every n-th upload fail, to include
+ * the cost of retrying, and lockHoldTokens is work the uploader does while holding the lock (LogCollector syncs
+ * its spool there, for example).
+ *
+ * Run with: java -jar benchmarks/target/benchmarks.jar LineHandOffBenchmark
+ *
+ * @author cingham
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineHandOffBenchmark {
+
+	/**
+	 * Lines to hand over, generated once so the benchmark does not measure building them
+	 */
+	@State(Scope.Benchmark)
+	public static class Lines {
+		@Param({"100"})
+		int lineLength;
+
+		String[] lines;
+		// the same lines as UTF-8, as the tail engine hands them to the ring
+		byte[][] bytes;
+
+		@Setup
+		public void setup() {
+			lines = new String[1024];
+			bytes = new byte[lines.length][];
+			for (int i = 0; i < lines.length; i++) {
+				char[] chars = new char[lineLength];
+				Arrays.fill(chars, (char) ('a' + i % 26));
+				lines[i] = new String(chars);
+				bytes[i] = lines[i].getBytes(StandardCharsets.UTF_8);
+			}
+		}
+	}
+
+	/**
+	 * The lock per line, swap lists design
+	 */
+	@State(Scope.Group)
+	public static class SwapLists {
+		@Param({"0", "10"})
+		int failEvery;
+		@Param({"0", "1000"})
+		int lockHoldTokens;
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private List<String> collectionList = new ArrayList<>();
+		private List<String> uploadList = new ArrayList<>();
+		private long readOffset;
+		private int next;
+		private int uploads;
+
+		@Setup(Level.Iteration)
+		public void setup() {
+			collectionList = new ArrayList<>();
+			uploadList = new ArrayList<>();
+		}
+
+		void handle(String line) {
+			lock.lock();
+			try {
+				collectionList.add(line);
+				readOffset += line.length() + 1;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		int upload() {
+			lock.lock();
+			try {
+				Blackhole.consumeCPU(lockHoldTokens);
+				List<String> temp = uploadList;
+				uploadList = collectionList;
+				collectionList = temp;
+			} finally {
+				lock.unlock();
+			}
+			int count = uploadList.size();
+			lock.lock();
+			try {
+				if (failEvery > 0 && ++uploads % failEvery == 0) {
+					// failed: new lines are copied onto the upload list, which becomes the collection list
+					uploadList.addAll(collectionList);
+					collectionList.clear();
+					List<String> temp = uploadList;
+					uploadList = collectionList;
+					collectionList = temp;
+				} else {
+					uploadList.clear();
+				}
+			} finally {
+				lock.unlock();
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * The staging ring design
+	 */
+	@State(Scope.Group)
+	public static class StagedRing {
+		@Param({"0", "10"})
+		int failEvery;
+		@Param({"0", "1000"})
+		int lockHoldTokens;
+		@Param({"64"})
+		int burst;
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private LineRing staged;
+		private List<String> collectionList;
+		private List<String> uploadList;
+		private long readOffset;
+		private int next;
+		private int uploads;
+		private int sinceDrain;
+
+		@Setup(Level.Iteration)
+		public void setup() {
+			staged = new LineRing(1024, 256 * 1024);
+			collectionList = new ArrayList<>();
+			uploadList = new ArrayList<>();
+		}
+
+		void handle(byte[] line) {
+			int lineBytes = line.length + 1;
+			while (!staged.offer(line, 0, line.length, readOffset, lineBytes)) {
+				drainLocked();
+			}
+			readOffset += lineBytes;
+			if (++sinceDrain == burst) {
+				drainLocked();		// end of file reached
+			}
+		}
+
+		private void drainLocked() {
+			sinceDrain = 0;
+			lock.lock();
+			try {
+				drain();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void drain() {
+			int available = staged.available();
+			for (int i = 0; i < available; i++) {
+				collectionList.add(staged.line(i));
+			}
+			staged.release(available);
+		}
+
+		int upload() {
+			lock.lock();
+			try {
+				Blackhole.consumeCPU(lockHoldTokens);
+				drain();
+				if (uploadList.isEmpty()) {
+					List<String> temp = uploadList;
+					uploadList = collectionList;
+					collectionList = temp;
+				}
+			} finally {
+				lock.unlock();
+			}
+			int count = uploadList.size();
+			if (failEvery == 0 || ++uploads % failEvery != 0) {
+				lock.lock();
+				try {
+					uploadList.clear();
+				} finally {
+					lock.unlock();
+				}
+			}
+			// a failed chunk stays where it is and is retried by the next upload
+			return count;
+		}
+	}
+
+	@Benchmark
+	@Group("swapList")
+	@GroupThreads(1)
+	public void swapListTailer(SwapLists state, Lines lines) {
+		state.handle(lines.lines[state.next++ & 1023]);
+	}
+
+	@Benchmark
+	@Group("swapList")
+	@GroupThreads(1)
+	public int swapListUploader(SwapLists state) {
+		return state.upload();
+	}
+
+	@Benchmark
+	@Group("ring")
+	@GroupThreads(1)
+	public void ringTailer(StagedRing state, Lines lines) {
+		state.handle(lines.bytes[state.next++ & 1023]);
+	}
+
+	@Benchmark
+	@Group("ring")
+	@GroupThreads(1)
+	public int ringUploader(StagedRing state) {
+		return state.upload();
+	}
+}
@@ -0,0 +1,140 @@
+package com.datastax.log.benchmarks;
+
+import com.datastax.log.agent.codec.ByteLines;
+import com.datastax.log.agent.codec.BytePagePool;
+import com.datastax.log.agent.codec.Compression;
+import com.datastax.log.agent.codec.LogBatchMessageConverter;
+import com.datastax.log.agent.codec.LogBatchWriter;
+import com.datastax.log.agent.dto.LogDto;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes one chunk of lines as an upload body, as LogUploader sends it:
+ *    json   - the LogDto as JSON, with the ObjectMapper RestTemplate would use (lines written from their
+ *             bytes by LinesSerializer)
+ *    binary - a binary log batch, through LogBatchMessageConverter with each block compression
+ *
+ * The lines are held in ByteLines, as a collector holds them, and are made up to look like application logs
+ * so the compression ratios are realistic.  The body is written to a buffer which is reused, so its growth
+ * is not measured.  Add -prof gc to see the allocation for each chunk.
+ *
+ * Run with: java -jar benchmarks/target/benchmarks.jar LogDtoBenchmark
+ *
+ * @author cingham
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogDtoBenchmark {
+
+	@State(Scope.Thread)
+	public static class Chunk {
+		@Param({"1000"})
+		int lines;
+		@Param({"100", "1000"})
+		int lineLength;
+
+		LogDto logDto;
+		Body body = new Body();
+
+		@Setup
+		public void setup() {
+			ByteLines byteLines = new ByteLines(new BytePagePool(64 * 1024, 64));
+			SyntheticLines synthetic = new SyntheticLines(1);
+			long offset = 0;
+			for (int i = 0; i < lines; i++) {
+				byte[] line = synthetic.nextBytes(lineLength);
+				byteLines.add(line, 0, line.length, line.length + 1);
+				offset += line.length + 1;
+			}
+			logDto = new LogDto("benchmark.log", "benchmark.log@1", 0, offset, byteLines);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Json {
+		ObjectMapper objectMapper;
+
+		@Setup
+		public void setup() {
+			objectMapper = Jackson2ObjectMapperBuilder.json().build();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Binary {
+		@Param({"NONE", "LZ4", "ZSTD", "GZIP"})
+		Compression compression;
+
+		LogBatchMessageConverter converter;
+		MediaType mediaType = MediaType.parseMediaType(LogBatchWriter.CONTENT_TYPE);
+
+		@Setup
+		public void setup() {
+			converter = new LogBatchMessageConverter(compression);
+		}
+	}
+
+	/**
+	 * The body of a request, written to a buffer which is emptied for each chunk
+	 */
+	static class Body implements HttpOutputMessage {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream(4 * 1024 * 1024);
+		private final HttpHeaders headers = new HttpHeaders();
+
+		Body reset() {
+			out.reset();
+			return this;
+		}
+
+		int size() {
+			return out.size();
+		}
+
+		@Override
+		public OutputStream getBody() {
+			return out;
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return headers;
+		}
+	}
+
+	@Benchmark
+	public int json(Chunk chunk, Json json) throws IOException {
+		Body body = chunk.body.reset();
+		json.objectMapper.writeValue(body.getBody(), chunk.logDto);
+		return body.size();
+	}
+
+	@Benchmark
+	public int binary(Chunk chunk, Binary binary) throws IOException {
+		Body body = chunk.body.reset();
+		binary.converter.write(chunk.logDto, binary.mediaType, body);
+		return body.size();
+	}
+}
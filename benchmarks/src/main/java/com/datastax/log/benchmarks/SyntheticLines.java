@@ -0,0 +1,69 @@
+package com.datastax.log.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Log lines made up for benchmarks and load tests, which look enough like real application logs (a timestamp,
+ * level, thread, logger and a message of ordinary words) for compression ratios to mean something.
+ * The same seed always gives the same lines.  Lines are ASCII, so their length in bytes is their length in chars.
+ *
+ * @author cingham
+ */
+public class SyntheticLines {
+	private static final String[] LEVELS = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+	private static final String[] LOGGERS = {"c.d.l.service.OrderService", "c.d.l.web.RequestFilter",
+		"c.d.l.cache.SessionCache", "c.d.l.db.ConnectionPool", "c.d.l.jobs.ReportJob"};
+	private static final String[] WORDS = {"request", "completed", "user", "order", "session", "cache", "miss",
+		"hit", "connection", "acquired", "released", "took", "ms", "retrying", "timeout", "status", "id", "payload",
+		"queued", "processed", "failed", "for", "in", "with", "from", "the", "a", "to", "after", "item"};
+
+	private final Random random;
+
+	/**
+	 * @param seed seed for the random choice of words
+	 */
+	public SyntheticLines(long seed) {
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * @param length length of the line, without its newline
+	 * @return a new line of exactly that length
+	 */
+	public String next(int length) {
+		StringBuilder line = new StringBuilder(length + 16);
+		line.append(String.format("2020-01-01 12:%02d:%02d.%03d ", random.nextInt(60), random.nextInt(60), random.nextInt(1000)));
+		line.append(LEVELS[random.nextInt(LEVELS.length)]).append(" [worker-").append(random.nextInt(16)).append("] ");
+		line.append(LOGGERS[random.nextInt(LOGGERS.length)]).append(" -");
+		while (line.length() < length) {
+			line.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+			if (random.nextInt(8) == 0) {
+				line.append('=').append(random.nextInt(100000));
+			}
+		}
+		line.setLength(length);
+		return line.toString();
+	}
+
+	/**
+	 * @param length length of the line, without its newline
+	 * @return a new line of exactly that length, as UTF-8
+	 */
+	public byte[] nextBytes(int length) {
+		return next(length).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param count number of lines
+	 * @param length length of each line
+	 * @return that many new lines
+	 */
+	public String[] lines(int count, int length) {
+		String[] lines = new String[count];
+		for (int i = 0; i < count; i++) {
+			lines[i] = next(length);
+		}
+		return lines;
+	}
+}
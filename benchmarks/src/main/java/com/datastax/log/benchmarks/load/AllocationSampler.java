@@ -0,0 +1,45 @@
+package com.datastax.log.benchmarks.load;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bytes allocated on the heap by every thread in the process, from the JVM's per-thread allocation counters.
+ * Each sample adds what every live thread has allocated since the last sample, so a thread which ends between
+ * two samples loses what it allocated since the first: sample often enough (every second or so) and that is small.
+ *
+ * @author cingham
+ */
+public class AllocationSampler {
+	private final com.sun.management.ThreadMXBean threads =
+		(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private Map<Long, Long> lastAllocated = new HashMap<>();
+	private long total;
+
+	/**
+	 * @return true if the JVM counts each thread's allocation
+	 */
+	public boolean isSupported() {
+		return threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled();
+	}
+
+	/**
+	 * @return bytes allocated in total, as of now
+	 */
+	public synchronized long sample() {
+		long[] ids = threads.getAllThreadIds();
+		long[] allocated = threads.getThreadAllocatedBytes(ids);
+		Map<Long, Long> current = new HashMap<>(ids.length * 2);
+		for (int i = 0; i < ids.length; i++) {
+			if (allocated[i] < 0) {
+				continue;		// the thread has ended
+			}
+			Long last = lastAllocated.get(ids[i]);
+			total += allocated[i] - (last == null ? 0 : last);
+			current.put(ids[i], allocated[i]);
+		}
+		lastAllocated = current;
+		return total;
+	}
+}
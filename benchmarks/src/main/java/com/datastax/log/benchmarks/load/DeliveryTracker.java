@@ -0,0 +1,130 @@
+package com.datastax.log.benchmarks.load;
+
+import com.datastax.log.agent.config.Config;
+import com.datastax.log.agent.config.TailMode;
+import com.datastax.log.agent.service.TailEngine;
+import com.datastax.log.agent.service.TailListener;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Follows the service's output files and, for each line as it arrives there, records how long it took from
+ * being written to the source file (the System.nanoTime() at the start of the line, see LogFileWriter).
+ * The files are followed with the agent's own TailEngine, watching for changes rather than polling, so a line
+ * is seen within moments of the service writing it.  Latencies are kept in microseconds.
+ *
+ * @author cingham
+ */
+public class DeliveryTracker {
+	// latencies over this are counted as this
+	private static final long MAX_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+
+	private final TailEngine tailEngine;
+	private final Recorder latencies = new Recorder(MAX_LATENCY_MICROS, 3);
+	// only lines written from this time on are measured, so a run's result leaves out its warmup
+	private final Recorder measured = new Recorder(MAX_LATENCY_MICROS, 3);
+	private volatile boolean measuring;
+	private volatile long measuredFrom;
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder malformed = new LongAdder();
+
+	public DeliveryTracker() {
+		Config config = new Config();
+		config.setTailMode(TailMode.WATCH);
+		config.setTailPollInterval(100);
+		tailEngine = new TailEngine(config);
+	}
+
+	/**
+	 * Follow an output file from its start, it need not exist yet
+	 *
+	 * @param file the file the service writes a source file's lines to
+	 */
+	public void track(File file) {
+		tailEngine.tail(file, new Listener(), 0);
+	}
+
+	/**
+	 * @return the latencies recorded since the last call (or since the tracker started)
+	 */
+	public Histogram takeLatencies() {
+		return latencies.getIntervalHistogram();
+	}
+
+	/**
+	 * Measure the lines written from now on, as well as recording every line for takeLatencies()
+	 */
+	public void startMeasuring() {
+		measuredFrom = System.nanoTime();
+		measuring = true;
+	}
+
+	/**
+	 * @return the latencies of the lines written since startMeasuring(), recorded since the last call
+	 */
+	public Histogram takeMeasured() {
+		return measured.getIntervalHistogram();
+	}
+
+	/**
+	 * @return lines seen in the output files so far
+	 */
+	public long getDelivered() {
+		return delivered.sum();
+	}
+
+	/**
+	 * @return lines seen which did not start with a time stamp
+	 */
+	public long getMalformed() {
+		return malformed.sum();
+	}
+
+	public void shutdown() {
+		tailEngine.shutdown();
+	}
+
+	private class Listener implements TailListener {
+		@Override
+		public void handle(byte[] bytes, int offset, int length, int lineBytes) {
+			long now = System.nanoTime();
+			long written = 0;
+			int i = offset;
+			int end = offset + length;
+			boolean negative = (i < end && bytes[i] == '-');
+			if (negative) {
+				i++;
+			}
+			int digits = 0;
+			for (; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++, digits++) {
+				written = written * 10 + (bytes[i] - '0');
+			}
+			if (digits == 0 || i == end || bytes[i] != ' ') {
+				malformed.increment();
+				return;
+			}
+			if (negative) {
+				written = -written;
+			}
+			long micros = Math.max(0, Math.min(TimeUnit.NANOSECONDS.toMicros(now - written), MAX_LATENCY_MICROS));
+			latencies.recordValue(micros);
+			if (measuring && written - measuredFrom >= 0) {
+				measured.recordValue(micros);
+			}
+			delivered.increment();
+		}
+
+		@Override
+		public void fileRotated() {
+			// no segments are closed during a run (see load-service.yml)
+		}
+
+		@Override
+		public void endOfFileReached() {
+		}
+	}
+}
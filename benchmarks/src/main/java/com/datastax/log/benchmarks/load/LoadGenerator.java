@@ -0,0 +1,323 @@
+package com.datastax.log.benchmarks.load;
+
+import com.datastax.log.service.service.StorageLayout;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.Banner;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End to end load test, all in one process: synthetic log files are written at a steady rate, a number of agents
+ * tail and upload them, and a service writes them out, each agent and the service being a whole SpringBoot
+ * application as it would be deployed (but for sharing the JVM, and the machine's cores).
+ *
+ * Reports, every few seconds and for the run as a whole after a warmup:
+ *    lines/s     - lines reaching the service's output files, against the rate they are written
+ *    latency     - p50 / p99 (and more at the end, for the lines written after the warmup) from a line being
+ *                  written to the source file to it being in the service's output file (see LogFileWriter
+ *                  and DeliveryTracker)
+ *    wire        - bytes of request bodies the service received (see WireBytesFilter), and per line
+ *    allocation  - bytes allocated per second by the whole process (see AllocationSampler), and per line
+ *
+ * The writers and the tracker which reads back the output take some of the CPU and allocation themselves,
+ * so compare runs of different releases with the same settings, rather than reading the numbers as absolute.
+ *
+ * Run with, for example:
+ *    java -cp benchmarks/target/benchmarks.jar com.datastax.log.benchmarks.load.LoadGenerator --agents=8 --rate=5000
+ * See LoadOptions for the options.
+ *
+ * @author cingham
+ */
+public class LoadGenerator {
+	// how often each file has the lines due written to it
+	private static final long WRITE_INTERVAL_MILLIS = 10;
+	private static final long MAX_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+
+	private final LoadOptions options;
+	private final List<LogFileWriter> writers = new ArrayList<>();
+	private final LongAdder written = new LongAdder();
+	private final DeliveryTracker tracker = new DeliveryTracker();
+	private final WireBytesFilter wireBytes = new WireBytesFilter();
+	private final AllocationSampler allocation = new AllocationSampler();
+	private final List<ConfigurableApplicationContext> agents = new ArrayList<>();
+	private ConfigurableApplicationContext service;
+	private ScheduledExecutorService writerExecutor;
+	private final List<ScheduledFuture<?>> writing = new ArrayList<>();
+	private File workDir;
+
+	public LoadGenerator(LoadOptions options) {
+		this.options = options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadOptions options;
+		try {
+			options = LoadOptions.parse(args);
+		} catch (IllegalArgumentException ex) {
+			System.err.println(ex.getMessage());
+			System.exit(2);
+			return;
+		}
+		LoadGenerator generator = new LoadGenerator(options);
+		long outstanding;
+		try {
+			outstanding = generator.run();
+		} finally {
+			generator.shutdown();
+		}
+		System.exit(outstanding == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Start everything, write the files for the warmup and the duration, wait for the lines to reach the
+	 * service, and report
+	 *
+	 * @return lines written which had not reached the service by the end of the drain timeout
+	 * @throws Exception error starting the applications, or writing the files
+	 */
+	public long run() throws Exception {
+		workDir = (options.getWorkDir() != null) ? options.getWorkDir() : Files.createTempDirectory("log-load").toFile();
+		workDir.mkdirs();
+		System.out.printf("Load: %d agents x %d files, %,d lines/s each (%,d lines/s), %d byte lines, %ds after a %ds warmup, in %s%n",
+			options.getAgents(), options.getFilesPerAgent(), options.getRate(), options.getTotalRate(),
+			options.getLineLength(), options.getDuration(), options.getWarmup(), workDir);
+		if (!allocation.isSupported()) {
+			System.out.println("This JVM does not count each thread's allocation, it is reported as 0");
+		}
+
+		startService();
+		StorageLayout layout = service.getBean(StorageLayout.class);
+		for (int agent = 0; agent < options.getAgents(); agent++) {
+			String clientId = "agent-" + agent;
+			File directory = new File(workDir, clientId);
+			directory.mkdirs();
+			List<File> files = new ArrayList<>();
+			for (int i = 0; i < options.getFilesPerAgent(); i++) {
+				LogFileWriter writer = new LogFileWriter(new File(directory, "app-" + i + ".log"), options.getRate(),
+					options.getLineLength(), writers.size(), written);
+				writers.add(writer);
+				files.add(writer.getFile());
+				tracker.track(layout.fileFor(clientId + "-" + writer.getFile().getName()));
+			}
+			startAgent(clientId, files);
+		}
+
+		startWriters();
+		long started = System.nanoTime();
+		long warmupEnd = started + TimeUnit.SECONDS.toNanos(options.getWarmup());
+		long writingEnd = warmupEnd + TimeUnit.SECONDS.toNanos(options.getDuration());
+		long interval = TimeUnit.SECONDS.toNanos(options.getReportInterval());
+
+		Histogram reported = new Histogram(MAX_LATENCY_MICROS, 3);
+		Sample last = sample(started);
+		Sample measureStart = null;
+		long nextReport = started + interval;
+		while (true) {
+			long now = System.nanoTime();
+			long next = Math.min(nextReport, (measureStart == null) ? warmupEnd : writingEnd);
+			if (now < next) {
+				TimeUnit.NANOSECONDS.sleep(next - now);
+				continue;
+			}
+			reported.add(tracker.takeLatencies());
+			if (now >= nextReport) {
+				Sample current = sample(now);
+				report(started, last, current, reported);
+				reported.reset();
+				last = current;
+				nextReport += interval;
+			}
+			if (measureStart == null && now >= warmupEnd) {
+				measureStart = sample(now);
+				tracker.startMeasuring();
+			} else if (measureStart != null && now >= writingEnd) {
+				break;
+			}
+		}
+
+		stopWriters();
+		Sample writingStop = sample(System.nanoTime());
+		long drainDeadline = writingStop.time + TimeUnit.SECONDS.toNanos(options.getDrainTimeout());
+		while (tracker.getDelivered() < writingStop.written && System.nanoTime() < drainDeadline) {
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+		Histogram measured = tracker.takeMeasured();
+		Sample end = sample(System.nanoTime());
+
+		summarize(measureStart, writingStop, end, measured);
+		return end.written - end.delivered;
+	}
+
+	private void startService() {
+		List<String> args = new ArrayList<>();
+		args.add("--spring.config.name=load-service");
+		args.add("--server.port=0");
+		args.add("--log-service.filePath=" + new File(workDir, "service").getPath());
+		args.addAll(options.getServiceArgs());
+		service = new SpringApplicationBuilder(com.datastax.log.service.Application.class)
+			.web(WebApplicationType.SERVLET)
+			.bannerMode(Banner.Mode.OFF)
+			.logStartupInfo(false)
+			.initializers(context -> context.getBeanFactory().registerSingleton("wireBytesFilter", wireBytes))
+			.run(args.toArray(new String[0]));
+	}
+
+	private void startAgent(String clientId, List<File> files) {
+		String port = service.getEnvironment().getProperty("local.server.port");
+		List<String> args = new ArrayList<>();
+		args.add("--spring.config.name=load-agent");
+		args.add("--log-agent.clientId=" + clientId);
+		args.add("--log-agent.hostUrl=http://localhost:" + port + "/log-aggregator/");
+		args.addAll(options.getAgentArgs());
+		for (File file : files) {
+			args.add(file.getPath());
+		}
+		agents.add(new SpringApplicationBuilder(com.datastax.log.agent.Application.class)
+			.web(WebApplicationType.NONE)
+			.bannerMode(Banner.Mode.OFF)
+			.logStartupInfo(false)
+			.run(args.toArray(new String[0])));
+	}
+
+	private void startWriters() {
+		AtomicInteger threadCount = new AtomicInteger();
+		writerExecutor = Executors.newScheduledThreadPool(options.getWriterThreads(), runnable -> {
+			Thread thread = new Thread(runnable, "load-writer-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (LogFileWriter writer : writers) {
+			writer.start();
+			writing.add(writerExecutor.scheduleAtFixedRate(() -> {
+				try {
+					writer.write();
+				} catch (IOException ex) {
+					throw new IllegalStateException("Error writing " + writer.getFile(), ex);
+				}
+			}, 0, WRITE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	private void stopWriters() throws InterruptedException {
+		for (ScheduledFuture<?> future : writing) {
+			future.cancel(false);
+		}
+		writerExecutor.shutdown();
+		writerExecutor.awaitTermination(10, TimeUnit.SECONDS);
+		for (LogFileWriter writer : writers) {
+			try {
+				writer.close();
+			} catch (IOException ex) {
+				System.err.println("Error closing " + writer.getFile() + ": " + ex);
+			}
+		}
+	}
+
+	/**
+	 * Stop the agents and the service, and remove the files unless they are to be kept
+	 */
+	public void shutdown() {
+		if (writerExecutor != null) {
+			writerExecutor.shutdownNow();
+		}
+		for (ConfigurableApplicationContext agent : agents) {
+			agent.close();
+		}
+		if (service != null) {
+			service.close();
+		}
+		tracker.shutdown();
+		if (workDir != null && !options.isKeepFiles() && options.getWorkDir() == null) {
+			deleteAll(workDir);
+		}
+	}
+
+	private static void deleteAll(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteAll(child);
+			}
+		}
+		file.delete();
+	}
+
+	private Sample sample(long time) {
+		return new Sample(time, written.sum(), tracker.getDelivered(), wireBytes.getBytes(), wireBytes.getRequests(),
+			allocation.isSupported() ? allocation.sample() : 0);
+	}
+
+	private void report(long started, Sample from, Sample to, Histogram latencies) {
+		double seconds = (to.time - from.time) / 1e9;
+		System.out.printf("%5ds  written %,10.0f lines/s  delivered %,10.0f lines/s  p50 %8.1f ms  p99 %8.1f ms  wire %7.2f MB/s  alloc %8.1f MB/s%n",
+			TimeUnit.NANOSECONDS.toSeconds(to.time - started),
+			(to.written - from.written) / seconds, (to.delivered - from.delivered) / seconds,
+			millis(latencies, 50), millis(latencies, 99),
+			(to.wireBytes - from.wireBytes) / seconds / 1e6, (to.allocated - from.allocated) / seconds / 1e6);
+	}
+
+	private void summarize(Sample start, Sample writingStop, Sample end, Histogram latencies) {
+		double writingSeconds = (writingStop.time - start.time) / 1e9;
+		double seconds = (end.time - start.time) / 1e9;
+		long delivered = end.delivered - start.delivered;
+		long wireBytes = end.wireBytes - start.wireBytes;
+		long allocated = end.allocated - start.allocated;
+		int sourceBytes = options.getLineLength() + 1;
+
+		System.out.println();
+		System.out.printf("Throughput:  %,.0f lines/s delivered while writing %,.0f lines/s (%,d lines in %.1fs)%n",
+			(writingStop.delivered - start.delivered) / writingSeconds,
+			(writingStop.written - start.written) / writingSeconds, writingStop.written - start.written, writingSeconds);
+		System.out.printf("Drain:       %,d lines outstanding when writing stopped, %,d after %.1fs%n",
+			writingStop.written - writingStop.delivered, end.written - end.delivered, (end.time - writingStop.time) / 1e9);
+		System.out.printf("Latency:     p50 %.1f ms  p90 %.1f ms  p99 %.1f ms  p99.9 %.1f ms  max %.1f ms (%,d lines)%n",
+			millis(latencies, 50), millis(latencies, 90), millis(latencies, 99), millis(latencies, 99.9),
+			latencies.getMaxValue() / 1000.0, latencies.getTotalCount());
+		System.out.printf("Wire:        %.2f MB/s in %,.0f requests/s, %.1f bytes/line (the lines are %d bytes)%n",
+			wireBytes / seconds / 1e6, (end.requests - start.requests) / seconds,
+			(delivered > 0) ? (double) wireBytes / delivered : 0, sourceBytes);
+		System.out.printf("Allocation:  %.1f MB/s, %,.0f bytes/line (whole process)%n",
+			allocated / seconds / 1e6, (delivered > 0) ? (double) allocated / delivered : 0);
+		if (tracker.getMalformed() > 0) {
+			System.out.printf("Malformed:   %,d lines in the output had no time stamp%n", tracker.getMalformed());
+		}
+	}
+
+	private static double millis(Histogram latencies, double percentile) {
+		return latencies.getValueAtPercentile(percentile) / 1000.0;
+	}
+
+	/**
+	 * The counters at a point in time
+	 */
+	private static class Sample {
+		final long time;
+		final long written;
+		final long delivered;
+		final long wireBytes;
+		final long requests;
+		final long allocated;
+
+		Sample(long time, long written, long delivered, long wireBytes, long requests, long allocated) {
+			this.time = time;
+			this.written = written;
+			this.delivered = delivered;
+			this.wireBytes = wireBytes;
+			this.requests = requests;
+			this.allocated = allocated;
+		}
+	}
+}
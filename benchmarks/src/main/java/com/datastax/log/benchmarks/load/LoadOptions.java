@@ -0,0 +1,92 @@
+package com.datastax.log.benchmarks.load;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings for a LoadGenerator run, from command line options of the form --name=value.
+ * Options starting --log-agent. are handed to every agent and --log-service. to the service, over the settings
+ * in load-agent.yml and load-service.yml, and --logging. options to both.
+ *
+ * @author cingham
+ */
+@Getter
+public class LoadOptions {
+	private int agents = 4;
+	private int filesPerAgent = 4;
+	private int rate = 1000;			// lines per second written to each file
+	private int lineLength = 200;		// bytes, without the newline
+	private int duration = 60;			// seconds the files are written for, after the warmup
+	private int warmup = 10;			// seconds written before anything is measured
+	private int drainTimeout = 60;		// seconds to wait for the lines written to reach the service
+	private int reportInterval = 5;		// seconds between progress reports
+	private int writerThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	private File workDir;				// holds the files written and the service's output, a new temp directory if not set
+	private boolean keepFiles;
+	private final List<String> agentArgs = new ArrayList<>();
+	private final List<String> serviceArgs = new ArrayList<>();
+
+	/**
+	 * @param args the command line
+	 * @return the settings
+	 * @throws IllegalArgumentException an option is not known or its value is not valid
+	 */
+	public static LoadOptions parse(String... args) {
+		LoadOptions options = new LoadOptions();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (!arg.startsWith("--") || equals < 0) {
+				throw new IllegalArgumentException("Options are given as --name=value: " + arg);
+			}
+			String name = arg.substring(2, equals);
+			String value = arg.substring(equals + 1);
+			if (name.startsWith("log-agent.")) {
+				options.agentArgs.add(arg);
+			} else if (name.startsWith("log-service.")) {
+				options.serviceArgs.add(arg);
+			} else if (name.startsWith("logging.")) {
+				options.agentArgs.add(arg);
+				options.serviceArgs.add(arg);
+			} else {
+				options.set(name, value);
+			}
+		}
+		return options;
+	}
+
+	private void set(String name, String value) {
+		switch (name) {
+			case "agents": agents = positive(name, value); break;
+			case "filesPerAgent": filesPerAgent = positive(name, value); break;
+			case "rate": rate = positive(name, value); break;
+			case "lineLength": lineLength = positive(name, value); break;
+			case "duration": duration = positive(name, value); break;
+			case "warmup": warmup = Integer.parseInt(value); break;
+			case "drainTimeout": drainTimeout = Integer.parseInt(value); break;
+			case "reportInterval": reportInterval = positive(name, value); break;
+			case "writerThreads": writerThreads = positive(name, value); break;
+			case "workDir": workDir = new File(value); break;
+			case "keepFiles": keepFiles = Boolean.parseBoolean(value); break;
+			default:
+				throw new IllegalArgumentException("Unknown option: --" + name);
+		}
+	}
+
+	private static int positive(String name, String value) {
+		int number = Integer.parseInt(value);
+		if (number <= 0) {
+			throw new IllegalArgumentException("--" + name + " must be more than 0: " + value);
+		}
+		return number;
+	}
+
+	/**
+	 * @return lines per second written across all of the files
+	 */
+	public long getTotalRate() {
+		return (long) agents * filesPerAgent * rate;
+	}
+}
@@ -0,0 +1,109 @@
+package com.datastax.log.benchmarks.load;
+
+import com.datastax.log.benchmarks.SyntheticLines;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Appends synthetic lines to one log file at a steady rate, as an application would.  write() is called every
+ * few millis and writes the lines which have fallen due since the last call, in one write, so the rate holds
+ * however often it is called.  A writer which falls behind catches up rather than dropping lines.
+ *
+ * Each line starts with the System.nanoTime() it was written at, which DeliveryTracker reads back from the
+ * service's output file to work out how long the line took to get there.  The rest of each line is taken from
+ * a set of synthetic lines made up front, so making lines costs next to nothing.  Not thread safe.
+ *
+ * @author cingham
+ */
+public class LogFileWriter {
+	private static final int DISTINCT_LINES = 1024;
+	// room for the nanoTime and the space after it
+	private static final int STAMP_BYTES = 21;
+
+	private final File file;
+	private final FileOutputStream out;
+	private final long rate;
+	private final int lineLength;
+	private final byte[][] bodies;
+	private final LongAdder written;
+	private byte[] buffer = new byte[64 * 1024];
+	private long start;
+	private long lines;
+
+	/**
+	 * @param file the file, created (or emptied) now
+	 * @param rate lines per second
+	 * @param lineLength bytes in each line, without its newline, at least enough for the time stamp
+	 * @param seed seed for the synthetic lines
+	 * @param written counts the lines written, shared by all of the writers
+	 * @throws IOException the file cannot be created
+	 */
+	public LogFileWriter(File file, long rate, int lineLength, long seed, LongAdder written) throws IOException {
+		this.file = file;
+		this.out = new FileOutputStream(file);
+		this.rate = rate;
+		this.lineLength = Math.max(lineLength, STAMP_BYTES);
+		this.written = written;
+		SyntheticLines synthetic = new SyntheticLines(seed);
+		this.bodies = new byte[DISTINCT_LINES][];
+		for (int i = 0; i < DISTINCT_LINES; i++) {
+			bodies[i] = synthetic.nextBytes(this.lineLength);
+		}
+	}
+
+	/**
+	 * Start the clock the rate is kept to
+	 */
+	public void start() {
+		start = System.nanoTime();
+	}
+
+	/**
+	 * Write the lines due by now
+	 *
+	 * @throws IOException error writing the file
+	 */
+	public void write() throws IOException {
+		long now = System.nanoTime();
+		long due = (now - start) / 1000 * rate / 1000000 - lines;
+		if (due <= 0) {
+			return;
+		}
+		int length = 0;
+		byte[] stamp = (Long.toString(now) + ' ').getBytes(StandardCharsets.US_ASCII);
+		for (long i = 0; i < due; i++) {
+			if (length + lineLength + 1 > buffer.length) {
+				if (length == 0) {
+					buffer = new byte[lineLength + 1];
+				} else {
+					out.write(buffer, 0, length);
+					length = 0;
+				}
+			}
+			byte[] body = bodies[(int) ((lines + i) % DISTINCT_LINES)];
+			System.arraycopy(stamp, 0, buffer, length, stamp.length);
+			System.arraycopy(body, stamp.length, buffer, length + stamp.length, lineLength - stamp.length);
+			length += lineLength;
+			buffer[length++] = '\n';
+		}
+		out.write(buffer, 0, length);
+		lines += due;
+		written.add(due);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getLines() {
+		return lines;
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+}
@@ -0,0 +1,102 @@
+package com.datastax.log.benchmarks.load;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the requests the service receives and the bytes of their bodies, as sent (so after compression, and
+ * whether or not they were chunked), by counting what is read from each request's input stream.
+ * Added to the in-process service as a bean by LoadGenerator.
+ *
+ * @author cingham
+ */
+public class WireBytesFilter implements Filter {
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		requests.increment();
+		chain.doFilter(new CountingRequest((HttpServletRequest) request), response);
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	private class CountingRequest extends HttpServletRequestWrapper {
+		private ServletInputStream in;
+
+		CountingRequest(HttpServletRequest request) {
+			super(request);
+		}
+
+		@Override
+		public ServletInputStream getInputStream() throws IOException {
+			if (in == null) {
+				in = new CountingInputStream(super.getInputStream());
+			}
+			return in;
+		}
+	}
+
+	private class CountingInputStream extends ServletInputStream {
+		private final ServletInputStream in;
+
+		CountingInputStream(ServletInputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				bytes.increment();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = in.read(buffer, offset, length);
+			if (read > 0) {
+				bytes.add(read);
+			}
+			return read;
+		}
+
+		@Override
+		public boolean isFinished() {
+			return in.isFinished();
+		}
+
+		@Override
+		public boolean isReady() {
+			return in.isReady();
+		}
+
+		@Override
+		public void setReadListener(ReadListener readListener) {
+			in.setReadListener(readListener);
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package com.datastax.log.service.service;
+
+import com.datastax.log.benchmarks.SyntheticLines;
+import com.datastax.log.service.codec.Compression;
+import com.datastax.log.service.config.Config;
+import com.datastax.log.service.config.FlushPolicy;
+import com.datastax.log.service.dto.LogDto;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes one request's lines to an output file through the service's whole write path (ingest limits, group
+ * commit and the writer pool), with each sync policy:
+ *    appendToFile - lines without offsets, as older agents send them
+ *    appendChunk  - an offset tracked chunk, as agents send them now, so the committed offset is checked
+ *                   and journalled as well
+ *
+ * Each iteration writes to new files in a new temp directory, removed after it, so the temp directory needs
+ * room for an iteration's worth of lines.  With GROUP or BATCH the score includes an fsync for every request
+ * (a single thread gives group commit nothing to share), so it depends on the disk more than on the code.
+ * In the benchmarks module, but in the appender's package, to reach its constructor.
+ *
+ * Run with: java -jar benchmarks/target/benchmarks.jar LogAppenderBenchmark
+ *
+ * @author cingham
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LogAppenderBenchmark {
+	private static final String CLIENT_ID = "benchmark";
+
+	@Param({"CLOSE", "GROUP"})
+	FlushPolicy syncPolicy;
+	@Param({"100"})
+	int linesPerRequest;
+	@Param({"100"})
+	int lineLength;
+
+	private List<String> lines;
+	private File directory;
+	private OffsetStore offsetStore;
+	private SegmentManager segmentManager;
+	private WriterPool writerPool;
+	private GroupCommitter groupCommitter;
+	private LogAppender logAppender;
+	private long offset;
+
+	@Setup(Level.Trial)
+	public void setupLines() {
+		lines = Arrays.asList(new SyntheticLines(1).lines(linesPerRequest, lineLength));
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("log-appender-benchmark").toFile();
+		Config config = new Config();
+		config.setFilePath(directory.getPath());
+		config.setSyncPolicy(syncPolicy);
+		config.setSegmentCompression(Compression.NONE);
+		config.setMaxInFlightPerFile(Integer.MAX_VALUE);
+
+		StorageLayout layout = new StorageLayout(config);
+		offsetStore = new OffsetStore(config);
+		segmentManager = new SegmentManager(config, layout);
+		writerPool = new WriterPool(config, offsetStore, segmentManager);
+		groupCommitter = new GroupCommitter(config, writerPool);
+		logAppender = new LogAppender(layout, new PartitionRing(config), groupCommitter, offsetStore,
+			new IngestLimiter(config), segmentManager);
+		offset = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		groupCommitter.shutdown();
+		writerPool.shutdown();
+		offsetStore.shutdown();
+		segmentManager.shutdown();
+		deleteAll(directory);
+	}
+
+	private static void deleteAll(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteAll(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Benchmark
+	public void appendToFile() throws Exception {
+		logAppender.appendToFile(CLIENT_ID, "lines.log", lines);
+	}
+
+	@Benchmark
+	public StreamOffset appendChunk() throws Exception {
+		long start = offset;
+		offset += (long) linesPerRequest * (lineLength + 1);
+		return logAppender.appendChunk(CLIENT_ID, new LogDto("chunks.log", "chunks.log@1", start, offset, lines));
+	}
+}
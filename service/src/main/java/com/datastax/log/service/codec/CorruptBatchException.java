@@ -0,0 +1,19 @@
+package com.datastax.log.service.codec;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request body is not a valid log batch, it is answered with 400 Bad Request.
+ * Other IOExceptions (the client going away, a failed write) are still the service's problem.
+ *
+ * @author cingham
+ */
+public class CorruptBatchException extends IOException {
+
+	/**
+	 * @param message what is wrong with the batch
+	 */
+	public CorruptBatchException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,286 @@
+package com.datastax.log.service.codec;
+
+import com.github.luben.zstd.Zstd;
+import lombok.Getter;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Streaming decoder for the binary log batch format (Content-Type application/x-log-batch).
+ *
+ *    int    magic "LGB1"
+ *    byte   compression id, see Compression
+ *    UTF    filename
+ *    UTF    fileId, empty if the source is not offset tracked
+ *    long   startOffset
+ *    long   endOffset
+ *    blocks, each:
+ *       int   raw (uncompressed) length, 0 marks the end of the batch
+ *       int   compressed length
+ *       bytes compressed block
+ *
+ * An uncompressed block is a sequence of lines, each a varint byte length followed by the raw line bytes
+ * (no line terminator).  A batch whose lines carry timestamps (magic "LGB2") follows each line with a varlong:
+ * 0 for a line without a timestamp, otherwise 1 + the zigzag encoded difference from the last timestamp before
+ * it in the batch (from 0).  Blocks are decompressed into a reused buffer and lines are exposed as slices of
+ * it, so no per-line objects are created while reading a batch.
+ *
+ * A multi-file upload (Content-Type application/x-log-batches) carries one batch for each file:
+ *
+ *    int    magic "LGM1"
+ *    int    number of batches, at most MAX_BATCHES
+ *    the batches, one after another, each as above
+ *
+ * Each batch is read by its own LogBatchReader on the same stream, which must be read to its end
+ * (see skipRemaining()) before the next one is.
+ *
+ * @author cingham
+ */
+public class LogBatchReader implements Closeable {
+	public static final String CONTENT_TYPE = "application/x-log-batch";
+	public static final int MAGIC = 0x4C474231;		// "LGB1"
+	public static final int TIMESTAMPS_MAGIC = 0x4C474232;	// "LGB2", each line followed by its timestamp
+	/** the timestamp of a line which has none */
+	public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+	public static final String MULTI_CONTENT_TYPE = "application/x-log-batches";
+	public static final int MULTI_MAGIC = 0x4C474D31;	// "LGM1"
+	public static final int MAX_BATCHES = 64 * 1024;
+	public static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+
+	// the body comes from the network, so the decompressor which checks its input (and no native code) is used
+	private static final LZ4SafeDecompressor lz4 = LZ4Factory.fastestJavaInstance().safeDecompressor();
+
+	private final DataInputStream in;
+	private final Compression compression;
+	private Inflater inflater;
+
+	@Getter
+	private final String filename;
+	@Getter
+	private final String fileId;
+	@Getter
+	private final long startOffset;
+	@Getter
+	private final long endOffset;
+	private final boolean timestamps;
+
+	private byte[] compressed = new byte[0];
+	private byte[] block = new byte[0];
+	private int blockLength;
+	private int position;
+	private boolean finished;
+
+	private int lineStart;
+	private int lineLength;
+	private long lineTimestamp = NO_TIMESTAMP;
+	private long lastTimestamp;
+
+	/**
+	 * Read the batch header from the stream
+	 *
+	 * @param in the request body
+	 * @throws IOException stream error or invalid header
+	 */
+	public LogBatchReader(InputStream in) throws IOException {
+		this.in = new DataInputStream(in);
+		int magic = this.in.readInt();
+		if (magic != MAGIC && magic != TIMESTAMPS_MAGIC) {
+			throw new CorruptBatchException("Not a log batch, invalid header");
+		}
+		this.timestamps = (magic == TIMESTAMPS_MAGIC);
+		this.compression = Compression.fromId(this.in.readUnsignedByte());
+		this.filename = this.in.readUTF();
+		String id = this.in.readUTF();
+		this.fileId = id.isEmpty() ? null : id;
+		this.startOffset = this.in.readLong();
+		this.endOffset = this.in.readLong();
+	}
+
+	/**
+	 * Advance to the next line, reading and decompressing the next block when needed
+	 *
+	 * @return false when there are no more lines
+	 * @throws IOException stream error or corrupt block
+	 */
+	public boolean nextLine() throws IOException {
+		while (position >= blockLength) {
+			if (finished || !readBlock()) {
+				return false;
+			}
+		}
+		lineLength = readVarint();
+		if (lineLength < 0 || lineLength > blockLength - position) {
+			throw new CorruptBatchException("Corrupt log batch, line overruns its block");
+		}
+		lineStart = position;
+		position += lineLength;
+		if (timestamps) {
+			long code = readVarlong();
+			if (code == 0) {
+				lineTimestamp = NO_TIMESTAMP;
+			} else {
+				long zigzag = code - 1;
+				lastTimestamp += (zigzag >>> 1) ^ -(zigzag & 1);
+				lineTimestamp = lastTimestamp;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return buffer holding the current line, only valid until the next call to nextLine()
+	 */
+	public byte[] lineBuffer() {
+		return block;
+	}
+
+	public int lineStart() {
+		return lineStart;
+	}
+
+	public int lineLength() {
+		return lineLength;
+	}
+
+	/**
+	 * @return epoch millis the current line starts with, as the agent read it, or NO_TIMESTAMP
+	 */
+	public long lineTimestamp() {
+		return lineTimestamp;
+	}
+
+	/**
+	 * @return true if the batch carries a timestamp for each line (some may have none)
+	 */
+	public boolean hasTimestamps() {
+		return timestamps;
+	}
+
+	/**
+	 * Read past whatever lines are left, so the stream is positioned after the batch
+	 *
+	 * @throws IOException stream error or corrupt block
+	 */
+	public void skipRemaining() throws IOException {
+		while (nextLine()) {
+			// discard
+		}
+	}
+
+	/**
+	 * Release the decompressor, the request stream itself is left to the container
+	 */
+	@Override
+	public void close() {
+		if (inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+	}
+
+	private boolean readBlock() throws IOException {
+		int rawLength = in.readInt();
+		if (rawLength == 0) {
+			finished = true;
+			return false;
+		}
+		int compressedLength = in.readInt();
+		if (rawLength < 0 || rawLength > MAX_BLOCK_SIZE || compressedLength < 0 || compressedLength > MAX_BLOCK_SIZE) {
+			throw new CorruptBatchException("Corrupt log batch, invalid block length");
+		}
+		if (block.length < rawLength) {
+			block = new byte[rawLength];
+		}
+
+		if (compression == Compression.NONE) {
+			if (compressedLength != rawLength) {
+				throw new CorruptBatchException("Corrupt log batch, invalid block length");
+			}
+			in.readFully(block, 0, rawLength);
+		} else {
+			if (compressed.length < compressedLength) {
+				compressed = new byte[compressedLength];
+			}
+			in.readFully(compressed, 0, compressedLength);
+			decompress(compressedLength, rawLength);
+		}
+
+		blockLength = rawLength;
+		position = 0;
+		return true;
+	}
+
+	private void decompress(int compressedLength, int rawLength) throws IOException {
+		switch (compression) {
+			case GZIP:
+				if (inflater == null) {
+					inflater = new Inflater();
+				}
+				inflater.reset();
+				inflater.setInput(compressed, 0, compressedLength);
+				try {
+					if (inflater.inflate(block, 0, rawLength) != rawLength) {
+						throw new CorruptBatchException("Corrupt log batch, short block");
+					}
+				} catch (DataFormatException dfe) {
+					throw new CorruptBatchException("Corrupt log batch, " + dfe.getMessage());
+				}
+				break;
+			case LZ4:
+				try {
+					if (lz4.decompress(compressed, 0, compressedLength, block, 0, rawLength) != rawLength) {
+						throw new CorruptBatchException("Corrupt log batch, short block");
+					}
+				} catch (LZ4Exception le) {
+					throw new CorruptBatchException("Corrupt log batch, " + le.getMessage());
+				}
+				break;
+			case ZSTD:
+				long size = Zstd.decompressByteArray(block, 0, rawLength, compressed, 0, compressedLength);
+				if (Zstd.isError(size) || size != rawLength) {
+					throw new CorruptBatchException("Corrupt log batch, invalid zstd block");
+				}
+				break;
+			default:
+				throw new IllegalStateException("Unexpected compression " + compression);
+		}
+	}
+
+	private int readVarint() throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			if (position >= blockLength) {
+				throw new CorruptBatchException("Corrupt log batch, truncated line length");
+			}
+			byte b = block[position++];
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new CorruptBatchException("Corrupt log batch, invalid line length");
+	}
+
+	private long readVarlong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (position >= blockLength) {
+				throw new CorruptBatchException("Corrupt log batch, truncated line timestamp");
+			}
+			byte b = block[position++];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new CorruptBatchException("Corrupt log batch, invalid line timestamp");
+	}
+}
@@ -1,5 +1,6 @@
 package com.datastax.log.service.config;
 
+import com.datastax.log.service.codec.Compression;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
@@ -7,6 +8,10 @@ import org.springframework.boot.context.properties.EnableConfigurationProperties
 import org.springframework.context.annotation.Configuration;
 
 import javax.validation.constraints.NotEmpty;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Configuration loaded by SpringBoot to gather parameters from application.yml
@@ -21,4 +26,100 @@ import javax.validation.constraints.NotEmpty;
 public class Config {
 	@NotEmpty
 	private String filePath;
+
+	// limits and policies for the pool of open output files
+	private int maxOpenWriters = 1024;
+	private int writerIdleTimeout = 60;		// seconds
+	private int writeBufferSize = 64 * 1024;	// bytes
+	private FlushPolicy flushPolicy = FlushPolicy.BATCH;
+	private FlushPolicy syncPolicy = FlushPolicy.GROUP;
+	private int flushInterval = 1000;		// millis
+
+	// group commit, when syncPolicy is GROUP
+	private int groupCommitThreads = 4;
+	private int maxGroupSize = 256;		// requests
+
+	// admission limits, requests over them are turned away with a Retry-After
+	private int maxInFlightPerFile = 8;		// requests
+	private long maxInFlightBytes = 64 * 1024 * 1024;	// bytes, across all files
+	private int retryAfter = 1;		// seconds
+
+	// what each client may send, and its share of the group committers (see Quota)
+	private Quota quota = new Quota();
+	private Map<String, Quota> clientQuota = new HashMap<>();
+
+	// rolling segments of each output file, and how long closed segments are kept
+	private long maxSegmentBytes = 256 * 1024 * 1024;	// bytes, 0 for no size limit
+	private int maxSegmentAge = 24 * 60 * 60;		// seconds, 0 for no time limit
+	private Compression segmentCompression = Compression.GZIP;
+	private Retention retention = new Retention();
+	private Map<String, Retention> clientRetention = new HashMap<>();
+
+	// reading the output files back
+	private int indexInterval = 1000;		// lines between index checkpoints, 0 for no index
+	private int maxFollowers = 64;		// readers following files at once
+	private int followTimeout = 60 * 60;	// seconds a follow request stays open, 0 for no limit
+
+	// searching the output files: a token index is built for each closed segment, searches scan the segments
+	// it cannot rule out on this many threads (0 for one per core), and return up to maxSearchResults lines
+	private boolean searchIndex = true;
+	private int searchThreads;
+	private int maxSearchResults = 1000;
+
+	// output files are spread over this many hashed subdirectories of filePath, 0 to keep them all in filePath
+	private int storageShards = 256;
+
+	// service instances sharing filePath, each file is written by the one instance that owns it
+	private String instanceUrl;		// this instance, as it appears in instances
+	private List<String> instances = new ArrayList<>();
+	private int virtualNodes = 128;		// points on the hash ring per instance
+
+	/**
+	 * How long a client's closed segments are kept, whichever limit is reached first.  Zero for no limit.
+	 */
+	@Getter
+	@Setter
+	public static class Retention {
+		private int maxAge;		// hours
+		private long maxBytes;	// bytes, across all of the client's files
+	}
+
+	/**
+	 * What one client may send, requests over it are turned away with 429 and a Retry-After.  Zero for no limit.
+	 * The weight is the client's share of the group committers while other clients have writes waiting too,
+	 * a client with weight 2 gets twice the bytes written of a client with weight 1.  It only applies when
+	 * syncPolicy is GROUP, other policies write each request on its own thread.
+	 */
+	@Getter
+	@Setter
+	public static class Quota {
+		private int weight = 1;
+		private long maxBytesPerSecond;		// source bytes of lines, across all of the client's files
+		private long maxBurstBytes;			// bytes which may be sent at once after a quiet spell, 0 for maxBytesPerSecond
+		private int maxInFlight;			// requests accepted and not yet written, across all of the client's files
+	}
+
+	/**
+	 * @param clientId a client sending logs
+	 * @return the quota configured for the client, or the default quota
+	 */
+	public Quota quotaFor(String clientId) {
+		Quota clientPolicy = (clientQuota != null && clientId != null) ? clientQuota.get(clientId) : null;
+		if (clientPolicy != null) {
+			return clientPolicy;
+		}
+		return (quota != null) ? quota : new Quota();
+	}
+
+	/**
+	 * @param clientId a client sending logs
+	 * @return the retention configured for the client, or the default retention
+	 */
+	public Retention retentionFor(String clientId) {
+		Retention clientPolicy = (clientRetention != null && clientId != null) ? clientRetention.get(clientId) : null;
+		if (clientPolicy != null) {
+			return clientPolicy;
+		}
+		return (retention != null) ? retention : new Retention();
+	}
 }
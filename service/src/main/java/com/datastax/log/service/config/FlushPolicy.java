@@ -0,0 +1,18 @@
+package com.datastax.log.service.config;
+
+/**
+ * When buffered output should be pushed to the OS (flush) or forced to the storage device (fsync).
+ *    BATCH - after every request has been written
+ *    INTERVAL - periodically, every log-service.flushInterval milliseconds
+ *    CLOSE - only when the file is closed (eviction or shutdown)
+ *    GROUP - (syncPolicy only) requests for a file are queued and written together by a committer thread,
+ *            covered by a single fsync, and each request is acknowledged once its lines are on disk
+ *
+ * @author cingham
+ */
+public enum FlushPolicy {
+	BATCH,
+	INTERVAL,
+	CLOSE,
+	GROUP
+}
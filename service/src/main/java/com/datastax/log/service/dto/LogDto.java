@@ -8,7 +8,12 @@ import lombok.Setter;
 import java.util.List;
 
 /**
- *  POJO to represent the JSON format sent from each agent
+ *  POJO to represent the JSON format sent from each agent.
+ *
+ *  Newer agents also send the identity (epoch) of the source file and the byte offset range
+ *  the lines were read from, which lets the service ignore chunks it has already written.
+ *  Older agents leave these out, and their lines are always appended.
+ *  Agents may also send the timestamp each line starts with, as epoch millis (Long.MIN_VALUE for none).
  *
  * @author cingham
  */
@@ -18,5 +23,18 @@ import java.util.List;
 @Setter
 public class LogDto {
 	String filename;
+	String fileId;
+	long startOffset;
+	long endOffset;
     List<String> lines;
+	long[] timestamps;
+
+	public LogDto(String filename, List<String> lines) {
+		this.filename = filename;
+		this.lines = lines;
+	}
+
+	public LogDto(String filename, String fileId, long startOffset, long endOffset, List<String> lines) {
+		this(filename, fileId, startOffset, endOffset, lines, null);
+	}
 }
@@ -0,0 +1,22 @@
+package com.datastax.log.service.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ *  POJO to represent a multi-file upload sent from an agent: a chunk of lines (with its file identity
+ *  and offsets) for each of several files, so an agent tailing many files sends one request for all of them.
+ *
+ * @author cingham
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+public class MultiLogDto {
+	List<LogDto> entries;
+}
@@ -0,0 +1,24 @@
+package com.datastax.log.service.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ *  POJO to represent the JSON response to a multi-file upload.  Each entry is answered on its own, in the
+ *  order they were sent, just as it would have been by a single upload, so one file failing does not fail the rest.
+ *
+ * @author cingham
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+public class MultiLogResponseDto {
+	int status;
+	String message;
+	List<ServerResponseDto> entries;
+}
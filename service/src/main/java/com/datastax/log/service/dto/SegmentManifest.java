@@ -0,0 +1,56 @@
+package com.datastax.log.service.dto;
+
+import com.datastax.log.service.codec.Compression;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  POJO to represent the JSON manifest kept beside each output file, listing its segments.
+ *
+ *  Lines and bytes are numbered from the start of the whole replica (all segments together, uncompressed),
+ *  each segment holds the lines [firstLine, endLine) and the bytes [startByte, endByte).
+ *  The active segment is the file still being written, it starts at activeFirstLine and activeStartByte.
+ *
+ * @author cingham
+ */
+@NoArgsConstructor
+@Getter
+@Setter
+public class SegmentManifest {
+	String stream;
+	String clientId;
+	long nextSequence = 1;
+	long activeFirstLine;
+	long activeStartByte;
+	long activeCreated;
+	List<Segment> segments = new ArrayList<>();
+
+	public SegmentManifest(String stream) {
+		this.stream = stream;
+	}
+
+	/**
+	 * A closed segment of the file
+	 */
+	@NoArgsConstructor
+	@AllArgsConstructor
+	@Getter
+	@Setter
+	public static class Segment {
+		String file;
+		long sequence;
+		long firstLine;
+		long endLine;
+		long startByte;
+		long endByte;
+		long created;
+		long closed;
+		Compression compression;
+		long size;		// bytes on disk
+	}
+}
@@ -1,18 +1,39 @@
 package com.datastax.log.service.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 
 /**
- *  POJO to represent the JSON response returned from the server
+ *  POJO to represent the JSON response returned from the server.
+ *  For offset tracked uploads it also reports the file identity and offset the server has committed,
+ *  and for a request turned away (429 or 503) the seconds to wait before re-sending it, as in the Retry-After header.
+ *  A request which was written also carries the share of maxInFlightBytes in use, so agents can pace their uploads.
  *
  * @author cingham
  */
 @AllArgsConstructor
 @Getter
 @Setter
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class ServerResponseDto {
 	int status;
 	String message;
+	String fileId;
+	Long committedOffset;
+	Integer retryAfter;
+	Double load;
+
+	public ServerResponseDto(int status, String message) {
+		this(status, message, null, null, null, null);
+	}
+
+	public ServerResponseDto(int status, String message, String fileId, Long committedOffset) {
+		this(status, message, fileId, committedOffset, null, null);
+	}
+
+	public ServerResponseDto(int status, String message, String fileId, Long committedOffset, Integer retryAfter) {
+		this(status, message, fileId, committedOffset, retryAfter, null);
+	}
 }
@@ -0,0 +1,114 @@
+package com.datastax.log.service.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals for the group commit stage:
+ *    group size     - requests written and synced together
+ *    commit latency - time to write and sync one group
+ *    wait latency   - time from a request being queued until it is acknowledged
+ * which are also published as metrics (log.service.commit.group.size, log.service.commit and log.service.commit.wait,
+ * the latencies with percentile histograms).
+ *
+ * @author cingham
+ */
+public class GroupCommitStats {
+	private static final DistributionSummary groupSizes = DistributionSummary.builder("log.service.commit.group.size")
+		.description("Requests written and synced together").register(Metrics.globalRegistry);
+	private static final Timer commitTimer = Timer.builder("log.service.commit")
+		.description("Time to write and sync a group of requests").publishPercentileHistogram().register(Metrics.globalRegistry);
+	private static final Timer waitTimer = Timer.builder("log.service.commit.wait")
+		.description("Time from a request being queued until it is on disk").publishPercentileHistogram().register(Metrics.globalRegistry);
+
+	private final LongAdder groups = new LongAdder();
+	private final LongAdder requests = new LongAdder();
+	private final LongAccumulator maxGroupSize = new LongAccumulator(Math::max, 0);
+	private final LongAdder commitNanos = new LongAdder();
+	private final LongAccumulator maxCommitNanos = new LongAccumulator(Math::max, 0);
+	private final LongAdder waitNanos = new LongAdder();
+	private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+	private final LongAdder failedGroups = new LongAdder();
+
+	void recordGroup(int size, long commitTime) {
+		groups.increment();
+		requests.add(size);
+		maxGroupSize.accumulate(size);
+		commitNanos.add(commitTime);
+		maxCommitNanos.accumulate(commitTime);
+		groupSizes.record(size);
+		commitTimer.record(commitTime, TimeUnit.NANOSECONDS);
+	}
+
+	void recordWait(long waitTime) {
+		waitNanos.add(waitTime);
+		maxWaitNanos.accumulate(waitTime);
+		waitTimer.record(waitTime, TimeUnit.NANOSECONDS);
+	}
+
+	void recordFailure() {
+		failedGroups.increment();
+	}
+
+	public long getGroups() {
+		return groups.sum();
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	public long getMaxGroupSize() {
+		return maxGroupSize.get();
+	}
+
+	public long getFailedGroups() {
+		return failedGroups.sum();
+	}
+
+	public double getAverageGroupSize() {
+		long count = getGroups();
+		return count == 0 ? 0 : (double) getRequests() / count;
+	}
+
+	/**
+	 * @return average time to write and sync a group, in millis
+	 */
+	public double getAverageCommitMillis() {
+		long count = getGroups();
+		return count == 0 ? 0 : toMillis(commitNanos.sum()) / count;
+	}
+
+	public double getMaxCommitMillis() {
+		return toMillis(maxCommitNanos.get());
+	}
+
+	/**
+	 * @return average time from a request being queued until it was acknowledged, in millis
+	 */
+	public double getAverageWaitMillis() {
+		long count = getRequests();
+		return count == 0 ? 0 : toMillis(waitNanos.sum()) / count;
+	}
+
+	public double getMaxWaitMillis() {
+		return toMillis(maxWaitNanos.get());
+	}
+
+	private static double toMillis(long nanos) {
+		return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("groups=%d, requests=%d, failedGroups=%d, groupSize avg=%.1f max=%d, "
+				+ "commit avg=%.2fms max=%.2fms, wait avg=%.2fms max=%.2fms",
+			getGroups(), getRequests(), getFailedGroups(), getAverageGroupSize(), getMaxGroupSize(),
+			getAverageCommitMillis(), getMaxCommitMillis(), getAverageWaitMillis(), getMaxWaitMillis());
+	}
+}
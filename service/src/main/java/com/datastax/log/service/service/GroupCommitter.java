@@ -0,0 +1,429 @@
+package com.datastax.log.service.service;
+
+import com.datastax.log.service.config.Config;
+import com.datastax.log.service.config.FlushPolicy;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Group commit stage in front of the WriterPool, used when syncPolicy is GROUP.
+ *
+ * Each request's write is queued behind the others for the same file, and submit() returns a CompletableFuture
+ * straight away, no request thread waits for the write (the controllers answer the request asynchronously).
+ * A committer thread takes everything queued for the file (up to maxGroupSize requests), writes it
+ * in queue order through the file's buffered writer, so many small requests become large sequential
+ * writes, and then syncs the file once for the whole group.  Only then are the futures completed,
+ * so a request is never acknowledged before its lines are on disk, while the cost of the fsync is shared by
+ * every request that arrived during the previous one.
+ *
+ * A file is handled by one committer at a time, which keeps its requests in order, while different
+ * files are committed in parallel by up to groupCommitThreads threads.  Any other syncPolicy writes
+ * straight through the WriterPool in submit(), on the calling thread, and returns a completed future.
+ *
+ * The committers share out their time between clients by weighted fair queuing, so one client sending huge
+ * batches (or catching up on a backlog) cannot hold up everyone else.  Each client with writes waiting has a
+ * virtual finish time, which goes up by the bytes of each group written for it divided by its weight (see
+ * Config.Quota), and a committer always takes the next group from the client with the earliest one.  A client
+ * which has been idle starts again at the virtual time of the last group taken, so it gets no credit for the
+ * time it sent nothing.  A client's files take turns, and a file goes back in line after each of its groups.
+ * How long requests wait to be taken is published per client as log.service.queue.wait.  A client which has had
+ * nothing waiting for CLIENT_IDLE_MILLIS is forgotten, and its timer removed, so clients which have gone away
+ * take up neither heap nor metrics.  Only writes through group commit are queued fairly, with any other syncPolicy
+ * each request writes on its own thread.
+ *
+ * @author cingham
+ */
+@Component
+public class GroupCommitter {
+	private static final Logger logger = LoggerFactory.getLogger(GroupCommitter.class);
+
+	private static final long REPORT_INTERVAL_MILLIS = 60 * 1000;
+	static final long CLIENT_IDLE_MILLIS = 5 * 60 * 1000;
+
+	private final Config config;
+	private final WriterPool writerPool;
+	private final boolean enabled;
+	private final int maxGroupSize;
+	private final ExecutorService committers;
+	private final Map<String, CommitQueue> queues = new ConcurrentHashMap<>();
+	private final GroupCommitStats stats = new GroupCommitStats();
+
+	// clients with files waiting for a committer, earliest virtual finish time first, all guarded by ready
+	private final PriorityQueue<ClientQueue> ready = new PriorityQueue<>(
+		Comparator.comparingDouble((ClientQueue client) -> client.finish).thenComparingLong(client -> client.order));
+	private final Map<String, ClientQueue> clients = new HashMap<>();
+	private double virtualTime;
+	private long readyCount;
+	private long nextPrune = System.currentTimeMillis() + CLIENT_IDLE_MILLIS;		// guarded by ready
+
+	private volatile long nextReport = System.currentTimeMillis() + REPORT_INTERVAL_MILLIS;
+
+	/**
+	 * Injection constructor
+	 *
+	 * @param config app config options
+	 * @param writerPool pool of open output files
+	 */
+	GroupCommitter(Config config, WriterPool writerPool) {
+		this.config = config;
+		this.writerPool = writerPool;
+		this.enabled = config.getSyncPolicy() == FlushPolicy.GROUP;
+		this.maxGroupSize = Math.max(1, config.getMaxGroupSize());
+
+		AtomicInteger threadCount = new AtomicInteger();
+		this.committers = Executors.newFixedThreadPool(Math.max(1, config.getGroupCommitThreads()), runnable -> {
+			Thread thread = new Thread(runnable, "group-commit-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Write to a file as part of the next group commit for it, returning once the write is on disk.
+	 * When group commit is not enabled the write goes straight to the WriterPool.  This blocks the calling
+	 * thread, requests are written through submit() so that no request thread waits.
+	 *
+	 * @param key stream name used to pool the writer
+	 * @param file the output file
+	 * @param action work to do with the output stream, it runs on a committer thread
+	 * @return the result of the action
+	 * @throws IOException any error from the action, or from opening or syncing the file
+	 */
+	public <T> T write(String key, File file, WriterPool.WriterAction<T> action) throws IOException {
+		try {
+			return submit(key, file, action).get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for group commit");
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			}
+			throw (RuntimeException) ex.getCause();
+		}
+	}
+
+	/**
+	 * Queue a write for the next group commit for a file, without waiting for it, sharing the committers
+	 * out fairly between files.  See submit() with a clientId.
+	 *
+	 * @param key stream name used to pool the writer
+	 * @param file the output file
+	 * @param action work to do with the output stream, it runs on a committer thread
+	 * @return completed with the result of the action once the write is on disk, or with the error
+	 * 		from the action, or from opening or syncing the file
+	 */
+	public <T> CompletableFuture<T> submit(String key, File file, WriterPool.WriterAction<T> action) {
+		return submit(key, key, file, 0, action);
+	}
+
+	/**
+	 * Queue a write for the next group commit for a file, without waiting for it.
+	 * When group commit is not enabled the write goes straight to the WriterPool before this returns.
+	 *
+	 * @param clientId client the file belongs to, the committers are shared out fairly between clients
+	 * @param key stream name used to pool the writer
+	 * @param file the output file
+	 * @param bytes size of the write, what the client is charged for it
+	 * @param action work to do with the output stream, it runs on a committer thread
+	 * @return completed with the result of the action once the write is on disk, or with the error
+	 * 		from the action, or from opening or syncing the file
+	 */
+	public <T> CompletableFuture<T> submit(String clientId, String key, File file, long bytes, WriterPool.WriterAction<T> action) {
+		if (!enabled) {
+			CompletableFuture<T> written = new CompletableFuture<>();
+			try {
+				written.complete(writerPool.write(key, file, action));
+			} catch (IOException | RuntimeException ex) {
+				written.completeExceptionally(ex);
+			}
+			return written;
+		}
+
+		Request<T> request = new Request<>(action, bytes);
+		while (true) {
+			CommitQueue queue = queues.computeIfAbsent(key, name -> new CommitQueue(clientId, name, file));
+			boolean schedule;
+			synchronized (queue) {
+				if (queue.retired) {
+					continue;	// its committer just finished with it, queue on a fresh one
+				}
+				queue.requests.add(request);
+				schedule = !queue.scheduled;
+				queue.scheduled = true;
+			}
+			if (schedule) {
+				ready(queue);
+				committers.execute(this::commit);
+			}
+			return request.committed;
+		}
+	}
+
+	/**
+	 * @return group sizes and latencies so far
+	 */
+	public GroupCommitStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * @param key stream name
+	 * @return number of requests queued for a file and not yet taken by a committer
+	 */
+	int getQueueLength(String key) {
+		CommitQueue queue = queues.get(key);
+		if (queue == null) {
+			return 0;
+		}
+		synchronized (queue) {
+			return queue.requests.size();
+		}
+	}
+
+	/**
+	 * Let the committers finish the groups already queued on app shutdown, before the WriterPool closes the files
+	 */
+	@PreDestroy
+	public void shutdown() {
+		committers.shutdown();
+		try {
+			if (!committers.awaitTermination(10, TimeUnit.SECONDS)) {
+				logger.warn("Group commits still running at shutdown");
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return number of clients known to the fair queuing, idle ones included until they are pruned
+	 */
+	int getClientCount() {
+		synchronized (ready) {
+			return clients.size();
+		}
+	}
+
+	/**
+	 * Put a file with requests queued in line for a committer, behind the other files of its client
+	 */
+	private void ready(CommitQueue queue) {
+		synchronized (ready) {
+			pruneIdleClients(System.currentTimeMillis());
+			ClientQueue client = clients.computeIfAbsent(queue.clientId, ClientQueue::new);
+			client.files.add(queue);
+			if (client.files.size() == 1) {
+				client.finish = Math.max(client.finish, virtualTime);
+				client.order = readyCount++;
+				ready.add(client);
+			}
+		}
+	}
+
+	/**
+	 * Now and then forget the clients which have had nothing waiting for CLIENT_IDLE_MILLIS, with their timers.
+	 * One which comes back starts again at the current virtual time, as an idle client would anyway.
+	 *
+	 * @param now the current time in millis
+	 */
+	void pruneIdleClients(long now) {
+		synchronized (ready) {
+			if (now < nextPrune) {
+				return;
+			}
+			nextPrune = now + CLIENT_IDLE_MILLIS;
+			clients.values().removeIf(client -> {
+				if (client.files.isEmpty() && now - client.idleSince >= CLIENT_IDLE_MILLIS) {
+					Metrics.globalRegistry.remove(client.waitTimer);
+					return true;
+				}
+				return false;
+			});
+		}
+	}
+
+	/**
+	 * Runs on a committer thread for each file put in line: write and sync a group for the client with the
+	 * earliest virtual finish time, then carry on while the file just written has more queued
+	 */
+	private void commit() {
+		while (true) {
+			CommitQueue queue;
+			ClientQueue client;
+			List<Request<?>> group = new ArrayList<>();
+			synchronized (ready) {
+				client = ready.poll();
+				if (client == null) {
+					return;
+				}
+				queue = client.files.poll();
+				virtualTime = client.finish;
+				long bytes = 0;
+				synchronized (queue) {
+					while (group.size() < maxGroupSize && !queue.requests.isEmpty()) {
+						Request<?> request = queue.requests.poll();
+						group.add(request);
+						bytes += request.bytes;
+					}
+				}
+				client.finish += Math.max(1, bytes) / client.weight;
+				if (!client.files.isEmpty()) {
+					client.order = readyCount++;
+					ready.add(client);
+				} else {
+					client.idleSince = System.currentTimeMillis();
+				}
+			}
+
+			long start = System.nanoTime();
+			for (Request<?> request : group) {
+				client.waitTimer.record(start - request.queuedAt, TimeUnit.NANOSECONDS);
+			}
+			try {
+				writerPool.writeAndSync(queue.key, queue.file, out -> {
+					for (Request<?> request : group) {
+						request.apply(out);
+					}
+					return null;
+				});
+				long now = System.nanoTime();
+				stats.recordGroup(group.size(), now - start);
+				for (Request<?> request : group) {
+					stats.recordWait(now - request.queuedAt);
+					request.done(null);
+				}
+			} catch (IOException | RuntimeException ex) {
+				logger.error("Error committing {} requests to file {}, exception={}", group.size(), queue.file, ex.toString());
+				stats.recordFailure();
+				for (Request<?> request : group) {
+					request.done(ex);
+				}
+			}
+			report();
+
+			synchronized (queue) {
+				if (queue.requests.isEmpty()) {
+					queue.scheduled = false;
+					queue.retired = true;
+					queues.remove(queue.key, queue);
+					return;
+				}
+			}
+			// back in line, this thread carries on with it or with a file of a client which is owed more
+			ready(queue);
+		}
+	}
+
+	/**
+	 * Log the group commit figures now and then, so it is visible how well writes are being grouped
+	 */
+	private void report() {
+		long now = System.currentTimeMillis();
+		if (now >= nextReport) {
+			nextReport = now + REPORT_INTERVAL_MILLIS;
+			logger.info("Group commit: {}", stats);
+		}
+	}
+
+	/**
+	 * A client's files waiting for a committer, and its virtual finish time.  Guarded by ready.
+	 */
+	private class ClientQueue {
+		private final double weight;
+		private final Timer waitTimer;
+		private final ArrayDeque<CommitQueue> files = new ArrayDeque<>();
+		private double finish;
+		private long order;		// when it was put in line, first come first served between equal finish times
+		private long idleSince = System.currentTimeMillis();	// when its last file was taken, in millis
+
+		ClientQueue(String clientId) {
+			Config.Quota quota = config.quotaFor(clientId);
+			this.weight = (quota != null) ? Math.max(1, quota.getWeight()) : 1;
+			this.waitTimer = Timer.builder("log.service.queue.wait")
+				.description("Time from a request being queued until a committer takes it")
+				.tag("client", clientId)
+				.publishPercentileHistogram()
+				.register(Metrics.globalRegistry);
+		}
+	}
+
+	/**
+	 * Requests waiting to be committed for one file.  All fields other than clientId, key and file are guarded by the queue.
+	 */
+	private static class CommitQueue {
+		private final String clientId;
+		private final String key;
+		private final File file;
+		private final ArrayDeque<Request<?>> requests = new ArrayDeque<>();
+		private boolean scheduled;		// a committer is working on this queue
+		private boolean retired;		// removed from the map, new requests must use a new queue
+
+		CommitQueue(String clientId, String key, File file) {
+			this.clientId = clientId;
+			this.key = key;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * One request's write, and its outcome once the group it was in has been synced
+	 */
+	private static class Request<T> {
+		private final WriterPool.WriterAction<T> action;
+		private final long bytes;
+		private final long queuedAt = System.nanoTime();
+		private final CompletableFuture<T> committed = new CompletableFuture<>();
+		private T result;
+		private Exception error;
+
+		Request(WriterPool.WriterAction<T> action, long bytes) {
+			this.action = action;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Run the action on the committer thread, a failing action only fails its own request
+		 */
+		void apply(OutputStream out) {
+			try {
+				result = action.apply(out);
+			} catch (IOException | RuntimeException ex) {
+				error = ex;
+			}
+		}
+
+		void done(Exception groupError) {
+			if (groupError != null) {
+				committed.completeExceptionally(groupError);
+			} else if (error != null) {
+				committed.completeExceptionally(error);
+			} else {
+				committed.complete(result);
+			}
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package com.datastax.log.service.service;
+
+import com.datastax.log.service.config.Config;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the work the service has accepted but not yet written, so that a burst of agents is
+ * pushed back rather than piling requests up in the heap:
+ *    maxInFlightPerFile - requests being written for one file, over this the request gets 429
+ *    maxInFlightBytes   - bytes of lines being written across all files, over this the request gets 503
+ * and each client is held to its quota (see Config.Quota), across all of its files:
+ *    maxInFlight        - requests being written for the client, over this the request gets 429
+ *    maxBytesPerSecond  - bytes of lines sent by the client, a token bucket holding up to maxBurstBytes,
+ *                         a request the bucket cannot cover gets 429 with a Retry-After of when it could
+ * A request holds a permit from the time it is admitted until its write has completed (or failed).
+ * A single request larger than maxInFlightBytes is still admitted when nothing else is in flight, and one larger
+ * than maxBurstBytes once the client's bucket is full (leaving it in debt).
+ * Zero or less turns a limit off.
+ * A client with nothing in flight and a full bucket is the same as a new one, so such clients are forgotten
+ * now and then (every CLIENT_PRUNE_MILLIS) rather than kept for as long as the service runs.
+ *
+ * @author cingham
+ */
+@Component
+public class IngestLimiter {
+	static final long CLIENT_PRUNE_MILLIS = 60 * 1000;
+
+	private final int maxInFlightPerFile;
+	private final long maxInFlightBytes;
+	private final int retryAfterSeconds;
+	private final Config config;
+
+	private final Map<String, Integer> inFlight = new ConcurrentHashMap<>();
+	private final Map<String, ClientState> clients = new ConcurrentHashMap<>();
+	private final AtomicLong inFlightBytes = new AtomicLong();
+	private final LongAdder rejectedForFile = new LongAdder();
+	private final LongAdder rejectedForService = new LongAdder();
+	private final LongAdder rejectedForClient = new LongAdder();
+	private final AtomicLong nextPrune = new AtomicLong(System.currentTimeMillis() + CLIENT_PRUNE_MILLIS);
+
+	/**
+	 * Injection constructor
+	 *
+	 * @param config app config options
+	 */
+	IngestLimiter(Config config) {
+		this.maxInFlightPerFile = config.getMaxInFlightPerFile() > 0 ? config.getMaxInFlightPerFile() : Integer.MAX_VALUE;
+		this.maxInFlightBytes = config.getMaxInFlightBytes() > 0 ? config.getMaxInFlightBytes() : Long.MAX_VALUE;
+		this.retryAfterSeconds = Math.max(1, config.getRetryAfter());
+		this.config = config;
+	}
+
+	/**
+	 * Admit a request for a file, or turn it away
+	 *
+	 * @param clientId the client sending the request
+	 * @param stream stream name of the file being written
+	 * @param bytes size of the lines in the request
+	 * @return permit to release once the write has completed
+	 * @throws IngestRejectedException if the file, the client or the service is over its limit
+	 */
+	public Permit acquire(String clientId, String stream, long bytes) {
+		boolean[] admitted = new boolean[1];
+		inFlight.compute(stream, (key, count) -> {
+			int current = (count == null) ? 0 : count;
+			if (current >= maxInFlightPerFile) {
+				return count;
+			}
+			admitted[0] = true;
+			return current + 1;
+		});
+		if (!admitted[0]) {
+			rejectedForFile.increment();
+			throw new IngestRejectedException("Too many requests in flight for " + stream, false, retryAfterSeconds);
+		}
+
+		ClientState client;
+		try {
+			client = acquireClient(clientId, bytes);
+		} catch (IngestRejectedException ex) {
+			releaseFile(stream);
+			rejectedForClient.increment();
+			throw ex;
+		}
+
+		long used;
+		do {
+			used = inFlightBytes.get();
+			if (used > 0 && used + bytes > maxInFlightBytes) {
+				releaseFile(stream);
+				if (client != null) {
+					client.release(bytes);
+				}
+				rejectedForService.increment();
+				throw new IngestRejectedException("Service busy, " + used + " bytes in flight", true, retryAfterSeconds);
+			}
+		} while (!inFlightBytes.compareAndSet(used, used + bytes));
+		return new Permit(stream, client, bytes);
+	}
+
+	/**
+	 * Hold a request against its client's quota
+	 *
+	 * @return the client's state, or null if the client has no quota
+	 */
+	private ClientState acquireClient(String clientId, long bytes) {
+		Config.Quota quota = config.quotaFor(clientId);
+		if (quota == null || (quota.getMaxInFlight() <= 0 && quota.getMaxBytesPerSecond() <= 0)) {
+			return null;
+		}
+		pruneIdleClients(System.currentTimeMillis());
+		while (true) {
+			ClientState client = clients.computeIfAbsent(clientId, id -> new ClientState(quota));
+			synchronized (client) {
+				if (client.pruned) {
+					continue;	// just forgotten, start again with a fresh one
+				}
+				if (quota.getMaxInFlight() > 0 && client.inFlight >= quota.getMaxInFlight()) {
+					throw new IngestRejectedException("Too many requests in flight for client " + clientId, false, retryAfterSeconds);
+				}
+				if (client.rate > 0) {
+					client.refill();
+					if (client.tokens < bytes && client.tokens < client.burst) {
+						double wanted = Math.min(bytes, client.burst) - client.tokens;
+						int wait = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (long) Math.ceil(wanted / client.rate)));
+						throw new IngestRejectedException("Client " + clientId + " over its quota of " + (long) client.rate
+							+ " bytes/s", false, wait);
+					}
+					client.tokens -= bytes;
+				}
+				client.inFlight++;
+				return client;
+			}
+		}
+	}
+
+	/**
+	 * Forget the clients with nothing in flight and a full bucket, at most once every CLIENT_PRUNE_MILLIS
+	 *
+	 * @param now the current time in millis
+	 */
+	void pruneIdleClients(long now) {
+		long due = nextPrune.get();
+		if (now < due || !nextPrune.compareAndSet(due, now + CLIENT_PRUNE_MILLIS)) {
+			return;
+		}
+		for (Map.Entry<String, ClientState> entry : clients.entrySet()) {
+			ClientState client = entry.getValue();
+			synchronized (client) {
+				if (client.inFlight == 0 && (client.rate == 0 || client.refill() >= client.burst)) {
+					client.pruned = true;
+					clients.remove(entry.getKey(), client);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of clients whose quota is being tracked
+	 */
+	int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * @return bytes of lines admitted and not yet written
+	 */
+	public long getInFlightBytes() {
+		return inFlightBytes.get();
+	}
+
+	/**
+	 * @return share of maxInFlightBytes in use, 0 to 1 (or more, for a single large request), 0 with no limit
+	 */
+	public double getLoad() {
+		return (maxInFlightBytes == Long.MAX_VALUE) ? 0 : (double) inFlightBytes.get() / maxInFlightBytes;
+	}
+
+	/**
+	 * @param stream stream name
+	 * @return requests admitted for a file and not yet written
+	 */
+	public int getInFlight(String stream) {
+		return inFlight.getOrDefault(stream, 0);
+	}
+
+	/**
+	 * @param clientId a client sending requests
+	 * @return requests admitted for the client and not yet written
+	 */
+	public int getInFlightForClient(String clientId) {
+		ClientState client = clients.get(clientId);
+		if (client == null) {
+			return 0;
+		}
+		synchronized (client) {
+			return client.inFlight;
+		}
+	}
+
+	/**
+	 * @return requests turned away because their file was over its limit
+	 */
+	public long getRejectedForFile() {
+		return rejectedForFile.sum();
+	}
+
+	/**
+	 * @return requests turned away because the service was over its limit
+	 */
+	public long getRejectedForService() {
+		return rejectedForService.sum();
+	}
+
+	/**
+	 * @return requests turned away because their client was over its quota
+	 */
+	public long getRejectedForClient() {
+		return rejectedForClient.sum();
+	}
+
+	private void releaseFile(String stream) {
+		inFlight.computeIfPresent(stream, (key, count) -> count <= 1 ? null : count - 1);
+	}
+
+	/**
+	 * An admitted request's share of the limits, released once only however many times release() is called
+	 */
+	public class Permit {
+		private final String stream;
+		private final ClientState client;
+		private long bytes;		// set before the write is queued, so seen by whichever thread releases it
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private Permit(String stream, ClientState client, long bytes) {
+			this.stream = stream;
+			this.client = client;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Correct the bytes held once the request has been read, for a request admitted on an estimate of its size.
+		 * It has been read so it is not turned away now, a client it takes over its quota is left in debt.
+		 *
+		 * @param actualBytes size of the lines the request turned out to hold
+		 */
+		public void resize(long actualBytes) {
+			long extra = actualBytes - bytes;
+			if (extra == 0 || released.get()) {
+				return;
+			}
+			bytes = actualBytes;
+			inFlightBytes.addAndGet(extra);
+			if (client != null) {
+				client.charge(extra);
+			}
+		}
+
+		public void release() {
+			if (released.compareAndSet(false, true)) {
+				inFlightBytes.addAndGet(-bytes);
+				releaseFile(stream);
+				if (client != null) {
+					client.release(0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A client's requests in flight and its token bucket, guarded by the ClientState
+	 */
+	private static class ClientState {
+		private final double rate;		// bytes per second, 0 for no limit
+		private final double burst;
+		private int inFlight;
+		private double tokens;
+		private long refilledAt = System.nanoTime();
+		private boolean pruned;		// removed from the map, requests must use a new state
+
+		ClientState(Config.Quota quota) {
+			this.rate = Math.max(0, quota.getMaxBytesPerSecond());
+			this.burst = (quota.getMaxBurstBytes() > 0) ? quota.getMaxBurstBytes() : rate;
+			this.tokens = burst;
+		}
+
+		/**
+		 * @return the tokens in the bucket now
+		 */
+		double refill() {
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + rate * (now - refilledAt) / 1e9);
+			refilledAt = now;
+			return tokens;
+		}
+
+		/**
+		 * @param extra bytes a request turned out to hold beyond what it was admitted on (less than zero if fewer)
+		 */
+		synchronized void charge(long extra) {
+			if (rate > 0) {
+				tokens = Math.min(burst, tokens - extra);
+			}
+		}
+
+		/**
+		 * @param refund bytes to give back to the bucket, for a request which was not admitted after all
+		 */
+		synchronized void release(long refund) {
+			inFlight--;
+			tokens = Math.min(burst, tokens + refund);
+		}
+	}
+}
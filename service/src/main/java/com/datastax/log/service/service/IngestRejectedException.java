@@ -0,0 +1,28 @@
+package com.datastax.log.service.service;
+
+import lombok.Getter;
+
+/**
+ * Thrown when a request is turned away by the IngestLimiter, so the agent backs off and re-sends it later.
+ * A file or client over its limit is answered with 429 Too Many Requests, a service over its limit with
+ * 503 Service Unavailable, both with a Retry-After.  The LogReader turns away followers beyond maxFollowers
+ * the same way, with 503.
+ *
+ * @author cingham
+ */
+@Getter
+public class IngestRejectedException extends RuntimeException {
+	private final boolean serviceWide;
+	private final int retryAfterSeconds;
+
+	/**
+	 * @param message why the request was refused
+	 * @param serviceWide true if the whole service is busy, false if just the one file or client is
+	 * @param retryAfterSeconds how long the agent should wait before trying again
+	 */
+	public IngestRejectedException(String message, boolean serviceWide, int retryAfterSeconds) {
+		super(message);
+		this.serviceWide = serviceWide;
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+}
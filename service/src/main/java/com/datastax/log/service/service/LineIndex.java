@@ -0,0 +1,309 @@
+package com.datastax.log.service.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Sparse index of one output file, kept beside it as {clientId}-{filename}.index and built as the file is written.
+ *
+ * Every indexInterval lines the WriterPool records a line checkpoint: the line number and the byte it
+ * starts at.  When the line at a checkpoint starts with a timestamp (see LineTimestamps) a time checkpoint
+ * is recorded as well.  Like the manifest, lines and bytes are numbered across all of the file's segments,
+ * so a reader finds the nearest checkpoint before the line or time it wants and only scans from there.
+ * Time checkpoints are only kept while the times go forward, so they can be searched.
+ *
+ * Checkpoints are appended to the index file as they are made and written out with the data they describe,
+ * whenever the file is flushed.  The index is a hint: a checkpoint lost in a crash only means a longer scan,
+ * and checkpoints beyond the end of the data are dropped when it is loaded.
+ *
+ * The index also tracks how far the file has been flushed, so readers following the file are woken
+ * as soon as new lines can be read, rather than polling for them.
+ *
+ * @author cingham
+ */
+public class LineIndex {
+	private static final Logger logger = LoggerFactory.getLogger(LineIndex.class);
+
+	static final String INDEX_SUFFIX = ".index";
+	private static final byte LINE_RECORD = 'L';
+	private static final byte TIME_RECORD = 'T';
+	private static final int LINE_RECORD_SIZE = 1 + 8 + 8;
+	private static final int TIME_RECORD_SIZE = 1 + 8 + 8 + 8;
+
+	private final File file;
+	private final int interval;
+
+	// line checkpoints, in line order
+	private long[] lines = new long[16];
+	private long[] lineBytes = new long[16];
+	private int lineCount;
+
+	// time checkpoints, in time (and line) order
+	private long[] times = new long[16];
+	private long[] timeLines = new long[16];
+	private long[] timeBytes = new long[16];
+	private int timeCount;
+
+	private long flushedEnd;		// byte after the last flushed byte
+	private DataOutputStream out;	// open while the file is being written
+
+	/**
+	 * @param file the index file
+	 * @param interval lines between checkpoints
+	 */
+	LineIndex(File file, int interval) {
+		this.file = file;
+		this.interval = interval;
+	}
+
+	/**
+	 * @return lines between checkpoints, zero or less if the file is not indexed
+	 */
+	int getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Record that a line starts at a byte, called by the writer holding the file's lock.
+	 * An error writing the index file is logged rather than failing the write of the data.
+	 */
+	synchronized void addLine(long line, long startByte) {
+		if (putLine(line, startByte) && file != null) {
+			try {
+				output().writeByte(LINE_RECORD);
+				out.writeLong(line);
+				out.writeLong(startByte);
+			} catch (IOException ex) {
+				logger.error("Error writing index {}, exception={}", file, ex.toString());
+				closeOutput();
+			}
+		}
+	}
+
+	/**
+	 * Record that a line starting at a byte has a timestamp, called by the writer holding the file's lock
+	 */
+	synchronized void addTime(long time, long line, long startByte) {
+		if (putTime(time, line, startByte) && file != null) {
+			try {
+				output().writeByte(TIME_RECORD);
+				out.writeLong(time);
+				out.writeLong(line);
+				out.writeLong(startByte);
+			} catch (IOException ex) {
+				logger.error("Error writing index {}, exception={}", file, ex.toString());
+				closeOutput();
+			}
+		}
+	}
+
+	/**
+	 * Called by the writer once the file's data up to a byte has reached the OS: write out the
+	 * checkpoints made so far and wake any readers waiting for new lines
+	 *
+	 * @param end byte after the last byte flushed
+	 */
+	synchronized void flushed(long end) {
+		if (out != null) {
+			try {
+				out.flush();
+			} catch (IOException ex) {
+				logger.error("Error writing index {}, exception={}", file, ex.toString());
+				closeOutput();
+			}
+		}
+		flushedEnd = Math.max(flushedEnd, end);
+		notifyAll();
+	}
+
+	/**
+	 * @return the byte after the last byte known to have been flushed
+	 */
+	synchronized long getFlushedEnd() {
+		return flushedEnd;
+	}
+
+	/**
+	 * Called when the file's writer is closed, the index file is reopened on the next write
+	 */
+	synchronized void closeOutput() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException ex) {
+				logger.error("Error closing index {}, exception={}", file, ex.toString());
+			}
+			out = null;
+		}
+	}
+
+	/**
+	 * Wait until the file has been flushed beyond a byte, or some other change is signalled
+	 *
+	 * @param position the byte the reader has read up to
+	 * @param timeoutMillis most time to wait
+	 * @return the end of the flushed data
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	synchronized long awaitFlushed(long position, long timeoutMillis) throws InterruptedException {
+		if (flushedEnd <= position) {
+			wait(timeoutMillis);
+		}
+		return flushedEnd;
+	}
+
+	/**
+	 * Wake everything waiting in awaitFlushed(), e.g. because a follower is being stopped
+	 */
+	synchronized void wakeReaders() {
+		notifyAll();
+	}
+
+	/**
+	 * @param line a line number
+	 * @return the last line checkpoint at or before the line, as {line, byte}, or null if there is none
+	 */
+	synchronized long[] floorLine(long line) {
+		int found = floor(lines, lineCount, line);
+		return (found < 0) ? null : new long[] {lines[found], lineBytes[found]};
+	}
+
+	/**
+	 * @param time epoch millis
+	 * @return the last time checkpoint at or before the time, as {line, byte}, or null if there is none
+	 */
+	synchronized long[] floorTime(long time) {
+		int found = floor(times, timeCount, time);
+		return (found < 0) ? null : new long[] {timeLines[found], timeBytes[found]};
+	}
+
+	synchronized int getLineCheckpoints() {
+		return lineCount;
+	}
+
+	synchronized int getTimeCheckpoints() {
+		return timeCount;
+	}
+
+	/**
+	 * Read the index file left by an earlier run.  Checkpoints beyond the data actually written (lost in a
+	 * crash, and about to be written again with different contents) and any torn record at the end are
+	 * dropped, and the index file is rewritten without them.
+	 *
+	 * @param dataEnd the byte after the last byte of the file's data
+	 * @throws IOException error reading or rewriting the index
+	 */
+	synchronized void load(long dataEnd) throws IOException {
+		flushedEnd = dataEnd;
+		if (file == null || !file.exists()) {
+			return;
+		}
+		boolean dropped = false;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (true) {
+				byte type = in.readByte();
+				if (type == LINE_RECORD) {
+					long line = in.readLong();
+					long startByte = in.readLong();
+					dropped |= startByte > dataEnd || !putLine(line, startByte);
+				} else if (type == TIME_RECORD) {
+					long time = in.readLong();
+					long line = in.readLong();
+					long startByte = in.readLong();
+					dropped |= startByte > dataEnd || !putTime(time, line, startByte);
+				} else {
+					logger.warn("Ignoring the rest of index {}, unknown record type {}.", file, type);
+					dropped = true;
+					break;
+				}
+			}
+		} catch (EOFException eof) {
+			// end of the index, or a torn record at the end of it
+			dropped |= file.length() != (long) lineCount * LINE_RECORD_SIZE + (long) timeCount * TIME_RECORD_SIZE;
+		}
+		if (dropped) {
+			rewrite();
+		}
+	}
+
+	/**
+	 * Replace the index file with the checkpoints held in memory
+	 */
+	private void rewrite() throws IOException {
+		closeOutput();
+		File tempFile = new File(file.getPath() + ".tmp");
+		try (FileOutputStream tempOut = new FileOutputStream(tempFile)) {
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(tempOut));
+			for (int i = 0; i < lineCount; i++) {
+				data.writeByte(LINE_RECORD);
+				data.writeLong(lines[i]);
+				data.writeLong(lineBytes[i]);
+			}
+			for (int i = 0; i < timeCount; i++) {
+				data.writeByte(TIME_RECORD);
+				data.writeLong(times[i]);
+				data.writeLong(timeLines[i]);
+				data.writeLong(timeBytes[i]);
+			}
+			data.flush();
+			tempOut.getChannel().force(false);
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private boolean putLine(long line, long startByte) {
+		if (lineCount > 0 && line <= lines[lineCount - 1]) {
+			return false;
+		}
+		if (lineCount == lines.length) {
+			lines = Arrays.copyOf(lines, lineCount * 2);
+			lineBytes = Arrays.copyOf(lineBytes, lineCount * 2);
+		}
+		lines[lineCount] = line;
+		lineBytes[lineCount++] = startByte;
+		return true;
+	}
+
+	private boolean putTime(long time, long line, long startByte) {
+		if (timeCount > 0 && (time < times[timeCount - 1] || line <= timeLines[timeCount - 1])) {
+			return false;
+		}
+		if (timeCount == times.length) {
+			times = Arrays.copyOf(times, timeCount * 2);
+			timeLines = Arrays.copyOf(timeLines, timeCount * 2);
+			timeBytes = Arrays.copyOf(timeBytes, timeCount * 2);
+		}
+		times[timeCount] = time;
+		timeLines[timeCount] = line;
+		timeBytes[timeCount++] = startByte;
+		return true;
+	}
+
+	private DataOutputStream output() throws IOException {
+		if (out == null) {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		}
+		return out;
+	}
+
+	/**
+	 * @return index of the last value at or before the key, or -1
+	 */
+	private static int floor(long[] values, int count, long key) {
+		int found = Arrays.binarySearch(values, 0, count, key);
+		return (found >= 0) ? found : -found - 2;
+	}
+}
@@ -0,0 +1,126 @@
+package com.datastax.log.service.service;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the timestamp a log line starts with, straight from its bytes and without allocating.
+ *
+ * Understands the ISO-8601 style timestamps most loggers write, optionally inside a leading '[':
+ * 		yyyy-MM-dd'T'HH:mm:ss[.SSS][zone]
+ * 		yyyy-MM-dd HH:mm:ss[,SSS][zone]
+ * where the fraction may have 1 to 9 digits and the zone is 'Z', +HH:MM, +HHMM or +HH.
+ * A timestamp without a zone is taken to be UTC.
+ *
+ * @author cingham
+ */
+public final class LineTimestamps {
+	/** returned when a line does not start with a timestamp */
+	public static final long NONE = Long.MIN_VALUE;
+
+	private LineTimestamps() {
+	}
+
+	/**
+	 * @param line the line's bytes
+	 * @param from start of the line
+	 * @param end end of the bytes available, the timestamp only needs the first 35 or so
+	 * @return the timestamp as epoch millis, or NONE
+	 */
+	public static long parse(byte[] line, int from, int end) {
+		int i = from;
+		if (i < end && line[i] == '[') {
+			i++;
+		}
+		// yyyy-MM-dd?HH:mm:ss is 19 bytes
+		if (end - i < 19 || line[i + 4] != '-' || line[i + 7] != '-'
+				|| (line[i + 10] != 'T' && line[i + 10] != ' ') || line[i + 13] != ':' || line[i + 16] != ':') {
+			return NONE;
+		}
+		int year = digits(line, i, 4);
+		int month = digits(line, i + 5, 2);
+		int day = digits(line, i + 8, 2);
+		int hour = digits(line, i + 11, 2);
+		int minute = digits(line, i + 14, 2);
+		int second = digits(line, i + 17, 2);
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+				|| hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+			return NONE;
+		}
+		i += 19;
+
+		int millis = 0;
+		if (i < end && (line[i] == '.' || line[i] == ',')) {
+			int scale = 100;
+			int digitsRead = 0;
+			for (i++; i < end && isDigit(line[i]) && digitsRead < 9; i++, digitsRead++) {
+				millis += (line[i] - '0') * scale;
+				scale /= 10;
+			}
+			if (digitsRead == 0) {
+				return NONE;
+			}
+		}
+
+		int offsetMinutes = 0;
+		if (i < end && (line[i] == '+' || line[i] == '-')) {
+			int sign = (line[i] == '-') ? -1 : 1;
+			int offsetHours = (end - i >= 3) ? digits(line, i + 1, 2) : -1;
+			if (offsetHours < 0) {
+				return NONE;
+			}
+			int minutesAt = (end - i >= 6 && line[i + 3] == ':') ? i + 4 : i + 3;
+			int minutes = (end - minutesAt >= 2) ? digits(line, minutesAt, 2) : -1;
+			offsetMinutes = sign * (offsetHours * 60 + Math.max(0, minutes));
+		}
+
+		long days = daysFromCivil(year, month, day);
+		return ((((days * 24 + hour) * 60 + minute - offsetMinutes) * 60 + second) * 1000) + millis;
+	}
+
+	/**
+	 * Parse a timestamp given as a query parameter, either epoch millis or a timestamp as above
+	 *
+	 * @param value the parameter
+	 * @return epoch millis
+	 * @throws IllegalArgumentException if it is neither
+	 */
+	public static long parse(String value) {
+		String trimmed = value.trim();
+		if (!trimmed.isEmpty() && trimmed.chars().allMatch(Character::isDigit)) {
+			return Long.parseLong(trimmed);
+		}
+		byte[] bytes = trimmed.getBytes(StandardCharsets.US_ASCII);
+		long time = parse(bytes, 0, bytes.length);
+		if (time == NONE) {
+			throw new IllegalArgumentException("Not a timestamp: " + value);
+		}
+		return time;
+	}
+
+	private static int digits(byte[] bytes, int from, int count) {
+		int value = 0;
+		for (int i = from; i < from + count; i++) {
+			if (!isDigit(bytes[i])) {
+				return -1;
+			}
+			value = value * 10 + (bytes[i] - '0');
+		}
+		return value;
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	/**
+	 * Days since 1970-01-01 of a date in the proleptic Gregorian calendar (H. Hinnant's algorithm)
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		int y = (month <= 2) ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097L + dayOfEra - 719468;
+	}
+}
@@ -1,41 +1,85 @@
 package com.datastax.log.service.service;
 
-import com.datastax.log.service.config.Config;
+import com.datastax.log.service.codec.LogBatchReader;
+import com.datastax.log.service.dto.LogDto;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Adds lines to the local log file
- * 
+ *
+ * The size of each request (log.service.request.bytes, in source bytes), the time to decode a binary batch
+ * (log.service.parse) and the lines written (log.service.lines.written) are published as metrics.  The lines
+ * written are logged as a running total every LOG_SAMPLE_MILLIS rather than a line for each request.
+ *
+ * Where the agent sends the timestamp each line (or multi-line event) starts with, each is written on its own
+ * with its time handed to the file's segment (see WriterPool.EventTimes), so the time index is built from them.
+ *
  * @author cingham
  */
 @Service
 public class LogAppender {
     private static final Logger logger = LoggerFactory.getLogger(LogAppender.class);
+	// lines written are logged as a total at most this often
+	private static final long LOG_SAMPLE_MILLIS = 10 * 1000;
 
-    private final File filePath;
+	private static final DistributionSummary requestBytes = DistributionSummary.builder("log.service.request.bytes")
+		.baseUnit("bytes").description("Source bytes of the lines in each request").register(Metrics.globalRegistry);
+	private static final Timer parseTimer = Timer.builder("log.service.parse")
+		.description("Time to read and decode a binary batch").publishPercentileHistogram().register(Metrics.globalRegistry);
+	private static final Counter linesWritten = Counter.builder("log.service.lines.written")
+		.description("Lines appended to the output files").register(Metrics.globalRegistry);
+	private final SampledLog addedLog = new SampledLog(logger, "Added {} lines to files in {} requests.", LOG_SAMPLE_MILLIS);
+
+	private final StorageLayout layout;
+	private final PartitionRing partitionRing;
+	private final GroupCommitter groupCommitter;
+	private final OffsetStore offsetStore;
+	private final IngestLimiter ingestLimiter;
+	private final SegmentManager segmentManager;
 
 	/**
 	 * Injection constructor
 	 *
-	 * @param config app config options
+	 * @param layout where each output file is kept
+	 * @param partitionRing which service instance writes each output file
+	 * @param groupCommitter write path to the pooled output files
+	 * @param offsetStore committed offset for each stream
+	 * @param ingestLimiter limits on the writes accepted but not yet written
+	 * @param segmentManager segments, retention and manifest of each output file
 	 */
-	LogAppender(Config config) {
-		filePath = new File(config.getFilePath());
-		// make sure path exists
-		filePath.mkdirs();
+	LogAppender(StorageLayout layout, PartitionRing partitionRing, GroupCommitter groupCommitter,
+			OffsetStore offsetStore, IngestLimiter ingestLimiter, SegmentManager segmentManager) {
+		this.layout = layout;
+		this.partitionRing = partitionRing;
+		this.groupCommitter = groupCommitter;
+		this.offsetStore = offsetStore;
+		this.ingestLimiter = ingestLimiter;
+		this.segmentManager = segmentManager;
 	}
 
 	/**
-	 * Opens a local log file (creates it if new) for appending.
+	 * Appends to a local log file (creating it if new), using the pooled writer for that file.
+	 * With group commit this returns once the lines are on disk.
 	 * The filename will be in the format:
-	 * 		{filePath}/{clientId}-{filename}
+	 * 		{filePath}/{shard}/{clientId}-{filename}
+	 * with closed segments beside it as {clientId}-{filename}.{sequence} (see StorageLayout and SegmentManager).
 	 *
 	 * 	The filePath location must be defined in application.yml.
 	 * 	This naming convention allows for multiple files from the same client,
@@ -44,26 +88,370 @@ public class LogAppender {
 	 * @param clientId the clientId send from the agent
 	 * @param filename the filename sent from the agent
 	 * @param lines the lines of the log sent from the agent
-	 * @throws Exception any IO error encountered
-	 *
+	 * @throws Exception any IO error encountered, IngestRejectedException if the file or service is busy,
+	 * 		or StreamNotOwnedException if another service instance writes the file
 	 */
 	public void appendToFile(String clientId, String filename, List<String> lines) throws Exception {
+		await(appendLines(clientId, filename, lines));
+	}
+
+	private CompletableFuture<StreamOffset> appendLines(String clientId, String filename, List<String> lines) {
+		String streamName = clientId + "-" + filename;
+		partitionRing.checkOwner(streamName);
+		File theFile = layout.fileFor(streamName);
+		return commit(clientId, streamName, theFile, sourceBytes(lines), out -> {
+			writeLines(out, lines, null, 0);
+			added(lines.size());
+			return null;
+		});
+	}
+
+	/**
+	 * Appends an offset tracked chunk of lines to the local log file, skipping anything
+	 * that has already been committed for the same source file identity.  See appendChunkAsync().
+	 *
+	 * @param clientId the clientId send from the agent
+	 * @param logDto the chunk sent from the agent
+	 * @return the committed offset after the chunk, or null if the stream is not offset tracked
+	 * @throws Exception any IO error encountered, or IngestRejectedException if the file or service is busy
+	 */
+	public StreamOffset appendChunk(String clientId, LogDto logDto) throws Exception {
+		return await(appendChunkAsync(clientId, logDto));
+	}
+
+	/**
+	 * Queues an offset tracked chunk of lines to be appended to the local log file, skipping anything
+	 * that has already been committed for the same source file identity.
+	 *    - a different file identity starts a new epoch, all lines are written
+	 *    - a chunk ending at or before the committed offset is a duplicate and is not written
+	 *    - a chunk overlapping the committed offset has its leading lines skipped
+	 * Each line is taken to occupy its UTF-8 length plus one newline byte of the source file,
+	 * which is how the agent computes offsets.
+	 *
+	 * Chunks without a file identity come from older agents and are always appended.
+	 * A chunk with no lines just reports the committed offset, agents use this to resume.
+	 *
+	 * @param clientId the clientId send from the agent
+	 * @param logDto the chunk sent from the agent
+	 * @return completed with the committed offset after the chunk (or null if the stream is not offset tracked)
+	 * 		once the chunk has been written, or with any IO error encountered
+	 * @throws IngestRejectedException if the file or the service has too much in flight to accept the chunk
+	 * @throws StreamNotOwnedException if another service instance writes the file
+	 */
+	public CompletableFuture<StreamOffset> appendChunkAsync(String clientId, LogDto logDto) {
+		String streamName = clientId + "-" + logDto.getFilename();
+		partitionRing.checkOwner(streamName);
+		if (logDto.getLines() == null || logDto.getLines().isEmpty()) {
+			return CompletableFuture.completedFuture(offsetStore.get(streamName));
+		}
+		if (logDto.getFileId() == null) {
+			return appendLines(clientId, logDto.getFilename(), logDto.getLines());
+		}
+
+		File theFile = layout.fileFor(streamName);
+		List<String> lines = logDto.getLines();
+		// the offset check and the write happen under the file's lock, so chunks for a stream are serialized
+		return commit(clientId, streamName, theFile, sourceBytes(lines), out -> {
+			StreamOffset committed = offsetStore.latest(streamName);
+
+			int firstLine = 0;
+			if (committed != null && committed.getFileId().equals(logDto.getFileId())) {
+				if (logDto.getEndOffset() <= committed.getOffset()) {
+					logger.info("Ignoring duplicate chunk for file {}, offsets {}-{} already committed.",
+						theFile, logDto.getStartOffset(), logDto.getEndOffset());
+					return committed;
+				}
+				firstLine = linesBefore(lines, logDto.getStartOffset(), committed.getOffset());
+				if (logDto.getStartOffset() > committed.getOffset()) {
+					logger.warn("Gap in file {}, committed offset {} but chunk starts at {}.",
+						theFile, committed.getOffset(), logDto.getStartOffset());
+				}
+			}
+
+			writeLines(out, lines, logDto.getTimestamps(), firstLine);
+			StreamOffset result = new StreamOffset(logDto.getFileId(), logDto.getEndOffset());
+			offsetStore.commit(streamName, result);
+			added(lines.size() - firstLine);
+			return result;
+		});
+	}
+
+	/**
+	 * Appends a binary log batch to the local log file without creating a String per line.  See appendBatchAsync().
+	 *
+	 * @param clientId the clientId send from the agent
+	 * @param batch reader positioned after the batch header
+	 * @return the committed offset after the batch, or null if the stream is not offset tracked
+	 * @throws Exception any IO error encountered, or IngestRejectedException if the file or service is busy
+	 */
+	public StreamOffset appendBatch(String clientId, LogBatchReader batch) throws Exception {
+		return await(appendBatchAsync(clientId, batch));
+	}
+
+	/**
+	 * Queues a binary log batch to be appended to the local log file, without creating a String per line.
+	 * The batch is admitted (see IngestLimiter) on the source bytes its header says it spans, before any of its lines
+	 * are read, so a busy file, client or service turns it away without buffering it.  Once admitted the whole batch is
+	 * read from the request stream, as newline terminated lines in one buffer, and the bytes held for it corrected to
+	 * what it turned out to hold.  So the write itself (which may run on a group commit thread) never waits on the
+	 * client's network, and the lines not yet committed are written with a single call.  Offsets are handled as in
+	 * appendChunkAsync(), a batch whose stream fails part way through is not written at all.
+	 *
+	 * @param clientId the clientId send from the agent
+	 * @param batch reader positioned after the batch header, it is read to the end before this returns unless
+	 * 		the batch is turned away
+	 * @return completed with the committed offset after the batch (or null if the stream is not offset tracked)
+	 * 		once the batch has been written, or with any IO error encountered
+	 * @throws IOException error reading the batch from the request
+	 * @throws IngestRejectedException if the file or the service has too much in flight to accept the batch,
+	 * 		the batch is not read
+	 * @throws StreamNotOwnedException if another service instance writes the file, the batch is not read
+	 */
+	public CompletableFuture<StreamOffset> appendBatchAsync(String clientId, LogBatchReader batch) throws IOException {
+		String streamName = clientId + "-" + batch.getFilename();
+		partitionRing.checkOwner(streamName);
+		File theFile = layout.fileFor(streamName);
+		String fileId = batch.getFileId();
+		long startOffset = batch.getStartOffset();
+		long endOffset = batch.getEndOffset();
+		IngestLimiter.Permit permit = ingestLimiter.acquire(clientId, streamName, Math.max(0, endOffset - startOffset));
+
+		DecodedBatch lines;
+		long start = System.nanoTime();
+		try {
+			lines = DecodedBatch.read(batch);
+		} catch (IOException | RuntimeException ex) {
+			permit.release();
+			logger.error("Error reading batch for file {}, exception={}", theFile, ex.toString());
+			throw ex;
+		}
+		parseTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		permit.resize(lines.length);
+
+		return commit(clientId, streamName, theFile, permit, lines.length, out -> {
+			StreamOffset committed = offsetStore.latest(streamName);
+			int firstLine = 0;
+			if (fileId != null && committed != null && committed.getFileId().equals(fileId)) {
+				if (endOffset <= committed.getOffset()) {
+					logger.info("Ignoring duplicate batch for file {}, offsets {}-{} already committed.",
+						theFile, startOffset, endOffset);
+					return committed;
+				}
+				firstLine = lines.linesBefore(startOffset, committed.getOffset());
+			}
+
+			int lineCount = lines.lineCount - firstLine;
+			if (lineCount > 0) {
+				lines.write(out, firstLine);
+				if (fileId != null) {
+					offsetStore.commit(streamName, new StreamOffset(fileId, endOffset));
+				}
+			}
+			added(lineCount);
+			return fileId == null ? null : offsetStore.latest(streamName);
+		});
+	}
+
+	/**
+	 * Admit a write through the IngestLimiter (against its file, its client's quota and the service) and queue it.
+	 * See commit() with a permit.
+	 */
+	private <T> CompletableFuture<T> commit(String clientId, String streamName, File theFile, long bytes,
+			WriterPool.WriterAction<T> action) {
+		return commit(clientId, streamName, theFile, ingestLimiter.acquire(clientId, streamName, bytes), bytes, action);
+	}
+
+	/**
+	 * Queue an admitted write for the file, in its client's fair share of the committers.  Its permit is released
+	 * once the write has completed or failed
+	 */
+	private <T> CompletableFuture<T> commit(String clientId, String streamName, File theFile, IngestLimiter.Permit permit,
+			long bytes, WriterPool.WriterAction<T> action) {
+		requestBytes.record(bytes);
+		segmentManager.register(streamName, clientId);
+		CompletableFuture<T> written;
+		try {
+			written = groupCommitter.submit(clientId, streamName, theFile, bytes, action);
+		} catch (RuntimeException ex) {
+			permit.release();
+			throw ex;
+		}
+		return written.whenComplete((result, ex) -> {
+			permit.release();
+			if (ex != null) {
+				// log the error, the controller relays it to the client
+				Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+				logger.error("Error writing to file {}, exception={}", theFile, cause.toString());
+			}
+		});
+	}
 
-		File theFile = new File(filePath, clientId + "-" + filename);
+	/**
+	 * @return share of the in flight byte limit in use, a hint for agents pacing their uploads (see IngestLimiter)
+	 */
+	public double getLoad() {
+		return ingestLimiter.getLoad();
+	}
+
+	private void added(int lines) {
+		linesWritten.increment(lines);
+		addedLog.record(lines);
+	}
 
+	/**
+	 * Wait for a queued write, rethrowing the error it failed with
+	 */
+	private static <T> T await(CompletableFuture<T> written) throws Exception {
 		try {
-			// open file for appending
-			BufferedWriter out = new BufferedWriter(new FileWriter(theFile, true));
-			for (String line : lines) {
-				out.write(line);
-				out.newLine();
+			return written.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof Exception) {
+				throw (Exception) ex.getCause();
 			}
-			out.close();
-			logger.info("Added {} lines to file {}.", lines.size(), theFile);
-		} catch (Exception ex) {
-			// log the error and rethrow so the controller can relay the error to the client
-			logger.error("Error writing to file {}, exception={}", theFile, ex.toString());
 			throw ex;
 		}
 	}
+
+	/**
+	 * Bytes the lines occupied in the source file
+	 */
+	private static long sourceBytes(List<String> lines) {
+		long bytes = 0;
+		for (String line : lines) {
+			bytes += utf8Length(line) + 1;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Count the leading lines of a chunk which end at or before the committed offset
+	 */
+	private static int linesBefore(List<String> lines, long startOffset, long committedOffset) {
+		long position = startOffset;
+		int count = 0;
+		for (String line : lines) {
+			position += utf8Length(line) + 1;
+			if (position > committedOffset) {
+				break;
+			}
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @param timestamps time each line starts at, may be null (or not match the lines, when it is ignored)
+	 */
+	private static Void writeLines(OutputStream out, List<String> lines, long[] timestamps, int firstLine) throws IOException {
+		WriterPool.EventTimes times = (timestamps != null && timestamps.length == lines.size()
+			&& out instanceof WriterPool.EventTimes) ? (WriterPool.EventTimes) out : null;
+		for (int i = firstLine; i < lines.size(); i++) {
+			if (times != null) {
+				times.eventTime(timestamps[i]);
+			}
+			out.write(lines.get(i).getBytes(StandardCharsets.UTF_8));
+			out.write('\n');
+		}
+		if (times != null) {
+			times.eventTime(LineTimestamps.NONE);
+		}
+		return null;
+	}
+
+	/**
+	 * The lines of a binary batch, each followed by a newline, packed into one buffer, and the timestamp of each
+	 * if the batch carries them.  Each line occupies the same number of bytes here as in the source file.
+	 */
+	private static class DecodedBatch {
+		private byte[] data = new byte[8192];
+		private int length;
+		private int[] lineEnds = new int[256];
+		private long[] timestamps;		// null if the batch carries none
+		private int lineCount;
+
+		static DecodedBatch read(LogBatchReader batch) throws IOException {
+			DecodedBatch decoded = new DecodedBatch();
+			if (batch.hasTimestamps()) {
+				decoded.timestamps = new long[decoded.lineEnds.length];
+			}
+			while (batch.nextLine()) {
+				decoded.add(batch.lineBuffer(), batch.lineStart(), batch.lineLength());
+				if (decoded.timestamps != null) {
+					decoded.timestamps[decoded.lineCount - 1] = batch.lineTimestamp();
+				}
+			}
+			return decoded;
+		}
+
+		/**
+		 * Write the lines from one on, in a single call unless each has a time to hand to the segment first
+		 */
+		void write(OutputStream out, int firstLine) throws IOException {
+			if (timestamps == null || !(out instanceof WriterPool.EventTimes)) {
+				int from = lineStart(firstLine);
+				out.write(data, from, length - from);
+				return;
+			}
+			WriterPool.EventTimes times = (WriterPool.EventTimes) out;
+			for (int i = firstLine; i < lineCount; i++) {
+				times.eventTime(timestamps[i]);
+				out.write(data, lineStart(i), lineEnds[i] - lineStart(i));
+			}
+			times.eventTime(LineTimestamps.NONE);
+		}
+
+		private void add(byte[] buffer, int start, int lineLength) {
+			int needed = length + lineLength + 1;
+			if (needed > data.length) {
+				data = Arrays.copyOf(data, Math.max(needed, data.length * 2));
+			}
+			System.arraycopy(buffer, start, data, length, lineLength);
+			length += lineLength;
+			data[length++] = '\n';
+			if (lineCount == lineEnds.length) {
+				lineEnds = Arrays.copyOf(lineEnds, lineCount * 2);
+				if (timestamps != null) {
+					timestamps = Arrays.copyOf(timestamps, lineCount * 2);
+				}
+			}
+			lineEnds[lineCount++] = length;
+		}
+
+		int lineStart(int line) {
+			return line == 0 ? 0 : lineEnds[line - 1];
+		}
+
+		/**
+		 * Count the leading lines which end at or before the committed offset
+		 */
+		int linesBefore(long startOffset, long committedOffset) {
+			int count = 0;
+			while (count < lineCount && startOffset + lineEnds[count] <= committedOffset) {
+				count++;
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Number of bytes in the UTF-8 encoding of a string, without encoding it
+	 */
+	static int utf8Length(String line) {
+		int length = 0;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < line.length()
+					&& Character.isLowSurrogate(line.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
 }
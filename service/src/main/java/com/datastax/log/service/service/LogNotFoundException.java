@@ -0,0 +1,16 @@
+package com.datastax.log.service.service;
+
+/**
+ * Thrown when reading a file the service holds nothing for, it is answered with 404 Not Found.
+ *
+ * @author cingham
+ */
+public class LogNotFoundException extends RuntimeException {
+
+	/**
+	 * @param stream the stream that was requested
+	 */
+	public LogNotFoundException(String stream) {
+		super("No file " + stream);
+	}
+}
@@ -0,0 +1,20 @@
+package com.datastax.log.service.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A range of whole lines of an output file, numbered (like the SegmentManifest) across all of its segments:
+ * the lines [firstLine, endLine) which occupy the bytes [startByte, endByte).
+ *
+ * @author cingham
+ */
+@AllArgsConstructor
+@Getter
+public class LogRange {
+	private final String stream;
+	private final long firstLine;
+	private final long endLine;
+	private final long startByte;
+	private final long endByte;
+}
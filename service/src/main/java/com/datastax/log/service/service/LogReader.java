@@ -0,0 +1,607 @@
+package com.datastax.log.service.service;
+
+import com.datastax.log.service.codec.Compression;
+import com.datastax.log.service.config.Config;
+import com.datastax.log.service.dto.SegmentManifest;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads ranges of lines back out of the output files, by line number or by time, and follows files as
+ * they are written.
+ *
+ * A file is read across all of its segments: closed segments (decompressed if need be) followed by the
+ * active one.  To find where a line or time starts, the nearest checkpoint before it is taken from the
+ * file's LineIndex (or the start of a segment, from the manifest) and at most indexInterval lines are scanned
+ * from there.  The bytes of the range are then sent with FileChannel.transferTo, or decompressed, without
+ * being split into lines.
+ *
+ * The files making up the range are opened together, and reopened if a segment was rolled or compressed
+ * in the meantime, so a range stays readable while the file is written, rolled and compressed.  Only whole
+ * lines are returned.
+ *
+ * A follower is sent everything flushed to the file beyond its position, woken by the LineIndex each time
+ * the file is flushed, until the client goes away or followTimeout passes.
+ *
+ * @author cingham
+ */
+@Service
+public class LogReader {
+	private static final Logger logger = LoggerFactory.getLogger(LogReader.class);
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int TIMESTAMP_BYTES = 40;
+	private static final int OPEN_ATTEMPTS = 3;
+	// a waiting follower rechecks whether it has been stopped this often, even with nothing new to send
+	private static final long FOLLOW_WAKEUP_MILLIS = 10 * 1000;
+
+	private final StorageLayout layout;
+	private final PartitionRing partitionRing;
+	private final SegmentManager segmentManager;
+	private final long followTimeoutMillis;
+	private final int retryAfter;
+	private final Semaphore followers;
+	private final ExecutorService followExecutor;
+
+	/**
+	 * Injection constructor
+	 *
+	 * @param config app config options
+	 * @param layout where each output file is kept
+	 * @param partitionRing which service instance writes each output file
+	 * @param segmentManager segments, manifest and index of each output file
+	 */
+	LogReader(Config config, StorageLayout layout, PartitionRing partitionRing, SegmentManager segmentManager) {
+		this.layout = layout;
+		this.partitionRing = partitionRing;
+		this.segmentManager = segmentManager;
+		this.followTimeoutMillis = config.getFollowTimeout() * 1000L;	// seconds to millis
+		this.retryAfter = config.getRetryAfter();
+		this.followers = new Semaphore(config.getMaxFollowers());
+
+		AtomicInteger threadCount = new AtomicInteger();
+		followExecutor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "log-follow-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Find the lines [fromLine, toLine) of a file
+	 *
+	 * @param clientId the client which sent the file
+	 * @param filename the file's name
+	 * @param fromLine first line wanted, lines before the oldest segment kept are skipped
+	 * @param toLine line after the last line wanted, Long.MAX_VALUE for everything written so far
+	 * @return the lines found, which may be fewer than asked for
+	 * @throws IOException error reading the file
+	 * @throws LogNotFoundException if there is no such file
+	 * @throws StreamNotOwnedException if another service instance writes the file
+	 */
+	public LogRange findLines(String clientId, String filename, long fromLine, long toLine) throws IOException {
+		String stream = clientId + "-" + filename;
+		LineIndex index = index(stream);
+		long[] checkpoint = index.floorLine(fromLine);
+		try (Snapshot snapshot = open(stream, checkpoint != null ? checkpoint[1] : 0)) {
+			long[] start = snapshot.seekLine(index, fromLine);
+			long[] end = snapshot.seekLine(index, Math.max(toLine, start[0]));
+			return new LogRange(stream, start[0], end[0], start[1], end[1]);
+		}
+	}
+
+	/**
+	 * Find the lines of a file from the first one stamped at or after since, to the first one stamped at
+	 * or after until.  Lines without a timestamp go with the line before them.  The file is taken to be
+	 * written in time order.
+	 *
+	 * @param clientId the client which sent the file
+	 * @param filename the file's name
+	 * @param since epoch millis
+	 * @param until epoch millis, Long.MAX_VALUE for everything written so far
+	 * @return the lines found
+	 * @throws IOException error reading the file
+	 * @throws LogNotFoundException if there is no such file
+	 * @throws StreamNotOwnedException if another service instance writes the file
+	 */
+	public LogRange findTimes(String clientId, String filename, long since, long until) throws IOException {
+		String stream = clientId + "-" + filename;
+		LineIndex index = index(stream);
+		long[] checkpoint = index.floorTime(since);
+		try (Snapshot snapshot = open(stream, checkpoint != null ? checkpoint[1] : 0)) {
+			long[] start = snapshot.seekTime(index, since, null);
+			long[] end = (until == Long.MAX_VALUE) ? snapshot.seekLine(index, Long.MAX_VALUE)
+				: snapshot.seekTime(index, Math.max(until, since), start);
+			return new LogRange(stream, start[0], end[0], start[1], end[1]);
+		}
+	}
+
+	/**
+	 * Send the bytes of a range of lines
+	 *
+	 * @param range lines found by findLines() or findTimes()
+	 * @param out where to send them
+	 * @throws IOException error reading the file or writing out
+	 */
+	public void transfer(LogRange range, OutputStream out) throws IOException {
+		transfer(range.getStream(), range.getStartByte(), range.getEndByte(), out);
+	}
+
+	/**
+	 * Send a range of lines and then follow the file, sending each line as it is written, on a follower thread
+	 *
+	 * @param range where to start, everything from its first line is sent
+	 * @param emitter the response to send the lines to
+	 * @throws IOException error reading the file's index
+	 * @throws IngestRejectedException if maxFollowers are already following files
+	 */
+	public void follow(LogRange range, ResponseBodyEmitter emitter) throws IOException {
+		LineIndex index = index(range.getStream());
+		if (!followers.tryAcquire()) {
+			throw new IngestRejectedException("Too many readers following files", true, retryAfter);
+		}
+		AtomicBoolean stopped = new AtomicBoolean();
+		Runnable stop = () -> {
+			stopped.set(true);
+			index.wakeReaders();
+		};
+		emitter.onCompletion(stop);
+		emitter.onTimeout(stop);
+		emitter.onError(error -> stop.run());
+
+		try {
+			followExecutor.execute(() -> {
+				try {
+					OutputStream out = new BufferedOutputStream(new EmitterOutputStream(emitter), BUFFER_SIZE);
+					long position = range.getStartByte();
+					while (!stopped.get()) {
+						long end = index.awaitFlushed(position, FOLLOW_WAKEUP_MILLIS);
+						if (end > position && !stopped.get()) {
+							transfer(range.getStream(), position, end, out);
+							out.flush();
+							position = end;
+						}
+					}
+					emitter.complete();
+				} catch (IOException ex) {
+					// most likely the client went away
+					logger.info("Stopped following file {}, exception={}", range.getStream(), ex.toString());
+					emitter.complete();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					emitter.complete();
+				} finally {
+					followers.release();
+				}
+			});
+		} catch (RuntimeException ex) {
+			followers.release();
+			throw ex;
+		}
+	}
+
+	/**
+	 * @return how long a follow request may stay open in millis, zero for no limit
+	 */
+	public long getFollowTimeoutMillis() {
+		return followTimeoutMillis;
+	}
+
+	/**
+	 * Stop the followers on app shutdown
+	 */
+	@PreDestroy
+	public void shutdown() {
+		followExecutor.shutdownNow();
+	}
+
+	private LineIndex index(String stream) throws IOException {
+		partitionRing.checkOwner(stream);
+		LineIndex index = segmentManager.getIndex(stream);
+		if (index == null) {
+			throw new LogNotFoundException(stream);
+		}
+		return index;
+	}
+
+	private void transfer(String stream, long start, long end, OutputStream out) throws IOException {
+		if (end <= start) {
+			return;
+		}
+		try (Snapshot snapshot = open(stream, start)) {
+			snapshot.transfer(start, end, out);
+		}
+	}
+
+	/**
+	 * Open the pieces of a file holding the bytes from a position on, as they are now.  If the file is rolled
+	 * (or a segment compressed or deleted) while they are being opened, they are opened again.
+	 */
+	private Snapshot open(String stream, long fromByte) throws IOException {
+		File directory = layout.directoryFor(stream);
+		for (int attempt = 1; ; attempt++) {
+			SegmentManifest manifest = segmentManager.getManifest(stream);
+			long activeLine = (manifest != null) ? manifest.getActiveFirstLine() : 0;
+			long activeByte = (manifest != null) ? manifest.getActiveStartByte() : 0;
+			List<Piece> pieces = new ArrayList<>();
+			try {
+				if (manifest != null) {
+					for (SegmentManifest.Segment segment : manifest.getSegments()) {
+						if (segment.getEndByte() > fromByte) {
+							pieces.add(new Piece(new File(directory, segment.getFile()), segment.getFirstLine(),
+								segment.getStartByte(), segment.getEndByte(), segment.getCompression()));
+						}
+					}
+				}
+				File active = layout.fileFor(stream);
+				if (active.exists()) {
+					pieces.add(new Piece(active, activeLine, activeByte, -1, Compression.NONE));
+				}
+
+				// the active file is only the one in the manifest if it has not been rolled since
+				SegmentManifest now = segmentManager.getManifest(stream);
+				if (now == null || now.getActiveStartByte() == activeByte) {
+					return new Snapshot(pieces, activeLine, activeByte);
+				}
+			} catch (NoSuchFileException ex) {
+				logger.debug("File {} changed while opening it, exception={}", stream, ex.toString());
+			}
+			for (Piece piece : pieces) {
+				piece.close();
+			}
+			if (attempt == OPEN_ATTEMPTS) {
+				throw new IOException("File " + stream + " kept changing while opening it");
+			}
+		}
+	}
+
+	/**
+	 * A closed segment or the active file, held open so it can be read after being renamed or deleted
+	 */
+	private static class Piece implements Closeable {
+		private final long firstLine;
+		private final long startByte;
+		private final long endByte;
+		private final Compression compression;
+		private final FileChannel channel;
+
+		Piece(File file, long firstLine, long startByte, long endByte, Compression compression) throws IOException {
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			this.firstLine = firstLine;
+			this.startByte = startByte;
+			this.endByte = (endByte >= 0) ? endByte : startByte + channel.size();
+			this.compression = (compression != null) ? compression : Compression.NONE;
+		}
+
+		/**
+		 * @param offset bytes from the start of the piece
+		 * @return the piece's (uncompressed) bytes from the offset on
+		 */
+		InputStream open(long offset) throws IOException {
+			if (compression == Compression.NONE) {
+				return new ChannelInput(channel, offset, endByte - startByte);
+			}
+			channel.position(0);
+			InputStream in = SegmentManager.decompressor(compression,
+				new CloseShieldInputStream(Channels.newInputStream(channel)));
+			IOUtils.skipFully(in, offset);
+			return in;
+		}
+
+		/**
+		 * Send bytes [from, to) of the piece, straight from the file when it is not compressed
+		 */
+		void transfer(long from, long to, OutputStream out, WritableByteChannel target) throws IOException {
+			if (compression == Compression.NONE) {
+				out.flush();
+				while (from < to) {
+					long sent = channel.transferTo(from, to - from, target);
+					if (sent <= 0) {
+						throw new EOFException("Segment ended early");
+					}
+					from += sent;
+				}
+			} else {
+				try (InputStream in = open(from)) {
+					IOUtils.copyLarge(in, out, 0, to - from);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * The pieces of a file holding a range of its bytes
+	 */
+	private static class Snapshot implements Closeable {
+		private final List<Piece> pieces;
+		private final long firstLine;
+		private final long startByte;
+
+		Snapshot(List<Piece> pieces, long activeLine, long activeByte) {
+			this.pieces = pieces;
+			this.firstLine = pieces.isEmpty() ? activeLine : pieces.get(0).firstLine;
+			this.startByte = pieces.isEmpty() ? activeByte : pieces.get(0).startByte;
+		}
+
+		/**
+		 * @return {line, byte} where the line starts, or where the data ends if there are not that many lines
+		 */
+		long[] seekLine(LineIndex index, long line) throws IOException {
+			long[] from = {firstLine, startByte};
+			for (Piece piece : pieces) {
+				if (piece.firstLine <= line && piece.startByte >= from[1]) {
+					from = new long[] {piece.firstLine, piece.startByte};
+				}
+			}
+			long[] checkpoint = index.floorLine(line);
+			if (checkpoint != null && checkpoint[0] >= from[0] && checkpoint[1] >= from[1]) {
+				from = checkpoint;
+			}
+			LineScanner scanner = new LineScanner(this, from[0], from[1]);
+			while (scanner.line < line && scanner.nextLine()) {
+				// counting lines
+			}
+			return new long[] {scanner.line, scanner.lineStart};
+		}
+
+		/**
+		 * @param after where to start looking if known, otherwise the index is used
+		 * @return {line, byte} of the first line stamped at or after the time, or where the data ends
+		 */
+		long[] seekTime(LineIndex index, long time, long[] after) throws IOException {
+			long[] from = (after != null) ? after : seekLine(index, 0);
+			long[] checkpoint = index.floorTime(time);
+			if (checkpoint != null && checkpoint[0] >= from[0] && checkpoint[1] >= from[1]) {
+				from = checkpoint;
+			}
+			if (time == Long.MIN_VALUE) {
+				return from;
+			}
+			LineScanner scanner = new LineScanner(this, from[0], from[1]);
+			do {
+				long stamp = scanner.timestamp();
+				if (stamp != LineTimestamps.NONE && stamp >= time) {
+					break;
+				}
+			} while (scanner.nextLine());
+			return new long[] {scanner.line, scanner.lineStart};
+		}
+
+		void transfer(long start, long end, OutputStream out) throws IOException {
+			WritableByteChannel target = Channels.newChannel(out);
+			for (Piece piece : pieces) {
+				long from = Math.max(start, piece.startByte);
+				long to = Math.min(end, piece.endByte);
+				if (from < to) {
+					piece.transfer(from - piece.startByte, to - piece.startByte, out, target);
+				}
+			}
+			if (!pieces.isEmpty() && end > pieces.get(pieces.size() - 1).endByte) {
+				throw new EOFException("File ended early");
+			}
+		}
+
+		/**
+		 * @return the bytes of the file from a position on, across the pieces
+		 */
+		InputStream input(long position) {
+			return new InputStream() {
+				private long next = position;
+				private InputStream current;
+				private final byte[] single = new byte[1];
+
+				@Override
+				public int read() throws IOException {
+					return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xff);
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					while (true) {
+						if (current == null && !openNext()) {
+							return -1;
+						}
+						int count = current.read(b, off, len);
+						if (count > 0) {
+							next += count;
+							return count;
+						}
+						current.close();
+						current = null;
+					}
+				}
+
+				private boolean openNext() throws IOException {
+					for (Piece piece : pieces) {
+						if (piece.endByte > next) {
+							long offset = Math.max(0, next - piece.startByte);
+							next = piece.startByte + offset;
+							current = piece.open(offset);
+							return true;
+						}
+					}
+					return false;
+				}
+
+				@Override
+				public void close() throws IOException {
+					if (current != null) {
+						current.close();
+					}
+				}
+			};
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (Piece piece : pieces) {
+				piece.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads a file's lines from a buffer, keeping track of the line number and byte each one starts at
+	 */
+	private static class LineScanner {
+		private final InputStream in;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private int position;
+		private int limit;
+		private long bufferStart;	// byte of the file at buffer[0]
+
+		private long line;
+		private long lineStart;
+
+		LineScanner(Snapshot snapshot, long line, long startByte) {
+			this.in = snapshot.input(startByte);
+			this.bufferStart = startByte;
+			this.line = line;
+			this.lineStart = startByte;
+		}
+
+		/**
+		 * @return true if moved to the start of the next line, false if the current line is not complete
+		 */
+		boolean nextLine() throws IOException {
+			while (true) {
+				for (; position < limit; position++) {
+					if (buffer[position] == '\n') {
+						line++;
+						position++;
+						lineStart = bufferStart + position;
+						return true;
+					}
+				}
+				if (!fill()) {
+					return false;
+				}
+			}
+		}
+
+		/**
+		 * @return the timestamp the current line starts with, or LineTimestamps.NONE
+		 */
+		long timestamp() throws IOException {
+			int start = (int) (lineStart - bufferStart);
+			while (limit - start < TIMESTAMP_BYTES && fill()) {
+				start = (int) (lineStart - bufferStart);
+			}
+			return LineTimestamps.parse(buffer, start, limit);
+		}
+
+		/**
+		 * Keep the current line at the front of the buffer and read more after it
+		 */
+		private boolean fill() throws IOException {
+			int keep = (int) (lineStart - bufferStart);
+			if (keep > 0) {
+				System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+				position -= keep;
+				limit -= keep;
+				bufferStart += keep;
+			}
+			if (limit == buffer.length) {
+				// a line longer than the buffer, drop its start (only its first bytes are ever looked at)
+				int drop = buffer.length / 2;
+				System.arraycopy(buffer, drop, buffer, 0, limit - drop);
+				position = Math.max(0, position - drop);
+				limit -= drop;
+				bufferStart += drop;
+			}
+			int count = in.read(buffer, limit, buffer.length - limit);
+			if (count <= 0) {
+				return false;
+			}
+			limit += count;
+			return true;
+		}
+	}
+
+	/**
+	 * Reads part of a file through positional reads, without moving the channel's position
+	 */
+	private static class ChannelInput extends InputStream {
+		private final FileChannel channel;
+		private long position;
+		private final long end;
+
+		ChannelInput(FileChannel channel, long position, long end) {
+			this.channel = channel;
+			this.position = position;
+			this.end = end;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= end) {
+				return -1;
+			}
+			int count = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+			if (count > 0) {
+				position += count;
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Sends whatever is written to it to a follower's response
+	 */
+	private static class EmitterOutputStream extends OutputStream {
+		private final ResponseBodyEmitter emitter;
+
+		EmitterOutputStream(ResponseBodyEmitter emitter) {
+			this.emitter = emitter;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			emitter.send(Arrays.copyOfRange(b, off, off + len), MediaType.TEXT_PLAIN);
+		}
+	}
+}
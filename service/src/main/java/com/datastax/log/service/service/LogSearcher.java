@@ -0,0 +1,400 @@
+package com.datastax.log.service.service;
+
+import com.datastax.log.service.codec.Compression;
+import com.datastax.log.service.config.Config;
+import com.datastax.log.service.dto.SegmentManifest;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the lines holding a piece of text across the output files, e.g. a request id across every client's files.
+ *
+ * The text is matched on token boundaries (see TokenIndex): "req-42" finds "id=req-42," but not "req-421", so
+ * every token of the text is a whole token of a matching line.  A closed segment whose TokenIndex is missing one
+ * of them, or whose timestamps are all outside since / until, is skipped without being read.  The rest (closed
+ * segments not indexed yet, and the active segments) are scanned in parallel, one segment to a task on
+ * searchThreads threads: uncompressed segments through a memory map, compressed ones as they are decompressed.
+ * A matching line which starts with a timestamp outside since / until is left out, one without a timestamp is kept.
+ *
+ * The lines found are returned in file and line order, up to the limit, after which the scans still running are
+ * stopped.  Only the files owned by this instance are searched, with several instances each has to be searched.
+ * A segment rolled, compressed or deleted while it is searched is opened again, or skipped once it is gone.
+ *
+ * @author cingham
+ */
+@Service
+public class LogSearcher {
+	private static final Logger logger = LoggerFactory.getLogger(LogSearcher.class);
+
+	private static final int WINDOW_BYTES = 64 * 1024 * 1024;		// of a segment mapped at once
+	private static final int BUFFER_SIZE = 1024 * 1024;		// compressed segments are read through
+	private static final int OPEN_ATTEMPTS = 3;
+	private static final int STOP_CHECK_BYTES = 1024 * 1024;
+	private static final long ACTIVE = -1;		// sequence of the active segment
+
+	private static final Timer searchTimer = Timer.builder("log.service.search")
+		.description("Time to search the output files").publishPercentileHistogram().register(Metrics.globalRegistry);
+	private static final Counter segmentsSearched = Counter.builder("log.service.search.segments").tag("result", "searched")
+		.description("Segments searched, or skipped by their token index").register(Metrics.globalRegistry);
+	private static final Counter segmentsSkipped = Counter.builder("log.service.search.segments").tag("result", "skipped")
+		.description("Segments searched, or skipped by their token index").register(Metrics.globalRegistry);
+
+	private final StorageLayout layout;
+	private final PartitionRing partitionRing;
+	private final SegmentManager segmentManager;
+	private final int maxResults;
+	private final ExecutorService executor;
+
+	/**
+	 * Injection constructor
+	 *
+	 * @param config app config options
+	 * @param layout where each output file is kept
+	 * @param partitionRing which service instance writes each output file
+	 * @param segmentManager segments and token indexes of each output file
+	 */
+	LogSearcher(Config config, StorageLayout layout, PartitionRing partitionRing, SegmentManager segmentManager) {
+		this.layout = layout;
+		this.partitionRing = partitionRing;
+		this.segmentManager = segmentManager;
+		this.maxResults = Math.max(1, config.getMaxSearchResults());
+
+		int threads = (config.getSearchThreads() > 0) ? config.getSearchThreads() : Runtime.getRuntime().availableProcessors();
+		AtomicInteger threadCount = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "log-search-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Find the lines holding some text
+	 *
+	 * @param text the text to look for, on token boundaries
+	 * @param clientId only search this client's files, null for every file
+	 * @param since earliest time wanted, epoch millis, Long.MIN_VALUE for no limit
+	 * @param until time after the latest wanted, Long.MAX_VALUE for no limit
+	 * @param limit most lines wanted, zero or less for maxSearchResults (which also caps it)
+	 * @return the lines found
+	 * @throws IOException error listing the files
+	 */
+	public SearchResult search(String text, String clientId, long since, long until, int limit) throws IOException {
+		if (text == null || text.isEmpty() || text.indexOf('\n') >= 0) {
+			throw new IllegalArgumentException("Search for some text, on a single line");
+		}
+		long start = System.nanoTime();
+		Query query = new Query(text.getBytes(StandardCharsets.UTF_8), since, until,
+			(limit > 0) ? Math.min(limit, maxResults) : maxResults);
+		long[] tokens = TokenIndex.tokenHashes(query.text);
+
+		List<Future<List<SearchResult.Match>>> scans = new ArrayList<>();
+		int skipped = 0;
+		try {
+			for (String stream : segmentManager.streams()) {
+				if ((clientId != null && !stream.startsWith(clientId + "-")) || !partitionRing.isOwner(stream)) {
+					continue;
+				}
+				SegmentManifest manifest = segmentManager.getManifest(stream);
+				if (manifest != null) {
+					for (SegmentManifest.Segment segment : manifest.getSegments()) {
+						TokenIndex index = TokenIndex.open(segmentManager.tokensFile(stream, segment.getSequence()));
+						if (index != null && (!index.overlaps(since, until) || !index.mightContain(tokens))) {
+							skipped++;
+							continue;
+						}
+						scans.add(submit(stream, segment.getSequence(), query));
+					}
+				}
+				scans.add(submit(stream, ACTIVE, query));
+			}
+			SearchResult result = collect(scans, skipped, query);
+			segmentsSearched.increment(result.getSegmentsSearched());
+			segmentsSkipped.increment(skipped);
+			return result;
+		} finally {
+			query.stopped.set(true);
+			for (Future<List<SearchResult.Match>> scan : scans) {
+				scan.cancel(false);
+			}
+			searchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Stop the search threads on app shutdown
+	 */
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private Future<List<SearchResult.Match>> submit(String stream, long sequence, Query query) {
+		return executor.submit(() -> {
+			if (query.stopped.get()) {
+				return Collections.emptyList();
+			}
+			try {
+				return scan(stream, sequence, query);
+			} catch (IOException ex) {
+				logger.error("Error searching file {} segment {}, exception={}", stream, sequence, ex.toString());
+				return Collections.emptyList();
+			}
+		});
+	}
+
+	/**
+	 * Take the lines found by each scan in turn, until there are as many as were wanted
+	 */
+	private SearchResult collect(List<Future<List<SearchResult.Match>>> scans, int skipped, Query query)
+			throws IOException {
+		List<SearchResult.Match> matches = new ArrayList<>();
+		for (Future<List<SearchResult.Match>> scan : scans) {
+			try {
+				for (SearchResult.Match match : scan.get()) {
+					matches.add(match);
+					if (matches.size() == query.limit) {
+						return new SearchResult(matches, scans.size(), skipped, true);
+					}
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while searching", ex);
+			} catch (ExecutionException ex) {
+				throw new IOException("Error searching", ex.getCause());
+			}
+		}
+		return new SearchResult(matches, scans.size(), skipped, false);
+	}
+
+	/**
+	 * Runs on a search thread: find the lines of one segment holding the text
+	 *
+	 * @param sequence the closed segment's sequence number, or ACTIVE
+	 */
+	private List<SearchResult.Match> scan(String stream, long sequence, Query query) throws IOException {
+		SegmentScan scan = new SegmentScan(stream, query);
+		File directory = layout.directoryFor(stream);
+		for (int attempt = 1; attempt <= OPEN_ATTEMPTS; attempt++) {
+			SegmentManifest manifest = segmentManager.getManifest(stream);
+			try {
+				if (sequence == ACTIVE) {
+					long startByte = (manifest != null) ? manifest.getActiveStartByte() : 0;
+					try (FileChannel channel = FileChannel.open(layout.fileFor(stream).toPath(), StandardOpenOption.READ)) {
+						// the file opened is only the one in the manifest if it has not been rolled since
+						SegmentManifest now = segmentManager.getManifest(stream);
+						if (now != null && now.getActiveStartByte() != startByte) {
+							continue;
+						}
+						scan.mapped(channel, (manifest != null) ? manifest.getActiveFirstLine() : 0);
+						return scan.matches;
+					}
+				}
+				SegmentManifest.Segment segment = (manifest == null) ? null : manifest.getSegments().stream()
+					.filter(closed -> closed.getSequence() == sequence).findFirst().orElse(null);
+				if (segment == null) {
+					return scan.matches;		// deleted under the retention policy
+				}
+				try (FileChannel channel = FileChannel.open(new File(directory, segment.getFile()).toPath(),
+						StandardOpenOption.READ)) {
+					if (segment.getCompression() == null || segment.getCompression() == Compression.NONE) {
+						scan.mapped(channel, segment.getFirstLine());
+					} else {
+						try (InputStream in = SegmentManager.decompressor(segment.getCompression(),
+								Channels.newInputStream(channel))) {
+							scan.stream(in, segment.getFirstLine());
+						}
+					}
+					return scan.matches;
+				}
+			} catch (NoSuchFileException ex) {
+				logger.debug("File {} changed while searching it, exception={}", stream, ex.toString());
+			}
+		}
+		return scan.matches;
+	}
+
+	/**
+	 * What is searched for
+	 */
+	private static class Query {
+		private final byte[] text;
+		private final long since;
+		private final long until;
+		private final int limit;
+		private final AtomicBoolean stopped = new AtomicBoolean();
+		private final boolean tokenStart;		// the text starts on a token, so a match must start a token
+		private final boolean tokenEnd;
+
+		Query(byte[] text, long since, long until, int limit) {
+			this.text = text;
+			this.since = since;
+			this.until = until;
+			this.limit = limit;
+			this.tokenStart = TokenIndex.isTokenByte(text[0]);
+			this.tokenEnd = TokenIndex.isTokenByte(text[text.length - 1]);
+		}
+	}
+
+	/**
+	 * Looks for the text in the whole lines of one segment, counting them as it goes
+	 */
+	private static class SegmentScan {
+		private final String stream;
+		private final Query query;
+		private final List<SearchResult.Match> matches = new ArrayList<>();
+		private boolean done;
+
+		SegmentScan(String stream, Query query) {
+			this.stream = stream;
+			this.query = query;
+		}
+
+		/**
+		 * Scan an uncompressed segment through a memory map, a window at a time
+		 */
+		void mapped(FileChannel channel, long firstLine) throws IOException {
+			long size = channel.size();
+			long position = 0;
+			long line = firstLine;
+			while (position < size && !done) {
+				int length = (int) Math.min(WINDOW_BYTES, size - position);
+				ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+				int end = lastNewline(window, length) + 1;
+				if (end == 0) {
+					if (position + length == size) {
+						break;		// the last line is still being written
+					}
+					end = length;		// a line longer than the window, searched a window at a time
+				}
+				line = scan(window, end, line);
+				position += end;
+			}
+		}
+
+		/**
+		 * Scan a compressed segment as it is decompressed
+		 */
+		void stream(InputStream in, long firstLine) throws IOException {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int limit = 0;
+			long line = firstLine;
+			while (!done) {
+				int count = in.read(buffer, limit, buffer.length - limit);
+				if (count < 0) {
+					break;
+				}
+				limit += count;
+				ByteBuffer bytes = ByteBuffer.wrap(buffer);
+				int end = lastNewline(bytes, limit) + 1;
+				if (end == 0) {
+					if (limit < buffer.length) {
+						continue;
+					}
+					end = limit;		// a line longer than the buffer
+				}
+				line = scan(bytes, end, line);
+				System.arraycopy(buffer, end, buffer, 0, limit - end);
+				limit -= end;
+			}
+		}
+
+		private static int lastNewline(ByteBuffer bytes, int end) {
+			for (int i = end - 1; i >= 0; i--) {
+				if (bytes.get(i) == '\n') {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Look for the text in the bytes [0, end), which end at the end of a line
+		 *
+		 * @param line number of the line the bytes start with
+		 * @return number of the line after them
+		 */
+		private long scan(ByteBuffer bytes, int end, long line) {
+			byte[] text = query.text;
+			byte first = text[0];
+			int lineStart = 0;
+			for (int i = 0; i < end; i++) {
+				byte b = bytes.get(i);
+				if (b == '\n') {
+					line++;
+					lineStart = i + 1;
+				} else if (b == first && matchesAt(bytes, i, end, lineStart)) {
+					int lineEnd = i + text.length;
+					while (lineEnd < end && bytes.get(lineEnd) != '\n') {
+						lineEnd++;
+					}
+					found(bytes, lineStart, lineEnd, line);
+					if (done) {
+						return line;
+					}
+					i = lineEnd - 1;		// on to the line's newline
+				}
+				if ((i & (STOP_CHECK_BYTES - 1)) == 0 && query.stopped.get()) {
+					done = true;
+					return line;
+				}
+			}
+			return line;
+		}
+
+		private boolean matchesAt(ByteBuffer bytes, int at, int end, int lineStart) {
+			byte[] text = query.text;
+			int after = at + text.length;
+			if (after > end) {
+				return false;
+			}
+			for (int j = 1; j < text.length; j++) {
+				if (bytes.get(at + j) != text[j]) {
+					return false;
+				}
+			}
+			return (!query.tokenStart || at == lineStart || !TokenIndex.isTokenByte(bytes.get(at - 1)))
+				&& (!query.tokenEnd || after == end || !TokenIndex.isTokenByte(bytes.get(after)));
+		}
+
+		private void found(ByteBuffer bytes, int lineStart, int lineEnd, long line) {
+			byte[] text = new byte[lineEnd - lineStart];
+			ByteBuffer source = bytes.duplicate();
+			source.position(lineStart);
+			source.get(text);
+			if (query.since != Long.MIN_VALUE || query.until != Long.MAX_VALUE) {
+				long time = LineTimestamps.parse(text, 0, text.length);
+				if (time != LineTimestamps.NONE && (time < query.since || time >= query.until)) {
+					return;
+				}
+			}
+			matches.add(new SearchResult.Match(stream, line, text));
+			done = matches.size() >= query.limit;
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package com.datastax.log.service.service;
+
+import com.datastax.log.service.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the last committed source offset for each stream ({clientId}-{filename}) so that
+ * chunks which are re-sent by an agent (e.g. after a timeout) are not written twice.
+ *
+ * A new offset is held as pending until the WriterPool reports the stream's data has been flushed,
+ * only then is it committed, and persisted to a single append-only journal in the output directory.
+ * This way neither a request nor the journal is told of more than the output file actually holds,
+ * and if the flush fails the pending offset is dropped, so the chunk is written again when it is re-sent.
+ * The journal is compacted on startup and whenever it grows well beyond the number of streams.
+ *
+ * When several service instances share the output directory each keeps its own journal, named after
+ * its instanceUrl.  A stream this instance has no record of (e.g. one that moved here when the instances
+ * changed) takes its offset from the other instances' journals.
+ *
+ * @author cingham
+ */
+@Component
+public class OffsetStore implements WriterPool.FlushListener {
+	private static final Logger logger = LoggerFactory.getLogger(OffsetStore.class);
+
+	static final String JOURNAL_NAME = ".committed-offsets";
+	private static final int MIN_COMPACT_RECORDS = 10000;
+
+	private final File journalFile;
+
+	// offset for each stream whose data has been flushed
+	private final Map<String, StreamOffset> committed = new ConcurrentHashMap<>();
+	// offsets written to the journal, used to compact it
+	private final Map<String, StreamOffset> persisted = new ConcurrentHashMap<>();
+	// offsets written but waiting for their data to be flushed, guarded by the WriterPool lock for the stream
+	private final Map<String, StreamOffset> pending = new ConcurrentHashMap<>();
+
+	// guarded by this
+	private FileOutputStream journalOut;
+	private Writer journal;
+	private long journalRecords;
+
+	/**
+	 * Injection constructor
+	 *
+	 * @param config app config options
+	 * @throws IOException error reading or compacting the existing journal
+	 */
+	OffsetStore(Config config) throws IOException {
+		File filePath = new File(config.getFilePath());
+		filePath.mkdirs();
+		journalFile = new File(filePath, journalName(config));
+		load(journalFile, persisted);
+		committed.putAll(persisted);
+		loadOtherInstances(filePath);
+		compact();
+	}
+
+	/**
+	 * @param stream stream name
+	 * @return the committed offset for a stream, or null if nothing is known about it
+	 */
+	public StreamOffset get(String stream) {
+		return committed.get(stream);
+	}
+
+	/**
+	 * Callers must hold the WriterPool lock for the stream
+	 *
+	 * @param stream stream name
+	 * @return the offset written up to, whether or not it has been flushed yet, or null if nothing is known about it
+	 */
+	public StreamOffset latest(String stream) {
+		StreamOffset offset = pending.get(stream);
+		return (offset != null) ? offset : committed.get(stream);
+	}
+
+	/**
+	 * Record a new offset written.  Callers must hold the WriterPool lock for the stream,
+	 * the offset is committed and persisted when the stream is next flushed.
+	 *
+	 * @param stream stream name
+	 * @param offset file identity and offset that has now been written
+	 */
+	public void commit(String stream, StreamOffset offset) {
+		pending.put(stream, offset);
+	}
+
+	/**
+	 * Called by the WriterPool (holding the stream's lock) once a stream's data has reached the OS
+	 */
+	@Override
+	public void flushed(String stream, boolean synced) throws IOException {
+		StreamOffset offset = pending.remove(stream);
+		if (offset != null) {
+			committed.put(stream, offset);
+			append(stream, offset, synced);
+		}
+	}
+
+	/**
+	 * Called by the WriterPool (holding the stream's lock) when flushing a stream's data failed
+	 */
+	@Override
+	public void failed(String stream) {
+		StreamOffset offset = pending.remove(stream);
+		if (offset != null) {
+			logger.warn("Dropping offset {} of stream {}, its data may not have been written", offset.getOffset(), stream);
+		}
+	}
+
+	private synchronized void append(String stream, StreamOffset offset, boolean synced) throws IOException {
+		journal.write(stream + '\t' + offset.getFileId() + '\t' + offset.getOffset() + '\n');
+		journal.flush();
+		if (synced) {
+			journalOut.getChannel().force(false);
+		}
+		persisted.put(stream, offset);
+
+		if (++journalRecords > Math.max(MIN_COMPACT_RECORDS, persisted.size() * 4L)) {
+			compact();
+		}
+	}
+
+	/**
+	 * @param config app config options
+	 * @return the journal name, with this instance's url in it when the output directory is shared
+	 */
+	static String journalName(Config config) {
+		if (config.getInstances() == null || config.getInstances().isEmpty() || config.getInstanceUrl() == null) {
+			return JOURNAL_NAME;
+		}
+		return JOURNAL_NAME + "-" + config.getInstanceUrl().trim()
+			.replaceFirst("^[a-zA-Z]+://", "").replaceAll("/+$", "").replaceAll("[^A-Za-z0-9.]", "_");
+	}
+
+	/**
+	 * Fill in the streams this instance knows nothing about from the journals of other instances
+	 */
+	private void loadOtherInstances(File filePath) throws IOException {
+		File[] journals = filePath.listFiles((dir, name) -> name.startsWith(JOURNAL_NAME)
+			&& !name.endsWith(".tmp") && !name.equals(journalFile.getName()));
+		if (journals == null) {
+			return;
+		}
+		for (File other : journals) {
+			Map<String, StreamOffset> offsets = new HashMap<>();
+			load(other, offsets);
+			for (Map.Entry<String, StreamOffset> entry : offsets.entrySet()) {
+				committed.putIfAbsent(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Read a journal, later records for a stream replace earlier ones
+	 */
+	private static void load(File journalFile, Map<String, StreamOffset> offsets) throws IOException {
+		if (!journalFile.exists()) {
+			return;
+		}
+		try (BufferedReader in = new BufferedReader(
+				new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+			String record;
+			while ((record = in.readLine()) != null) {
+				// stream names come from the agent so parse from the right
+				int offsetTab = record.lastIndexOf('\t');
+				int fileIdTab = offsetTab > 0 ? record.lastIndexOf('\t', offsetTab - 1) : -1;
+				if (fileIdTab <= 0) {
+					continue;	// torn write at the end of the journal
+				}
+				try {
+					StreamOffset offset = new StreamOffset(record.substring(fileIdTab + 1, offsetTab),
+						Long.parseLong(record.substring(offsetTab + 1)));
+					offsets.put(record.substring(0, fileIdTab), offset);
+				} catch (NumberFormatException nfe) {
+					logger.warn("Ignoring invalid record in {}: {}", journalFile, record);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replace the journal with one record per stream
+	 */
+	private synchronized void compact() throws IOException {
+		File tempFile = new File(journalFile.getPath() + ".tmp");
+		try (FileOutputStream tempOut = new FileOutputStream(tempFile);
+				Writer out = new BufferedWriter(new OutputStreamWriter(tempOut, StandardCharsets.UTF_8))) {
+			for (Map.Entry<String, StreamOffset> entry : persisted.entrySet()) {
+				out.write(entry.getKey() + '\t' + entry.getValue().getFileId() + '\t' + entry.getValue().getOffset() + '\n');
+			}
+			out.flush();
+			tempOut.getChannel().force(false);
+		}
+		closeJournal();
+		Files.move(tempFile.toPath(), journalFile.toPath(),
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		journalOut = new FileOutputStream(journalFile, true);
+		journal = new BufferedWriter(new OutputStreamWriter(journalOut, StandardCharsets.UTF_8));
+		journalRecords = persisted.size();
+	}
+
+	private void closeJournal() throws IOException {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+	}
+
+	/**
+	 * Close the journal on app shutdown, the WriterPool will already have flushed every stream
+	 */
+	@PreDestroy
+	public synchronized void shutdown() {
+		try {
+			closeJournal();
+		} catch (IOException ex) {
+			logger.error("Error closing {}, exception={}", journalFile, ex.toString());
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.datastax.log.service.service;
+
+import com.datastax.log.service.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Assigns each stream ({clientId}-{filename}) to one of the service instances sharing filePath,
+ * so that only one instance ever appends to a file and its lines cannot be interleaved.
+ *
+ * Instances are placed on a consistent hash ring, each at virtualNodes points, and a stream is owned by
+ * the first instance at or after the stream's hash.  Adding or removing an instance only moves the streams
+ * between it and its neighbours, and every instance configured with the same list agrees on the owners.
+ * A request for a stream owned by another instance is redirected there (see StreamNotOwnedException).
+ *
+ * With no instances configured the service runs on its own and owns every stream.
+ *
+ * @author cingham
+ */
+@Component
+public class PartitionRing {
+	private static final Logger logger = LoggerFactory.getLogger(PartitionRing.class);
+
+	private static final long RING_SEED = 0x72696e67L;
+
+	private final String self;
+	private final List<String> instances = new ArrayList<>();
+	private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+	/**
+	 * Injection constructor
+	 *
+	 * @param config app config options
+	 */
+	PartitionRing(Config config) {
+		if (config.getInstances() != null) {
+			for (String instance : config.getInstances()) {
+				instances.add(normalize(instance));
+			}
+		}
+		self = (config.getInstanceUrl() != null) ? normalize(config.getInstanceUrl()) : null;
+		if (instances.isEmpty()) {
+			return;
+		}
+		if (self == null || !instances.contains(self)) {
+			throw new IllegalArgumentException("instanceUrl " + config.getInstanceUrl()
+				+ " must be one of the instances " + config.getInstances());
+		}
+
+		int virtualNodes = Math.max(1, config.getVirtualNodes());
+		for (String instance : instances) {
+			for (int node = 0; node < virtualNodes; node++) {
+				ring.put(StorageLayout.hash(instance + "#" + node, RING_SEED), instance);
+			}
+		}
+		logger.info("Instance {} is one of {} instances sharing the output files.", self, instances.size());
+	}
+
+	/**
+	 * @param stream stream name
+	 * @return base url of the instance which owns the stream, or null when not running with other instances
+	 */
+	public String ownerOf(String stream) {
+		if (ring.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, String> owner = ring.ceilingEntry(StorageLayout.hash(stream, RING_SEED));
+		return (owner != null) ? owner.getValue() : ring.firstEntry().getValue();
+	}
+
+	/**
+	 * @param stream stream name
+	 * @return true if this instance should write the stream
+	 */
+	public boolean isOwner(String stream) {
+		String owner = ownerOf(stream);
+		return owner == null || owner.equals(self);
+	}
+
+	/**
+	 * @param stream stream name
+	 * @throws StreamNotOwnedException if another instance owns the stream
+	 */
+	public void checkOwner(String stream) {
+		String owner = ownerOf(stream);
+		if (owner != null && !owner.equals(self)) {
+			throw new StreamNotOwnedException(stream, owner);
+		}
+	}
+
+	/**
+	 * @return the configured instances, empty when running alone
+	 */
+	public List<String> getInstances() {
+		return Collections.unmodifiableList(instances);
+	}
+
+	private static String normalize(String url) {
+		String trimmed = url.trim();
+		return trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+	}
+}
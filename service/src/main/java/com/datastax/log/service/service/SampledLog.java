@@ -0,0 +1,52 @@
+package com.datastax.log.service.service;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logs a running total at INFO at most once per interval, in place of a line for every event.  At a high
+ * event rate a log line each time costs more than the work it reports, so events are only added up
+ * (two LongAdders, no formatting) and the first event after the interval has passed logs the totals since the last report.
+ * The totals of events recorded by other threads while reporting may land in the next report.
+ *
+ * @author cingham
+ */
+public class SampledLog {
+	private final Logger logger;
+	private final String message;
+	private final long intervalNanos;
+	private final LongAdder events = new LongAdder();
+	private final LongAdder amount = new LongAdder();
+	private final AtomicLong nextReport = new AtomicLong(System.nanoTime());
+
+	/**
+	 * @param logger where to log
+	 * @param message format with two placeholders, the total amount and then the number of events
+	 * @param intervalMillis least time between reports
+	 */
+	public SampledLog(Logger logger, String message, long intervalMillis) {
+		this.logger = logger;
+		this.message = message;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+	}
+
+	/**
+	 * Count an event, and log the totals if the interval has passed
+	 *
+	 * @param value amount to add to the total, e.g. lines uploaded
+	 */
+	public void record(long value) {
+		events.increment();
+		amount.add(value);
+		long now = System.nanoTime();
+		long next = nextReport.get();
+		if (now - next >= 0 && nextReport.compareAndSet(next, now + intervalNanos)) {
+			long total = amount.sumThenReset();
+			long count = events.sumThenReset();
+			logger.info(message, total, count);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.datastax.log.service.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * The lines a search found, in the order of the files and lines they were found in, and how many segments
+ * were read or skipped to find them.
+ *
+ * @author cingham
+ */
+@AllArgsConstructor
+@Getter
+public class SearchResult {
+	private final List<Match> matches;
+	private final int segmentsSearched;
+	private final int segmentsSkipped;
+	private final boolean limitReached;		// there may be more lines than were returned
+
+	/**
+	 * A line which holds the text searched for, numbered (like the SegmentManifest) across all of its file's segments
+	 */
+	@AllArgsConstructor
+	@Getter
+	public static class Match {
+		private final String stream;
+		private final long line;
+		private final byte[] text;		// without its newline
+	}
+}
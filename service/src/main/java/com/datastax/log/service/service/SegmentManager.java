@@ -0,0 +1,693 @@
+package com.datastax.log.service.service;
+
+import com.datastax.log.service.codec.Compression;
+import com.datastax.log.service.config.Config;
+import com.datastax.log.service.dto.SegmentManifest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Splits each output file into rolling segments, compresses the closed ones in the background,
+ * deletes them under each client's retention policy, and keeps a manifest of each file's segments.
+ *
+ * The file being written ({clientId}-{filename}, in its StorageLayout directory) is the active segment.  Once it holds
+ * maxSegmentBytes, or was started more than maxSegmentAge ago, the WriterPool closes it, it is renamed to
+ * {clientId}-{filename}.{sequence} and a new active segment is started at the original path.
+ * A background thread then compresses the closed segment (to .gz, .lz4 or .zst, per segmentCompression),
+ * so the write path never waits for compression, and periodically deletes each client's oldest closed
+ * segments until they are within the client's retention age and total bytes.
+ *
+ * The manifest {clientId}-{filename}.manifest (JSON, see SegmentManifest), beside the file, lists the closed segments with
+ * the lines and bytes of the replica each one holds, and where the active segment starts.  It is replaced
+ * atomically whenever a segment is closed, compressed or deleted.  The sparse LineIndex of each file is
+ * kept here too, and checkpoints are added to it as the active segment is written.
+ *
+ * With searchIndex set, the background thread also reads each closed segment, before compressing it, and writes
+ * its TokenIndex {clientId}-{filename}.{sequence}.tokens for LogSearcher.  So the write path never tokenizes a line.
+ *
+ * @author cingham
+ */
+@Component
+public class SegmentManager {
+	private static final Logger logger = LoggerFactory.getLogger(SegmentManager.class);
+
+	static final String MANIFEST_SUFFIX = ".manifest";
+	// names of the files kept beside the active segments: closed segments, indexes and files being written
+	// (the offset journals start with a '.')
+	private static final Pattern NOT_ACTIVE = Pattern.compile(".*(\\.\\d{6,}(\\.(gz|lz4|zst))?|\\"
+		+ LineIndex.INDEX_SUFFIX + "|\\" + TokenIndex.TOKENS_SUFFIX + "|\\.tmp)");
+	private static final long RETENTION_PERIOD_MILLIS = 60 * 1000;
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private final Config config;
+	private final StorageLayout layout;
+	private final long maxSegmentBytes;
+	private final long maxSegmentAgeMillis;
+	private final Compression compression;
+	private final int indexInterval;
+	private final boolean searchIndex;
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private final Map<String, StreamSegments> streams = new ConcurrentHashMap<>();
+
+	// single background thread for compression and retention, so the two never touch the same segment at once
+	private final ScheduledExecutorService background;
+
+	/**
+	 * Injection constructor
+	 *
+	 * @param config app config options
+	 * @param layout where each file is kept
+	 * @throws IOException error reading an existing manifest
+	 */
+	SegmentManager(Config config, StorageLayout layout) throws IOException {
+		this.config = config;
+		this.layout = layout;
+		this.maxSegmentBytes = config.getMaxSegmentBytes();
+		this.maxSegmentAgeMillis = config.getMaxSegmentAge() * 1000L;	// seconds to millis
+		this.compression = config.getSegmentCompression() != null ? config.getSegmentCompression() : Compression.NONE;
+		this.indexInterval = config.getIndexInterval();
+		this.searchIndex = config.isSearchIndex();
+		load();
+
+		background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "segment-maintenance");
+			thread.setDaemon(true);
+			return thread;
+		});
+		background.scheduleWithFixedDelay(this::applyRetention,
+			RETENTION_PERIOD_MILLIS, RETENTION_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+
+		// finish indexing and compressing anything an earlier run closed but did not get to
+		for (StreamSegments segments : streams.values()) {
+			for (SegmentManifest.Segment segment : segments.closedSegments()) {
+				if (searchIndex && !tokensFile(segments.stream, segment.getSequence()).exists()) {
+					scheduleIndexing(segments, segment);
+				}
+				if (compression != Compression.NONE && segment.getCompression() == Compression.NONE) {
+					scheduleCompression(segments, segment);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record which client a file belongs to, so retention can be applied per client
+	 *
+	 * @param stream stream name ({clientId}-{filename})
+	 * @param clientId the client sending the file
+	 */
+	public void register(String stream, String clientId) {
+		StreamSegments segments = streams.computeIfAbsent(stream, StreamSegments::new);
+		if (!clientId.equals(segments.clientId)) {
+			synchronized (segments) {
+				segments.clientId = clientId;
+				segments.manifest.setClientId(clientId);
+			}
+		}
+	}
+
+	/**
+	 * Called by the WriterPool when it opens a file, to find out where the active segment is up to.
+	 * The lines already in the file are counted the first time it is opened by this process.
+	 *
+	 * @param stream stream name
+	 * @param file the active segment
+	 * @return counters for the active segment, updated by the WriterPool as it writes
+	 * @throws IOException error reading the existing file
+	 */
+	ActiveSegment open(String stream, File file) throws IOException {
+		StreamSegments segments = streams.computeIfAbsent(stream, StreamSegments::new);
+		synchronized (segments) {
+			if (segments.active == null) {
+				SegmentManifest manifest = segments.manifest;
+				if (manifest.getActiveCreated() == 0) {
+					manifest.setActiveCreated(System.currentTimeMillis());
+				}
+				long bytes = file.length();
+				segments.active = new ActiveSegment(manifest.getActiveFirstLine(), manifest.getActiveStartByte(),
+					manifest.getActiveCreated(), bytes > 0 ? countLines(file) : 0, bytes, index(segments));
+			}
+			return segments.active;
+		}
+	}
+
+	/**
+	 * @param active counters for an active segment
+	 * @param now the current time in millis
+	 * @return true if the segment has reached its size or age and should be closed
+	 */
+	boolean isRollDue(ActiveSegment active, long now) {
+		if (active == null || active.bytes == 0) {
+			return false;
+		}
+		return (maxSegmentBytes > 0 && active.bytes >= maxSegmentBytes)
+			|| (maxSegmentAgeMillis > 0 && now - active.created >= maxSegmentAgeMillis);
+	}
+
+	/**
+	 * Called by the WriterPool, holding the file's lock, once it has synced and closed the active segment:
+	 * rename it to the next sequence number, record it in the manifest, and start a new active segment.
+	 *
+	 * @param stream stream name
+	 * @param file the active segment, now closed
+	 * @throws IOException error renaming the file or saving the manifest
+	 */
+	void roll(String stream, File file) throws IOException {
+		StreamSegments segments = streams.computeIfAbsent(stream, StreamSegments::new);
+		SegmentManifest.Segment segment;
+		synchronized (segments) {
+			ActiveSegment active = (segments.active != null) ? segments.active : open(stream, file);
+			SegmentManifest manifest = segments.manifest;
+
+			long sequence = manifest.getNextSequence();
+			File closed = segmentFile(stream, sequence);
+			while (closed.exists() || new File(closed.getPath() + extension(compression)).exists()) {
+				closed = segmentFile(stream, ++sequence);		// left by a run that stopped before saving its manifest
+			}
+			Files.move(file.toPath(), closed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+			long now = System.currentTimeMillis();
+			segment = new SegmentManifest.Segment(closed.getName(), sequence,
+				active.firstLine, active.firstLine + active.lines, active.startByte, active.startByte + active.bytes,
+				active.created, now, Compression.NONE, closed.length());
+			manifest.getSegments().add(segment);
+			manifest.setNextSequence(sequence + 1);
+			manifest.setActiveFirstLine(segment.getEndLine());
+			manifest.setActiveStartByte(segment.getEndByte());
+			manifest.setActiveCreated(now);
+			segments.active = new ActiveSegment(segment.getEndLine(), segment.getEndByte(), now, 0, 0, active.index);
+			segments.active.carryStamp(active);
+			save(segments);
+		}
+		logger.info("Closed segment {}, lines {}-{}.", segment.getFile(), segment.getFirstLine(), segment.getEndLine());
+		if (searchIndex) {
+			scheduleIndexing(segments, segment);		// first, while the segment is still uncompressed
+		}
+		if (compression != Compression.NONE) {
+			scheduleCompression(segments, segment);
+		}
+	}
+
+	/**
+	 * @param stream stream name
+	 * @return a copy of the file's manifest, or null if nothing is known about the file
+	 */
+	public SegmentManifest getManifest(String stream) {
+		StreamSegments segments = streams.get(stream);
+		if (segments == null) {
+			return null;
+		}
+		synchronized (segments) {
+			SegmentManifest copy = mapper.convertValue(segments.manifest, SegmentManifest.class);
+			if (segments.active != null) {
+				copy.setActiveFirstLine(segments.active.firstLine);
+				copy.setActiveStartByte(segments.active.startByte);
+			}
+			return copy;
+		}
+	}
+
+	/**
+	 * @return the name of every file with an active segment or manifest here, including those of other instances
+	 * 		sharing filePath and files not written since this instance started
+	 */
+	public List<String> streams() {
+		Set<String> names = new TreeSet<>(streams.keySet());
+		for (File directory : layout.directories()) {
+			String[] files = directory.list();
+			if (files == null) {
+				continue;
+			}
+			for (String name : files) {
+				if (name.endsWith(MANIFEST_SUFFIX)) {
+					names.add(name.substring(0, name.length() - MANIFEST_SUFFIX.length()));
+				} else if (!name.startsWith(".") && !NOT_ACTIVE.matcher(name).matches()
+						&& new File(directory, name).isFile()) {
+					names.add(name);
+				}
+			}
+		}
+		return new ArrayList<>(names);
+	}
+
+	/**
+	 * @param stream stream name
+	 * @param sequence sequence number of one of its closed segments
+	 * @return the segment's TokenIndex file, which may not have been written yet
+	 */
+	File tokensFile(String stream, long sequence) {
+		return TokenIndex.fileFor(segmentFile(stream, sequence));
+	}
+
+	/**
+	 * @param stream stream name
+	 * @return the file's sparse index, loaded if need be, or null if nothing is known about the file
+	 * @throws IOException error reading the index
+	 */
+	public LineIndex getIndex(String stream) throws IOException {
+		StreamSegments segments = streams.get(stream);
+		if (segments == null) {
+			if (!layout.fileFor(stream).exists()) {
+				return null;
+			}
+			segments = streams.computeIfAbsent(stream, StreamSegments::new);
+		}
+		synchronized (segments) {
+			return index(segments);
+		}
+	}
+
+	/**
+	 * The file's index, loaded from its index file the first time, the caller holds the StreamSegments lock
+	 */
+	private LineIndex index(StreamSegments segments) throws IOException {
+		if (segments.index == null) {
+			LineIndex index = new LineIndex(new File(layout.directoryFor(segments.stream),
+				segments.stream + LineIndex.INDEX_SUFFIX), indexInterval);
+			index.load(segments.manifest.getActiveStartByte() + layout.fileFor(segments.stream).length());
+			segments.index = index;
+		}
+		return segments.index;
+	}
+
+	/**
+	 * Stop the background thread on app shutdown, a compression in progress is finished on the next start
+	 */
+	@PreDestroy
+	public void shutdown() {
+		background.shutdownNow();
+	}
+
+	private void scheduleCompression(StreamSegments segments, SegmentManifest.Segment segment) {
+		background.execute(() -> {
+			try {
+				compress(segments, segment);
+			} catch (IOException ex) {
+				logger.error("Error compressing segment {}, exception={}", segment.getFile(), ex.toString());
+			}
+		});
+	}
+
+	private void scheduleIndexing(StreamSegments segments, SegmentManifest.Segment segment) {
+		background.execute(() -> {
+			try {
+				buildTokens(segments, segment);
+			} catch (IOException ex) {
+				logger.error("Error indexing segment {}, exception={}", segment.getFile(), ex.toString());
+			}
+		});
+	}
+
+	/**
+	 * Runs on the background thread: write the TokenIndex of a closed segment
+	 */
+	private void buildTokens(StreamSegments segments, SegmentManifest.Segment segment) throws IOException {
+		File source;
+		Compression sourceCompression;
+		synchronized (segments) {
+			source = new File(layout.directoryFor(segments.stream), segment.getFile());
+			sourceCompression = segment.getCompression();
+		}
+		if (!source.exists()) {
+			return;		// deleted by retention already
+		}
+		long start = System.nanoTime();
+		try (InputStream in = decompressor(sourceCompression, new FileInputStream(source))) {
+			TokenIndex.build(in, segment.getEndByte() - segment.getStartByte(),
+				tokensFile(segments.stream, segment.getSequence()));
+		}
+		logger.debug("Indexed segment {} in {} ms.", segment.getFile(), (System.nanoTime() - start) / 1000000);
+	}
+
+	/**
+	 * Runs on the background thread: compress a closed segment beside itself, then swap it in
+	 */
+	private void compress(StreamSegments segments, SegmentManifest.Segment segment) throws IOException {
+		File directory = layout.directoryFor(segments.stream);
+		File source = new File(directory, segment.getFile());
+		if (!source.exists()) {
+			return;		// deleted by retention already
+		}
+		File target = new File(directory, segment.getFile() + extension(compression));
+		File temp = new File(target.getPath() + ".tmp");
+
+		try (InputStream in = new FileInputStream(source);
+				OutputStream out = compressor(new BufferedOutputStream(new FileOutputStream(temp), COPY_BUFFER_SIZE))) {
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			int count;
+			while ((count = in.read(buffer)) > 0) {
+				out.write(buffer, 0, count);
+			}
+		}
+		try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+		Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		synchronized (segments) {
+			segment.setFile(target.getName());
+			segment.setCompression(compression);
+			segment.setSize(target.length());
+			save(segments);
+		}
+		Files.delete(source.toPath());
+		logger.info("Compressed segment {} to {} bytes.", target, segment.getSize());
+	}
+
+	private OutputStream compressor(OutputStream out) throws IOException {
+		switch (compression) {
+			case GZIP:
+				return new GZIPOutputStream(out, COPY_BUFFER_SIZE);
+			case LZ4:
+				return new LZ4FrameOutputStream(out);
+			case ZSTD:
+				return new ZstdOutputStream(out);
+			default:
+				return out;
+		}
+	}
+
+	/**
+	 * @param compression how a segment is compressed
+	 * @param in the segment's bytes as they are on disk
+	 * @return its uncompressed bytes
+	 * @throws IOException error reading the start of the stream
+	 */
+	static InputStream decompressor(Compression compression, InputStream in) throws IOException {
+		switch (compression != null ? compression : Compression.NONE) {
+			case GZIP:
+				return new GZIPInputStream(in, COPY_BUFFER_SIZE);
+			case LZ4:
+				return new LZ4FrameInputStream(in);
+			case ZSTD:
+				return new ZstdInputStream(in);
+			default:
+				return new BufferedInputStream(in, COPY_BUFFER_SIZE);
+		}
+	}
+
+	static String extension(Compression compression) {
+		switch (compression) {
+			case GZIP:
+				return ".gz";
+			case LZ4:
+				return ".lz4";
+			case ZSTD:
+				return ".zst";
+			default:
+				return "";
+		}
+	}
+
+	/**
+	 * Runs on the background thread: delete each client's oldest closed segments until the rest are
+	 * younger than the client's maxAge and add up to no more than its maxBytes
+	 */
+	void applyRetention() {
+		try {
+			long now = System.currentTimeMillis();
+			Map<String, List<StreamSegments>> byClient = new HashMap<>();
+			for (StreamSegments segments : streams.values()) {
+				String client = (segments.clientId != null) ? segments.clientId : segments.stream;
+				byClient.computeIfAbsent(client, key -> new ArrayList<>()).add(segments);
+			}
+
+			for (Map.Entry<String, List<StreamSegments>> client : byClient.entrySet()) {
+				Config.Retention retention = config.retentionFor(client.getKey());
+				long maxAgeMillis = retention.getMaxAge() * 60L * 60 * 1000;	// hours to millis
+				if (maxAgeMillis <= 0 && retention.getMaxBytes() <= 0) {
+					continue;
+				}
+
+				List<ClosedSegment> closed = new ArrayList<>();
+				long totalBytes = 0;
+				for (StreamSegments segments : client.getValue()) {
+					for (SegmentManifest.Segment segment : segments.closedSegments()) {
+						closed.add(new ClosedSegment(segments, segment));
+						totalBytes += segment.getSize();
+					}
+				}
+				closed.sort(Comparator.comparingLong(entry -> entry.segment.getClosed()));
+
+				for (ClosedSegment entry : closed) {
+					boolean tooOld = maxAgeMillis > 0 && now - entry.segment.getClosed() > maxAgeMillis;
+					boolean tooBig = retention.getMaxBytes() > 0 && totalBytes > retention.getMaxBytes();
+					if (!tooOld && !tooBig) {
+						break;
+					}
+					delete(entry.segments, entry.segment);
+					totalBytes -= entry.segment.getSize();
+				}
+			}
+		} catch (IOException | RuntimeException ex) {
+			logger.error("Error applying retention, exception={}", ex.toString());
+		}
+	}
+
+	private void delete(StreamSegments segments, SegmentManifest.Segment segment) throws IOException {
+		synchronized (segments) {
+			segments.manifest.getSegments().remove(segment);
+			save(segments);
+		}
+		Files.deleteIfExists(new File(layout.directoryFor(segments.stream), segment.getFile()).toPath());
+		Files.deleteIfExists(tokensFile(segments.stream, segment.getSequence()).toPath());
+		logger.info("Deleted segment {} under retention policy.", segment.getFile());
+	}
+
+	private File segmentFile(String stream, long sequence) {
+		return new File(layout.directoryFor(stream), stream + "." + String.format("%06d", sequence));
+	}
+
+	/**
+	 * Replace a file's manifest, the caller holds the StreamSegments lock
+	 */
+	private void save(StreamSegments segments) throws IOException {
+		File manifestFile = new File(layout.directoryFor(segments.stream), segments.stream + MANIFEST_SUFFIX);
+		File tempFile = new File(manifestFile.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tempFile)) {
+			out.write(mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(segments.manifest));
+			out.getChannel().force(false);
+		}
+		Files.move(tempFile.toPath(), manifestFile.toPath(),
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Read the manifests left by an earlier run
+	 */
+	private void load() throws IOException {
+		for (File directory : layout.directories()) {
+			File[] manifests = directory.listFiles((dir, name) -> name.endsWith(MANIFEST_SUFFIX));
+			if (manifests == null) {
+				continue;
+			}
+			for (File manifestFile : manifests) {
+				SegmentManifest manifest = mapper.readValue(manifestFile, SegmentManifest.class);
+				if (!directory.equals(layout.directoryFor(manifest.getStream()))) {
+					continue;	// left from a different storageShards setting
+				}
+				StreamSegments segments = new StreamSegments(manifest.getStream());
+				segments.manifest = manifest;
+				segments.clientId = manifest.getClientId();
+				streams.put(manifest.getStream(), segments);
+			}
+		}
+	}
+
+	private static long countLines(File file) throws IOException {
+		long lines = 0;
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			int count;
+			while ((count = in.read(buffer)) > 0) {
+				for (int i = 0; i < count; i++) {
+					if (buffer[i] == '\n') {
+						lines++;
+					}
+				}
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Where the active segment of a file starts, and the lines and bytes written to it so far.
+	 * The WriterPool reports everything it writes here, holding the file's lock, and every indexInterval
+	 * lines a checkpoint is added to the file's index (with a time checkpoint if the line starts with a timestamp).
+	 * Where the agent sent the time of the event being written (see WriterPool.EventTimes) that time is used
+	 * instead, so a checkpoint on any line of an event (a stack trace, say) gets a time without parsing it.
+	 */
+	static class ActiveSegment {
+		final long firstLine;
+		final long startByte;
+		final long created;
+		final LineIndex index;
+		long lines;
+		long bytes;
+
+		// the line at the last checkpoint has not been written yet, its timestamp is read once it is
+		private boolean stampNext;
+		private long stampLine;
+		private long stampByte;
+		private long eventTime = LineTimestamps.NONE;	// time of the event being written, as the agent read it
+
+		ActiveSegment(long firstLine, long startByte, long created, long lines, long bytes, LineIndex index) {
+			this.firstLine = firstLine;
+			this.startByte = startByte;
+			this.created = created;
+			this.lines = lines;
+			this.bytes = bytes;
+			this.index = index;
+		}
+
+		void written(byte[] b, int off, int len) {
+			int end = off + len;
+			if (stampNext && len > 0) {
+				stamp(b, off, end);
+			}
+			for (int i = off; i < end; i++) {
+				if (b[i] == '\n') {
+					lines++;
+					checkpoint(bytes + (i - off) + 1, b, i + 1, end);
+				}
+			}
+			bytes += len;
+		}
+
+		/**
+		 * The lines written next are (part of) an event which started at a time, LineTimestamps.NONE if not known
+		 */
+		void eventTime(long time) {
+			eventTime = time;
+		}
+
+		void written(int b) {
+			stampNext = false;		// lines are written whole, so this is rare, skip the timestamp
+			bytes++;
+			if (b == '\n') {
+				lines++;
+				checkpoint(bytes, null, 0, 0);
+			}
+		}
+
+		/**
+		 * The first line of a new segment may be the line at the last checkpoint of the segment before it
+		 */
+		void carryStamp(ActiveSegment previous) {
+			stampNext = previous.stampNext;
+			stampLine = previous.stampLine;
+			stampByte = previous.stampByte;
+		}
+
+		/**
+		 * The writer has flushed everything written so far
+		 */
+		void flushed() {
+			if (index != null) {
+				index.flushed(startByte + bytes);
+			}
+		}
+
+		/**
+		 * The writer has closed the file
+		 */
+		void closed() {
+			if (index != null) {
+				index.closeOutput();
+			}
+		}
+
+		/**
+		 * A line has ended at a byte of this segment, add a checkpoint for the next line if it is due
+		 */
+		private void checkpoint(long nextByte, byte[] b, int next, int end) {
+			long line = firstLine + lines;
+			if (index == null || index.getInterval() <= 0 || line % index.getInterval() != 0) {
+				return;
+			}
+			index.addLine(line, startByte + nextByte);
+			stampLine = line;
+			stampByte = startByte + nextByte;
+			stampNext = true;
+			if (next < end) {
+				stamp(b, next, end);
+			}
+		}
+
+		private void stamp(byte[] b, int from, int end) {
+			stampNext = false;
+			long time = (eventTime != LineTimestamps.NONE) ? eventTime : LineTimestamps.parse(b, from, end);
+			if (time != LineTimestamps.NONE) {
+				index.addTime(time, stampLine, stampByte);
+			}
+		}
+	}
+
+	/**
+	 * Everything known about one file's segments.  The manifest and active segment are guarded by this object.
+	 */
+	private static class StreamSegments {
+		private final String stream;
+		private volatile String clientId;
+		private SegmentManifest manifest;
+		private ActiveSegment active;
+		private LineIndex index;
+
+		StreamSegments(String stream) {
+			this.stream = stream;
+			this.manifest = new SegmentManifest(stream);
+		}
+
+		synchronized List<SegmentManifest.Segment> closedSegments() {
+			return new ArrayList<>(manifest.getSegments());
+		}
+	}
+
+	/**
+	 * A closed segment and the file it belongs to
+	 */
+	private static class ClosedSegment {
+		private final StreamSegments segments;
+		private final SegmentManifest.Segment segment;
+
+		ClosedSegment(StreamSegments segments, SegmentManifest.Segment segment) {
+			this.segments = segments;
+			this.segment = segment;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.datastax.log.service.service;
+
+import com.datastax.log.service.config.Config;
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides where each output file lives under filePath.
+ *
+ * So that filePath does not end up holding every file (and its segments and manifest) of every client,
+ * which makes directory lookups slow once it holds 100k+ entries, files are spread over storageShards
+ * subdirectories by a hash of the stream name:
+ * 		{filePath}/{shard}/{clientId}-{filename}
+ * where {shard} is the hash in hex, e.g. ./output-files/3f/client56-output.log.  With storageShards
+ * set to 0 the files stay directly in filePath, as they were before sharding.
+ *
+ * The hash only depends on the stream name, so every service instance sharing filePath agrees on it.
+ *
+ * @author cingham
+ */
+@Component
+public class StorageLayout {
+	private static final long SHARD_SEED = 0x5eed5eedL;
+	private static final XXHash64 HASH = XXHashFactory.fastestInstance().hash64();
+
+	private final File filePath;
+	private final int shards;
+	private final String shardFormat;
+
+	/**
+	 * Injection constructor
+	 *
+	 * @param config app config options
+	 */
+	StorageLayout(Config config) {
+		this.filePath = new File(config.getFilePath());
+		this.shards = Math.max(0, config.getStorageShards());
+		this.shardFormat = "%0" + Integer.toHexString(Math.max(1, shards - 1)).length() + "x";
+
+		// create the shard directories up front, so the write path never has to check for them
+		filePath.mkdirs();
+		for (File directory : directories()) {
+			directory.mkdirs();
+		}
+	}
+
+	/**
+	 * @param stream stream name ({clientId}-{filename})
+	 * @return the output file for the stream
+	 */
+	public File fileFor(String stream) {
+		return new File(directoryFor(stream), stream);
+	}
+
+	/**
+	 * @param stream stream name
+	 * @return the directory holding the stream's output file, segments and manifest
+	 */
+	public File directoryFor(String stream) {
+		return (shards == 0) ? filePath : new File(filePath, String.format(shardFormat, shardOf(stream)));
+	}
+
+	/**
+	 * @return every directory output files may be kept in, filePath itself first
+	 */
+	public List<File> directories() {
+		List<File> directories = new ArrayList<>(shards + 1);
+		directories.add(filePath);
+		for (int shard = 0; shard < shards; shard++) {
+			directories.add(new File(filePath, String.format(shardFormat, shard)));
+		}
+		return directories;
+	}
+
+	int shardOf(String stream) {
+		return (int) Long.remainderUnsigned(hash(stream, SHARD_SEED), shards);
+	}
+
+	/**
+	 * A hash of a string that is the same in every JVM, unlike String.hashCode() it is spread over 64 bits
+	 *
+	 * @param value the string to hash
+	 * @param seed seed, so that different uses of the hash are independent of each other
+	 * @return 64 bit hash of the string's UTF-8 bytes
+	 */
+	static long hash(String value, long seed) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		return HASH.hash(bytes, 0, bytes.length, seed);
+	}
+}
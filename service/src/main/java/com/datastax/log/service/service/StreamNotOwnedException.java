@@ -0,0 +1,23 @@
+package com.datastax.log.service.service;
+
+import lombok.Getter;
+
+/**
+ * Thrown when a request arrives for a file that another service instance owns (see PartitionRing),
+ * it is answered with 307 Temporary Redirect to the owner so only one instance ever writes the file.
+ *
+ * @author cingham
+ */
+@Getter
+public class StreamNotOwnedException extends RuntimeException {
+	private final String ownerUrl;
+
+	/**
+	 * @param stream the stream that was requested
+	 * @param ownerUrl base url of the instance which owns the stream
+	 */
+	public StreamNotOwnedException(String stream, String ownerUrl) {
+		super("File " + stream + " is owned by " + ownerUrl);
+		this.ownerUrl = ownerUrl;
+	}
+}
@@ -0,0 +1,16 @@
+package com.datastax.log.service.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The source file identity (epoch) and byte offset up to which a stream has been written.
+ *
+ * @author cingham
+ */
+@AllArgsConstructor
+@Getter
+public class StreamOffset {
+	private final String fileId;
+	private final long offset;
+}
@@ -0,0 +1,317 @@
+package com.datastax.log.service.service;
+
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The search summary of a closed segment, kept beside it as {clientId}-{filename}.{sequence}.tokens: a bloom
+ * filter of every token in the segment, and the earliest and latest timestamps its lines start with.  A search
+ * skips a segment whose filter is missing one of the tokens it looks for, or whose times are outside the range
+ * it wants (see LogSearcher).
+ *
+ * A token is a run of ASCII letters, digits and '_', and the bytes of multi-byte UTF-8 characters; every other byte
+ * separates tokens.  Each token (its first MAX_TOKEN_BYTES, for a longer one) is hashed with XXHash64 and sets
+ * HASHES bits of the filter, by double hashing.
+ *
+ * The filter starts at a bit for every byte of the segment, rounded up to a power of two, enough for a segment
+ * of nothing but distinct tokens.  Once the segment has been read it is folded in half (its top half OR'ed into
+ * the bottom half, which leaves every token's bits set) for as long as no more than MAX_FILL of its bits are set.
+ * So it ends up sized for the number of distinct tokens the segment has, with a false positive rate of about
+ * MAX_FILL ^ HASHES, 1%.
+ *
+ * The file is written once, on the segment-maintenance thread, and only read after that, through a memory map.
+ *
+ * @author cingham
+ */
+public class TokenIndex {
+	static final String TOKENS_SUFFIX = ".tokens";
+
+	private static final int MAGIC = 0x4C475431;		// "LGT1"
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4;
+	private static final int HASHES = 7;
+	private static final long TOKEN_SEED = 0x70c3e57L;
+	private static final int MAX_TOKEN_BYTES = 256;
+	private static final int MIN_WORDS = 16;
+	private static final int MAX_WORDS = 1 << 24;		// 128MB of filter
+	private static final double MAX_FILL = 0.5;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int TIMESTAMP_BYTES = 40;
+
+	private static final XXHash64 HASH = XXHashFactory.fastestInstance().hash64();
+	private static final boolean[] TOKEN_BYTES = new boolean[256];
+	static {
+		for (int b = 0; b < 256; b++) {
+			TOKEN_BYTES[b] = (b >= '0' && b <= '9') || (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z')
+				|| b == '_' || b >= 0x80;
+		}
+	}
+
+	private final long minTime;
+	private final long maxTime;
+	private final LongBuffer bits;
+	private final int mask;
+
+	private TokenIndex(long minTime, long maxTime, LongBuffer bits) {
+		this.minTime = minTime;
+		this.maxTime = maxTime;
+		this.bits = bits;
+		this.mask = bits.limit() * 64 - 1;
+	}
+
+	/**
+	 * @param b a byte of a line
+	 * @return true if the byte is part of a token, false if it separates tokens
+	 */
+	static boolean isTokenByte(byte b) {
+		return TOKEN_BYTES[b & 0xff];
+	}
+
+	/**
+	 * @param text text searched for
+	 * @return the hashes of the distinct tokens in the text
+	 */
+	static long[] tokenHashes(byte[] text) {
+		long[] hashes = new long[text.length / 2 + 1];
+		int count = 0;
+		int start = -1;
+		for (int i = 0; i <= text.length; i++) {
+			if (i < text.length && isTokenByte(text[i])) {
+				if (start < 0) {
+					start = i;
+				}
+			} else if (start >= 0) {
+				hashes[count++] = hash(text, start, Math.min(i - start, MAX_TOKEN_BYTES));
+				start = -1;
+			}
+		}
+		return Arrays.stream(hashes, 0, count).distinct().toArray();
+	}
+
+	/**
+	 * @param segment a closed segment
+	 * @return the file its tokens are kept in
+	 */
+	static File fileFor(File segment) {
+		return new File(segment.getPath() + TOKENS_SUFFIX);
+	}
+
+	/**
+	 * Read a closed segment and write its token index, replacing the file atomically
+	 *
+	 * @param in the segment's (uncompressed) bytes
+	 * @param segmentBytes uncompressed size of the segment, to size the filter
+	 * @param file the index file to write
+	 * @throws IOException error reading the segment or writing the index
+	 */
+	static void build(InputStream in, long segmentBytes, File file) throws IOException {
+		Builder builder = new Builder(segmentBytes);
+		builder.read(in);
+		long[] words = builder.fold();
+
+		File temp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream fileOut = new FileOutputStream(temp);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, BUFFER_SIZE))) {
+			out.writeInt(MAGIC);
+			out.writeInt(HASHES);
+			out.writeLong(builder.minTime);
+			out.writeLong(builder.maxTime);
+			out.writeInt(words.length);
+			for (long word : words) {
+				out.writeLong(word);
+			}
+			out.flush();
+			fileOut.getChannel().force(false);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * @param file an index file written by build()
+	 * @return the index, or null if there is none (not built yet, or left by an older version)
+	 * @throws IOException error reading the file
+	 */
+	static TokenIndex open(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_BYTES) {
+				return null;
+			}
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (map.getInt() != MAGIC || map.getInt() != HASHES) {
+				return null;
+			}
+			long minTime = map.getLong();
+			long maxTime = map.getLong();
+			int words = map.getInt();
+			if (words <= 0 || Integer.bitCount(words) != 1 || map.remaining() < words * 8L) {
+				return null;
+			}
+			LongBuffer bits = map.asLongBuffer();
+			bits.limit(words);
+			return new TokenIndex(minTime, maxTime, bits);
+		}
+	}
+
+	/**
+	 * @param tokenHashes hashes from tokenHashes()
+	 * @return false if the segment does not hold every one of the tokens, true if it may
+	 */
+	boolean mightContain(long[] tokenHashes) {
+		for (long hash : tokenHashes) {
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+			for (int i = 0; i < HASHES; i++) {
+				int bit = (h1 + i * h2) & mask;
+				if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param since earliest time wanted, epoch millis
+	 * @param until time after the latest wanted
+	 * @return false if no line of the segment starts with a time in the range, true if some may (or if its
+	 * 		lines have no timestamps)
+	 */
+	boolean overlaps(long since, long until) {
+		if (minTime == LineTimestamps.NONE) {
+			return true;
+		}
+		return maxTime >= since && minTime < until;
+	}
+
+	long getMinTime() {
+		return minTime;
+	}
+
+	long getMaxTime() {
+		return maxTime;
+	}
+
+	int getFilterBits() {
+		return mask + 1;
+	}
+
+	private static long hash(byte[] bytes, int offset, int length) {
+		return HASH.hash(bytes, offset, length, TOKEN_SEED);
+	}
+
+	/**
+	 * Tokenizes a segment into a bloom filter, and finds the range of its timestamps
+	 */
+	private static class Builder {
+		private long[] words;
+		private final byte[] token = new byte[MAX_TOKEN_BYTES];
+		private int tokenLength;
+		private long minTime = LineTimestamps.NONE;
+		private long maxTime = LineTimestamps.NONE;
+
+		Builder(long segmentBytes) {
+			long wanted = Math.max(MIN_WORDS, Math.min(MAX_WORDS, segmentBytes / 64));
+			words = new long[Integer.highestOneBit((int) wanted - 1) << 1];
+		}
+
+		void read(InputStream in) throws IOException {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int position = 0;
+			int limit = 0;
+			boolean lineStart = true;
+			boolean end = false;
+			while (!end) {
+				// keep the bytes not looked at yet, so a timestamp at the end of the buffer is read whole
+				System.arraycopy(buffer, position, buffer, 0, limit - position);
+				limit -= position;
+				position = 0;
+				int count = in.read(buffer, limit, buffer.length - limit);
+				if (count < 0) {
+					end = true;
+				} else {
+					limit += count;
+				}
+				int stop = end ? limit : limit - TIMESTAMP_BYTES;
+				for (; position < stop; position++) {
+					if (lineStart) {
+						time(LineTimestamps.parse(buffer, position, limit));
+						lineStart = false;
+					}
+					byte b = buffer[position];
+					if (isTokenByte(b)) {
+						if (tokenLength < MAX_TOKEN_BYTES) {
+							token[tokenLength++] = b;
+						}
+					} else {
+						endToken();
+						lineStart = (b == '\n');
+					}
+				}
+			}
+			endToken();
+		}
+
+		private void time(long time) {
+			if (time == LineTimestamps.NONE) {
+				return;
+			}
+			if (minTime == LineTimestamps.NONE || time < minTime) {
+				minTime = time;
+			}
+			if (maxTime == LineTimestamps.NONE || time > maxTime) {
+				maxTime = time;
+			}
+		}
+
+		private void endToken() {
+			if (tokenLength == 0) {
+				return;
+			}
+			long hash = hash(token, 0, tokenLength);
+			tokenLength = 0;
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+			int mask = words.length * 64 - 1;
+			for (int i = 0; i < HASHES; i++) {
+				int bit = (h1 + i * h2) & mask;
+				words[bit >>> 6] |= 1L << bit;
+			}
+		}
+
+		/**
+		 * @return the filter, folded in half for as long as that leaves no more than MAX_FILL of its bits set
+		 */
+		long[] fold() {
+			while (words.length > MIN_WORDS) {
+				int half = words.length / 2;
+				long[] folded = new long[half];
+				long set = 0;
+				for (int i = 0; i < half; i++) {
+					folded[i] = words[i] | words[i + half];
+					set += Long.bitCount(folded[i]);
+				}
+				if (set > MAX_FILL * half * 64) {
+					break;
+				}
+				words = folded;
+			}
+			return words;
+		}
+	}
+}
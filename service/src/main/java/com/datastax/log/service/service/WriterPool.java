@@ -0,0 +1,463 @@
+package com.datastax.log.service.service;
+
+import com.datastax.log.service.config.Config;
+import com.datastax.log.service.config.FlushPolicy;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a bounded pool of open, buffered output files so that each request does not
+ * pay for an open/close of the file and a cold write buffer.
+ *
+ * Writers are keyed by stream name ({clientId}-{filename}) and kept in least-recently-used order.
+ * When more than maxOpenWriters are open, or a writer has been idle longer than writerIdleTimeout,
+ * it is flushed, synced and closed, which keeps the service under the file descriptor limit.
+ *
+ * Each writer has its own lock so concurrent requests for the same file are written one after
+ * another, while requests for different files proceed in parallel.  The pool lock is never
+ * held while waiting for a writer lock.
+ *
+ * A FlushListener is told each time a file's buffered data reaches the OS, so that anything
+ * describing the file's contents (e.g. committed offsets) is never persisted ahead of the data,
+ * and each time a flush or sync fails, so that it can forget what it was waiting to persist.
+ *
+ * The bytes and lines written to each file are counted, and once the SegmentManager says the file's
+ * active segment is big or old enough (checked after each write and by the maintenance thread) the
+ * file is synced, closed and handed over to be rolled, and the next write starts a new segment.
+ *
+ * The time each write takes (log.service.write, the action against the buffered stream) and each fsync takes
+ * (log.service.fsync), and the number of files held open (log.service.writers.open), are published as metrics.
+ *
+ * @author cingham
+ */
+@Component
+public class WriterPool {
+	private static final Logger logger = LoggerFactory.getLogger(WriterPool.class);
+
+	private static final Timer writeTimer = Timer.builder("log.service.write")
+		.description("Time to write a request (or group of requests) to a file's buffered stream")
+		.publishPercentileHistogram().register(Metrics.globalRegistry);
+	private static final Timer fsyncTimer = Timer.builder("log.service.fsync")
+		.description("Time to force a file's writes to disk").publishPercentileHistogram().register(Metrics.globalRegistry);
+
+	/**
+	 * Work to do against an open output stream, while holding that file's lock
+	 */
+	public interface WriterAction<T> {
+		T apply(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Implemented by the stream handed to a WriterAction when the file's segments are indexed: the lines written
+	 * after eventTime() is called start at that time, as read by the agent, so it is not parsed from them again
+	 */
+	public interface EventTimes {
+		/**
+		 * @param time epoch millis the lines written next start at, LineTimestamps.NONE to read it from the lines
+		 */
+		void eventTime(long time);
+	}
+
+	/**
+	 * Notified, while holding the file's lock, after a pooled file has been flushed (and possibly synced),
+	 * or when flushing or syncing it failed, in which case what was written since it was last flushed may be lost
+	 */
+	public interface FlushListener {
+		void flushed(String key, boolean synced) throws IOException;
+
+		void failed(String key);
+	}
+
+	private final int maxOpenWriters;
+	private final long idleTimeoutMillis;
+	private final int bufferSize;
+	private final FlushPolicy flushPolicy;
+	private final FlushPolicy syncPolicy;
+	private final FlushListener flushListener;
+	private final SegmentManager segmentManager;
+
+	// access ordered, so iteration starts with the least recently used writer
+	private final LinkedHashMap<String, PooledWriter> writers = new LinkedHashMap<>(16, 0.75f, true);
+	private final ReentrantLock poolLock = new ReentrantLock();
+
+	private final ScheduledExecutorService maintenance;
+
+	/**
+	 * Injection constructor
+	 *
+	 * @param config app config options
+	 * @param flushListener notified when pooled files are flushed
+	 * @param segmentManager decides when files are rolled into a new segment, null to never roll
+	 */
+	WriterPool(Config config, FlushListener flushListener, SegmentManager segmentManager) {
+		this.flushListener = flushListener;
+		this.segmentManager = segmentManager;
+		this.maxOpenWriters = config.getMaxOpenWriters();
+		this.idleTimeoutMillis = config.getWriterIdleTimeout() * 1000L;	// seconds to millis
+		this.bufferSize = config.getWriteBufferSize();
+		this.flushPolicy = config.getFlushPolicy();
+		this.syncPolicy = config.getSyncPolicy();
+
+		// single background thread for interval flush/sync and idle eviction
+		maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "writer-pool-maintenance");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = config.getFlushInterval();
+		maintenance.scheduleWithFixedDelay(this::maintain, period, period, TimeUnit.MILLISECONDS);
+
+		Gauge.builder("log.service.writers.open", this, WriterPool::getOpenWriterCount)
+			.description("Output files held open").register(Metrics.globalRegistry);
+	}
+
+	/**
+	 * Run an action against the (possibly pooled) open output for a file.
+	 * The flush and sync policies for BATCH are applied once the action completes.
+	 *
+	 * @param key stream name used to pool the writer
+	 * @param file the output file, opened for appending if not already open
+	 * @param action work to do with the output stream
+	 * @return the result of the action
+	 * @throws IOException any error opening or writing the file
+	 */
+	public <T> T write(String key, File file, WriterAction<T> action) throws IOException {
+		return write(key, file, action, false);
+	}
+
+	/**
+	 * Run an action against the (possibly pooled) open output for a file, then flush and sync the file
+	 * whatever the policies, so that everything the action wrote is on disk when this returns.
+	 *
+	 * @param key stream name used to pool the writer
+	 * @param file the output file, opened for appending if not already open
+	 * @param action work to do with the output stream
+	 * @return the result of the action
+	 * @throws IOException any error opening, writing or syncing the file
+	 */
+	public <T> T writeAndSync(String key, File file, WriterAction<T> action) throws IOException {
+		return write(key, file, action, true);
+	}
+
+	private <T> T write(String key, File file, WriterAction<T> action, boolean sync) throws IOException {
+		while (true) {
+			PooledWriter writer = acquire(key, file);
+			writer.lock.lock();
+			try {
+				if (writer.closed) {
+					continue;	// evicted between acquire and lock, get a fresh one
+				}
+				long start = System.nanoTime();
+				T result = action.apply(writer.out);
+				writeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+				writer.dirty = true;
+				writer.unsynced = true;
+				writer.lastUsed = System.currentTimeMillis();
+
+				if (sync || syncPolicy == FlushPolicy.BATCH || syncPolicy == FlushPolicy.GROUP) {
+					writer.sync();
+				} else if (flushPolicy == FlushPolicy.BATCH) {
+					writer.flush();
+				}
+				if (segmentManager != null && segmentManager.isRollDue(writer.segment, writer.lastUsed)) {
+					roll(key, writer);
+				}
+				return result;
+			} finally {
+				writer.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return number of output files currently held open
+	 */
+	public int getOpenWriterCount() {
+		poolLock.lock();
+		try {
+			return writers.size();
+		} finally {
+			poolLock.unlock();
+		}
+	}
+
+	/**
+	 * Flush, sync and close every open file on app shutdown
+	 */
+	@PreDestroy
+	public void shutdown() {
+		maintenance.shutdownNow();
+		for (PooledWriter writer : removeAll()) {
+			closeQuietly(writer);
+		}
+	}
+
+	/**
+	 * Find the open writer for a file, opening it (and evicting the least recently used) if needed
+	 */
+	private PooledWriter acquire(String key, File file) throws IOException {
+		List<PooledWriter> evicted = new ArrayList<>();
+		PooledWriter writer;
+		poolLock.lock();
+		try {
+			writer = writers.get(key);
+			if (writer == null) {
+				SegmentManager.ActiveSegment segment = (segmentManager != null) ? segmentManager.open(key, file) : null;
+				writer = new PooledWriter(key, file, bufferSize, flushListener, segment);
+				writers.put(key, writer);
+
+				Iterator<PooledWriter> eldest = writers.values().iterator();
+				while (writers.size() > maxOpenWriters && eldest.hasNext()) {
+					PooledWriter candidate = eldest.next();
+					if (candidate != writer) {
+						eldest.remove();
+						evicted.add(candidate);
+					}
+				}
+			}
+		} finally {
+			poolLock.unlock();
+		}
+
+		// close outside the pool lock, a busy writer will be closed once its current request is done
+		for (PooledWriter old : evicted) {
+			closeQuietly(old);
+		}
+		return writer;
+	}
+
+	/**
+	 * Periodic task: apply INTERVAL flush/sync policies and close idle writers
+	 */
+	private void maintain() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, PooledWriter> entry : snapshot()) {
+			PooledWriter writer = entry.getValue();
+			if (!writer.lock.tryLock()) {
+				continue;	// in use right now, catch it next time round
+			}
+			try {
+				if (writer.closed) {
+					continue;
+				}
+				if (now - writer.lastUsed > idleTimeoutMillis) {
+					if (remove(entry.getKey(), writer)) {
+						writer.close();
+					}
+				} else if (segmentManager != null && segmentManager.isRollDue(writer.segment, now)) {
+					roll(entry.getKey(), writer);
+				} else if (syncPolicy == FlushPolicy.INTERVAL && writer.unsynced) {
+					writer.sync();
+				} else if (flushPolicy == FlushPolicy.INTERVAL && writer.dirty) {
+					writer.flush();
+				}
+			} catch (IOException ex) {
+				logger.error("Error flushing file {}, exception={}", writer.file, ex.toString());
+			} finally {
+				writer.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Close a file's active segment and have it rolled, holding the file's lock.  The rename happens
+	 * before the writer leaves the pool, so a request waiting for this writer never opens the old file.
+	 * The data is already written, so a failure to roll is logged and the file is simply reopened.
+	 */
+	private void roll(String key, PooledWriter writer) {
+		try {
+			writer.close();
+			segmentManager.roll(key, writer.file);
+		} catch (IOException ex) {
+			logger.error("Error rolling file {}, exception={}", writer.file, ex.toString());
+		} finally {
+			remove(key, writer);
+		}
+	}
+
+	private List<Map.Entry<String, PooledWriter>> snapshot() {
+		poolLock.lock();
+		try {
+			return new ArrayList<>(new LinkedHashMap<>(writers).entrySet());
+		} finally {
+			poolLock.unlock();
+		}
+	}
+
+	private boolean remove(String key, PooledWriter writer) {
+		poolLock.lock();
+		try {
+			return writers.remove(key, writer);
+		} finally {
+			poolLock.unlock();
+		}
+	}
+
+	private List<PooledWriter> removeAll() {
+		poolLock.lock();
+		try {
+			List<PooledWriter> all = new ArrayList<>(writers.values());
+			writers.clear();
+			return all;
+		} finally {
+			poolLock.unlock();
+		}
+	}
+
+	private void closeQuietly(PooledWriter writer) {
+		writer.lock.lock();
+		try {
+			writer.close();
+		} catch (IOException ex) {
+			logger.error("Error closing file {}, exception={}", writer.file, ex.toString());
+		} finally {
+			writer.lock.unlock();
+		}
+	}
+
+	/**
+	 * An open output file.  All fields other than the lock are guarded by the lock.
+	 */
+	private static class PooledWriter {
+		private final String key;
+		private final File file;
+		private final FlushListener flushListener;
+		private final SegmentManager.ActiveSegment segment;
+		private final FileOutputStream fileOut;
+		private final OutputStream out;
+		private final ReentrantLock lock = new ReentrantLock();
+
+		private long lastUsed = System.currentTimeMillis();
+		private boolean dirty;		// bytes buffered but not yet flushed to the OS
+		private boolean unsynced;	// bytes flushed but not yet forced to disk
+		private boolean closed;
+
+		PooledWriter(String key, File file, int bufferSize, FlushListener flushListener,
+				SegmentManager.ActiveSegment segment) throws IOException {
+			this.key = key;
+			this.file = file;
+			this.flushListener = flushListener;
+			this.segment = segment;
+			this.fileOut = new FileOutputStream(file, true);
+			OutputStream buffered = new BufferedOutputStream(fileOut, bufferSize);
+			this.out = (segment != null) ? new CountingOutputStream(buffered, segment) : buffered;
+		}
+
+		void flush() throws IOException {
+			try {
+				out.flush();
+			} catch (IOException | RuntimeException ex) {
+				notifyFailed();
+				throw ex;
+			}
+			dirty = false;
+			notifyFlushed(false);
+		}
+
+		void sync() throws IOException {
+			try {
+				out.flush();
+				long start = System.nanoTime();
+				fileOut.getChannel().force(false);
+				fsyncTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			} catch (IOException | RuntimeException ex) {
+				notifyFailed();
+				throw ex;
+			}
+			dirty = false;
+			unsynced = false;
+			notifyFlushed(true);
+		}
+
+		private void notifyFlushed(boolean synced) throws IOException {
+			if (flushListener != null) {
+				flushListener.flushed(key, synced);
+			}
+		}
+
+		private void notifyFailed() {
+			if (flushListener != null) {
+				flushListener.failed(key);
+			}
+		}
+
+		void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				if (unsynced) {
+					sync();
+				}
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Reports the bytes written into a file's active segment, and when they are flushed, to the SegmentManager
+	 */
+	private static class CountingOutputStream extends FilterOutputStream implements EventTimes {
+		private final SegmentManager.ActiveSegment segment;
+
+		CountingOutputStream(OutputStream out, SegmentManager.ActiveSegment segment) {
+			super(out);
+			this.segment = segment;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			segment.written(b);
+		}
+
+		@Override
+		public void eventTime(long time) {
+			segment.eventTime(time);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			segment.written(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+			segment.flushed();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				segment.closed();
+			}
+		}
+	}
+}
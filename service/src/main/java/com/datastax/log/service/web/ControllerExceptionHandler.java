@@ -1,10 +1,18 @@
 package com.datastax.log.service.web;
 
+import com.datastax.log.service.codec.CorruptBatchException;
 import com.datastax.log.service.dto.ServerResponseDto;
+import com.datastax.log.service.service.IngestRejectedException;
+import com.datastax.log.service.service.LogNotFoundException;
+import com.datastax.log.service.service.StreamNotOwnedException;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletRequest;
+
 /**
  * Handle any Exception encountered during controller processing
  * by returning our custom DTO to the client.
@@ -26,4 +34,72 @@ public class ControllerExceptionHandler {
 	public ServerResponseDto handleGenericException(Exception ex) {
 		return new ServerResponseDto(HttpStatus.INTERNAL_SERVER_ERROR.value(), ex.toString());
 	}
+
+	/**
+	 * Handle a request turned away because its file, its client or the whole service has too much in flight
+	 * (or its client is over its quota), telling the agent when to try again
+	 *
+	 * @param ex the rejection
+	 * @return 429 Too Many Requests (file or client busy) or 503 Service Unavailable (service busy), with a
+	 * 		Retry-After header, and the same in the body
+	 */
+	@ExceptionHandler
+	public ResponseEntity<ServerResponseDto> handleIngestRejected(IngestRejectedException ex) {
+		HttpStatus status = ex.isServiceWide() ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.TOO_MANY_REQUESTS;
+		return ResponseEntity.status(status)
+			.header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+			.body(new ServerResponseDto(status.value(), ex.getMessage(), null, null, ex.getRetryAfterSeconds()));
+	}
+
+	/**
+	 * Handle a request for a file written by another service instance, by sending the agent there
+	 *
+	 * @param ex names the instance which owns the file
+	 * @param request the request, repeated against the owner
+	 * @return 307 Temporary Redirect, so the agent re-sends the same POST to the Location
+	 */
+	@ExceptionHandler
+	public ResponseEntity<ServerResponseDto> handleStreamNotOwned(StreamNotOwnedException ex, HttpServletRequest request) {
+		String location = ex.getOwnerUrl() + request.getRequestURI()
+			+ (request.getQueryString() != null ? "?" + request.getQueryString() : "");
+		return ResponseEntity.status(HttpStatus.TEMPORARY_REDIRECT)
+			.header(HttpHeaders.LOCATION, location)
+			.body(new ServerResponseDto(HttpStatus.TEMPORARY_REDIRECT.value(), ex.getMessage()));
+	}
+
+	/**
+	 * Handle a read of a file which has never been written
+	 *
+	 * @param ex names the file
+	 * @return ServerResponseDto with 404 Not Found
+	 */
+	@ExceptionHandler
+	@ResponseStatus(HttpStatus.NOT_FOUND)
+	public ServerResponseDto handleLogNotFound(LogNotFoundException ex) {
+		return new ServerResponseDto(HttpStatus.NOT_FOUND.value(), ex.getMessage());
+	}
+
+	/**
+	 * Handle a request body which is not a valid log batch
+	 *
+	 * @param ex says what is wrong with it
+	 * @return ServerResponseDto with 400 Bad Request
+	 */
+	@ExceptionHandler
+	@ResponseStatus(HttpStatus.BAD_REQUEST)
+	public ServerResponseDto handleCorruptBatch(CorruptBatchException ex) {
+		return new ServerResponseDto(HttpStatus.BAD_REQUEST.value(), ex.getMessage());
+	}
+
+	/**
+	 * Handle a read with parameters which make no sense, such as a negative line or a malformed time
+	 *
+	 * @param ex says which parameter is wrong
+	 * @return ServerResponseDto with 400 Bad Request
+	 */
+	@ExceptionHandler
+	@ResponseStatus(HttpStatus.BAD_REQUEST)
+	public ServerResponseDto handleIllegalArgument(IllegalArgumentException ex) {
+		return new ServerResponseDto(HttpStatus.BAD_REQUEST.value(), ex.getMessage());
+	}
 }
@@ -1,13 +1,43 @@
 package com.datastax.log.service.web;
 
+import com.datastax.log.service.codec.CorruptBatchException;
+import com.datastax.log.service.codec.LogBatchReader;
 import com.datastax.log.service.dto.LogDto;
+import com.datastax.log.service.dto.MultiLogDto;
+import com.datastax.log.service.dto.MultiLogResponseDto;
 import com.datastax.log.service.dto.ServerResponseDto;
+import com.datastax.log.service.service.IngestRejectedException;
 import com.datastax.log.service.service.LogAppender;
+import com.datastax.log.service.service.StreamNotOwnedException;
+import com.datastax.log.service.service.StreamOffset;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletRequest;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+
 /**
  * Rest Controller to handle incoming requests from the agents.
+ * Requests are handled asynchronously: once a request's lines have been read and queued for their file
+ * the servlet thread is released, and the response is sent when the write has completed (with group
+ * commit, once the lines are on disk).  A file, client or service with too much already in flight, or a client
+ * over its quota, answers with 429 or 503 and a Retry-After (see IngestLimiter).  The response to a request
+ * which was written carries the share of the service's in flight limit in use as its load, which agents pace their
+ * uploads by.  When several instances share the output files, a request for a file another instance owns is
+ * redirected there with 307 (see PartitionRing).
+ *
+ * An agent tailing many files can send a chunk for each of them in one multi-file request, to
+ * /log-aggregator/{clientId}/batch.  Each entry is appended just as if it had been sent on its own, and
+ * is answered on its own in the response: a file which is busy, owned by another instance or fails to
+ * be written gets the status it would have got alone, and the other entries are still written.
  *
  * @author cingham
  */
@@ -28,18 +58,166 @@ public class LogInputController {
 	/**
 	 * Main Rest endpoint to post new log data, in the format:
 	 * 			/log-aggregator/{clientId}
-	 * The body of the request should contain a JSON representation of the LogDto
+	 * The body of the request should contain a JSON representation of the LogDto.
+	 * When the LogDto carries a file identity and offsets, the response reports the committed offset
+	 * for the file, which may already cover the chunk (a re-sent duplicate is acknowledged without rewriting it).
 	 *
 	 * @param clientId from the URI
 	 * @param logDto from the request body
-	 * @return ServerResponseDto with the status
+	 * @return ServerResponseDto with the status, once the chunk has been written
 	 * @throws Exception any error encountered, will be handled by the ControllerExceptionHandler
 	 */
 	@PostMapping(value = "/log-aggregator/{clientId}", consumes = "application/json",
 		produces = "application/json")
-	public ServerResponseDto postToLog(@PathVariable String clientId,
+	public CompletableFuture<ServerResponseDto> postToLog(@PathVariable String clientId,
 							@RequestBody LogDto logDto) throws Exception {
-		logAppender.appendToFile(clientId, logDto.getFilename(), logDto.getLines());
-		return new ServerResponseDto(HttpStatus.OK.value(), "Success");
+		return logAppender.appendChunkAsync(clientId, logDto).thenApply(this::successResponse);
+	}
+
+	/**
+	 * Same endpoint as postToLog(), for agents uploading the compressed binary format:
+	 * 			/log-aggregator/{clientId}
+	 * The body is a log batch (see LogBatchReader), it is decoded as a stream into a single buffer of lines.
+	 *
+	 * @param clientId from the URI
+	 * @param body the request body
+	 * @return ServerResponseDto with the status, once the batch has been written
+	 * @throws Exception any error encountered, will be handled by the ControllerExceptionHandler
+	 */
+	@PostMapping(value = "/log-aggregator/{clientId}", consumes = LogBatchReader.CONTENT_TYPE,
+		produces = "application/json")
+	public CompletableFuture<ServerResponseDto> postBatchToLog(@PathVariable String clientId, InputStream body) throws Exception {
+		try (LogBatchReader batch = new LogBatchReader(body)) {
+			return logAppender.appendBatchAsync(clientId, batch).thenApply(this::successResponse);
+		}
+	}
+
+	/**
+	 * Multi-file Rest endpoint, for agents uploading chunks of several files in one request:
+	 * 			/log-aggregator/{clientId}/batch
+	 * The body of the request should contain a JSON representation of the MultiLogDto.  The response holds
+	 * one ServerResponseDto for each entry, in order, once every entry has been written or has failed.
+	 *
+	 * @param clientId from the URI
+	 * @param multiLogDto from the request body
+	 * @param request the request, an entry for a file owned by another instance is sent to the same path there
+	 * @return MultiLogResponseDto with the status of each entry
+	 * @throws Exception any error encountered, will be handled by the ControllerExceptionHandler
+	 */
+	@PostMapping(value = "/log-aggregator/{clientId}/batch", consumes = "application/json",
+		produces = "application/json")
+	public CompletableFuture<MultiLogResponseDto> postFilesToLog(@PathVariable String clientId,
+							@RequestBody MultiLogDto multiLogDto, HttpServletRequest request) throws Exception {
+		String uploadPath = uploadPath(request);
+		List<LogDto> logDtos = (multiLogDto.getEntries() != null) ? multiLogDto.getEntries() : Collections.emptyList();
+		List<CompletableFuture<ServerResponseDto>> entries = new ArrayList<>(logDtos.size());
+		for (LogDto logDto : logDtos) {
+			entries.add(entryResponse(uploadPath, () -> logAppender.appendChunkAsync(clientId, logDto)));
+		}
+		return allEntries(entries);
+	}
+
+	/**
+	 * Same endpoint as postFilesToLog(), for agents uploading the compressed binary format:
+	 * 			/log-aggregator/{clientId}/batch
+	 * The body is a multi-file log batch (see LogBatchReader), each file's batch is decoded in turn.
+	 * A body which cannot be read fails the whole request, since the entries after it cannot be found,
+	 * as does a body claiming fewer than none or more than LogBatchReader.MAX_BATCHES batches.
+	 *
+	 * @param clientId from the URI
+	 * @param body the request body
+	 * @param request the request, an entry for a file owned by another instance is sent to the same path there
+	 * @return MultiLogResponseDto with the status of each entry
+	 * @throws Exception any error encountered, will be handled by the ControllerExceptionHandler
+	 */
+	@PostMapping(value = "/log-aggregator/{clientId}/batch", consumes = LogBatchReader.MULTI_CONTENT_TYPE,
+		produces = "application/json")
+	public CompletableFuture<MultiLogResponseDto> postFileBatchesToLog(@PathVariable String clientId, InputStream body,
+							HttpServletRequest request) throws Exception {
+		String uploadPath = uploadPath(request);
+		DataInputStream in = new DataInputStream(body);
+		if (in.readInt() != LogBatchReader.MULTI_MAGIC) {
+			throw new CorruptBatchException("Not a multi-file log batch, invalid header");
+		}
+		int count = in.readInt();
+		if (count < 0 || count > LogBatchReader.MAX_BATCHES) {
+			throw new CorruptBatchException("Invalid multi-file log batch, " + count + " batches");
+		}
+		List<CompletableFuture<ServerResponseDto>> entries = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			try (LogBatchReader batch = new LogBatchReader(in)) {
+				entries.add(entryResponse(uploadPath, () -> logAppender.appendBatchAsync(clientId, batch)));
+				batch.skipRemaining();		// an entry turned away before its lines were read
+			}
+		}
+		return allEntries(entries);
+	}
+
+	/**
+	 * Start appending one entry of a multi-file upload, turning anything which fails it into its response.
+	 * Only an error reading the request itself is thrown.
+	 */
+	private CompletableFuture<ServerResponseDto> entryResponse(String uploadPath, Append append) throws IOException {
+		CompletableFuture<StreamOffset> written;
+		try {
+			written = append.start();
+		} catch (RuntimeException ex) {
+			return CompletableFuture.completedFuture(errorResponse(ex, uploadPath));
+		}
+		return written.handle((committed, ex) -> (ex == null) ? successResponse(committed) : errorResponse(ex, uploadPath));
+	}
+
+	private static CompletableFuture<MultiLogResponseDto> allEntries(List<CompletableFuture<ServerResponseDto>> entries) {
+		return CompletableFuture.allOf(entries.toArray(new CompletableFuture<?>[0]))
+			.thenApply(done -> new MultiLogResponseDto(HttpStatus.OK.value(), "Success",
+				entries.stream().map(CompletableFuture::join).collect(Collectors.toList())));
+	}
+
+	/**
+	 * The response for an entry which failed, with the status it would have got on its own (see
+	 * ControllerExceptionHandler).  An entry for a file owned by another instance has 307 and the url
+	 * to upload the file to as its message.
+	 */
+	static ServerResponseDto errorResponse(Throwable ex, String uploadPath) {
+		Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+		if (cause instanceof IngestRejectedException) {
+			IngestRejectedException rejected = (IngestRejectedException) cause;
+			HttpStatus status = rejected.isServiceWide() ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.TOO_MANY_REQUESTS;
+			return new ServerResponseDto(status.value(), cause.getMessage(), null, null, rejected.getRetryAfterSeconds());
+		}
+		if (cause instanceof StreamNotOwnedException) {
+			String ownerUrl = ((StreamNotOwnedException) cause).getOwnerUrl() + uploadPath;
+			return new ServerResponseDto(HttpStatus.TEMPORARY_REDIRECT.value(), ownerUrl);
+		}
+		if (cause instanceof IllegalArgumentException) {
+			return new ServerResponseDto(HttpStatus.BAD_REQUEST.value(), cause.getMessage());
+		}
+		return new ServerResponseDto(HttpStatus.INTERNAL_SERVER_ERROR.value(), cause.toString());
+	}
+
+	/**
+	 * Path a single file of a multi-file request would have been uploaded to, i.e. without the trailing /batch
+	 */
+	private static String uploadPath(HttpServletRequest request) {
+		String uri = request.getRequestURI();
+		return uri.endsWith("/batch") ? uri.substring(0, uri.length() - "/batch".length()) : uri;
+	}
+
+	/**
+	 * The response for a request (or entry) which was written, with the service's load for the agent to pace itself by
+	 */
+	private ServerResponseDto successResponse(StreamOffset committed) {
+		double load = Math.round(logAppender.getLoad() * 100) / 100.0;
+		if (committed == null) {
+			return new ServerResponseDto(HttpStatus.OK.value(), "Success", null, null, null, load);
+		}
+		return new ServerResponseDto(HttpStatus.OK.value(), "Success", committed.getFileId(), committed.getOffset(), null, load);
+	}
+
+	/**
+	 * Starts appending one entry of a multi-file upload
+	 */
+	private interface Append {
+		CompletableFuture<StreamOffset> start() throws IOException;
 	}
 }
@@ -0,0 +1,165 @@
+package com.datastax.log.service.web;
+
+import com.datastax.log.service.service.LineTimestamps;
+import com.datastax.log.service.service.LogRange;
+import com.datastax.log.service.service.LogReader;
+import com.datastax.log.service.service.LogSearcher;
+import com.datastax.log.service.service.SearchResult;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Rest Controller to read the aggregated files back, by line number or time, and to follow them as they are written.
+ * Lines are numbered from 0 across all of a file's segments, as in the manifest.  The response body is the
+ * lines as they were written, and the X-First-Line and X-End-Line headers give the range of lines it holds.
+ * A file written by another service instance is redirected there with 307 (see PartitionRing).
+ *
+ * The files can also be searched for a piece of text (see LogSearcher), each line found is sent as
+ * {clientId}-{filename}:{line}:{text}, like grep -n across files.
+ *
+ * @author cingham
+ */
+@RestController
+public class LogOutputController {
+	static final String FIRST_LINE_HEADER = "X-First-Line";
+	static final String END_LINE_HEADER = "X-End-Line";
+	static final String SEARCHED_HEADER = "X-Segments-Searched";
+	static final String SKIPPED_HEADER = "X-Segments-Skipped";
+	static final String LIMIT_REACHED_HEADER = "X-Limit-Reached";
+
+	private final LogReader logReader;
+	private final LogSearcher logSearcher;
+
+	/**
+	 * Injection constructor
+	 *
+	 * @param logReader class to read the output files
+	 * @param logSearcher class to search the output files
+	 */
+	LogOutputController(LogReader logReader, LogSearcher logSearcher) {
+		this.logReader = logReader;
+		this.logSearcher = logSearcher;
+	}
+
+	/**
+	 * Rest endpoint to read a range of lines from a file, in the format:
+	 * 			/log-aggregator/{clientId}/{filename}?fromLine=&toLine=
+	 * 			/log-aggregator/{clientId}/{filename}?since=&until=
+	 * Lines [fromLine, toLine) are returned, or the lines stamped from since up to until, where the times
+	 * are epoch millis or ISO-8601 timestamps.  Every parameter is optional, with none the whole file is returned.
+	 * Any request without follow=true comes here, follow may also be given as false.
+	 *
+	 * @param clientId from the URI
+	 * @param filename from the URI
+	 * @param fromLine first line wanted
+	 * @param toLine line after the last line wanted
+	 * @param since earliest time wanted
+	 * @param until time after the latest wanted
+	 * @param follow absent or false
+	 * @param response the lines are written straight to it
+	 * @throws IOException any error encountered, will be handled by the ControllerExceptionHandler
+	 */
+	@GetMapping(value = "/log-aggregator/{clientId}/{filename:.+}", params = "follow!=true")
+	public void getLog(@PathVariable String clientId, @PathVariable String filename,
+					   @RequestParam(required = false) Long fromLine, @RequestParam(required = false) Long toLine,
+					   @RequestParam(required = false) String since, @RequestParam(required = false) String until,
+					   @RequestParam(required = false) String follow, HttpServletResponse response) throws IOException {
+		if (follow != null && !follow.equals("false")) {
+			throw new IllegalArgumentException("follow must be true or false, not " + follow);
+		}
+		LogRange range = find(clientId, filename, fromLine, toLine, since, until);
+		response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+		response.setContentLengthLong(range.getEndByte() - range.getStartByte());
+		response.setHeader(FIRST_LINE_HEADER, String.valueOf(range.getFirstLine()));
+		response.setHeader(END_LINE_HEADER, String.valueOf(range.getEndLine()));
+		logReader.transfer(range, response.getOutputStream());
+	}
+
+	/**
+	 * Rest endpoint to follow a file, sending each line once it has been written, in the format:
+	 * 			/log-aggregator/{clientId}/{filename}?follow=true[&fromLine=|&since=]
+	 * Without fromLine or since only new lines are sent.  The response stays open until the client
+	 * closes it or followTimeout passes.
+	 *
+	 * @param clientId from the URI
+	 * @param filename from the URI
+	 * @param fromLine first line wanted
+	 * @param since earliest time wanted
+	 * @return the response, which the lines are sent to as they come
+	 * @throws IOException any error encountered, will be handled by the ControllerExceptionHandler
+	 */
+	@GetMapping(value = "/log-aggregator/{clientId}/{filename:.+}", params = "follow=true")
+	public ResponseEntity<ResponseBodyEmitter> followLog(@PathVariable String clientId, @PathVariable String filename,
+					   @RequestParam(required = false) Long fromLine, @RequestParam(required = false) String since)
+					   throws IOException {
+		LogRange range = (fromLine == null && since == null)
+			? logReader.findLines(clientId, filename, Long.MAX_VALUE, Long.MAX_VALUE)
+			: find(clientId, filename, fromLine, null, since, null);
+		ResponseBodyEmitter emitter = new ResponseBodyEmitter(logReader.getFollowTimeoutMillis());
+		logReader.follow(range, emitter);
+		return ResponseEntity.ok()
+			.contentType(MediaType.TEXT_PLAIN)
+			.header(FIRST_LINE_HEADER, String.valueOf(range.getFirstLine()))
+			.body(emitter);
+	}
+
+	/**
+	 * Rest endpoint to search the files for a piece of text, in the format:
+	 * 			/log-aggregator/search?q=&clientId=&since=&until=&limit=
+	 * The text is matched on token boundaries.  Only clientId's files are searched if it is given, and only lines
+	 * from since up to until if they are.  Up to limit lines are returned, at most maxSearchResults.
+	 *
+	 * @param q the text to look for
+	 * @param clientId only search this client's files
+	 * @param since earliest time wanted
+	 * @param until time after the latest wanted
+	 * @param limit most lines wanted
+	 * @param response the lines found are written to it
+	 * @throws IOException any error encountered, will be handled by the ControllerExceptionHandler
+	 */
+	@GetMapping("/log-aggregator/search")
+	public void search(@RequestParam String q, @RequestParam(required = false) String clientId,
+					   @RequestParam(required = false) String since, @RequestParam(required = false) String until,
+					   @RequestParam(required = false, defaultValue = "0") int limit,
+					   HttpServletResponse response) throws IOException {
+		SearchResult result = logSearcher.search(q, clientId,
+			(since != null) ? LineTimestamps.parse(since) : Long.MIN_VALUE,
+			(until != null) ? LineTimestamps.parse(until) : Long.MAX_VALUE, limit);
+		response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+		response.setHeader(SEARCHED_HEADER, String.valueOf(result.getSegmentsSearched()));
+		response.setHeader(SKIPPED_HEADER, String.valueOf(result.getSegmentsSkipped()));
+		response.setHeader(LIMIT_REACHED_HEADER, String.valueOf(result.isLimitReached()));
+		OutputStream out = new BufferedOutputStream(response.getOutputStream());
+		for (SearchResult.Match match : result.getMatches()) {
+			out.write((match.getStream() + ":" + match.getLine() + ":").getBytes(StandardCharsets.UTF_8));
+			out.write(match.getText());
+			out.write('\n');
+		}
+		out.flush();
+	}
+
+	private LogRange find(String clientId, String filename, Long fromLine, Long toLine, String since, String until)
+			throws IOException {
+		if ((fromLine != null || toLine != null) && (since != null || until != null)) {
+			throw new IllegalArgumentException("Ask for lines or times, not both");
+		}
+		if (since != null || until != null) {
+			return logReader.findTimes(clientId, filename,
+				(since != null) ? LineTimestamps.parse(since) : Long.MIN_VALUE,
+				(until != null) ? LineTimestamps.parse(until) : Long.MAX_VALUE);
+		}
+		if ((fromLine != null && fromLine < 0) || (toLine != null && toLine < 0)) {
+			throw new IllegalArgumentException("Lines are numbered from 0");
+		}
+		return logReader.findLines(clientId, filename,
+			(fromLine != null) ? fromLine : 0, (toLine != null) ? toLine : Long.MAX_VALUE);
+	}
+}
@@ -0,0 +1,145 @@
+package com.datastax.log.service
+
+import com.datastax.log.service.dto.LogDto
+import com.datastax.log.service.service.PartitionRing
+import com.datastax.log.service.service.StorageLayout
+import org.springframework.boot.builder.SpringApplicationBuilder
+import org.springframework.context.ConfigurableApplicationContext
+import org.springframework.http.ResponseEntity
+import org.springframework.web.client.HttpClientErrorException
+import org.springframework.web.client.RestTemplate
+import spock.lang.Shared
+import spock.lang.Specification
+
+/**
+ * Two service instances started locally on different ports, sharing one output directory
+ */
+class ClusterSpec extends Specification {
+	static String UNIT_TEST_PATH = "__temp-unit-test-cluster__"
+
+	@Shared
+	List<String> urls
+	@Shared
+	List<ConfigurableApplicationContext> instances
+	RestTemplate restTemplate = new RestTemplate()
+
+	def "setupSpec"() {
+		List<Integer> ports = [freePort(), freePort()]
+		urls = ports.collect { "http://localhost:" + it }
+		instances = ports.collect { port ->
+			new SpringApplicationBuilder(Application).run(
+				"--server.port=" + port,
+				"--spring.main.banner-mode=off",
+				"--log-service.filePath=" + UNIT_TEST_PATH,
+				"--log-service.instanceUrl=http://localhost:" + port,
+				"--log-service.instances=" + urls.join(","))
+		}
+	}
+
+	def "cleanupSpec"() {
+		instances?.each { it.close() }
+		new File(UNIT_TEST_PATH).deleteDir()
+	}
+
+	def "test a file owned by another instance is redirected there and written once"() {
+		given:
+			String filename = ownedFile(1)
+		when:
+			ResponseEntity<Map> redirect = post(urls[0], filename, ["line-1"])
+			ResponseEntity<Map> written = post(redirect.getHeaders().getLocation().toString(), filename, ["line-1"])
+		then:
+			redirect.getStatusCodeValue() == 307
+			redirect.getHeaders().getLocation().toString() == urls[1] + "/log-aggregator/clientA"
+			written.getStatusCodeValue() == 200
+			layout().fileFor("clientA-" + filename).readLines() == ["line-1"]
+	}
+
+	def "test a file owned by the instance it is sent to is written straight away"() {
+		given:
+			String filename = ownedFile(0)
+		when:
+			ResponseEntity<Map> written = post(urls[0], filename, ["line-1", "line-2"])
+		then:
+			written.getStatusCodeValue() == 200
+			layout().fileFor("clientA-" + filename).readLines() == ["line-1", "line-2"]
+			layout().fileFor("clientA-" + filename).getParentFile().getParentFile() == new File(UNIT_TEST_PATH)
+	}
+
+	def "test a range of lines is read back from the instance which owns the file"() {
+		given:
+			String filename = ownedFile(1, "clientB")
+			restTemplate.postForEntity(urls[1] + "/log-aggregator/clientB",
+				new LogDto(filename, ["line-0", "line-1", "line-2", "line-3"]), Map)
+		when:
+			// asked of the other instance, the redirect is followed like any GET redirect
+			ResponseEntity<String> lines = restTemplate.getForEntity(
+				urls[0] + "/log-aggregator/clientB/" + filename + "?fromLine=1&toLine=3", String)
+		then:
+			lines.getStatusCodeValue() == 200
+			lines.getBody() == "line-1\nline-2\n"
+			lines.getHeaders().getFirst("X-First-Line") == "1"
+			lines.getHeaders().getFirst("X-End-Line") == "3"
+	}
+
+	def "test follow=false reads a range of lines, any value but true or false is refused"() {
+		given:
+			String filename = ownedFile(0, "clientD")
+			restTemplate.postForEntity(urls[0] + "/log-aggregator/clientD", new LogDto(filename, ["line-0", "line-1"]), Map)
+		when:
+			ResponseEntity<String> lines = restTemplate.getForEntity(
+				urls[0] + "/log-aggregator/clientD/" + filename + "?follow=false&fromLine=1", String)
+		then:
+			lines.getStatusCodeValue() == 200
+			lines.getBody() == "line-1\n"
+		when:
+			restTemplate.getForEntity(urls[0] + "/log-aggregator/clientD/" + filename + "?follow=yes", String)
+		then:
+			HttpClientErrorException ex = thrown()
+			ex.getRawStatusCode() == 400
+	}
+
+	def "test a multi-file upload writes the files the instance owns and sends the rest to their owner"() {
+		given:
+			String mine = ownedFile(0, "clientC")
+			String theirs = ownedFile(1, "clientC")
+			Map body = [entries: [[filename: mine, lines: ["mine-1"]], [filename: theirs, lines: ["theirs-1"]]]]
+		when:
+			ResponseEntity<Map> response = restTemplate.postForEntity(urls[0] + "/log-aggregator/clientC/batch", body, Map)
+		then:
+			response.getStatusCodeValue() == 200
+			response.getBody().entries*.status == [200, 307]
+			response.getBody().entries[1].message == urls[1] + "/log-aggregator/clientC"
+			layout().fileFor("clientC-" + mine).readLines() == ["mine-1"]
+			!layout().fileFor("clientC-" + theirs).exists()
+	}
+
+	def "test the metrics are served for scraping"() {
+		given:
+			post(urls[0], ownedFile(0), ["line-1", "line-2"])
+		when:
+			String scraped = restTemplate.getForObject(urls[0] + "/actuator/prometheus", String)
+		then:
+			scraped.contains("log_service_lines_written_total")
+			scraped.contains("log_service_request_bytes")
+			scraped.contains("log_service_writers_open")
+	}
+
+	private String ownedFile(int instance, String clientId = "clientA") {
+		PartitionRing ring = instances[0].getBean(PartitionRing)
+		return (1..100).collect { "file-" + instance + "-" + it + ".log" }
+			.find { ring.ownerOf(clientId + "-" + it) == urls[instance] }
+	}
+
+	private StorageLayout layout() {
+		return instances[0].getBean(StorageLayout)
+	}
+
+	private ResponseEntity<Map> post(String url, String filename, List<String> lines) {
+		String target = url.contains("/log-aggregator/") ? url : url + "/log-aggregator/clientA"
+		return restTemplate.postForEntity(target, new LogDto(filename, lines), Map)
+	}
+
+	private static int freePort() {
+		new ServerSocket(0).withCloseable { it.getLocalPort() }
+	}
+}
@@ -0,0 +1,224 @@
+package com.datastax.log.service.codec
+
+import com.github.luben.zstd.Zstd
+import net.jpountz.lz4.LZ4Factory
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.charset.StandardCharsets
+import java.util.zip.Deflater
+
+class LogBatchReaderSpec extends Specification {
+
+	@Unroll
+	def "test lines are decoded with #compression compression"() {
+		given:
+			byte[] batch = encode(compression, ["test-1", "", "tést-3"], ["test-4"])
+		when:
+			LogBatchReader reader = new LogBatchReader(new ByteArrayInputStream(batch))
+			List<String> lines = readAll(reader)
+		then:
+			reader.getFilename() == "test.log"
+			reader.getFileId() == "file@1"
+			reader.getStartOffset() == 10
+			reader.getEndOffset() == 40
+			lines == ["test-1", "", "tést-3", "test-4"]
+		where:
+			compression << Compression.values()
+	}
+
+	def "test empty file identity is reported as null"() {
+		given:
+			byte[] batch = encode(Compression.NONE, [], [], "")
+		when:
+			LogBatchReader reader = new LogBatchReader(new ByteArrayInputStream(batch))
+		then:
+			reader.getFileId() == null
+			!reader.nextLine()
+	}
+
+	def "test invalid header generates Exception"() {
+		when:
+			new LogBatchReader(new ByteArrayInputStream("{\"filename\":\"x\"}".getBytes()))
+		then:
+			thrown CorruptBatchException
+	}
+
+	def "test truncated batch generates Exception"() {
+		given:
+			byte[] batch = encode(Compression.NONE, ["test-1", "test-2"])
+			byte[] truncated = Arrays.copyOf(batch, batch.length - 8)
+		when:
+			readAll(new LogBatchReader(new ByteArrayInputStream(truncated)))
+		then:
+			thrown IOException
+	}
+
+	def "test a corrupt LZ4 block generates Exception"() {
+		given:
+			byte[] batch = encode(Compression.LZ4, ["test-1", "test-2", "test-3"])
+			int blockAt = batch.length - 4 - LZ4Factory.fastestInstance().fastCompressor()
+				.compress(rawBlock(["test-1", "test-2", "test-3"])).length - 8
+			corrupt(batch, blockAt)
+		when:
+			readAll(new LogBatchReader(new ByteArrayInputStream(batch)))
+		then:
+			thrown CorruptBatchException
+		where:
+			corrupt << [
+				{ byte[] b, int at -> Arrays.fill(b, at + 8, b.length - 4, (byte) 0xF0) },	// garbage
+				{ byte[] b, int at -> b[at + 3] += 8 },		// more raw bytes claimed than it holds
+			]
+	}
+
+	def "test a line longer than what is left of its block generates Exception"() {
+		given:
+			ByteArrayOutputStream raw = new ByteArrayOutputStream()
+			writeVarlong(raw, length)
+			raw.write("test-1".getBytes(StandardCharsets.UTF_8))
+		when:
+			readAll(new LogBatchReader(new ByteArrayInputStream(encodeRaw(LogBatchReader.MAGIC, raw.toByteArray()))))
+		then:
+			thrown CorruptBatchException
+		where:
+			length << [7L, 0x7FFFFFFFL, 0xFFFFFFFFL]
+	}
+
+	def "test a block ending part way through a line length or timestamp generates Exception"() {
+		when:
+			readAll(new LogBatchReader(new ByteArrayInputStream(encodeRaw(magic, block as byte[]))))
+		then:
+			thrown CorruptBatchException
+		where:
+			magic                           | block
+			LogBatchReader.MAGIC            | [1, 0x61, 0x80]
+			LogBatchReader.TIMESTAMPS_MAGIC | [1, 0x61, 0x81]
+	}
+
+	def "test timestamps are decoded from a batch which carries them"() {
+		given:
+			ByteArrayOutputStream raw = new ByteArrayOutputStream()
+			// 1000, none, 1005 (+5), 995 (-10), as 1 + zigzag of the difference from the last one
+			[["a", 2001L], ["b", 0L], ["c", 11L], ["d", 20L]].each { pair ->
+				raw.write(1)
+				raw.write(((String) pair[0]).getBytes(StandardCharsets.UTF_8))
+				writeVarlong(raw, (long) pair[1])
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+			DataOutputStream out = new DataOutputStream(bytes)
+			out.writeInt(LogBatchReader.TIMESTAMPS_MAGIC)
+			out.writeByte(Compression.NONE.getId())
+			out.writeUTF("test.log")
+			out.writeUTF("file@1")
+			out.writeLong(0)
+			out.writeLong(8)
+			out.writeInt(raw.size())
+			out.writeInt(raw.size())
+			out.write(raw.toByteArray())
+			out.writeInt(0)
+		when:
+			LogBatchReader reader = new LogBatchReader(new ByteArrayInputStream(bytes.toByteArray()))
+			List<Long> timestamps = []
+			List<String> lines = []
+			while (reader.nextLine()) {
+				lines.add(new String(reader.lineBuffer(), reader.lineStart(), reader.lineLength(), StandardCharsets.UTF_8))
+				timestamps.add(reader.lineTimestamp())
+			}
+		then:
+			reader.hasTimestamps()
+			lines == ["a", "b", "c", "d"]
+			timestamps == [1000L, LogBatchReader.NO_TIMESTAMP, 1005L, 995L]
+	}
+
+	private static void writeVarlong(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80))
+			value >>>= 7
+		}
+		out.write((int) value)
+	}
+
+	private static byte[] encodeRaw(int magic, byte[] raw) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+		DataOutputStream out = new DataOutputStream(bytes)
+		out.writeInt(magic)
+		out.writeByte(Compression.NONE.getId())
+		out.writeUTF("test.log")
+		out.writeUTF("file@1")
+		out.writeLong(0)
+		out.writeLong(8)
+		out.writeInt(raw.length)
+		out.writeInt(raw.length)
+		out.write(raw)
+		out.writeInt(0)
+		return bytes.toByteArray()
+	}
+
+	private static List<String> readAll(LogBatchReader reader) {
+		List<String> lines = []
+		while (reader.nextLine()) {
+			lines.add(new String(reader.lineBuffer(), reader.lineStart(), reader.lineLength(), StandardCharsets.UTF_8))
+		}
+		return lines
+	}
+
+	private static byte[] encode(Compression compression, List<String>... blocks) {
+		return encode(compression, blocks.toList(), "file@1")
+	}
+
+	private static byte[] encode(Compression compression, List<String> block1, List<String> block2, String fileId) {
+		return encode(compression, [block1, block2], fileId)
+	}
+
+	private static byte[] encode(Compression compression, List<List<String>> blocks, String fileId) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+		DataOutputStream out = new DataOutputStream(bytes)
+		out.writeInt(LogBatchReader.MAGIC)
+		out.writeByte(compression.getId())
+		out.writeUTF("test.log")
+		out.writeUTF(fileId)
+		out.writeLong(10)
+		out.writeLong(40)
+		for (List<String> lines : blocks) {
+			if (lines.isEmpty()) {
+				continue
+			}
+			byte[] rawBytes = rawBlock(lines)
+			byte[] compressed = compress(compression, rawBytes)
+			out.writeInt(rawBytes.length)
+			out.writeInt(compressed.length)
+			out.write(compressed)
+		}
+		out.writeInt(0)
+		return bytes.toByteArray()
+	}
+
+	private static byte[] rawBlock(List<String> lines) {
+		ByteArrayOutputStream raw = new ByteArrayOutputStream()
+		for (String line : lines) {
+			byte[] lineBytes = line.getBytes(StandardCharsets.UTF_8)
+			raw.write(lineBytes.length)		// short test lines fit in a one byte varint
+			raw.write(lineBytes)
+		}
+		return raw.toByteArray()
+	}
+
+	private static byte[] compress(Compression compression, byte[] raw) {
+		switch (compression) {
+			case Compression.GZIP:
+				Deflater deflater = new Deflater()
+				deflater.setInput(raw)
+				deflater.finish()
+				byte[] buffer = new byte[raw.length + 64]
+				int length = deflater.deflate(buffer)
+				deflater.end()
+				return Arrays.copyOf(buffer, length)
+			case Compression.LZ4:
+				return LZ4Factory.fastestInstance().fastCompressor().compress(raw)
+			case Compression.ZSTD:
+				return Zstd.compress(raw)
+			default:
+				return raw
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package com.datastax.log.service.service
+
+import com.datastax.log.service.config.Config
+import com.datastax.log.service.config.FlushPolicy
+import io.micrometer.core.instrument.Metrics
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+import spock.lang.Subject
+import spock.util.concurrent.PollingConditions
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+
+class GroupCommitterSpec extends Specification {
+	String UNIT_TEST_PATH = "__temp-unit-test-group__"
+
+	@Subject
+	GroupCommitter groupCommitter
+	WriterPool writerPool
+	File testDir
+	ExecutorService executor = Executors.newFixedThreadPool(8)
+	PollingConditions conditions = new PollingConditions(timeout: 10)
+
+	def "setup"() {
+		testDir = new File(UNIT_TEST_PATH)
+		testDir.mkdirs()
+	}
+
+	def "cleanup"() {
+		executor.shutdownNow()
+		groupCommitter.shutdown()
+		writerPool.shutdown()
+		testDir.listFiles().each { it.delete() }
+		testDir.delete()
+	}
+
+	def "test each write is on disk when it returns"() {
+		given:
+			create(FlushPolicy.GROUP)
+		when:
+			writeLine("a.log", "a")
+			String first = new File(testDir, "a.log").text
+			writeLine("a.log", "b")
+		then:
+			first == "a\n"
+			new File(testDir, "a.log").text == "a\nb\n"
+			groupCommitter.getStats().getGroups() == 2
+	}
+
+	def "test writes queued behind a running commit are committed together in order"() {
+		given:
+			create(FlushPolicy.GROUP)
+			CountDownLatch release = new CountDownLatch(1)
+			Future first = executor.submit { blockingWrite("a.log", "first", release) }
+			conditions.eventually { assert groupCommitter.getQueueLength("a.log") == 0 && !first.isDone() }
+		when:
+			List<Future> queued = []
+			(1..5).each { i ->
+				queued << executor.submit { writeLine("a.log", "line-" + i) }
+				conditions.eventually { assert groupCommitter.getQueueLength("a.log") == i }
+			}
+			release.countDown()
+			first.get(10, TimeUnit.SECONDS)
+			queued.each { it.get(10, TimeUnit.SECONDS) }
+		then:
+			new File(testDir, "a.log").readLines() == ["first", "line-1", "line-2", "line-3", "line-4", "line-5"]
+			groupCommitter.getStats().getGroups() == 2
+			groupCommitter.getStats().getRequests() == 6
+			groupCommitter.getStats().getMaxGroupSize() == 5
+	}
+
+	def "test a failing write only fails its own request"() {
+		given:
+			create(FlushPolicy.GROUP)
+			CountDownLatch release = new CountDownLatch(1)
+			Future first = executor.submit { blockingWrite("a.log", "first", release) }
+			conditions.eventually { assert groupCommitter.getQueueLength("a.log") == 0 && !first.isDone() }
+			Future good = executor.submit { writeLine("a.log", "good") }
+			conditions.eventually { assert groupCommitter.getQueueLength("a.log") == 1 }
+			Future bad = executor.submit {
+				groupCommitter.write("a.log", new File(testDir, "a.log"), { out ->
+					throw new IOException("bad request")
+				} as WriterPool.WriterAction)
+			}
+			conditions.eventually { assert groupCommitter.getQueueLength("a.log") == 2 }
+		when:
+			release.countDown()
+			first.get(10, TimeUnit.SECONDS)
+			good.get(10, TimeUnit.SECONDS)
+			bad.get(10, TimeUnit.SECONDS)
+		then:
+			def ex = thrown(java.util.concurrent.ExecutionException)
+			ex.cause instanceof IOException
+			new File(testDir, "a.log").readLines() == ["first", "good"]
+	}
+
+	def "test concurrent writers to one file keep their own order"() {
+		given:
+			create(FlushPolicy.GROUP)
+			int threads = 8
+			int linesPerThread = 200
+		when:
+			List<Future> writers = (0..<threads).collect { t ->
+				executor.submit {
+					(0..<linesPerThread).each { i -> writeLine("same.log", "thread-" + t + "-line-" + i) }
+				}
+			}
+			writers.each { it.get(30, TimeUnit.SECONDS) }
+			List<String> lines = new File(testDir, "same.log").readLines()
+		then:
+			lines.size() == threads * linesPerThread
+			(0..<threads).every { t ->
+				lines.findAll { it.startsWith("thread-" + t + "-") } ==
+					(0..<linesPerThread).collect { i -> "thread-" + t + "-line-" + i }
+			}
+			groupCommitter.getStats().getRequests() == threads * linesPerThread
+	}
+
+	def "test other sync policies write straight through the pool"() {
+		given:
+			create(FlushPolicy.CLOSE)
+		when:
+			writeLine("a.log", "a")
+		then:
+			new File(testDir, "a.log").length() == 0		// still buffered
+			groupCommitter.getStats().getGroups() == 0
+	}
+
+	def "test the committers are shared between clients by their weights"() {
+		given:
+			create(FlushPolicy.GROUP, 1, 1, ["b": new Config.Quota(weight: 2)])
+			CountDownLatch release = new CountDownLatch(1)
+			Future first = executor.submit { blockingWrite("x.log", "first", release) }
+			conditions.eventually { assert groupCommitter.getQueueLength("x.log") == 0 && !first.isDone() }
+			List<String> written = Collections.synchronizedList([])
+			List<CompletableFuture> queued = []
+			["a", "b"].each { client ->
+				(0..<6).each { i -> queued << submitLine(client, client + ".log", client + "-" + i, 100, written) }
+			}
+		when:
+			release.countDown()
+			first.get(10, TimeUnit.SECONDS)
+			queued.each { it.get(10, TimeUnit.SECONDS) }
+		then:
+			// b is charged half as much for each group, so it gets two groups for each of a's while both have writes waiting
+			written == ["a-0", "b-0", "b-1", "a-1", "b-2", "b-3", "a-2", "b-4", "b-5", "a-3", "a-4", "a-5"]
+			new File(testDir, "a.log").readLines() == (0..<6).collect { "a-" + it }
+	}
+
+	def "test a client which has been idle gets no credit for it"() {
+		given:
+			create(FlushPolicy.GROUP, 1, 1, [:])
+			List<String> written = Collections.synchronizedList([])
+			(0..<3).each { i -> submitLine("a", "a.log", "a-" + i, 100, written).get(10, TimeUnit.SECONDS) }
+			CountDownLatch release = new CountDownLatch(1)
+			Future first = executor.submit { blockingWrite("x.log", "first", release) }
+			conditions.eventually { assert groupCommitter.getQueueLength("x.log") == 0 && !first.isDone() }
+			List<CompletableFuture> queued = []
+			(0..<2).each { i -> queued << submitLine("b", "b.log", "b-" + i, 100, written) }
+			(3..<5).each { i -> queued << submitLine("a", "a.log", "a-" + i, 100, written) }
+		when:
+			release.countDown()
+			queued.each { it.get(10, TimeUnit.SECONDS) }
+		then:
+			written == ["a-0", "a-1", "a-2", "b-0", "a-3", "b-1", "a-4"]
+	}
+
+	def "test clients which have been idle are forgotten, with their wait timers"() {
+		given:
+			SimpleMeterRegistry meters = new SimpleMeterRegistry()
+			Metrics.addRegistry(meters)
+			create(FlushPolicy.GROUP, 1, 1, [:])
+			List<String> written = Collections.synchronizedList([])
+			submitLine("a", "a.log", "a-0", 100, written).get(10, TimeUnit.SECONDS)
+			submitLine("b", "b.log", "b-0", 100, written).get(10, TimeUnit.SECONDS)
+			long now = System.currentTimeMillis()
+		when:
+			groupCommitter.pruneIdleClients(now)
+		then:
+			groupCommitter.getClientCount() == 2
+			meters.find("log.service.queue.wait").tag("client", "a").timer().count() == 1
+		when:
+			groupCommitter.pruneIdleClients(now + GroupCommitter.CLIENT_IDLE_MILLIS)
+		then:
+			groupCommitter.getClientCount() == 0
+			meters.find("log.service.queue.wait").tag("client", "a").timer() == null
+		when: "a client which comes back is tracked again"
+			submitLine("a", "a.log", "a-1", 100, written).get(10, TimeUnit.SECONDS)
+		then:
+			groupCommitter.getClientCount() == 1
+			new File(testDir, "a.log").readLines() == ["a-0", "a-1"]
+		cleanup:
+			Metrics.removeRegistry(meters)
+	}
+
+	private void create(FlushPolicy syncPolicy) {
+		create(syncPolicy, 2, 256, [:])
+	}
+
+	private void create(FlushPolicy syncPolicy, int threads, int maxGroupSize, Map<String, Config.Quota> quotas) {
+		Config config = Mock()
+		quotas.each { clientId, quota -> config.quotaFor(clientId) >> quota }
+		config.getMaxOpenWriters() >> 4
+		config.getWriterIdleTimeout() >> 60
+		config.getWriteBufferSize() >> 8192
+		config.getFlushPolicy() >> FlushPolicy.CLOSE
+		config.getSyncPolicy() >> syncPolicy
+		config.getFlushInterval() >> 1000
+		config.getGroupCommitThreads() >> threads
+		config.getMaxGroupSize() >> maxGroupSize
+		writerPool = new WriterPool(config, null, null)
+		groupCommitter = new GroupCommitter(config, writerPool)
+	}
+
+	private void writeLine(String name, String line) {
+		groupCommitter.write(name, new File(testDir, name), { out ->
+			out.write((line + "\n").getBytes(StandardCharsets.UTF_8))
+			return null
+		} as WriterPool.WriterAction)
+	}
+
+	private CompletableFuture submitLine(String clientId, String name, String line, long bytes, List<String> written) {
+		return groupCommitter.submit(clientId, name, new File(testDir, name), bytes, { out ->
+			written.add(line)
+			out.write((line + "\n").getBytes(StandardCharsets.UTF_8))
+			return null
+		} as WriterPool.WriterAction)
+	}
+
+		private void blockingWrite(String name, String line, CountDownLatch release) {
+		groupCommitter.write(name, new File(testDir, name), { out ->
+			release.await()
+			out.write((line + "\n").getBytes(StandardCharsets.UTF_8))
+			return null
+		} as WriterPool.WriterAction)
+	}
+}
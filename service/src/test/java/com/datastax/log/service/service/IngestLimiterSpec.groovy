@@ -0,0 +1,207 @@
+package com.datastax.log.service.service
+
+import com.datastax.log.service.config.Config
+import spock.lang.Specification
+import spock.lang.Subject
+
+class IngestLimiterSpec extends Specification {
+
+	@Subject
+	IngestLimiter limiter
+	Config config
+
+	def "setup"() {
+		config = Mock()
+		config.getMaxInFlightPerFile() >> 2
+		config.getMaxInFlightBytes() >> 100
+		config.getRetryAfter() >> 5
+		limiter = new IngestLimiter(config)
+	}
+
+	def "test a file over its in flight limit is refused until a request completes"() {
+		given:
+			IngestLimiter.Permit first = limiter.acquire("c1", "a", 10)
+			limiter.acquire("c1", "a", 10)
+		when:
+			limiter.acquire("c1", "a", 10)
+		then:
+			IngestRejectedException ex = thrown()
+			!ex.isServiceWide()
+			ex.getRetryAfterSeconds() == 5
+			limiter.getRejectedForFile() == 1
+		when:
+			first.release()
+			limiter.acquire("c1", "a", 10)
+		then:
+			noExceptionThrown()
+			limiter.getInFlight("a") == 2
+	}
+
+	def "test other files are not held up by a busy one"() {
+		given:
+			limiter.acquire("c1", "a", 10)
+			limiter.acquire("c1", "a", 10)
+		when:
+			limiter.acquire("c1", "b", 10)
+		then:
+			noExceptionThrown()
+	}
+
+	def "test the service refuses requests once too many bytes are in flight"() {
+		given:
+			limiter.acquire("c1", "a", 60)
+		when:
+			limiter.acquire("c1", "b", 60)
+		then:
+			IngestRejectedException ex = thrown()
+			ex.isServiceWide()
+			limiter.getRejectedForService() == 1
+			// the refused request does not hold its file's slot
+			limiter.getInFlight("b") == 0
+			limiter.getInFlightBytes() == 60
+	}
+
+	def "test a request larger than the byte limit is admitted when nothing else is in flight"() {
+		when:
+			IngestLimiter.Permit permit = limiter.acquire("c1", "a", 500)
+		then:
+			limiter.getInFlightBytes() == 500
+		when:
+			permit.release()
+			permit.release()
+		then:
+			limiter.getInFlightBytes() == 0
+			limiter.getInFlight("a") == 0
+	}
+
+	def "test the load is the share of the byte limit in flight"() {
+		when:
+			IngestLimiter.Permit permit = limiter.acquire("c1", "a", 50)
+		then:
+			limiter.getLoad() == 0.5d
+		when:
+			permit.release()
+		then:
+			limiter.getLoad() == 0d
+	}
+
+	def "test a client over its in flight quota is refused, across all of its files"() {
+		given:
+			quota("c2", new Config.Quota(maxInFlight: 2))
+			IngestLimiter.Permit first = limiter.acquire("c2", "a", 10)
+			limiter.acquire("c2", "b", 10)
+		when:
+			limiter.acquire("c2", "c", 10)
+		then:
+			IngestRejectedException ex = thrown()
+			!ex.isServiceWide()
+			ex.getRetryAfterSeconds() == 5
+			limiter.getRejectedForClient() == 1
+			limiter.getInFlight("c") == 0
+		when:
+			limiter.acquire("c1", "c", 10)
+			first.release()
+			limiter.acquire("c2", "c", 10)
+		then:
+			noExceptionThrown()
+			limiter.getInFlightForClient("c2") == 2
+	}
+
+	def "test a client over its bytes per second is told when its quota will cover the request"() {
+		given:
+			quota("c2", new Config.Quota(maxBytesPerSecond: 10, maxBurstBytes: 30))
+			limiter.acquire("c2", "a", 25).release()
+		when:
+			limiter.acquire("c2", "a", 25)
+		then:
+			IngestRejectedException ex = thrown()
+			!ex.isServiceWide()
+			ex.getRetryAfterSeconds() == 2		// 5 bytes left, 20 more come in 2 seconds
+			ex.getMessage() == "Client c2 over its quota of 10 bytes/s"
+			limiter.getInFlight("a") == 0
+			limiter.getInFlightForClient("c2") == 0
+		when:
+			limiter.acquire("c1", "b", 25)
+		then:
+			noExceptionThrown()
+	}
+
+	def "test a request larger than the burst is admitted once the client's bucket is full"() {
+		given:
+			quota("c2", new Config.Quota(maxBytesPerSecond: 10))
+		when:
+			limiter.acquire("c2", "a", 50).release()
+		then:
+			noExceptionThrown()
+		when:
+			limiter.acquire("c2", "a", 5)
+		then:
+			IngestRejectedException ex = thrown()
+			ex.getRetryAfterSeconds() == 5		// 40 bytes in debt
+	}
+
+	def "test a request the service refuses is not charged to its client"() {
+		given:
+			quota("c2", new Config.Quota(maxBytesPerSecond: 100, maxInFlight: 1))
+			limiter.acquire("c1", "a", 60)
+		when:
+			limiter.acquire("c2", "b", 60)
+		then:
+			IngestRejectedException ex = thrown()
+			ex.isServiceWide()
+			limiter.getInFlightForClient("c2") == 0
+		when:
+			limiter.acquire("c2", "b", 40)
+		then:
+			noExceptionThrown()
+	}
+
+	def "test a request admitted on an estimate holds what it turned out to be, and its client is charged for it"() {
+		given:
+			quota("c2", new Config.Quota(maxBytesPerSecond: 10, maxBurstBytes: 30))
+			IngestLimiter.Permit permit = limiter.acquire("c2", "a", 10)
+		when:
+			permit.resize(70)
+		then:
+			limiter.getInFlightBytes() == 70
+		when:
+			limiter.acquire("c1", "b", 40)
+		then:
+			IngestRejectedException ex = thrown()
+			ex.isServiceWide()
+		when:
+			permit.release()
+			limiter.acquire("c2", "a", 5)
+		then:
+			limiter.getInFlightBytes() == 0
+			IngestRejectedException debt = thrown()
+			!debt.isServiceWide()
+	}
+
+	def "test clients with nothing in flight and a full bucket are forgotten"() {
+		given:
+			quota("c2", new Config.Quota(maxInFlight: 2))
+			quota("c3", new Config.Quota(maxBytesPerSecond: 10, maxBurstBytes: 30))
+			IngestLimiter.Permit permit = limiter.acquire("c2", "a", 10)
+			limiter.acquire("c3", "b", 25).release()
+			long now = System.currentTimeMillis()
+		when: "one still has a request in flight, the other has spent its bucket"
+			limiter.pruneIdleClients(now + IngestLimiter.CLIENT_PRUNE_MILLIS)
+		then:
+			limiter.getClientCount() == 2
+		when:
+			permit.release()
+			limiter.pruneIdleClients(now + 2 * IngestLimiter.CLIENT_PRUNE_MILLIS)
+		then:
+			limiter.getClientCount() == 1
+			limiter.getInFlightForClient("c2") == 0
+		when: "the client still in debt is still held to it"
+			limiter.acquire("c3", "b", 25)
+		then:
+			thrown(IngestRejectedException)
+	}
+
+	private void quota(String clientId, Config.Quota quota) {
+		config.quotaFor(clientId) >> quota
+	}
+}
@@ -0,0 +1,45 @@
+package com.datastax.log.service.service
+
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.time.Instant
+
+class LineTimestampsSpec extends Specification {
+
+	def "test the timestamp a line starts with is read as epoch millis"() {
+		expect:
+			parse(line) == Instant.parse(expected).toEpochMilli()
+		where:
+			line                                          | expected
+			"2020-03-04T05:06:07Z message"                | "2020-03-04T05:06:07Z"
+			"2020-03-04T05:06:07.123Z message"            | "2020-03-04T05:06:07.123Z"
+			"2020-03-04 05:06:07,5 INFO message"          | "2020-03-04T05:06:07.500Z"
+			"[2020-03-04T05:06:07.123456789+02:00] msg"   | "2020-03-04T03:06:07.123Z"
+			"2020-03-04T05:06:07-0130 message"            | "2020-03-04T06:36:07Z"
+			"1969-12-31T23:59:59Z message"                | "1969-12-31T23:59:59Z"
+			"2024-02-29T00:00:00Z"                        | "2024-02-29T00:00:00Z"
+	}
+
+	def "test a line without a timestamp gives NONE"() {
+		expect:
+			parse(line) == LineTimestamps.NONE
+		where:
+			line << ["", "message", "  2020-03-04T05:06:07Z", "2020-13-04T05:06:07Z", "2020-03-04T05:06", "2020/03/04 05:06:07"]
+	}
+
+	def "test a query parameter may be epoch millis or a timestamp"() {
+		expect:
+			LineTimestamps.parse("1583298367000") == 1583298367000L
+			LineTimestamps.parse("2020-03-04T05:06:07Z") == 1583298367000L
+		when:
+			LineTimestamps.parse("yesterday")
+		then:
+			thrown(IllegalArgumentException)
+	}
+
+	private static long parse(String line) {
+		byte[] bytes = line.getBytes(StandardCharsets.US_ASCII)
+		return LineTimestamps.parse(bytes, 0, bytes.length)
+	}
+}
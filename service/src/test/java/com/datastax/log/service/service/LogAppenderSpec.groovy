@@ -1,6 +1,10 @@
 package com.datastax.log.service.service
 
+import com.datastax.log.service.codec.Compression
+import com.datastax.log.service.codec.LogBatchReader
 import com.datastax.log.service.config.Config
+import com.datastax.log.service.config.FlushPolicy
+import com.datastax.log.service.dto.LogDto
 import spock.lang.Specification
 import spock.lang.Subject
 
@@ -8,9 +12,16 @@ class LogAppenderSpec extends Specification {
 	String UNIT_TEST_PATH = "__temp-unit-test__"
 	String TEST_CLIENT_ID = "client-1"
 	String TEST_FILENAME = "test.log"
+	static String TEST_FILENAME_STATIC = "test.log"
 
     @Subject
 	LogAppender logAppender
+	WriterPool writerPool
+	GroupCommitter groupCommitter
+	IngestLimiter ingestLimiter
+	SegmentManager segmentManager
+	StorageLayout layout
+	OffsetStore offsetStore
 	Config config
     List<String> testLines
 	File testFile
@@ -19,12 +30,32 @@ class LogAppenderSpec extends Specification {
 		testLines = Arrays.asList("test-1", "test-2")
         config = Mock()
 		config.getFilePath() >> UNIT_TEST_PATH
-		logAppender = new LogAppender(config)
+		config.getMaxOpenWriters() >> 4
+		config.getWriterIdleTimeout() >> 60
+		config.getWriteBufferSize() >> 8192
+		config.getFlushPolicy() >> FlushPolicy.BATCH
+		config.getSyncPolicy() >> FlushPolicy.CLOSE
+		config.getFlushInterval() >> 1000
+		config.getMaxInFlightPerFile() >> 2
+		config.getRetryAfter() >> 3
+		offsetStore = new OffsetStore(config)
+		layout = new StorageLayout(config)
+		segmentManager = new SegmentManager(config, layout)
+		writerPool = new WriterPool(config, offsetStore, segmentManager)
+		groupCommitter = new GroupCommitter(config, writerPool)
+		ingestLimiter = new IngestLimiter(config)
+		logAppender = new LogAppender(layout, new PartitionRing(config), groupCommitter, offsetStore, ingestLimiter,
+			segmentManager)
 		testFile = new File(UNIT_TEST_PATH, TEST_CLIENT_ID + "-" + TEST_FILENAME)
     }
 
 	def "cleanup"() {
+		groupCommitter.shutdown()
+		writerPool.shutdown()
+		offsetStore.shutdown()
+		segmentManager.shutdown()
 		testFile.delete()
+		new File(UNIT_TEST_PATH, OffsetStore.JOURNAL_NAME).delete()
 		new File(UNIT_TEST_PATH).delete()
 	}
 
@@ -36,6 +67,221 @@ class LogAppenderSpec extends Specification {
 			checkExpectedFileContents(testFile) == true
     }
 
+	def "test that repeated appends reuse one open file"() {
+		when:
+			logAppender.appendToFile(TEST_CLIENT_ID, TEST_FILENAME, testLines.subList(0, 1))
+			logAppender.appendToFile(TEST_CLIENT_ID, TEST_FILENAME, testLines.subList(1, 2))
+		then:
+			writerPool.getOpenWriterCount() == 1
+			checkExpectedFileContents(testFile) == true
+	}
+
+	def "test that a re-sent chunk is acknowledged without writing it again"() {
+		given:
+			LogDto chunk = new LogDto(TEST_FILENAME, "file@1", 0, 14, testLines)
+		when:
+			StreamOffset first = logAppender.appendChunk(TEST_CLIENT_ID, chunk)
+			StreamOffset second = logAppender.appendChunk(TEST_CLIENT_ID, chunk)
+		then:
+			first.getOffset() == 14
+			second.getOffset() == 14
+			checkExpectedFileContents(testFile) == true
+	}
+
+	def "test that an overlapping chunk only writes the new lines"() {
+		given:
+			logAppender.appendChunk(TEST_CLIENT_ID, new LogDto(TEST_FILENAME, "file@1", 0, 7, ["test-1"]))
+		when:
+			StreamOffset result = logAppender.appendChunk(TEST_CLIENT_ID, new LogDto(TEST_FILENAME, "file@1", 0, 14, testLines))
+		then:
+			result.getOffset() == 14
+			checkExpectedFileContents(testFile) == true
+	}
+
+	def "test that a new file identity starts a new epoch"() {
+		given:
+			logAppender.appendChunk(TEST_CLIENT_ID, new LogDto(TEST_FILENAME, "file@1", 0, 7, ["test-1"]))
+		when:
+			StreamOffset result = logAppender.appendChunk(TEST_CLIENT_ID, new LogDto(TEST_FILENAME, "file@2", 0, 7, ["test-2"]))
+		then:
+			result.getFileId() == "file@2"
+			result.getOffset() == 7
+			checkExpectedFileContents(testFile) == true
+	}
+
+	def "test that an empty chunk reports the committed offset"() {
+		given:
+			logAppender.appendChunk(TEST_CLIENT_ID, new LogDto(TEST_FILENAME, "file@1", 0, 14, testLines))
+		when:
+			StreamOffset result = logAppender.appendChunk(TEST_CLIENT_ID, new LogDto(TEST_FILENAME, null, 0, 0, []))
+		then:
+			result.getFileId() == "file@1"
+			result.getOffset() == 14
+	}
+
+	def "test that committed offsets survive a restart"() {
+		given:
+			logAppender.appendChunk(TEST_CLIENT_ID, new LogDto(TEST_FILENAME, "file@1", 0, 14, testLines))
+			writerPool.shutdown()
+			offsetStore.shutdown()
+		when:
+			OffsetStore reloaded = new OffsetStore(config)
+			StreamOffset result = reloaded.get(TEST_CLIENT_ID + "-" + TEST_FILENAME)
+			reloaded.shutdown()
+		then:
+			result.getFileId() == "file@1"
+			result.getOffset() == 14
+	}
+
+	def "test that a chunk whose group failed to sync is written again when it is re-sent"() {
+		given:
+			Config grouped = Mock()
+			grouped.getFilePath() >> UNIT_TEST_PATH
+			grouped.getMaxOpenWriters() >> 4
+			grouped.getWriterIdleTimeout() >> 60
+			grouped.getWriteBufferSize() >> 8192
+			grouped.getFlushPolicy() >> FlushPolicy.CLOSE
+			grouped.getSyncPolicy() >> FlushPolicy.GROUP
+			grouped.getFlushInterval() >> 1000
+			grouped.getGroupCommitThreads() >> 1
+			grouped.getMaxGroupSize() >> 16
+			grouped.getMaxInFlightPerFile() >> 2
+			boolean failSync = true
+			SegmentManager segments = Mock()
+			segments.open(_, _) >> new SegmentManager.ActiveSegment(0, 0, 0, 0, 0, null) {
+				@Override
+				void flushed() {
+					if (failSync) {
+						failSync = false
+						throw new UncheckedIOException(new IOException("No space left on device"))
+					}
+				}
+			}
+			groupCommitter.shutdown()
+			writerPool.shutdown()
+			writerPool = new WriterPool(grouped, offsetStore, segments)
+			groupCommitter = new GroupCommitter(grouped, writerPool)
+			logAppender = new LogAppender(layout, new PartitionRing(grouped), groupCommitter, offsetStore,
+				new IngestLimiter(grouped), segments)
+			String stream = TEST_CLIENT_ID + "-" + TEST_FILENAME
+			LogDto chunk = new LogDto(TEST_FILENAME, "file@1", 0, 14, testLines)
+		when:
+			logAppender.appendChunk(TEST_CLIENT_ID, chunk)
+		then:
+			thrown UncheckedIOException
+			offsetStore.get(stream) == null
+		when:
+			StreamOffset result = logAppender.appendChunk(TEST_CLIENT_ID, chunk)
+		then:
+			result.getOffset() == 14
+			offsetStore.get(stream).getOffset() == 14
+			// the failed sync may still have written the lines, so they are written twice rather than lost
+			testFile.readLines() == testLines + testLines
+	}
+
+	def "test that a binary batch is written and a re-sent one is skipped"() {
+		given:
+			byte[] batch = encodeBatch("file@1", 0, 14, testLines)
+		when:
+			StreamOffset first = logAppender.appendBatch(TEST_CLIENT_ID, new LogBatchReader(new ByteArrayInputStream(batch)))
+			StreamOffset second = logAppender.appendBatch(TEST_CLIENT_ID, new LogBatchReader(new ByteArrayInputStream(batch)))
+		then:
+			first.getOffset() == 14
+			second.getOffset() == 14
+			checkExpectedFileContents(testFile) == true
+	}
+
+	def "test that an overlapping binary batch only writes the new lines"() {
+		given:
+			logAppender.appendChunk(TEST_CLIENT_ID, new LogDto(TEST_FILENAME, "file@1", 0, 7, ["test-1"]))
+		when:
+			StreamOffset result = logAppender.appendBatch(TEST_CLIENT_ID,
+				new LogBatchReader(new ByteArrayInputStream(encodeBatch("file@1", 0, 14, testLines))))
+		then:
+			result.getOffset() == 14
+			checkExpectedFileContents(testFile) == true
+	}
+
+	def "test that a chunk's permit is released once it has been written"() {
+		when:
+			logAppender.appendChunk(TEST_CLIENT_ID, new LogDto(TEST_FILENAME, "file@1", 0, 14, testLines))
+		then:
+			ingestLimiter.getInFlight(TEST_CLIENT_ID + "-" + TEST_FILENAME) == 0
+			ingestLimiter.getInFlightBytes() == 0
+	}
+
+	def "test that a chunk for a file with too many writes in flight is refused"() {
+		given:
+			String stream = TEST_CLIENT_ID + "-" + TEST_FILENAME
+			ingestLimiter.acquire(TEST_CLIENT_ID, stream, 10)
+			ingestLimiter.acquire(TEST_CLIENT_ID, stream, 10)
+		when:
+			logAppender.appendChunk(TEST_CLIENT_ID, new LogDto(TEST_FILENAME, "file@1", 0, 14, testLines))
+		then:
+			IngestRejectedException ex = thrown()
+			!ex.isServiceWide()
+			ex.getRetryAfterSeconds() == 3
+			!testFile.exists() || testFile.length() == 0
+	}
+
+	def "test that a binary batch for a file with too many writes in flight is refused before its lines are read"() {
+		given:
+			String stream = TEST_CLIENT_ID + "-" + TEST_FILENAME
+			ingestLimiter.acquire(TEST_CLIENT_ID, stream, 10)
+			ingestLimiter.acquire(TEST_CLIENT_ID, stream, 10)
+			byte[] batch = encodeBatch("file@1", 0, 14, testLines)
+			ByteArrayInputStream body = new ByteArrayInputStream(batch)
+			LogBatchReader reader = new LogBatchReader(body)
+			int unread = body.available()
+		when:
+			logAppender.appendBatchAsync(TEST_CLIENT_ID, reader)
+		then:
+			thrown IngestRejectedException
+			body.available() == unread
+			ingestLimiter.getInFlightBytes() == 20
+	}
+
+	def "test that a binary batch is admitted on the bytes its header spans and released once written"() {
+		given:
+			config.getMaxInFlightBytes() >> 100
+			ingestLimiter = new IngestLimiter(config)
+			ingestLimiter.acquire(TEST_CLIENT_ID, "other", 90)
+			logAppender = new LogAppender(layout, new PartitionRing(config), groupCommitter, offsetStore, ingestLimiter,
+				segmentManager)
+		when:
+			logAppender.appendBatchAsync(TEST_CLIENT_ID,
+				new LogBatchReader(new ByteArrayInputStream(encodeBatch("file@1", 0, 14, testLines))))
+		then:
+			IngestRejectedException ex = thrown()
+			ex.isServiceWide()
+		when: "a batch without offsets spans nothing, it is held for what it turns out to be"
+			StreamOffset result = logAppender.appendBatch(TEST_CLIENT_ID,
+				new LogBatchReader(new ByteArrayInputStream(encodeBatch("", 0, 0, testLines))))
+		then:
+			result == null
+			checkExpectedFileContents(testFile) == true
+			ingestLimiter.getInFlightBytes() == 90
+	}
+
+	def "test that a file owned by another instance is refused without being written"() {
+		given:
+			Config clustered = Mock()
+			clustered.getInstanceUrl() >> "http://localhost:1"
+			clustered.getInstances() >> ["http://localhost:1", "http://localhost:2"]
+			clustered.getVirtualNodes() >> 16
+			PartitionRing ring = new PartitionRing(clustered)
+			String filename = (1..100).collect { "file-" + it + ".log" }
+				.find { !ring.isOwner(TEST_CLIENT_ID + "-" + it) }
+			logAppender = new LogAppender(layout, ring, groupCommitter, offsetStore, ingestLimiter, segmentManager)
+		when:
+			logAppender.appendChunk(TEST_CLIENT_ID, new LogDto(filename, "file@1", 0, 14, testLines))
+		then:
+			StreamNotOwnedException ex = thrown()
+			ex.getOwnerUrl() == "http://localhost:2"
+			!new File(UNIT_TEST_PATH, TEST_CLIENT_ID + "-" + filename).exists()
+			ingestLimiter.getInFlightBytes() == 0
+	}
+
 	def "test that file error generates Exception"() {
 		given:
 			String invalidFilename = "*<>=,?|\""	// invalid filename chars
@@ -45,6 +291,24 @@ class LogAppenderSpec extends Specification {
 			thrown Exception
 	}
 
+	private static byte[] encodeBatch(String fileId, long startOffset, long endOffset, List<String> lines) {
+		ByteArrayOutputStream raw = new ByteArrayOutputStream()
+		lines.each { raw.write(it.length()); raw.write(it.getBytes("UTF-8")) }
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+		DataOutputStream out = new DataOutputStream(bytes)
+		out.writeInt(LogBatchReader.MAGIC)
+		out.writeByte(Compression.NONE.getId())
+		out.writeUTF(TEST_FILENAME_STATIC)
+		out.writeUTF(fileId)
+		out.writeLong(startOffset)
+		out.writeLong(endOffset)
+		out.writeInt(raw.size())
+		out.writeInt(raw.size())
+		out.write(raw.toByteArray())
+		out.writeInt(0)
+		return bytes.toByteArray()
+	}
+
 	private boolean checkExpectedFileContents(File theFile) {
 		BufferedReader br = new BufferedReader(new FileReader(theFile))
 		ArrayList<String> input = new ArrayList<String>()
@@ -0,0 +1,241 @@
+package com.datastax.log.service.service
+
+import com.datastax.log.service.codec.Compression
+import com.datastax.log.service.config.Config
+import com.datastax.log.service.config.FlushPolicy
+import org.springframework.http.MediaType
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter
+import spock.lang.Specification
+import spock.lang.Subject
+import spock.util.concurrent.PollingConditions
+
+import java.nio.charset.StandardCharsets
+
+class LogReaderSpec extends Specification {
+	String UNIT_TEST_PATH = "__temp-unit-test-reader__"
+
+	@Subject
+	LogReader logReader
+	SegmentManager segmentManager
+	WriterPool writerPool
+	Config config
+	File testDir
+	PollingConditions conditions = new PollingConditions(timeout: 10)
+
+	def "setup"() {
+		testDir = new File(UNIT_TEST_PATH)
+		testDir.mkdirs()
+		config = new Config()
+		config.setFilePath(UNIT_TEST_PATH)
+		config.setMaxOpenWriters(4)
+		config.setFlushPolicy(FlushPolicy.CLOSE)
+		config.setSyncPolicy(FlushPolicy.BATCH)
+		config.setMaxSegmentBytes(20)		// 3 lines of "line-N"
+		config.setMaxSegmentAge(0)
+		config.setSegmentCompression(Compression.NONE)
+		config.setStorageShards(0)
+		config.setIndexInterval(2)
+		config.setMaxFollowers(1)
+	}
+
+	def "cleanup"() {
+		stop()
+		testDir.listFiles().each { it.delete() }
+		testDir.delete()
+	}
+
+	def "test a range of lines is read across rolled segments and the active file"() {
+		given:
+			start()
+			(0..9).each { i -> writeLine("c1-a.log", "line-" + i) }		// segments of lines 0-2, 3-5, 6-8, then 9
+		when:
+			LogRange range = logReader.findLines("c1", "a.log", 2, 8)
+		then:
+			range.getFirstLine() == 2
+			range.getEndLine() == 8
+			range.getStartByte() == 14
+			range.getEndByte() == 56
+			read(range) == (2..7).collect { "line-" + it + "\n" }.join()
+			read(logReader.findLines("c1", "a.log", 0, Long.MAX_VALUE)) == (0..9).collect { "line-" + it + "\n" }.join()
+	}
+
+	def "test a range past the end of the file is cut short"() {
+		given:
+			start()
+			(0..4).each { i -> writeLine("c1-a.log", "line-" + i) }
+		when:
+			LogRange range = logReader.findLines("c1", "a.log", 3, 100)
+			LogRange beyond = logReader.findLines("c1", "a.log", 50, 100)
+		then:
+			range.getFirstLine() == 3
+			range.getEndLine() == 5
+			read(range) == "line-3\nline-4\n"
+			beyond.getFirstLine() == 5
+			beyond.getEndLine() == 5
+			read(beyond) == ""
+	}
+
+	def "test lines are read back from compressed segments"() {
+		given:
+			config.setSegmentCompression(compression)
+			start()
+			(0..6).each { i -> writeLine("c1-a.log", "line-" + i) }
+			conditions.eventually {
+				assert segmentManager.getManifest("c1-a.log").getSegments()*.getCompression() == [compression, compression]
+			}
+		when:
+			LogRange range = logReader.findLines("c1", "a.log", 1, 7)
+		then:
+			read(range) == (1..6).collect { "line-" + it + "\n" }.join()
+		where:
+			compression << [Compression.GZIP, Compression.LZ4, Compression.ZSTD]
+	}
+
+	def "test lines before the oldest segment kept are skipped"() {
+		given:
+			config.getRetention().setMaxBytes(30)
+			start()
+			(0..9).each { i -> writeLine("c1-a.log", "line-" + i) }
+			segmentManager.applyRetention()
+		when:
+			LogRange range = logReader.findLines("c1", "a.log", 0, 5)
+		then:
+			range.getFirstLine() == 6
+			range.getEndLine() == 6
+			logReader.findLines("c1", "a.log", 0, 8).getFirstLine() == 6
+			read(logReader.findLines("c1", "a.log", 0, 8)) == "line-6\nline-7\n"
+	}
+
+	def "test a range of times is read using the time checkpoints"() {
+		given:
+			config.setMaxSegmentBytes(100)
+			start()
+			(0..9).each { i -> writeLine("c1-a.log", "2020-01-01T00:00:0" + i + "Z line-" + i) }
+			writeLine("c1-a.log", "  continued")
+		when:
+			LogRange range = logReader.findTimes("c1", "a.log",
+				LineTimestamps.parse("2020-01-01T00:00:03Z"), LineTimestamps.parse("2020-01-01T00:00:06Z"))
+			LogRange tail = logReader.findTimes("c1", "a.log", LineTimestamps.parse("2020-01-01T00:00:09Z"), Long.MAX_VALUE)
+		then:
+			segmentManager.getIndex("c1-a.log").getTimeCheckpoints() == 4		// lines 2, 4, 6 and 8, line 10 has no timestamp
+			range.getFirstLine() == 3
+			range.getEndLine() == 6
+			read(range).readLines()*.substring(21) == ["line-3", "line-4", "line-5"]
+			read(tail) == "2020-01-01T00:00:09Z line-9\n  continued\n"
+	}
+
+	def "test the event times sent by the agent give time checkpoints on every line of an event"() {
+		given:
+			config.setMaxSegmentBytes(1000)
+			start()
+			segmentManager.register("c1-a.log", "c1")
+		when: "four events of three lines, only the first line of each has a timestamp"
+			writerPool.write("c1-a.log", new File(testDir, "c1-a.log"), { out ->
+				for (int i = 0; i < 4; i++) {
+					((WriterPool.EventTimes) out).eventTime(LineTimestamps.parse("2020-01-01T00:00:0" + i + "Z"))
+					out.write(("2020-01-01T00:00:0" + i + "Z event-" + i + "\n  at a\n  at b\n").getBytes(StandardCharsets.UTF_8))
+				}
+				((WriterPool.EventTimes) out).eventTime(LineTimestamps.NONE)
+				return null
+			} as WriterPool.WriterAction)
+			LineIndex index = segmentManager.getIndex("c1-a.log")
+		then:
+			index.getTimeCheckpoints() == 5		// lines 2, 4, 6, 8 and 10, though only line 6 starts with a timestamp
+			index.floorTime(LineTimestamps.parse("2020-01-01T00:00:01Z"))[0] == 4
+			index.floorTime(LineTimestamps.parse("2020-01-01T00:00:02Z"))[0] == 6		// event 2 starts on line 6, line 8 is inside it
+	}
+
+	def "test index checkpoints are kept in the index file and reloaded after a restart"() {
+		given:
+			start()
+			(0..9).each { i -> writeLine("c1-a.log", "line-" + i) }
+			stop()
+		when:
+			start()
+			LineIndex index = segmentManager.getIndex("c1-a.log")
+		then:
+			new File(testDir, "c1-a.log" + LineIndex.INDEX_SUFFIX).exists()
+			index.getLineCheckpoints() == 5
+			index.floorLine(7) == [6L, 42L] as long[]
+			read(logReader.findLines("c1", "a.log", 7, 9)) == "line-7\nline-8\n"
+	}
+
+	def "test reading a file that was never written is not found"() {
+		given:
+			start()
+		when:
+			logReader.findLines("c1", "missing.log", 0, 10)
+		then:
+			thrown(LogNotFoundException)
+	}
+
+	def "test a follower is sent each line once it has been written"() {
+		given:
+			start()
+			(0..1).each { i -> writeLine("c1-a.log", "line-" + i) }
+			CollectingEmitter emitter = new CollectingEmitter()
+		when:
+			logReader.follow(logReader.findLines("c1", "a.log", Long.MAX_VALUE, Long.MAX_VALUE), emitter)
+			(2..4).each { i -> writeLine("c1-a.log", "line-" + i) }		// rolls into a new segment on the way
+		then:
+			conditions.eventually {
+				assert emitter.text() == "line-2\nline-3\nline-4\n"
+			}
+	}
+
+	def "test followers beyond maxFollowers are turned away"() {
+		given:
+			start()
+			writeLine("c1-a.log", "line-0")
+			LogRange end = logReader.findLines("c1", "a.log", Long.MAX_VALUE, Long.MAX_VALUE)
+			logReader.follow(end, new CollectingEmitter())
+		when:
+			logReader.follow(end, new CollectingEmitter())
+		then:
+			IngestRejectedException ex = thrown()
+			ex.isServiceWide()
+	}
+
+	private void start() {
+		StorageLayout layout = new StorageLayout(config)
+		segmentManager = new SegmentManager(config, layout)
+		writerPool = new WriterPool(config, null, segmentManager)
+		logReader = new LogReader(config, layout, new PartitionRing(config), segmentManager)
+	}
+
+	private void stop() {
+		logReader?.shutdown()
+		writerPool?.shutdown()
+		segmentManager?.shutdown()
+	}
+
+	private void writeLine(String name, String line) {
+		segmentManager.register(name, name.substring(0, name.indexOf('-')))
+		writerPool.write(name, new File(testDir, name), { out ->
+			out.write((line + "\n").getBytes(StandardCharsets.UTF_8))
+			return null
+		} as WriterPool.WriterAction)
+	}
+
+	private String read(LogRange range) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream()
+		logReader.transfer(range, out)
+		return out.toString("UTF-8")
+	}
+
+	/**
+	 * Keeps what is sent to it, rather than writing it to a response
+	 */
+	static class CollectingEmitter extends ResponseBodyEmitter {
+		ByteArrayOutputStream sent = new ByteArrayOutputStream()
+
+		@Override
+		synchronized void send(Object object, MediaType mediaType) throws IOException {
+			sent.write((byte[]) object)
+		}
+
+		synchronized String text() {
+			return sent.toString("UTF-8")
+		}
+	}
+}
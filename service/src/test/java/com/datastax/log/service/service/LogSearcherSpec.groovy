@@ -0,0 +1,212 @@
+package com.datastax.log.service.service
+
+import com.datastax.log.service.codec.Compression
+import com.datastax.log.service.config.Config
+import com.datastax.log.service.config.FlushPolicy
+import spock.lang.Specification
+import spock.lang.Subject
+import spock.util.concurrent.PollingConditions
+
+import java.nio.charset.StandardCharsets
+
+class LogSearcherSpec extends Specification {
+	String UNIT_TEST_PATH = "__temp-unit-test-searcher__"
+
+	@Subject
+	LogSearcher logSearcher
+	SegmentManager segmentManager
+	WriterPool writerPool
+	Config config
+	File testDir
+	PollingConditions conditions = new PollingConditions(timeout: 10)
+
+	def "setup"() {
+		testDir = new File(UNIT_TEST_PATH)
+		testDir.mkdirs()
+		config = new Config()
+		config.setFilePath(UNIT_TEST_PATH)
+		config.setMaxOpenWriters(4)
+		config.setFlushPolicy(FlushPolicy.CLOSE)
+		config.setSyncPolicy(FlushPolicy.BATCH)
+		config.setMaxSegmentBytes(100)		// 3 lines of "2020-01-01T00:00:00Z handled req-N"
+		config.setMaxSegmentAge(0)
+		config.setSegmentCompression(Compression.NONE)
+		config.setStorageShards(0)
+		config.setSearchThreads(2)
+	}
+
+	def "cleanup"() {
+		stop()
+		testDir.listFiles().each { it.delete() }
+		testDir.delete()
+	}
+
+	def "test a line is found and the segments without its tokens are skipped"() {
+		given:
+			start()
+			writeRequests("c1-a.log", 20)
+			int closed = awaitIndexes("c1-a.log")
+		when:
+			SearchResult result = logSearcher.search("req-7", null, Long.MIN_VALUE, Long.MAX_VALUE, 0)
+		then:
+			closed == 6
+			lines(result) == ["c1-a.log:7:2020-01-01T00:00:07Z handled req-7"]
+			result.getSegmentsSearched() == 2		// the segment holding line 7, and the active segment
+			result.getSegmentsSkipped() == 5
+			!result.isLimitReached()
+	}
+
+	def "test the text is matched on token boundaries"() {
+		given:
+			start()
+			writeRequests("c1-a.log", 20)
+			awaitIndexes("c1-a.log")
+		expect:
+			lines(logSearcher.search("req-1", null, Long.MIN_VALUE, Long.MAX_VALUE, 0)) ==
+				["c1-a.log:1:2020-01-01T00:00:01Z handled req-1"]
+			lines(logSearcher.search("eq-1", null, Long.MIN_VALUE, Long.MAX_VALUE, 0)) == []
+			lines(logSearcher.search("d req-19", null, Long.MIN_VALUE, Long.MAX_VALUE, 0)) == []
+			lines(logSearcher.search("handled req-19", null, Long.MIN_VALUE, Long.MAX_VALUE, 0)) ==
+				["c1-a.log:19:2020-01-01T00:00:19Z handled req-19"]
+			lines(logSearcher.search(" req-19", null, Long.MIN_VALUE, Long.MAX_VALUE, 0)) ==
+				["c1-a.log:19:2020-01-01T00:00:19Z handled req-19"]
+	}
+
+	def "test the lines found are returned in order up to the limit"() {
+		given:
+			start()
+			writeRequests("c1-a.log", 20)
+			awaitIndexes("c1-a.log")
+		when:
+			SearchResult result = logSearcher.search("handled", null, Long.MIN_VALUE, Long.MAX_VALUE, 5)
+			SearchResult all = logSearcher.search("handled", null, Long.MIN_VALUE, Long.MAX_VALUE, 0)
+		then:
+			result.getMatches()*.getLine() == [0L, 1L, 2L, 3L, 4L]
+			result.isLimitReached()
+			all.getMatches()*.getLine() == (0L..19L).toList()
+			!all.isLimitReached()
+	}
+
+	def "test segments outside the times wanted are skipped, and lines outside them left out"() {
+		given:
+			start()
+			writeRequests("c1-a.log", 20)
+			int closed = awaitIndexes("c1-a.log")
+		when:
+			SearchResult result = logSearcher.search("handled", null,
+				LineTimestamps.parse("2020-01-01T00:00:10Z"), LineTimestamps.parse("2020-01-01T00:00:12Z"), 0)
+		then:
+			result.getMatches()*.getLine() == [10L, 11L]
+			result.getSegmentsSkipped() == closed - 1		// all but the segment of lines 9-11
+	}
+
+	def "test only the files of a client are searched when it is given"() {
+		given:
+			start()
+			writeRequests("c1-a.log", 5)
+			writeRequests("c2-b.log", 5)
+			writeRequests("c2-c.log", 5)
+		expect:
+			lines(logSearcher.search("req-3", null, Long.MIN_VALUE, Long.MAX_VALUE, 0)) == [
+				"c1-a.log:3:2020-01-01T00:00:03Z handled req-3",
+				"c2-b.log:3:2020-01-01T00:00:03Z handled req-3",
+				"c2-c.log:3:2020-01-01T00:00:03Z handled req-3"]
+			lines(logSearcher.search("req-3", "c2", Long.MIN_VALUE, Long.MAX_VALUE, 0)) == [
+				"c2-b.log:3:2020-01-01T00:00:03Z handled req-3",
+				"c2-c.log:3:2020-01-01T00:00:03Z handled req-3"]
+	}
+
+	def "test compressed segments without indexes are scanned"() {
+		given:
+			config.setSearchIndex(false)
+			config.setSegmentCompression(compression)
+			start()
+			writeRequests("c1-a.log", 10)
+			conditions.eventually {
+				assert segmentManager.getManifest("c1-a.log").getSegments()*.getCompression() == [compression] * 3
+			}
+		when:
+			SearchResult result = logSearcher.search("req-4", null, Long.MIN_VALUE, Long.MAX_VALUE, 0)
+		then:
+			lines(result) == ["c1-a.log:4:2020-01-01T00:00:04Z handled req-4"]
+			result.getSegmentsSearched() == 4
+			result.getSegmentsSkipped() == 0
+			!segmentManager.tokensFile("c1-a.log", 1).exists()
+		where:
+			compression << [Compression.GZIP, Compression.ZSTD]
+	}
+
+	def "test after a restart missing indexes are built and files not written since are searched"() {
+		given:
+			start()
+			writeRequests("c1-a.log", 10)
+			writeRequests("c1-b.log", 2)
+			awaitIndexes("c1-a.log")
+			stop()
+			segmentManager.tokensFile("c1-a.log", 2).delete()
+		when:
+			start()
+			awaitIndexes("c1-a.log")
+			SearchResult result = logSearcher.search("req-1", null, Long.MIN_VALUE, Long.MAX_VALUE, 0)
+		then:
+			segmentManager.tokensFile("c1-a.log", 2).exists()
+			lines(result) == ["c1-a.log:1:2020-01-01T00:00:01Z handled req-1", "c1-b.log:1:2020-01-01T00:00:01Z handled req-1"]
+			segmentManager.streams() == ["c1-a.log", "c1-b.log"]
+	}
+
+	def "test a search needs some text"() {
+		given:
+			start()
+		when:
+			logSearcher.search(text, null, Long.MIN_VALUE, Long.MAX_VALUE, 0)
+		then:
+			thrown IllegalArgumentException
+		where:
+			text << ["", "two\nlines"]
+	}
+
+	private void start() {
+		StorageLayout layout = new StorageLayout(config)
+		segmentManager = new SegmentManager(config, layout)
+		writerPool = new WriterPool(config, null, segmentManager)
+		logSearcher = new LogSearcher(config, layout, new PartitionRing(config), segmentManager)
+	}
+
+	private void stop() {
+		logSearcher?.shutdown()
+		writerPool?.shutdown()
+		segmentManager?.shutdown()
+	}
+
+	private void writeRequests(String name, int count) {
+		(0..<count).each { i ->
+			writeLine(name, String.format("2020-01-01T00:00:%02dZ handled req-%d", i, i))
+		}
+	}
+
+	private void writeLine(String name, String line) {
+		segmentManager.register(name, name.substring(0, name.indexOf('-')))
+		writerPool.write(name, new File(testDir, name), { out ->
+			out.write((line + "\n").getBytes(StandardCharsets.UTF_8))
+			return null
+		} as WriterPool.WriterAction)
+	}
+
+	/**
+	 * Wait for every closed segment of a file to be indexed
+	 *
+	 * @return the number of closed segments
+	 */
+	private int awaitIndexes(String stream) {
+		conditions.eventually {
+			assert segmentManager.getManifest(stream).getSegments().every {
+				segmentManager.tokensFile(stream, it.getSequence()).exists()
+			}
+		}
+		return segmentManager.getManifest(stream).getSegments().size()
+	}
+
+	private static List<String> lines(SearchResult result) {
+		return result.getMatches().collect { it.getStream() + ":" + it.getLine() + ":" + new String(it.getText(), StandardCharsets.UTF_8) }
+	}
+}
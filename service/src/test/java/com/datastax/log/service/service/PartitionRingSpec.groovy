@@ -0,0 +1,73 @@
+package com.datastax.log.service.service
+
+import com.datastax.log.service.config.Config
+import spock.lang.Specification
+
+class PartitionRingSpec extends Specification {
+
+	def "test a lone instance owns every stream"() {
+		given:
+			PartitionRing ring = new PartitionRing(new Config())
+		expect:
+			ring.ownerOf("client-a.log") == null
+			ring.isOwner("client-a.log")
+	}
+
+	def "test every instance agrees on the owner of a stream"() {
+		given:
+			List<String> instances = ["http://h1:8081", "http://h2:8081", "http://h3:8081"]
+			List<PartitionRing> rings = instances.collect { ring(it, instances) }
+			List<String> streams = (1..1000).collect { "client" + (it % 7) + "-file" + it + ".log" }
+		expect:
+			streams.every { stream ->
+				String owner = rings[0].ownerOf(stream)
+				rings.every { it.ownerOf(stream) == owner } && rings.count { it.isOwner(stream) } == 1
+			}
+	}
+
+	def "test streams are spread over the instances"() {
+		given:
+			List<String> instances = ["http://h1:8081", "http://h2:8081", "http://h3:8081"]
+			PartitionRing ring = ring(instances[0], instances)
+		when:
+			Map<String, Integer> counts = (1..3000).collect { ring.ownerOf("client-file" + it + ".log") }.countBy { it }
+		then:
+			counts.keySet() == instances as Set
+			counts.values().every { it > 600 && it < 1400 }
+	}
+
+	def "test adding an instance only moves streams to the new instance"() {
+		given:
+			List<String> before = ["http://h1:8081", "http://h2:8081", "http://h3:8081"]
+			List<String> after = before + ["http://h4:8081"]
+			PartitionRing oldRing = ring(before[0], before)
+			PartitionRing newRing = ring(after[0], after)
+			List<String> streams = (1..3000).collect { "client-file" + it + ".log" }
+		when:
+			List<String> moved = streams.findAll { oldRing.ownerOf(it) != newRing.ownerOf(it) }
+		then:
+			moved.every { newRing.ownerOf(it) == "http://h4:8081" }
+			moved.size() > 400 && moved.size() < 1100
+	}
+
+	def "test instanceUrl must be one of the instances"() {
+		when:
+			ring("http://other:8081", ["http://h1:8081", "http://h2:8081"])
+		then:
+			thrown(IllegalArgumentException)
+	}
+
+	def "test a trailing slash does not change the instance"() {
+		when:
+			PartitionRing ring = ring("http://h1:8081/", ["http://h1:8081", "http://h2:8081/"])
+		then:
+			ring.getInstances() == ["http://h1:8081", "http://h2:8081"]
+	}
+
+	private static PartitionRing ring(String self, List<String> instances) {
+		Config config = new Config()
+		config.setInstanceUrl(self)
+		config.setInstances(instances)
+		return new PartitionRing(config)
+	}
+}
@@ -0,0 +1,148 @@
+package com.datastax.log.service.service
+
+import com.datastax.log.service.codec.Compression
+import com.datastax.log.service.config.Config
+import com.datastax.log.service.config.FlushPolicy
+import com.datastax.log.service.dto.SegmentManifest
+import spock.lang.Specification
+import spock.lang.Subject
+import spock.util.concurrent.PollingConditions
+
+import java.nio.charset.StandardCharsets
+import java.util.zip.GZIPInputStream
+
+class SegmentManagerSpec extends Specification {
+	String UNIT_TEST_PATH = "__temp-unit-test-segments__"
+
+	@Subject
+	SegmentManager segmentManager
+	WriterPool writerPool
+	Config config
+	File testDir
+	PollingConditions conditions = new PollingConditions(timeout: 10)
+
+	def "setup"() {
+		testDir = new File(UNIT_TEST_PATH)
+		testDir.mkdirs()
+		config = new Config()
+		config.setFilePath(UNIT_TEST_PATH)
+		config.setMaxOpenWriters(4)
+		config.setFlushPolicy(FlushPolicy.CLOSE)
+		config.setSyncPolicy(FlushPolicy.BATCH)
+		config.setMaxSegmentBytes(20)
+		config.setMaxSegmentAge(0)
+		config.setSegmentCompression(Compression.NONE)
+		config.setStorageShards(0)
+	}
+
+	def "cleanup"() {
+		stop()
+		testDir.listFiles().each { it.delete() }
+		testDir.delete()
+	}
+
+	def "test file is rolled into a new segment once it reaches maxSegmentBytes"() {
+		given:
+			start()
+		when:
+			(1..5).each { i -> writeLine("c1-a.log", "line-" + i) }		// 7 bytes each, rolls after the 3rd
+			SegmentManifest manifest = segmentManager.getManifest("c1-a.log")
+		then:
+			new File(testDir, "c1-a.log.000001").readLines() == ["line-1", "line-2", "line-3"]
+			new File(testDir, "c1-a.log").readLines() == ["line-4", "line-5"]
+			manifest.getClientId() == "c1"
+			manifest.getSegments().size() == 1
+			manifest.getSegments()[0].getFile() == "c1-a.log.000001"
+			manifest.getSegments()[0].getFirstLine() == 0
+			manifest.getSegments()[0].getEndLine() == 3
+			manifest.getSegments()[0].getStartByte() == 0
+			manifest.getSegments()[0].getEndByte() == 21
+			manifest.getActiveFirstLine() == 3
+			manifest.getActiveStartByte() == 21
+			new File(testDir, "c1-a.log" + SegmentManager.MANIFEST_SUFFIX).exists()
+	}
+
+	def "test closed segments are compressed in the background"() {
+		given:
+			config.setSegmentCompression(Compression.GZIP)
+			start()
+		when:
+			(1..3).each { i -> writeLine("c1-a.log", "line-" + i) }
+		then:
+			conditions.eventually {
+				assert segmentManager.getManifest("c1-a.log").getSegments()[0].getCompression() == Compression.GZIP
+			}
+			!new File(testDir, "c1-a.log.000001").exists()
+			File compressed = new File(testDir, "c1-a.log.000001.gz")
+			segmentManager.getManifest("c1-a.log").getSegments()[0].getFile() == compressed.getName()
+			segmentManager.getManifest("c1-a.log").getSegments()[0].getSize() == compressed.length()
+			new GZIPInputStream(new FileInputStream(compressed)).getText("UTF-8") == "line-1\nline-2\nline-3\n"
+	}
+
+	def "test retention deletes a client's oldest segments until within maxBytes"() {
+		given:
+			config.getRetention().setMaxBytes(50)
+			start()
+			(1..9).each { i -> writeLine("c1-a.log", "line-" + i) }		// 3 segments of 21 bytes
+			(1..3).each { i -> writeLine("c2-b.log", "line-" + i) }		// other client, within its own limit
+		when:
+			segmentManager.applyRetention()
+		then:
+			segmentManager.getManifest("c1-a.log").getSegments()*.getSequence() == [2L, 3L]
+			!new File(testDir, "c1-a.log.000001").exists()
+			new File(testDir, "c1-a.log.000002").exists()
+			segmentManager.getManifest("c2-b.log").getSegments().size() == 1
+	}
+
+	def "test a client's own retention overrides the default"() {
+		given:
+			config.getRetention().setMaxBytes(1000)
+			Config.Retention strict = new Config.Retention()
+			strict.setMaxBytes(1)
+			config.getClientRetention().put("c2", strict)
+			start()
+			(1..3).each { i -> writeLine("c1-a.log", "line-" + i) }
+			(1..3).each { i -> writeLine("c2-b.log", "line-" + i) }
+		when:
+			segmentManager.applyRetention()
+		then:
+			segmentManager.getManifest("c1-a.log").getSegments().size() == 1
+			segmentManager.getManifest("c2-b.log").getSegments().isEmpty()
+			!new File(testDir, "c2-b.log.000001").exists()
+	}
+
+	def "test segments and line numbers carry on after a restart"() {
+		given:
+			start()
+			(1..4).each { i -> writeLine("c1-a.log", "line-" + i) }
+			stop()
+		when:
+			start()
+			(5..6).each { i -> writeLine("c1-a.log", "line-" + i) }
+			SegmentManifest manifest = segmentManager.getManifest("c1-a.log")
+		then:
+			manifest.getSegments()*.getSequence() == [1L, 2L]
+			manifest.getSegments()[1].getFirstLine() == 3
+			manifest.getSegments()[1].getEndLine() == 6
+			new File(testDir, "c1-a.log.000002").readLines() == ["line-4", "line-5", "line-6"]
+			!new File(testDir, "c1-a.log").exists() || new File(testDir, "c1-a.log").length() == 0
+	}
+
+	private void start() {
+		segmentManager = new SegmentManager(config, new StorageLayout(config))
+		writerPool = new WriterPool(config, null, segmentManager)
+	}
+
+	private void stop() {
+		writerPool?.shutdown()
+		segmentManager?.shutdown()
+	}
+
+	private void writeLine(String name, String line) {
+		segmentManager.register(name, name.substring(0, name.indexOf('-')))
+		writerPool.write(name, new File(testDir, name), { out ->
+			out.write((line + "\n").getBytes(StandardCharsets.UTF_8))
+			return null
+		} as WriterPool.WriterAction)
+	}
+}
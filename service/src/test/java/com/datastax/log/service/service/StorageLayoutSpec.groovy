@@ -0,0 +1,42 @@
+package com.datastax.log.service.service
+
+import com.datastax.log.service.config.Config
+import spock.lang.Specification
+
+class StorageLayoutSpec extends Specification {
+	String UNIT_TEST_PATH = "__temp-unit-test-layout__"
+
+	def "cleanup"() {
+		new File(UNIT_TEST_PATH).deleteDir()
+	}
+
+	def "test files are spread over the shard directories, which are created up front"() {
+		given:
+			StorageLayout layout = layout(256)
+		when:
+			List<File> directories = (1..2000).collect { layout.fileFor("client-file" + it + ".log").getParentFile() }
+		then:
+			new File(UNIT_TEST_PATH).listFiles().size() == 256
+			new File(UNIT_TEST_PATH, "00").isDirectory()
+			new File(UNIT_TEST_PATH, "ff").isDirectory()
+			directories.every { it.getParentFile() == new File(UNIT_TEST_PATH) && it.isDirectory() }
+			directories.toSet().size() > 240
+			layout.fileFor("client-a.log") == layout.fileFor("client-a.log")
+			layout.fileFor("client-a.log").getName() == "client-a.log"
+	}
+
+	def "test zero shards keeps the files in filePath"() {
+		given:
+			StorageLayout layout = layout(0)
+		expect:
+			layout.fileFor("client-a.log") == new File(UNIT_TEST_PATH, "client-a.log")
+			layout.directories() == [new File(UNIT_TEST_PATH)]
+	}
+
+	private StorageLayout layout(int shards) {
+		Config config = new Config()
+		config.setFilePath(UNIT_TEST_PATH)
+		config.setStorageShards(shards)
+		return new StorageLayout(config)
+	}
+}
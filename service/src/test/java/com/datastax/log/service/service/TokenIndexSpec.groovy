@@ -0,0 +1,94 @@
+package com.datastax.log.service.service
+
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+class TokenIndexSpec extends Specification {
+	File testDir = new File("__temp-unit-test-tokens__")
+
+	def "setup"() {
+		testDir.mkdirs()
+	}
+
+	def "cleanup"() {
+		testDir.listFiles().each { it.delete() }
+		testDir.delete()
+	}
+
+	def "test the tokens of a segment are found and most others are not"() {
+		given:
+			TokenIndex index = build((0..<200).collect { "2020-01-01T00:00:00Z GET /orders/" + it + " user=alice_" + it }, 10000)
+		expect:
+			(0..<200).every { index.mightContain(hashes("orders/" + it)) }
+			index.mightContain(hashes("user=alice_42"))
+			index.mightContain(hashes("GET"))
+			(0..<200).count { index.mightContain(hashes("bob_" + it)) } < 10
+			!index.mightContain(hashes("POST"))
+	}
+
+	def "test the earliest and latest times of the segment are kept"() {
+		given:
+			TokenIndex index = build(["  no time", "2020-01-01T10:00:05Z b", "2020-01-01T10:00:01Z a", "  at x",
+				"2020-01-01T10:00:09Z c"], 100)
+		expect:
+			index.getMinTime() == LineTimestamps.parse("2020-01-01T10:00:01Z")
+			index.getMaxTime() == LineTimestamps.parse("2020-01-01T10:00:09Z")
+			index.overlaps(LineTimestamps.parse("2020-01-01T10:00:09Z"), Long.MAX_VALUE)
+			!index.overlaps(LineTimestamps.parse("2020-01-01T10:00:10Z"), Long.MAX_VALUE)
+			!index.overlaps(Long.MIN_VALUE, LineTimestamps.parse("2020-01-01T10:00:01Z"))
+	}
+
+	def "test a segment without timestamps overlaps every range"() {
+		given:
+			TokenIndex index = build(["no time here"], 100)
+		expect:
+			index.getMinTime() == LineTimestamps.NONE
+			index.overlaps(0, 1)
+	}
+
+	def "test the filter is folded down to the number of tokens"() {
+		given:
+			TokenIndex few = build(["just a few tokens"], 64L * 1024 * 1024)
+			TokenIndex many = build((0..<20000).collect { "token-" + it }, 20000 * 12)
+		expect:
+			few.getFilterBits() == 1024
+			many.getFilterBits() >= 20000 * 7 / 0.5 / 2		// no more than half full
+			(0..<20000).every { many.mightContain(hashes("token-" + it)) }
+	}
+
+	def "test text is split into distinct tokens"() {
+		expect:
+			TokenIndex.tokenHashes(bytes(text)).length == count
+		where:
+			text                     | count
+			"req-42"                 | 2
+			"a a a"                  | 1
+			"café=été"               | 2
+			"---"                    | 0
+			"id=7f3a_9 status:500"   | 4
+	}
+
+	def "test a missing or foreign file has no index"() {
+		given:
+			File other = new File(testDir, "other.tokens")
+			other.text = "not an index, but long enough to have a header"
+		expect:
+			TokenIndex.open(new File(testDir, "missing.tokens")) == null
+			TokenIndex.open(other) == null
+	}
+
+	private TokenIndex build(List<String> lines, long segmentBytes) {
+		File file = new File(testDir, "segment.000001" + TokenIndex.TOKENS_SUFFIX)
+		TokenIndex.build(new ByteArrayInputStream(bytes(lines.collect { it + "\n" }.join())), segmentBytes, file)
+		return TokenIndex.open(file)
+	}
+
+	private static long[] hashes(String text) {
+		return TokenIndex.tokenHashes(bytes(text))
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.UTF_8)
+	}
+}
@@ -0,0 +1,89 @@
+package com.datastax.log.service.service
+
+import com.datastax.log.service.config.Config
+import com.datastax.log.service.config.FlushPolicy
+import spock.lang.Specification
+import spock.lang.Subject
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class WriterPoolSpec extends Specification {
+	String UNIT_TEST_PATH = "__temp-unit-test-pool__"
+
+	@Subject
+	WriterPool writerPool
+	Config config
+	File testDir
+
+	def "setup"() {
+		testDir = new File(UNIT_TEST_PATH)
+		testDir.mkdirs()
+		config = Mock()
+		config.getMaxOpenWriters() >> 2
+		config.getWriterIdleTimeout() >> 60
+		config.getWriteBufferSize() >> 8192
+		config.getFlushPolicy() >> FlushPolicy.CLOSE
+		config.getSyncPolicy() >> FlushPolicy.CLOSE
+		config.getFlushInterval() >> 1000
+		writerPool = new WriterPool(config, null, null)
+	}
+
+	def "cleanup"() {
+		writerPool.shutdown()
+		testDir.listFiles().each { it.delete() }
+		testDir.delete()
+	}
+
+	def "test least recently used writer is closed when pool is full"() {
+		when:
+			writeLine("a.log", "a")
+			writeLine("b.log", "b")
+			writeLine("a.log", "a")		// b is now least recently used
+			writeLine("c.log", "c")
+		then:
+			writerPool.getOpenWriterCount() == 2
+			// evicted writer was flushed on close, the others still hold their lines in the buffer
+			new File(testDir, "b.log").text == "b\n"
+			new File(testDir, "a.log").length() == 0
+	}
+
+	def "test shutdown flushes all open writers"() {
+		given:
+			writeLine("a.log", "a")
+			writeLine("a.log", "b")
+		when:
+			writerPool.shutdown()
+		then:
+			writerPool.getOpenWriterCount() == 0
+			new File(testDir, "a.log").text == "a\nb\n"
+	}
+
+	def "test concurrent writes to the same file do not interleave"() {
+		given:
+			def executor = Executors.newFixedThreadPool(8)
+			int threads = 8
+			int linesPerThread = 500
+		when:
+			(0..<threads).each { t ->
+				executor.submit {
+					(0..<linesPerThread).each { i -> writeLine("same.log", "thread-" + t + "-line-" + i) }
+				}
+			}
+			executor.shutdown()
+			executor.awaitTermination(30, TimeUnit.SECONDS)
+			writerPool.shutdown()
+			List<String> lines = new File(testDir, "same.log").readLines()
+		then:
+			lines.size() == threads * linesPerThread
+			lines.every { it ==~ /thread-\d+-line-\d+/ }
+	}
+
+	private void writeLine(String name, String line) {
+		writerPool.write(name, new File(testDir, name), { out ->
+			out.write((line + "\n").getBytes(StandardCharsets.UTF_8))
+			return null
+		} as WriterPool.WriterAction)
+	}
+}
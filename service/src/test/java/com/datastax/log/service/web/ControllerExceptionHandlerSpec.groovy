@@ -1,9 +1,16 @@
 package com.datastax.log.service.web
 
+import com.datastax.log.service.codec.CorruptBatchException
 import com.datastax.log.service.dto.ServerResponseDto
+import com.datastax.log.service.service.IngestRejectedException
+import com.datastax.log.service.service.LogNotFoundException
+import com.datastax.log.service.service.StreamNotOwnedException
+import org.springframework.http.ResponseEntity
 import spock.lang.Specification
 import spock.lang.Subject
 
+import javax.servlet.http.HttpServletRequest
+
 class ControllerExceptionHandlerSpec extends Specification {
 
     @Subject
@@ -22,4 +29,47 @@ class ControllerExceptionHandlerSpec extends Specification {
 			dto.getStatus() == 500
 			dto.getMessage().contains("foobar")
     }
+
+	def "test that a rejected request gets 429 or 503 with a Retry-After"() {
+		when:
+			ResponseEntity<ServerResponseDto> response =
+				handler.handleIngestRejected(new IngestRejectedException("busy", serviceWide, 2))
+		then:
+			response.getStatusCodeValue() == status
+			response.getBody().getStatus() == status
+			response.getHeaders().getFirst("Retry-After") == "2"
+			response.getBody().getRetryAfter() == 2
+		where:
+			serviceWide | status
+			false       | 429
+			true        | 503
+	}
+
+	def "test that a file owned by another instance is redirected to the same path there"() {
+		given:
+			HttpServletRequest request = Mock()
+			request.getRequestURI() >> "/log-aggregator/clientA"
+		when:
+			ResponseEntity<ServerResponseDto> response = handler.handleStreamNotOwned(
+				new StreamNotOwnedException("clientA-a.log", "http://host2:8082"), request)
+		then:
+			response.getStatusCodeValue() == 307
+			response.getHeaders().getFirst("Location") == "http://host2:8082/log-aggregator/clientA"
+			response.getBody().getMessage().contains("http://host2:8082")
+	}
+
+	def "test that a read of an unknown file gets 404 and bad parameters get 400"() {
+		expect:
+			handler.handleLogNotFound(new LogNotFoundException("clientA-foo.log")).getStatus() == 404
+			handler.handleIllegalArgument(new IllegalArgumentException("Not a timestamp: x")).getStatus() == 400
+			handler.handleIllegalArgument(new IllegalArgumentException("Not a timestamp: x")).getMessage() == "Not a timestamp: x"
+	}
+
+	def "test that a body which is not a valid log batch gets 400"() {
+		when:
+			ServerResponseDto dto = handler.handleCorruptBatch(new CorruptBatchException("Corrupt log batch, short block"))
+		then:
+			dto.getStatus() == 400
+			dto.getMessage() == "Corrupt log batch, short block"
+	}
 }
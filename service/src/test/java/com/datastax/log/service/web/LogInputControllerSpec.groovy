@@ -1,11 +1,23 @@
 package com.datastax.log.service.web
 
+import com.datastax.log.service.codec.Compression
+import com.datastax.log.service.codec.CorruptBatchException
+import com.datastax.log.service.codec.LogBatchReader
 import com.datastax.log.service.dto.LogDto
+import com.datastax.log.service.dto.MultiLogDto
+import com.datastax.log.service.dto.MultiLogResponseDto
 import com.datastax.log.service.dto.ServerResponseDto
+import com.datastax.log.service.service.IngestRejectedException
 import com.datastax.log.service.service.LogAppender
+import com.datastax.log.service.service.StreamNotOwnedException
+import com.datastax.log.service.service.StreamOffset
 import spock.lang.Specification
 import spock.lang.Subject
 
+import javax.servlet.http.HttpServletRequest
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CompletableFuture
+
 class LogInputControllerSpec extends Specification {
 
 	@Subject
@@ -24,10 +36,131 @@ class LogInputControllerSpec extends Specification {
 	}
 
 	def "test that no exception returns success"() {
+		given:
+			logAppender.appendChunkAsync("clientA", logDto) >> CompletableFuture.completedFuture(null)
  		when:
-			ServerResponseDto dto = controller.postToLog("clientA", logDto)
+			ServerResponseDto dto = controller.postToLog("clientA", logDto).get()
 		then:
 			dto.getStatus() == 200
 			dto.getMessage().contains("Success")
 	}
+
+	def "test that a written request reports the service's load"() {
+		given:
+			logAppender.appendChunkAsync("clientA", logDto) >> CompletableFuture.completedFuture(null)
+			logAppender.getLoad() >> 0.456
+		when:
+			ServerResponseDto dto = controller.postToLog("clientA", logDto).get()
+		then:
+			dto.getLoad() == 0.46d
+	}
+
+	def "test that the response reports the committed offset once the write completes"() {
+		given:
+			CompletableFuture<StreamOffset> written = new CompletableFuture<>()
+			logAppender.appendChunkAsync("clientA", logDto) >> written
+		when:
+			CompletableFuture<ServerResponseDto> response = controller.postToLog("clientA", logDto)
+			boolean doneBeforeWrite = response.isDone()
+			written.complete(new StreamOffset("file@1", 14))
+		then:
+			!doneBeforeWrite
+			response.get().getFileId() == "file@1"
+			response.get().getCommittedOffset() == 14
+	}
+
+	def "test each entry of a multi-file upload is answered on its own"() {
+		given:
+			LogDto written = new LogDto("written.log", "file@1", 0, 14, testLines)
+			LogDto busy = new LogDto("busy.log", testLines)
+			LogDto elsewhere = new LogDto("elsewhere.log", testLines)
+			LogDto failed = new LogDto("failed.log", testLines)
+			logAppender.appendChunkAsync("clientA", written) >> CompletableFuture.completedFuture(new StreamOffset("file@1", 14))
+			logAppender.appendChunkAsync("clientA", busy) >> { throw new IngestRejectedException("busy", false, 3) }
+			logAppender.appendChunkAsync("clientA", elsewhere) >> { throw new StreamNotOwnedException("clientA-elsewhere.log", "http://other:8082") }
+			logAppender.appendChunkAsync("clientA", failed) >> failedWrite(new IOException("disk full"))
+		when:
+			MultiLogResponseDto response = controller.postFilesToLog("clientA",
+				new MultiLogDto([written, busy, elsewhere, failed]), batchRequest()).get()
+		then:
+			response.getStatus() == 200
+			response.getEntries()*.getStatus() == [200, 429, 307, 500]
+			response.getEntries()[0].getCommittedOffset() == 14
+			response.getEntries()[1].getRetryAfter() == 3
+			response.getEntries()[0].getRetryAfter() == null
+			response.getEntries()[2].getMessage() == "http://other:8082/log-aggregator/clientA"
+	}
+
+	def "test the batches of a binary multi-file upload are each appended, whether or not earlier ones were"() {
+		given:
+			byte[] body = encodeMulti(["one.log": ["a", "b"], "two.log": ["c"], "three.log": ["d", "e"]])
+			List<String> appended = []
+			logAppender.appendBatchAsync("clientA", _) >> { String clientId, LogBatchReader batch ->
+				if (batch.getFilename() == "two.log") {
+					throw new IngestRejectedException("busy", true, 3)		// turned away before reading it
+				}
+				while (batch.nextLine()) {
+					appended.add(new String(batch.lineBuffer(), batch.lineStart(), batch.lineLength(), StandardCharsets.UTF_8))
+				}
+				return CompletableFuture.completedFuture(null)
+			}
+		when:
+			MultiLogResponseDto response = controller.postFileBatchesToLog("clientA",
+				new ByteArrayInputStream(body), batchRequest()).get()
+		then:
+			response.getEntries()*.getStatus() == [200, 503, 200]
+			appended == ["a", "b", "d", "e"]
+	}
+
+	def "test a binary multi-file upload claiming an invalid number of batches is refused as corrupt"() {
+		given:
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+			DataOutputStream out = new DataOutputStream(bytes)
+			out.writeInt(LogBatchReader.MULTI_MAGIC)
+			out.writeInt(count)
+		when:
+			controller.postFileBatchesToLog("clientA", new ByteArrayInputStream(bytes.toByteArray()), batchRequest())
+		then:
+			thrown CorruptBatchException
+			0 * logAppender._
+		where:
+			count << [-1, LogBatchReader.MAX_BATCHES + 1, Integer.MAX_VALUE]
+	}
+
+	private HttpServletRequest batchRequest() {
+		HttpServletRequest request = Mock()
+		request.getRequestURI() >> "/log-aggregator/clientA/batch"
+		return request
+	}
+
+	private static CompletableFuture<StreamOffset> failedWrite(Exception ex) {
+		CompletableFuture<StreamOffset> written = new CompletableFuture<>()
+		written.completeExceptionally(ex)
+		return written
+	}
+
+	private static byte[] encodeMulti(Map<String, List<String>> files) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+		DataOutputStream out = new DataOutputStream(bytes)
+		out.writeInt(LogBatchReader.MULTI_MAGIC)
+		out.writeInt(files.size())
+		files.each { filename, lines ->
+			out.writeInt(LogBatchReader.MAGIC)
+			out.writeByte(Compression.NONE.getId())
+			out.writeUTF(filename)
+			out.writeUTF("")
+			out.writeLong(0)
+			out.writeLong(0)
+			ByteArrayOutputStream raw = new ByteArrayOutputStream()
+			lines.each { line ->
+				raw.write(line.length())		// short test lines fit in a one byte varint
+				raw.write(line.getBytes(StandardCharsets.UTF_8))
+			}
+			out.writeInt(raw.size())
+			out.writeInt(raw.size())
+			out.write(raw.toByteArray())
+			out.writeInt(0)
+		}
+		return bytes.toByteArray()
+	}
 }